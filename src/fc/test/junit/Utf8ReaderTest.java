@@ -0,0 +1,309 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fc-util-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.test.junit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import fc.util.BaInputStream;
+import fc.util.RaInputStream;
+import fc.util.Utf8Reader;
+
+/**
+ * Tests of the byte positions kept by {@link Utf8Reader} and of seeking in
+ * {@link RaInputStream}. Positions are compared with those computed from the encoded input, where
+ * the position of a char is that of the first byte of its code point, and the second char of a
+ * supplementary code point has position -1.
+ */
+public class Utf8ReaderTest extends TestCase {
+
+    private static final int WINDOW = 1 << Utf8Reader.MAP_BITS;
+    // Size of the blocks of positions in the reader
+    private static final int BLOCK = 32;
+
+    private static final int[] CODE_POINTS = { 'a', 0xe9, 0x7ff, 0x20ac, 0xfffd, 0x1f600,
+                                              0x10ffff };
+
+    private File file;
+
+
+    @Override
+    protected void tearDown() {
+        if (file != null) file.delete();
+    }
+
+
+    public void testAscii() throws IOException {
+        for (int length : new int[] { 0, 1, BLOCK - 1, BLOCK, BLOCK + 1, WINDOW,
+                                     3 * WINDOW + 5 }) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < length; i++)
+                sb.append((char) ('a' + i % 26));
+            checkPositions(sb.toString(), new Random(length));
+        }
+    }
+
+
+    // Each kind of char at the first, last and following position of a block
+    public void testBlockBoundaries() throws IOException {
+        for (int cp : CODE_POINTS) {
+            for (int at : new int[] { 0, 1, BLOCK - 2, BLOCK - 1, BLOCK, BLOCK + 1, WINDOW - 1,
+                                     WINDOW, 2 * WINDOW - 1 }) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < at; i++)
+                    sb.append('x');
+                sb.appendCodePoint(cp);
+                for (int i = 0; i < 2 * BLOCK; i++)
+                    sb.append('y');
+                sb.appendCodePoint(cp).appendCodePoint(cp).append('z');
+                checkPositions(sb.toString(), new Random(at * 31 + cp));
+            }
+        }
+    }
+
+
+    public void testMixed() throws IOException {
+        Random rnd = new Random(4711);
+        for (int round = 0; round < 20; round++) {
+            checkPositions(mixed(1 + rnd.nextInt(5 * WINDOW), rnd), rnd);
+        }
+    }
+
+
+    public void testNewCharZero() throws IOException {
+        Random rnd = new Random(42);
+        String s = mixed(4 * WINDOW, rnd);
+        byte[] bytes = s.getBytes("UTF-8");
+        long[] expected = positions(s);
+        Utf8Reader r = new Utf8Reader(new RaInputStream(new RandomAccessFile(write(bytes), "r")));
+        try {
+            for (int round = 0; round < 50; round++) {
+                // Restart at any code point, before or after the last start
+                int start;
+                do {
+                    start = rnd.nextInt(s.length());
+                } while (expected[start] < 0);
+                r.newCharZero(expected[start]);
+                int n = rnd.nextInt(Math.min(s.length() - start, 3 * WINDOW) + 1);
+                long[] relative = new long[n + 1];
+                for (int i = 0; i <= n; i++) {
+                    long pos = expected[start + i];
+                    relative[i] = pos < 0 ? -1 : pos - expected[start];
+                }
+                char[] cs = new char[n];
+                assertEquals(n, readFully(r, cs, rnd, relative, s, start));
+                assertEquals(s.substring(start, start + n), new String(cs));
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+
+    public void testRaSeek() throws IOException {
+        Random rnd = new Random(17);
+        byte[] bytes = new byte[20 * WINDOW];
+        rnd.nextBytes(bytes);
+        RaInputStream in = new RaInputStream(new RandomAccessFile(write(bytes), "r"));
+        try {
+            long pos = 0;
+            for (int round = 0; round < 2000; round++) {
+                boolean seek = true;
+                switch (rnd.nextInt(4)) {
+                    case 0:
+                        // Backwards, often within the buffer
+                        pos = Math.max(0, pos - rnd.nextInt(WINDOW + 2));
+                        break;
+                    case 1:
+                        pos = Math.min(bytes.length, pos + rnd.nextInt(64));
+                        break;
+                    case 2:
+                        pos = rnd.nextInt(bytes.length + 1);
+                        break;
+                    default:
+                        // The read continues from the last one
+                        seek = false;
+                        break;
+                }
+                if (seek) in.seek(pos);
+                int len = rnd.nextBoolean() ? rnd.nextInt(64) : rnd.nextInt(4 * WINDOW);
+                byte[] b = new byte[len + 2];
+                int n = rnd.nextInt(8) == 0 && len > 0 ? single(in, b, len) : in.read(b, 1, len);
+                int expected = (int) Math.min(len, bytes.length - pos);
+                if (expected == 0 && len > 0) {
+                    assertEquals(-1, n);
+                    continue;
+                }
+                assertTrue("Short read " + n + " at " + pos, n > 0 || len == 0);
+                assertTrue(n <= expected);
+                assertTrue("Bad bytes at " + pos, Arrays.equals(Arrays.copyOfRange(bytes,
+                                                                                  (int) pos,
+                                                                                  (int) pos + n),
+                                                                Arrays.copyOfRange(b, 1, 1 + n)));
+                pos += n;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+
+    // Long reads without seeks put the stream in streaming mode, where reads skip the buffer
+    public void testRaStreaming() throws IOException {
+        Random rnd = new Random(5);
+        byte[] bytes = new byte[40 * WINDOW];
+        rnd.nextBytes(bytes);
+        RaInputStream in = new RaInputStream(new RandomAccessFile(write(bytes), "r"));
+        try {
+            for (int back : new int[] { 1, 10, WINDOW - 1, WINDOW, 3 * WINDOW }) {
+                in.seek(0);
+                int pos = 0;
+                byte[] b = new byte[2 * WINDOW];
+                while (pos < 30 * WINDOW) {
+                    int n = in.read(b, 0, b.length);
+                    assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, pos, pos + n),
+                                             Arrays.copyOf(b, n)));
+                    pos += n;
+                }
+                in.seek(pos - back);
+                int n = in.read(b, 0, 64);
+                assertTrue("Bad bytes " + back + " back", Arrays
+                    .equals(Arrays.copyOfRange(bytes, pos - back, pos - back + n), Arrays
+                        .copyOf(b, n)));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+
+    // Decodes s with random read sizes from a byte array and from a file, and checks the
+    // positions of the chars in the window after each read
+    private void checkPositions(String s, Random rnd) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        long[] expected = positions(s);
+        File f = write(bytes);
+        for (int source = 0; source < 2; source++) {
+            Utf8Reader r = new Utf8Reader(source == 0 ? new BaInputStream(bytes)
+                : new RaInputStream(new RandomAccessFile(f, "r")));
+            try {
+                char[] cs = new char[s.length()];
+                assertEquals(cs.length, readFully(r, cs, rnd, expected, s, 0));
+                assertEquals(s, new String(cs));
+                assertEquals(0, r.read(new char[1], 0, 1));
+            } finally {
+                r.close();
+            }
+        }
+    }
+
+
+    // Reads into cs in pieces of random size, checking positions after each one
+    private static int readFully(Utf8Reader r, char[] cs, Random rnd, long[] expected, String s,
+                                 int start) throws IOException {
+        int n = 0;
+        while (n < cs.length) {
+            int len = Math.min(cs.length - n, rnd.nextBoolean() ? 1 + rnd.nextInt(BLOCK + 1)
+                : 1 + rnd.nextInt(2 * WINDOW));
+            int read = rnd.nextInt(4) == 0 ? single(r, cs, n) : r.read(cs, n, len);
+            if (read <= 0) break;
+            n += read;
+            checkWindow(r, expected, n, s, start);
+        }
+        return n;
+    }
+
+
+    // Checks the positions of the chars before n, as far back as the window reaches
+    private static void checkWindow(Utf8Reader r, long[] expected, int n, String s, int start)
+            throws IOException {
+        // A pending low surrogate has already been counted by the reader
+        boolean pending = n > 0 && Character.isHighSurrogate(s.charAt(start + n - 1));
+        int first = Math.max(0, n - (pending ? WINDOW - 2 : WINDOW - 1));
+        for (int i = first; i <= n; i++) {
+            assertEquals("Position of char " + i, expected[i], r.getStreamPos(i));
+        }
+        if (first > 0 && !pending) {
+            try {
+                r.getStreamPos(first - 1);
+                fail("Position outside the window mapped");
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+
+    private static int single(Utf8Reader r, char[] cs, int off) throws IOException {
+        int c = r.read();
+        if (c < 0) return 0;
+        cs[off] = (char) c;
+        return 1;
+    }
+
+
+    private static int single(RaInputStream in, byte[] b, int len) throws IOException {
+        int n = 0;
+        for (int c; n < len && (c = in.read()) >= 0; n++)
+            b[1 + n] = (byte) c;
+        return n > 0 ? n : -1;
+    }
+
+
+    // Byte positions of the chars of s and of its end
+    private static long[] positions(String s) throws IOException {
+        long[] pos = new long[s.length() + 1];
+        long p = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int cp = s.codePointAt(i);
+            pos[i] = p;
+            p += new String(Character.toChars(cp)).getBytes("UTF-8").length;
+            if (Character.isSupplementaryCodePoint(cp)) pos[++i] = -1;
+        }
+        pos[s.length()] = p;
+        return pos;
+    }
+
+
+    // Runs of ASCII, of all lengths around a block, and of other chars
+    private static String mixed(int length, Random rnd) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            int run = rnd.nextInt(3 * BLOCK);
+            if (rnd.nextBoolean()) {
+                for (int i = 0; i < run; i++)
+                    sb.append((char) (' ' + rnd.nextInt(95)));
+            } else {
+                for (int i = 0; i < run % 8 + 1; i++)
+                    sb.appendCodePoint(CODE_POINTS[1 + rnd.nextInt(CODE_POINTS.length - 1)]);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    private File write(byte[] bytes) throws IOException {
+        if (file == null) {
+            file = File.createTempFile("utf8", ".txt");
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
@@ -12,6 +12,10 @@ package fc.test.junit;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 
@@ -22,19 +26,26 @@ import org.kxml2.io.KXmlParser;
 import fc.util.Util;
 import fc.util.log.Log;
 import fc.util.log.LogLevels;
+import fc.xml.xas.Comment;
+import fc.xml.xas.EntityRef;
 import fc.xml.xas.FormatFactory;
 import fc.xml.xas.Item;
 import fc.xml.xas.ItemList;
 import fc.xml.xas.ItemSource;
+import fc.xml.xas.MappedXmlSource;
 import fc.xml.xas.MutablePointer;
 import fc.xml.xas.ParserSource;
 import fc.xml.xas.Pointer;
+import fc.xml.xas.Qname;
 import fc.xml.xas.Queryable;
 import fc.xml.xas.SerializerTarget;
+import fc.xml.xas.StartTag;
+import fc.xml.xas.Text;
 import fc.xml.xas.XasFragment;
 import fc.xml.xas.XasUtil;
 import fc.xml.xas.XmlOutput;
 import fc.xml.xas.XmlPullSource;
+import fc.xml.xas.index.DeweyKey;
 import fc.xml.xas.index.VersionedDocument;
 import fc.xml.xas.index.VersionedPointer;
 import fc.xml.xas.typing.Codec;
@@ -242,6 +253,139 @@ public class XasTest extends TestCase {
         }
     }
 
+
+    public void testLongVersionChain() {
+        Log.log("Begin test", LogLevels.DEBUG);
+        for (Queryable fragment : XmlData.getTrees()) {
+            VersionedPointer p001 = (VersionedPointer) fragment.query(new int[] { 0, 0, 1 });
+            VersionedPointer p012 = (VersionedPointer) fragment.query(new int[] { 0, 1, 2 });
+            MutablePointer p010 = (MutablePointer) fragment.query(new int[] { 0, 1, 0 });
+            int n = 1000;
+            for (int i = 0; i < n; i++) {
+                p010.insert(XmlData.getFragment());
+            }
+            assertEquals(DeweyKey.construct(new int[] { 0, 0, 1 }), p001.getKey());
+            assertEquals(DeweyKey.construct(new int[] { 0, 1, n + 2 }), p012.getKey());
+            assertEquals("n012", ((StartTag) p012.get()).getName().getName());
+            p010.delete();
+            assertEquals(DeweyKey.construct(new int[] { 0, 1, n + 1 }), p012.getKey());
+            assertEquals("n012", ((StartTag) p012.get()).getName().getName());
+            assertEquals("n001", ((StartTag) p001.get()).getName().getName());
+        }
+    }
+
+
+    public void testVersionChainCollected() throws Exception {
+        Log.log("Begin test", LogLevels.DEBUG);
+        Field version = VersionedDocument.class.getDeclaredField("version");
+        version.setAccessible(true);
+        for (Queryable fragment : XmlData.getTrees()) {
+            WeakReference<Object> first = new WeakReference<Object>(version.get(fragment));
+            MutablePointer p010 = (MutablePointer) fragment.query(new int[] { 0, 1, 0 });
+            for (int i = 0; i < 1000; i++) {
+                p010.insert(XmlData.getFragment());
+            }
+            for (int i = 0; i < 20 && first.get() != null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertNull("Unreachable version kept alive", first.get());
+            p010.delete();
+        }
+    }
+
+
+    public void testMappedSource() throws IOException {
+        Log.log("Begin test", LogLevels.DEBUG);
+        for (XasFragment f : fragments) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            XmlOutput target = new XmlOutput(bout, "UTF-8");
+            for (Item item : f) {
+                target.append(item);
+            }
+            target.flush();
+            byte[] doc = bout.toByteArray();
+            ItemSource expected = new XmlPullSource(new KXmlParser(),
+                                                    new ByteArrayInputStream(doc));
+            ItemSource actual = new MappedXmlSource(ByteBuffer.wrap(doc));
+            for (Item item = expected.next(); item != null; item = expected.next()) {
+                assertEquals(item, actual.next());
+            }
+            assertNull(actual.next());
+        }
+    }
+
+
+    public void testMappedCdataEnd() throws IOException {
+        ItemSource cdata = new MappedXmlSource(ByteBuffer.wrap("<a><![CDATA[x]]]></a>"
+            .getBytes("UTF-8")));
+        Item item = cdata.next();
+        while (!Item.isStartTag(item))
+            item = cdata.next();
+        assertEquals(new Text("x]"), cdata.next());
+        byte[] doc = "<a>x]]>y</a>".getBytes("UTF-8");
+        try {
+            ItemSource source = new XmlPullSource(new KXmlParser(), new ByteArrayInputStream(doc));
+            while (source.next() != null)
+                ;
+            fail("kXML accepted ]]> in content");
+        } catch (IOException ex) {
+        }
+        try {
+            ItemSource source = new MappedXmlSource(ByteBuffer.wrap(doc));
+            while (source.next() != null)
+                ;
+            fail("MappedXmlSource accepted ]]> in content");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Illegal: ]]>"));
+        }
+    }
+
+
+    public void testMappedInputStream() throws IOException {
+        byte[] doc = "<a><b>x</b><c/></a>".getBytes("UTF-8");
+        ItemSource expected = new MappedXmlSource(ByteBuffer.wrap(doc));
+        MappedXmlSource source = new MappedXmlSource(ByteBuffer.wrap(doc));
+        assertEquals(expected.next(), source.next());
+        assertEquals(expected.next(), source.next());
+        InputStream in = source.getInputStream();
+        assertEquals(doc.length - 3, in.available());
+        byte[] rest = new byte[doc.length];
+        assertEquals(doc.length - 3, in.read(rest, 0, rest.length));
+        assertEquals("<b>x</b><c/></a>", new String(rest, 0, doc.length - 3, "UTF-8"));
+        assertEquals(-1, in.read());
+        // The source still parses from where it was before the stream was read
+        for (Item item = expected.next(); item != null; item = expected.next())
+            assertEquals(item, source.next());
+        assertNull(source.next());
+    }
+
+
+    public void testFrozenHash() {
+        StartTag a = new StartTag(new Qname("", "a"));
+        StartTag b = new StartTag(new Qname("", "b"));
+        a.addAttribute(new Qname("", "x"), "1");
+        b.addAttribute(new Qname("", "x"), "1");
+        assertFalse("Tag name not hashed", a.hashCode() == b.hashCode());
+        assertFalse("Item type not hashed",
+                    new Comment("x").hashCode() == new EntityRef("x").hashCode());
+        int hash = a.hashCode();
+        a.freeze();
+        assertEquals(hash, a.hashCode());
+        try {
+            a.addAttribute(new Qname("", "y"), "2");
+            fail("Frozen tag modified");
+        } catch (IllegalStateException ex) {
+        }
+        try {
+            a.getAttribute(new Qname("", "x")).setValue("2");
+            fail("Frozen attribute modified");
+        } catch (IllegalStateException ex) {
+        }
+        a.addPrefix("urn:x", "x");
+        assertEquals(hash, a.hashCode());
+    }
+
 }
 
 // arch-tag: 83a93f33-d3ff-4470-80b7-aee628db0f57
@@ -12,6 +12,7 @@ package fc.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 import fc.util.log.Log;
 import fc.util.log.LogLevels;
@@ -51,13 +52,7 @@ public class RaInputStream extends InputStream implements SeekableInputStream {
 
     @Override
     public int read() throws IOException {
-        if (left <= 0) {
-            left = file.read(buffer);
-            // Log.debug("1-byte read got "+left+" bytes, offset is "+offset);
-            if (left < 0) return left;
-            currentFilePos += left;
-            offset = 0;
-        }
+        if (left <= 0 && !fill()) return -1;
         // assert left > 0; // By contract of file.read
         left--;
         // Log.debug("1-byte read returning char "+Debug.toPrintable(buffer,
@@ -74,6 +69,8 @@ public class RaInputStream extends InputStream implements SeekableInputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
+        // Reads shorter than the buffer go through it, so that a run of them costs one file read
+        if (left <= 0 && len < bufLen && len > 0 && !fill()) return -1;
         if (left > 0) {
             // First, return any bytes left in internal buffer
             int toCopy = len > left ? left : len;
@@ -106,11 +103,33 @@ public class RaInputStream extends InputStream implements SeekableInputStream {
             }
             left = 0;
             leftToStreamMode -= read;
+        } else {
+            // The buffer no longer holds the bytes before currentFilePos
+            offset = 0;
         }
         return read;
     }
 
 
+    private boolean fill() throws IOException {
+        int read = file.read(buffer);
+        if (read < 0) return false;
+        currentFilePos += read;
+        offset = 0;
+        left = read;
+        return read > 0;
+    }
+
+
+    /**
+     * Get the channel of the underlying file. Transfers from the channel should use absolute
+     * positions, since the position of the channel is not that of this stream.
+     */
+    public FileChannel getChannel() {
+        return file.getChannel();
+    }
+
+
     @Override
     public void close() throws IOException {
         file.close();
@@ -126,13 +145,13 @@ public class RaInputStream extends InputStream implements SeekableInputStream {
             return;
         // BUGFIX-20071015-2: Bad calculation of active buffer window
         leftToStreamMode = streamModeThreshold;
-        long bufFirstPos = currentFilePos - left;
-        // Is it in window of current buffer?
+        int end = offset + left;
+        long bufFirstPos = currentFilePos - end;
+        // Is it in window of current buffer? This includes bytes already
+        // read from it, so short seeks backwards need no file access
         if (pos >= bufFirstPos && pos < currentFilePos) {
-            // Need to discard as many bytes as pos is past bufFirstPos
-            int discard = (int) (pos - bufFirstPos);
-            offset += discard;
-            left -= discard;
+            offset = (int) (pos - bufFirstPos);
+            left = end - offset;
             // Log.debug("In buffer seek to "+pos+" yields offset="+offset+", left="+left);
         } else {
             // Fully outside buffer
@@ -15,7 +15,15 @@ import java.io.Reader;
 import java.nio.charset.MalformedInputException;
 
 /**
- * Reader that keeps track of byte and char offsets when decoding utf-8.
+ * Reader that keeps track of byte and char offsets when decoding utf-8. The byte offset of any of
+ * the last {@link #MAP_BITS 2**MAP_BITS} chars can be asked with {@link #getStreamPos(long)}.
+ * <p>
+ * Input is read from the underlying stream in blocks, and runs of ASCII are decoded in a tight
+ * loop. Chars are grouped in small blocks of consecutive positions; only the stream position of
+ * the first char of a block is recorded if the whole block is ASCII, since the positions of the
+ * rest follow from it. Positions are recorded per char only in blocks that contain other chars.
+ * Because of the read-ahead, the position of the underlying stream is only defined right after
+ * {@link #newCharZero(long)}.
  * @author Tancred Lindholm
  */
 
@@ -25,31 +33,71 @@ public class Utf8Reader extends Reader {
     public static final int MAP_BITS = 10;
     private static final int MAP_SIZE = 1 << MAP_BITS;
     private static final int MAP_MASK = MAP_SIZE - 1;
-    private static final int MAX_CHUNK = Integer.MAX_VALUE;
+    private static final int BLOCK_BITS = 5;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    // The block ring covers twice the mapping window, so that the first char of the block of the
+    // oldest mapped char is still there
+    private static final int BLOCKS_MASK = (2 * MAP_SIZE >> BLOCK_BITS) - 1;
+    // Reads after a seek start small, as the parser may soon seek again
+    private static final int MIN_FILL = 256;
+    private static final int MAX_FILL = 8192;
 
-    private int charPos = 0, streamPos = 0; // Pos at beginning of next
-    private int[] streamMap = new int[MAP_SIZE];
+    private long charPos = 0, streamPos = 0; // Pos at beginning of next
+    private long[] streamMap = new long[MAP_SIZE];
+    private long[] blockStarts = new long[BLOCKS_MASK + 1];
+    private boolean[] asciiBlocks = new boolean[BLOCKS_MASK + 1];
     private SeekableInputStream in;
-    private Character supplementaryTailChar = null;
+    private byte[] bytes = new byte[MAX_FILL];
+    private int bytePos = 0, byteEnd = 0, fillSize = MIN_FILL;
+    private int supplementaryTailChar = -1;
 
     public static int count = 0;
 
 
     public Utf8Reader(SeekableInputStream in) {
         this.in = in;
+        startBlock();
     }
 
 
+    /**
+     * Read chars into an array. This method returns <code>0</code> instead of <code>-1</code> at
+     * the end of the stream.
+     */
     @Override
     public int read(char[] cbuf, int off, int len) throws IOException {
-        int olen = len;
-        len = len > MAX_CHUNK ? MAX_CHUNK : len;
-        for (int ch = 0; len > 0; len--) {
-            ch = nextChar();
-            if (ch < 0) break;
-            cbuf[off++] = (char) ch;
+        int n = 0;
+        while (n < len) {
+            if (supplementaryTailChar < 0 && asciiBlocks[block(charPos)]) {
+                if (bytePos == byteEnd && !fill()) {
+                    break;
+                }
+                int run = Math.min(Math.min(len - n, byteEnd - bytePos),
+                                   BLOCK_SIZE - (int) (charPos & (BLOCK_SIZE - 1)));
+                int i = 0;
+                while (i < run && bytes[bytePos + i] >= 0) {
+                    cbuf[off + n + i] = (char) bytes[bytePos + i];
+                    i++;
+                }
+                bytePos += i;
+                n += i;
+                charPos += i;
+                streamPos += i;
+                count += i;
+                if (i > 0 && (charPos & (BLOCK_SIZE - 1)) == 0) {
+                    startBlock();
+                }
+                if (i == run) {
+                    continue;
+                }
+            }
+            int ch = nextChar();
+            if (ch < 0) {
+                break;
+            }
+            cbuf[off + n++] = (char) ch;
         }
-        return olen - len;
+        return n;
     }
 
 
@@ -65,19 +113,82 @@ public class Utf8Reader extends Reader {
     }
 
 
-    public int getStreamPos(int readerPos) throws IOException {
-        int offset = readerPos - charPos;
+    public long getStreamPos(long readerPos) throws IOException {
+        long offset = readerPos - charPos;
         if (readerPos < 0 || offset > 0 || -offset > MAP_MASK)
             throw new IOException("Cannot map window position " + (-offset));
-        // assert (readerPos) <= streamMap[readerPos&MAP_MASK]
-        // : String.valueOf(readerPos) + ", " + charPos + "\n"
-        // + java.util.Arrays.toString(streamMap);
-        return streamMap[(MAP_SIZE + offset + charPos) & MAP_MASK];
+        int b = block(readerPos);
+        if (asciiBlocks[b]) {
+            return blockStarts[b] + (readerPos & (BLOCK_SIZE - 1));
+        } else {
+            return streamMap[(int) (readerPos & MAP_MASK)];
+        }
     }
 
 
     public void seek(long pos) throws IOException {
         in.seek(pos);
+        bytePos = byteEnd = 0;
+        fillSize = MIN_FILL;
+    }
+
+
+    private static int block(long charPos) {
+        return (int) (charPos >>> BLOCK_BITS) & BLOCKS_MASK;
+    }
+
+
+    // Called when charPos is at the first char of a block
+    private void startBlock() {
+        int b = block(charPos);
+        blockStarts[b] = streamPos;
+        asciiBlocks[b] = true;
+    }
+
+
+    // Record the positions of the ASCII chars read so far in the current block, so that further
+    // positions in it can be recorded per char
+    private void leaveAscii() {
+        int b = block(charPos);
+        if (asciiBlocks[b]) {
+            asciiBlocks[b] = false;
+            long pos = blockStarts[b];
+            for (long c = charPos & -BLOCK_SIZE; c <= charPos; c++) {
+                streamMap[(int) (c & MAP_MASK)] = pos++;
+            }
+        }
+    }
+
+
+    // Move to the next char, with the given stream position, in a block that is not ASCII
+    private void advance(long pos) {
+        charPos++;
+        if ((charPos & (BLOCK_SIZE - 1)) == 0) {
+            startBlock();
+        }
+        if (!asciiBlocks[block(charPos)] || pos != streamPos) {
+            leaveAscii();
+            streamMap[(int) (charPos & MAP_MASK)] = pos;
+        }
+    }
+
+
+    private boolean fill() throws IOException {
+        int n = in.read(bytes, 0, fillSize);
+        if (fillSize < MAX_FILL) {
+            fillSize <<= 1;
+        }
+        bytePos = 0;
+        byteEnd = n > 0 ? n : 0;
+        return n > 0;
+    }
+
+
+    private int readByte() throws IOException {
+        if (bytePos == byteEnd && !fill()) {
+            return -1;
+        }
+        return bytes[bytePos++] & 0xff;
     }
 
 
@@ -85,15 +196,15 @@ public class Utf8Reader extends Reader {
     // least,
     // it won't recognize overly long encoding
     private final int nextChar() throws IOException {
-        if (supplementaryTailChar != null) {
-            int b = supplementaryTailChar.charValue();
-            supplementaryTailChar = null;
+        if (supplementaryTailChar >= 0) {
+            int b = supplementaryTailChar;
+            supplementaryTailChar = -1;
             return b;
         }
-        streamMap[charPos & MAP_MASK] = streamPos;
-        int b = in.read(), mask = 0x80, extra = -1;
-        streamPos++;
+        int b = readByte(), mask = 0x80, extra = -1;
         if (b == -1) return -1;
+        leaveAscii();
+        streamPos++;
         while ((b & mask) != 0x0) {
             mask >>= 1;
             extra++;
@@ -101,7 +212,7 @@ public class Utf8Reader extends Reader {
         }
         b &= (mask - 1);
         for (int b2 = -1; extra > 0; extra--) {
-            b2 = in.read();
+            b2 = readByte();
             if (b2 == -1) throw new MalformedInputException(0);
             streamPos++;
             b = (b << 6) + (b2 & 0x3f);
@@ -110,17 +221,14 @@ public class Utf8Reader extends Reader {
             // Handle codepoint beyond 0xffff the Java way = make 2 chars
             int bp = b -= 0x10000;
             b = (0xd800 + (bp >> 10));
-            supplementaryTailChar = new Character((char) (0xdc00 + (bp & 0x3FF)));
-            charPos++;
+            supplementaryTailChar = 0xdc00 + (bp & 0x3FF);
             count++;
-            streamMap[charPos & MAP_MASK] = -1; // Map pos of supplementary char
-            // to -1
+            advance(-1); // Map pos of supplementary char to -1
         }
-        charPos++;
         count++;
         // BUGFIX: streampos was not set for charpos, only for offsets
         // before it
-        streamMap[charPos & MAP_MASK] = streamPos;
+        advance(streamPos);
         // System.out.println("nextchar="+(char) b);
         return b;
     }
@@ -128,10 +236,11 @@ public class Utf8Reader extends Reader {
 
     // Seek to streamPos in infile. This becomes streampos (and charpos) 0
     public void newCharZero(long streamPos) throws IOException {
-        in.seek(streamPos);
+        seek(streamPos);
         this.streamPos = 0;
         this.charPos = 0;
-        supplementaryTailChar = null;
+        supplementaryTailChar = -1;
+        startBlock();
     }
 
     /*
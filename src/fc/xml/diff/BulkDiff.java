@@ -0,0 +1,375 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import fc.util.log.Log;
+import fc.util.log.LogLevels;
+import fc.util.log.StreamLogger;
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.diff.encode.XmlDiffEncoder;
+import fc.xml.xas.ItemTransform;
+import fc.xml.xas.transform.DataItems;
+
+/**
+ * Diff of two directory trees. Files are paired by their path relative to the tree roots, and
+ * each pair present in both trees is diffed into a file of the same relative path, with
+ * <code>.diff</code> appended, under an output directory. Pairs are diffed in parallel: a walker
+ * reads the files of each pair and hands them to a pool of worker threads, which parse,
+ * canonicalize, match and encode them. The walker stops reading while the documents in flight
+ * exceed a byte budget, so memory use does not grow with the number of files.
+ * <p>
+ * A manifest of all files, in path order, is written to {@link #MANIFEST} in the output
+ * directory. Each line has the fields {@link Result#toString() of a result} separated by tabs.
+ */
+public class BulkDiff {
+
+    public static final String MANIFEST = "manifest.txt";
+    public static final String DIFF_SUFFIX = ".diff";
+
+    /**
+     * Status of a file in both trees with equal content.
+     */
+    public static final String SAME = "same";
+    /**
+     * Status of a file in both trees with different content.
+     */
+    public static final String CHANGED = "changed";
+    /**
+     * Status of a file only in the new tree.
+     */
+    public static final String ADDED = "added";
+    /**
+     * Status of a file only in the base tree.
+     */
+    public static final String DELETED = "deleted";
+    /**
+     * Status of a file that could not be diffed.
+     */
+    public static final String FAILED = "failed";
+
+    private final Class<? extends DiffEncoder> encoder;
+    private final Class<? extends ItemTransform> filter;
+    private final int threads;
+    private final int budget;
+    private String suffix = ".xml";
+
+
+    /**
+     * Create a bulk diff.
+     * @param encoder
+     *            diff encoder class, as for {@link Diff#diff}
+     * @param filter
+     *            filter class, as for {@link Diff#diff}
+     * @param threads
+     *            number of worker threads
+     * @param budget
+     *            bytes of documents that may be in flight at once; a pair larger than this is
+     *            diffed alone
+     */
+    public BulkDiff(Class<? extends DiffEncoder> encoder, Class<? extends ItemTransform> filter,
+                    int threads, int budget) {
+        if (threads < 1) throw new IllegalArgumentException("Need at least one thread");
+        if (budget < 1) throw new IllegalArgumentException("Need a positive budget");
+        this.encoder = encoder;
+        this.filter = filter;
+        this.threads = threads;
+        this.budget = budget;
+    }
+
+
+    /**
+     * Set the suffix of the files to diff. Other files in the trees are ignored. The default is
+     * <code>.xml</code>.
+     * @param suffix
+     *            file name suffix, or <code>""</code> for all files
+     */
+    public void setSuffix(String suffix) {
+        this.suffix = suffix;
+    }
+
+
+    /**
+     * The outcome of a single file.
+     */
+    public static class Result {
+
+        private final String path;
+        private final String status;
+        private final long baseLength;
+        private final long newLength;
+        private final long diffLength;
+        private final long millis;
+        private final String message;
+
+
+        Result(String path, String status, long baseLength, long newLength, long diffLength,
+                long millis, String message) {
+            this.path = path;
+            this.status = status;
+            this.baseLength = baseLength;
+            this.newLength = newLength;
+            this.diffLength = diffLength;
+            this.millis = millis;
+            this.message = message;
+        }
+
+
+        public String getPath() {
+            return path;
+        }
+
+
+        public String getStatus() {
+            return status;
+        }
+
+
+        public long getDiffLength() {
+            return diffLength;
+        }
+
+
+        /**
+         * Return the manifest line of the result. Its fields are the status, the relative path
+         * with <code>/</code> as separator, the lengths in bytes of the base, new and diff files,
+         * -1 for missing files, the time taken in milliseconds, and for failed files the error.
+         */
+        @Override
+        public String toString() {
+            return status + "\t" + path + "\t" + baseLength + "\t" + newLength + "\t" +
+                   diffLength + "\t" + millis + (message != null ? "\t" + message : "");
+        }
+
+    }
+
+
+    /**
+     * Diff two directory trees.
+     * @param baseDir
+     *            root of the base tree
+     * @param newDir
+     *            root of the new tree
+     * @param outDir
+     *            directory to write the diffs and manifest to; created if missing
+     * @return results of all files in path order
+     * @throws IOException
+     *             if the trees cannot be listed or the manifest cannot be written
+     */
+    public List<Result> diff(File baseDir, File newDir, File outDir) throws IOException {
+        SortedSet<String> paths = new TreeSet<String>();
+        list(baseDir, "", paths);
+        list(newDir, "", paths);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(paths.size());
+        final Semaphore inFlight = new Semaphore(budget);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            for (String path : paths) {
+                File basef = new File(baseDir, path);
+                File newf = new File(newDir, path);
+                if (!newf.isFile()) {
+                    futures.add(done(new Result(path, DELETED, basef.length(), -1, -1, 0, null)));
+                } else if (!basef.isFile()) {
+                    futures.add(done(new Result(path, ADDED, -1, newf.length(), -1, 0, null)));
+                } else {
+                    // A pair over the budget takes all of it
+                    int cost = (int) Math.min(basef.length() + newf.length(), budget);
+                    inFlight.acquireUninterruptibly(cost);
+                    byte[] base, doc;
+                    try {
+                        base = Files.readAllBytes(basef.toPath());
+                        doc = Files.readAllBytes(newf.toPath());
+                    } catch (IOException ex) {
+                        inFlight.release(cost);
+                        futures.add(done(new Result(path, FAILED, basef.length(),
+                                                    newf.length(), -1, 0, ex.toString())));
+                        continue;
+                    }
+                    futures.add(workers.submit(new Job(path, base, doc, outDir, inFlight, cost)));
+                }
+            }
+            List<Result> results = new ArrayList<Result>(futures.size());
+            for (Future<Result> f : futures) {
+                try {
+                    results.add(f.get());
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted while diffing", ex);
+                } catch (ExecutionException ex) {
+                    throw new IOException("Diff job failed", ex.getCause());
+                }
+            }
+            writeManifest(results, new File(outDir, MANIFEST));
+            return results;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+
+    private class Job implements Callable<Result> {
+
+        private final String path;
+        private final byte[] base;
+        private final byte[] doc;
+        private final File outDir;
+        private final Semaphore inFlight;
+        private final int cost;
+
+
+        public Job(String path, byte[] base, byte[] doc, File outDir, Semaphore inFlight,
+                   int cost) {
+            this.path = path;
+            this.base = base;
+            this.doc = doc;
+            this.outDir = outDir;
+            this.inFlight = inFlight;
+            this.cost = cost;
+        }
+
+
+        public Result call() {
+            long start = System.currentTimeMillis();
+            try {
+                ByteArrayOutputStream dout = new ByteArrayOutputStream();
+                boolean changed = Diff.diff(new ByteArrayInputStream(base),
+                                            new ByteArrayInputStream(doc), dout, filter,
+                                            encoder, null, false);
+                long diffLength = -1;
+                if (changed) {
+                    File difff = new File(outDir, path + DIFF_SUFFIX);
+                    difff.getParentFile().mkdirs();
+                    OutputStream out = new FileOutputStream(difff);
+                    try {
+                        dout.writeTo(out);
+                    } finally {
+                        out.close();
+                    }
+                    diffLength = dout.size();
+                }
+                return new Result(path, changed ? CHANGED : SAME, base.length, doc.length,
+                                  diffLength, System.currentTimeMillis() - start, null);
+            } catch (Exception ex) {
+                Log.log("Cannot diff " + path, LogLevels.WARNING, ex);
+                return new Result(path, FAILED, base.length, doc.length, -1,
+                                  System.currentTimeMillis() - start, ex.toString());
+            } finally {
+                inFlight.release(cost);
+            }
+        }
+
+    }
+
+
+    private static Future<Result> done(Result result) {
+        return CompletableFuture.completedFuture(result);
+    }
+
+
+    // Adds the relative paths of files with the suffix under dir to paths. Symbolic links to
+    // directories are not followed, as they may form loops.
+    private void list(File dir, String prefix, SortedSet<String> paths) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) throw new IOException("Cannot list directory " + dir);
+        for (File f : files) {
+            if (f.isDirectory() && Files.isSymbolicLink(f.toPath())) {
+                Log.log("Skipping linked directory " + f, LogLevels.WARNING);
+            } else if (f.isDirectory()) {
+                list(f, prefix + f.getName() + "/", paths);
+            } else if (f.getName().endsWith(suffix)) {
+                paths.add(prefix + f.getName());
+            }
+        }
+    }
+
+
+    private static void writeManifest(List<Result> results, File f) throws IOException {
+        f.getParentFile().mkdirs();
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+        try {
+            int[] counts = new int[5];
+            List<String> statuses = Arrays.asList(SAME, CHANGED, ADDED, DELETED, FAILED);
+            for (Result r : results) {
+                out.println(r);
+                counts[statuses.indexOf(r.getStatus())] += 1;
+            }
+            out.print("#");
+            for (int i = 0; i < counts.length; i++) {
+                out.print(" " + statuses.get(i) + "=" + counts[i]);
+            }
+            out.println();
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) throw new IOException("Cannot write manifest " + f);
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        Log.setLogger(new StreamLogger(System.err));
+        if (args.length < 3) {
+            Log.log("Usage [-Dencoder=...] [-Dfilter=...] [-Dworkers=<n>] [-Dinflight=<MB>] "
+                    + "[-Dsuffix=.xml] basedir newdir outdir", LogLevels.ERROR);
+            System.exit(1);
+        }
+        Class<? extends DiffEncoder> encoder = XmlDiffEncoder.class;
+        Class<? extends ItemTransform> filter = DataItems.class;
+        try {
+            String encoderName = System.getProperty("encoder");
+            String filterName = System.getProperty("filter");
+            if (encoderName != null) {
+                encoder = Diff.forAlias(encoderName, Diff.ENCODER_ALIASES, DiffEncoder.class);
+            }
+            if (filterName != null) {
+                filter = Diff.forAlias(filterName, Diff.FILTER_ALIASES, ItemTransform.class);
+            }
+        } catch (ClassNotFoundException ex) {
+            Log.log("Cannot locate class " + ex.getMessage(), LogLevels.FATALERROR);
+            System.exit(1);
+        } catch (IllegalArgumentException ex) {
+            Log.log(ex.getMessage(), LogLevels.FATALERROR);
+            System.exit(1);
+        }
+        int workers = Runtime.getRuntime().availableProcessors();
+        if (System.getProperty("workers") != null) {
+            workers = Integer.parseInt(System.getProperty("workers"));
+        }
+        int inflight = Integer.parseInt(System.getProperty("inflight", "64"));
+        BulkDiff bulk = new BulkDiff(encoder, filter, workers,
+                                     (int) Math.min((long) inflight << 20, Integer.MAX_VALUE));
+        String suffix = System.getProperty("suffix");
+        if (suffix != null) bulk.setSuffix(suffix);
+        long start = System.currentTimeMillis();
+        List<Result> results = bulk.diff(new File(args[0]), new File(args[1]), new File(args[2]));
+        Log.log("Diffed " + results.size() + " files in " + (System.currentTimeMillis() - start) +
+                "ms", LogLevels.INFO);
+    }
+
+}
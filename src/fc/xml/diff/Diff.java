@@ -12,15 +12,17 @@ package fc.xml.diff;
 
 import static fc.xml.diff.Segment.Operation.COPY;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.xmlpull.v1.XmlPullParser;
 
@@ -31,16 +33,20 @@ import fc.xml.diff.encode.AlignEncoder;
 import fc.xml.diff.encode.DiffEncoder;
 import fc.xml.diff.encode.RefTreeByIdEncoder;
 import fc.xml.diff.encode.RefTreeEncoder;
+import fc.xml.diff.encode.XebuDiffEncoder;
 import fc.xml.diff.encode.XmlDiffEncoder;
 import fc.xml.xas.Item;
 import fc.xml.xas.ItemSource;
 import fc.xml.xas.ItemTransform;
+import fc.xml.xas.ParserSource;
 import fc.xml.xas.transform.DataItems;
 
 public class Diff {
 
     static final int[] CHUNK_SIZES = { 32, 16, 8, 4, 2, 1 };
 
+    private static ForkJoinPool matchPool = null;
+
     public static Map<String, String> ENCODER_ALIASES = new HashMap<String, String>();
     public static Map<String, String> FILTER_ALIASES = new HashMap<String, String>();
     static {
@@ -48,6 +54,7 @@ public class Diff {
         ENCODER_ALIASES.put("ref", RefTreeEncoder.class.getName());
         ENCODER_ALIASES.put("ref:id", RefTreeByIdEncoder.class.getName());
         ENCODER_ALIASES.put("align", AlignEncoder.class.getName());
+        ENCODER_ALIASES.put("xebu", XebuDiffEncoder.class.getName());
         FILTER_ALIASES.put("full", null);
         FILTER_ALIASES.put("none", null);
     }
@@ -67,47 +74,121 @@ public class Diff {
         } catch (javax.xml.stream.XMLStreamException e) {
             Log.info(e);
         }
-        Class encoder = fc.xml.diff.encode.XmlDiffEncoder.class;
-        Class filter = DataItems.class;
+        Class<? extends DiffEncoder> encoder = fc.xml.diff.encode.XmlDiffEncoder.class;
+        Class<? extends ItemTransform> filter = DataItems.class;
         String encoderName = System.getProperty("encoder");
         String filterName = System.getProperty("filter");
+        String windowSize = System.getProperty("window");
+        String threads = System.getProperty("threads");
         if (encoderName != null) {
-            if (ENCODER_ALIASES.containsKey(encoderName))
-                encoderName = ENCODER_ALIASES.get(encoderName);
             try {
-                encoder = encoderName != null ? Class.forName(encoderName) : null;
+                encoder = forAlias(encoderName, ENCODER_ALIASES, DiffEncoder.class);
             } catch (ClassNotFoundException ex) {
                 Log.log("Cannot locate encoder " + encoderName, LogLevels.FATALERROR);
+            } catch (IllegalArgumentException ex) {
+                Log.log(ex.getMessage(), LogLevels.FATALERROR);
             }
         }
         if (filterName != null) {
-            if (FILTER_ALIASES.containsKey(filterName))
-                filterName = FILTER_ALIASES.get(filterName);
             try {
-                filter = filterName != null ? Class.forName(filterName) : null;
+                filter = forAlias(filterName, FILTER_ALIASES, ItemTransform.class);
             } catch (ClassNotFoundException ex) {
                 Log.log("Cannot locate filter " + filterName, LogLevels.FATALERROR);
+            } catch (IllegalArgumentException ex) {
+                Log.log(ex.getMessage(), LogLevels.FATALERROR);
             }
         }
+        if (threads != null) setMatchThreads(Integer.parseInt(threads));
         if (args.length < 2) {
-            Log.log("Usage [-Dencoder={xml,ref,align,<class>}] [-Dfilter={simple,<class>}] "
-                    + "base.xml new.xml [out.xml]", LogLevels.ERROR);
+            Log.log("Usage [-Dencoder={xml,ref,align,xebu,<class>}] [-Dfilter={simple,<class>}] "
+                    + "[-Dwindow=<items>] [-Dthreads=<n>] [-Dfc.diff.stats] "
+                    + "base.xml new.xml [out.xml]",
+                    LogLevels.ERROR);
             System.exit(1);
         }
         OutputStream dout = System.out;
+        InputStream base = null, updated = null;
         try {
-            FileInputStream base = new FileInputStream(args[0]);
-            FileInputStream updated = new FileInputStream(args[1]);
+            ParserSource basepa = IoUtil.getXmlParser(new File(args[0]));
+            base = basepa.getInputStream();
+            ParserSource updatedpa = IoUtil.getXmlParser(new File(args[1]));
+            updated = updatedpa.getInputStream();
             if (args.length > 2 && !"-".equals(args[2])) dout = new FileOutputStream(args[2]);
-            diff(base, updated, dout, filter, encoder, null /* options */, true);
+            if (windowSize != null) {
+                new WindowedDiff(Integer.parseInt(windowSize)).diff(
+                                                                    IoUtil.getEventSequence(
+                                                                                            basepa,
+                                                                                            filter),
+                                                                    IoUtil.getEventSequence(
+                                                                                            updatedpa,
+                                                                                            filter),
+                                                                    dout, encoder);
+            } else {
+                DiffStats stats = DiffStats.create();
+                if (stats != null) {
+                    stats.count(DiffStats.BASE_BYTES, new File(args[0]).length());
+                    stats.count(DiffStats.DOC_BYTES, new File(args[1]).length());
+                }
+                diff(basepa, updatedpa, dout, filter, encoder, null /* options */, true, stats);
+                if (stats != null) System.err.print(stats);
+            }
         } catch (IOException ex) {
             Log.log("I/O error while diffing", LogLevels.ERROR, ex);
         } finally {
+            for (InputStream in : new InputStream[] { base, updated })
+                if (in != null) in.close();
             if (dout != System.out) dout.close();
         }
     }
 
 
+    /**
+     * Look up an encoder or filter class by alias or by class name, and check its type. A class
+     * given by name is not initialized until it is found to be of the right type, so this may be
+     * used on names from untrusted sources.
+     * @param name
+     *            alias in <code>aliases</code>, or fully qualified class name
+     * @param aliases
+     *            alias map, {@link #ENCODER_ALIASES} or {@link #FILTER_ALIASES}
+     * @param type
+     *            type the class must have, such as {@link DiffEncoder} or {@link ItemTransform}
+     * @return the class, or <code>null</code> if the alias stands for no class
+     * @throws ClassNotFoundException
+     *             if <code>name</code> is neither an alias nor the name of a class
+     * @throws IllegalArgumentException
+     *             if the class is not a subtype of <code>type</code>
+     */
+    public static <T> Class<? extends T> forAlias(String name, Map<String, String> aliases,
+                                                  Class<T> type) throws ClassNotFoundException {
+        if (aliases.containsKey(name)) name = aliases.get(name);
+        if (name == null) return null;
+        Class<?> c = Class.forName(name, false, Diff.class.getClassLoader());
+        if (!type.isAssignableFrom(c)) {
+            throw new IllegalArgumentException("Class " + name + " is not a " + type.getName());
+        }
+        return c.asSubclass(type);
+    }
+
+
+    /**
+     * Set the number of threads used for matching. With more than one thread, {@link GlMatcher}
+     * matches the gaps between the copies found by its first pass in parallel. The default is one
+     * thread, i.e., sequential matching in the calling thread.
+     * @param threads
+     *            number of matching threads
+     */
+    public static synchronized void setMatchThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("Need at least one thread");
+        if (matchPool != null) matchPool.shutdown();
+        matchPool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+
+    static synchronized ForkJoinPool getMatchPool() {
+        return matchPool;
+    }
+
+
     public static boolean diff(InputStream bases, InputStream docs, OutputStream dout)
             throws IOException {
         return diff(bases, docs, dout, DataItems.class, XmlDiffEncoder.class, null, true);
@@ -120,30 +201,78 @@ public class Diff {
                                Class<DiffEncoder> outputEncoding,
                                Map<String, String> encoderOptions, boolean emitEmpty)
             throws IOException {
+        return diff(baseEs, baseParser, docEs, docParser, dout, outputEncoding, encoderOptions,
+                    emitEmpty, DiffStats.create());
+    }
+
+
+    private static boolean diff(ItemSource baseEs, XmlPullParser baseParser, ItemSource docEs,
+                                XmlPullParser docParser, OutputStream dout,
+                                Class<? extends DiffEncoder> outputEncoding,
+                                Map<String, String> encoderOptions, boolean emitEmpty,
+                                DiffStats stats) throws IOException {
         long _start = System.currentTimeMillis();
         ArrayList<Integer> posListBase = baseParser == null ? null : new ArrayList<Integer>();
         ArrayList<Integer> posListNew = docParser == null ? null : new ArrayList<Integer>();
         List<Item> preamble = new ArrayList<Item>();
+        if (stats != null) stats.begin(DiffStats.PARSE);
         List<Item> base = IoUtil.makeEventList(baseEs, preamble, posListBase, baseParser);
         List<Item> doc = IoUtil.makeEventList(docEs, null, posListNew, docParser);
-        GlMatcher<Item> m = new GlMatcher<Item>(IoUtil.getEventHashAlgorithm());
-        List<Segment<Item>> ml = m.match(base, doc, CHUNK_SIZES);
+        if (stats != null) stats.end();
+        List<Segment<Item>> ml = match(base, doc, stats);
         long _stop = System.currentTimeMillis();
+        boolean differs = encode(base, doc, ml, preamble, dout, outputEncoding, null, emitEmpty,
+                                 _stop - _start, stats);
+        if (stats != null) stats.finish();
+        return differs;
+    }
+
+
+    // Matches the canonical items of two documents
+    static List<Segment<Item>> match(List<Item> base, List<Item> doc, DiffStats stats) {
+        if (stats != null) {
+            stats.count(DiffStats.DIFFS, 1);
+            stats.count(DiffStats.BASE_ITEMS, base.size());
+            stats.count(DiffStats.DOC_ITEMS, doc.size());
+        }
+        GlMatcher<Item> m = new GlMatcher<Item>(IoUtil.getEventHashAlgorithm(), getMatchPool());
+        m.setStats(stats);
+        return m.match(base, doc, CHUNK_SIZES);
+    }
+
+
+    // Encodes a match list; returns true if the documents differ
+    static boolean encode(List<Item> base, List<Item> doc, List<Segment<Item>> ml,
+                          List<Item> preamble, OutputStream dout,
+                          Class<? extends DiffEncoder> outputEncoding,
+                          RefTreeEncoder.PathIndex pathIndex, boolean emitEmpty,
+                          long millis, DiffStats stats) throws IOException {
         boolean isEmpty = ml.size() == 1 && ml.get(0).getLength() == base.size() &&
                           ml.get(0).getOp() == COPY;
         try {
-            DiffEncoder enc = outputEncoding.newInstance();
+            DiffEncoder enc = outputEncoding.getDeclaredConstructor().newInstance();
+            if (enc instanceof RefTreeEncoder) ((RefTreeEncoder) enc).setPathIndex(pathIndex);
             if (dout != null && !isEmpty || emitEmpty) {
+                if (stats != null) {
+                    dout = stats.countOutput(dout);
+                    stats.begin(DiffStats.ENCODE);
+                }
                 enc.encodeDiff(base, doc, ml, preamble, dout);
+                if (stats != null) stats.end();
             }
         } catch (IllegalAccessException e) {
             throw new IllegalArgumentException("Cannot access encoder class " + outputEncoding, e);
         } catch (InstantiationException e) {
             throw new IllegalArgumentException("Unknown encoder " + outputEncoding, e);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Unknown encoder " + outputEncoding, e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException("Cannot create encoder " + outputEncoding,
+                                               e.getCause());
         }
         if (isEmpty) {
-            Log.log("Documents identical " + " (" + base.size() + " XAS events in " +
-                    (_stop - _start) + "ms).", LogLevels.INFO);
+            Log.log("Documents identical " + " (" + base.size() + " XAS events in " + millis +
+                    "ms).", LogLevels.INFO);
         } else {
             Log.log("Documents differ.", LogLevels.INFO);
             Log.log("Match list is "+ml,Log.DEBUG);
@@ -153,20 +282,48 @@ public class Diff {
     }
 
 
-    // Returns true if bases and docs differ
+    // Returns true if bases and docs differ. The encoder class is untyped, as it has always been
+    // here, so that callers may pass a class that they look up by name.
     public static boolean diff(InputStream bases, InputStream docs, OutputStream dout,
                                Class<? extends ItemTransform> filter, Class outputEncoding,
                                Map<String, String> encoderOptions, boolean emitEmpty)
             throws IOException {
-        ItemSource docpa = IoUtil.getXmlParser(docs);
-        ItemSource basepa = IoUtil.getXmlParser(bases);
+        Class<?> encoder = outputEncoding;
+        if (!DiffEncoder.class.isAssignableFrom(encoder))
+            throw new IllegalArgumentException("Unknown encoder " + outputEncoding);
+        DiffStats stats = DiffStats.create();
+        if (stats != null) {
+            bases = stats.countInput(bases, DiffStats.BASE_BYTES);
+            docs = stats.countInput(docs, DiffStats.DOC_BYTES);
+        }
+        return diff(IoUtil.getXmlParser(bases), IoUtil.getXmlParser(docs), dout, filter,
+                    encoder.asSubclass(DiffEncoder.class), encoderOptions, emitEmpty, stats);
+    }
+
+
+    // Returns true if bases and docs differ
+    public static boolean diff(ItemSource basepa, ItemSource docpa, OutputStream dout,
+                               Class<? extends ItemTransform> filter,
+                               Class<? extends DiffEncoder> outputEncoding,
+                               Map<String, String> encoderOptions, boolean emitEmpty)
+            throws IOException {
+        return diff(basepa, docpa, dout, filter, outputEncoding, encoderOptions, emitEmpty,
+                    DiffStats.create());
+    }
+
+
+    private static boolean diff(ItemSource basepa, ItemSource docpa, OutputStream dout,
+                                Class<? extends ItemTransform> filter,
+                                Class<? extends DiffEncoder> outputEncoding,
+                                Map<String, String> encoderOptions, boolean emitEmpty,
+                                DiffStats stats) throws IOException {
         Log.log("Comparing by filter " + (filter == null ? "<none>" : filter.getName()),
                 LogLevels.INFO);
 
         // FIXME-20061113-3: Passing of XmlPullParser
         return diff(IoUtil.getEventSequence(basepa, filter), null,
                     IoUtil.getEventSequence(docpa, filter), null, 
-                    dout, outputEncoding, encoderOptions, emitEmpty);
+                    dout, outputEncoding, encoderOptions, emitEmpty, stats);
     }
 
 }
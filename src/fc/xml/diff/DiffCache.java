@@ -0,0 +1,308 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fc.util.log.Log;
+import fc.util.log.LogLevels;
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.xas.Item;
+import fc.xml.xas.ItemSource;
+import fc.xml.xas.ItemTransform;
+
+/**
+ * Cache of encoded diffs. Diffs are keyed by digests of the canonical items of the base and the
+ * new document, computed with {@link HashAlgorithm#secureDigest(List, MessageDigest)}, together
+ * with the filter, the encoder and whether empty diffs are written. A diff that is in the cache
+ * is written without matching or encoding; the documents are still parsed to compute the key.
+ * <p>
+ * Cached diffs are held in memory up to a given total size, and the least recently used ones are
+ * evicted first. If a spill directory is given, evicted diffs are written there, one file per
+ * key, and read back on a later request. Files in the spill directory are never removed by the
+ * cache, so they are also found by other caches using the same directory.
+ * <p>
+ * A cache may be used by several threads concurrently. Requests for the same diff that miss at
+ * the same time each compute the diff.
+ */
+public class DiffCache {
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final int SPILL_MAGIC = 0x46504443;
+
+    private final long capacity;
+    private final File spillDir;
+
+    // Entries in least recently used first order
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size = 0;
+    private int hits = 0;
+    private int misses = 0;
+
+
+    /**
+     * Create a diff cache.
+     * @param capacity
+     *            maximum total size, in bytes, of the diffs held in memory
+     * @param spillDir
+     *            directory to write evicted diffs to, or <code>null</code> to drop them
+     */
+    public DiffCache(long capacity, File spillDir) {
+        if (capacity < 0) throw new IllegalArgumentException("Negative capacity " + capacity);
+        if (spillDir != null && !spillDir.isDirectory() && !spillDir.mkdirs())
+            throw new IllegalArgumentException("Cannot create spill directory " + spillDir);
+        this.capacity = capacity;
+        this.spillDir = spillDir;
+    }
+
+
+    /**
+     * Diff two documents through the cache. The diff written is the same as the one written by
+     * {@link Diff#diff(ItemSource, ItemSource, OutputStream, Class, Class, Map, boolean)}.
+     * @param basepa
+     *            base document
+     * @param docpa
+     *            new document
+     * @param dout
+     *            stream to write the diff to
+     * @param filter
+     *            filter to apply to both documents, or <code>null</code> for none
+     * @param outputEncoding
+     *            encoder class
+     * @param emitEmpty
+     *            whether to write a diff if the documents are identical
+     * @return <code>true</code> if the documents differ
+     * @throws IOException
+     *             if reading the documents or writing the diff fails
+     */
+    public boolean diff(ItemSource basepa, ItemSource docpa, OutputStream dout,
+                        Class<? extends ItemTransform> filter,
+                        Class<? extends DiffEncoder> outputEncoding, boolean emitEmpty)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        List<Item> preamble = new ArrayList<Item>();
+        List<Item> base = IoUtil.makeEventList(IoUtil.getEventSequence(basepa, filter), preamble,
+                                               null, null);
+        List<Item> doc = IoUtil.makeEventList(IoUtil.getEventSequence(docpa, filter), null, null,
+                                              null);
+        String key = key(preamble, base, doc, filter, outputEncoding, emitEmpty);
+        Entry e = lookup(key);
+        if (e == null) {
+            // Only computed diffs are recorded; parsing is not separated from keying
+            DiffStats stats = DiffStats.create();
+            List<Segment<Item>> ml = Diff.match(base, doc, stats);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            boolean differs = Diff.encode(base, doc, ml, preamble, out, outputEncoding, null,
+                                          emitEmpty, System.currentTimeMillis() - start, stats);
+            if (stats != null) stats.finish();
+            e = new Entry(out.toByteArray(), differs);
+            store(key, e);
+        }
+        if (dout != null) dout.write(e.diff);
+        return e.differs;
+    }
+
+
+    /**
+     * Get the number of requests answered from the cache.
+     * @return number of hits
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+
+    /**
+     * Get the number of requests that had to compute the diff.
+     * @return number of misses
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+
+    /**
+     * Get the total size of the diffs held in memory.
+     * @return size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+
+    private static String key(List<Item> preamble, List<Item> base, List<Item> doc,
+                              Class<? extends ItemTransform> filter,
+                              Class<? extends DiffEncoder> outputEncoding, boolean emitEmpty) {
+        HashAlgorithm<Item> ha = IoUtil.getEventHashAlgorithm();
+        MessageDigest md = newDigest();
+        ha.secureDigest(preamble, md);
+        byte[] preambleDigest = md.digest();
+        ha.secureDigest(base, md);
+        byte[] baseDigest = md.digest();
+        ha.secureDigest(doc, md);
+        byte[] docDigest = md.digest();
+        md.update(preambleDigest);
+        md.update(baseDigest);
+        md.update(docDigest);
+        md.update((filter != null ? filter.getName() : "").getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(outputEncoding.getName().getBytes(StandardCharsets.UTF_8));
+        md.update((byte) (emitEmpty ? 1 : 0));
+        StringBuilder key = new StringBuilder();
+        for (byte b : md.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("No " + DIGEST_ALGORITHM + " digest available", ex);
+        }
+    }
+
+
+    private Entry lookup(String key) throws IOException {
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                hits++;
+                return e;
+            }
+        }
+        Entry e = readSpilled(key);
+        synchronized (this) {
+            if (e == null) misses++;
+            else hits++;
+        }
+        if (e != null && e.diff.length <= capacity) store(key, e);
+        return e;
+    }
+
+
+    private void store(String key, Entry e) throws IOException {
+        if (e.diff.length > capacity) {
+            // Would evict everything else and then itself
+            spill(key, e);
+            return;
+        }
+        List<Map.Entry<String, Entry>> evicted;
+        synchronized (this) {
+            evicted = put(key, e);
+        }
+        for (Map.Entry<String, Entry> v : evicted)
+            spill(v.getKey(), v.getValue());
+    }
+
+
+    // Adds an entry, and returns the evicted ones
+    private List<Map.Entry<String, Entry>> put(String key, Entry e) {
+        List<Map.Entry<String, Entry>> evicted = new ArrayList<Map.Entry<String, Entry>>();
+        Entry old = entries.put(key, e);
+        if (old != null) size -= old.diff.length;
+        size += e.diff.length;
+        for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); size > capacity &&
+                                                                                  i.hasNext();) {
+            Map.Entry<String, Entry> v = i.next();
+            if (v.getValue() == e) continue;
+            i.remove();
+            size -= v.getValue().diff.length;
+            evicted.add(v);
+        }
+        return evicted;
+    }
+
+
+    private File spillFile(String key) {
+        return new File(spillDir, key + ".diff");
+    }
+
+
+    private void spill(String key, Entry e) throws IOException {
+        if (spillDir == null) return;
+        File f = spillFile(key);
+        if (f.exists()) return;
+        // Write under a temporary name, so that readers never see a partial
+        // file
+        File tmp = File.createTempFile(key, ".tmp", spillDir);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            DataOutputStream dout = new DataOutputStream(out);
+            dout.writeInt(SPILL_MAGIC);
+            dout.writeBoolean(e.differs);
+            dout.writeInt(e.diff.length);
+            dout.write(e.diff);
+            dout.flush();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            if (!f.exists()) throw new IOException("Cannot write " + f);
+        }
+    }
+
+
+    private Entry readSpilled(String key) {
+        if (spillDir == null) return null;
+        File f = spillFile(key);
+        if (!f.exists()) return null;
+        try {
+            InputStream in = new FileInputStream(f);
+            try {
+                DataInputStream din = new DataInputStream(in);
+                if (din.readInt() != SPILL_MAGIC) throw new IOException("Bad magic");
+                boolean differs = din.readBoolean();
+                byte[] diff = new byte[din.readInt()];
+                din.readFully(diff);
+                return new Entry(diff, differs);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            Log.log("Cannot read spilled diff " + f + ", recomputing", LogLevels.WARNING, ex);
+            f.delete();
+            return null;
+        }
+    }
+
+    private static class Entry {
+
+        final byte[] diff;
+        final boolean differs;
+
+
+        public Entry(byte[] diff, boolean differs) {
+            this.diff = diff;
+            this.differs = differs;
+        }
+    }
+
+}
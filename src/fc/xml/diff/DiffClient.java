@@ -0,0 +1,158 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import fc.util.log.Log;
+import fc.util.log.LogLevels;
+import fc.util.log.StreamLogger;
+
+/**
+ * A client of {@link DiffServer}. The client keeps its connection open across jobs, and runs one
+ * job at a time; use one client per thread to run jobs in parallel.
+ */
+public class DiffClient {
+
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+
+    /**
+     * Connect to a diff server.
+     * @param address
+     *            address of the server, as for {@link DiffServer#DiffServer}
+     * @throws IOException
+     *             if the connection fails
+     */
+    public DiffClient(SocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+
+    /**
+     * Diff two documents on the server.
+     * @param base
+     *            base document
+     * @param doc
+     *            new document
+     * @param options
+     *            diff options, <code>encoder</code> and <code>filter</code>, or
+     *            <code>null</code> for the defaults
+     * @return the diff
+     * @throws IOException
+     *             if the connection fails or the server cannot run the diff
+     */
+    public synchronized byte[] diff(byte[] base, byte[] doc, Map<String, String> options)
+            throws IOException {
+        return call(DiffServer.DIFF, options, base, doc);
+    }
+
+
+    /**
+     * Patch a document on the server.
+     * @param base
+     *            base document
+     * @param diff
+     *            diff to apply to the base
+     * @return the patched document
+     * @throws IOException
+     *             if the connection fails or the server cannot apply the patch
+     */
+    public synchronized byte[] patch(byte[] base, byte[] diff) throws IOException {
+        return call(DiffServer.PATCH, null, base, diff);
+    }
+
+
+    /**
+     * Close the connection to the server.
+     * @throws IOException
+     *             if closing fails
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+
+    private byte[] call(byte type, Map<String, String> options, byte[] first, byte[] second)
+            throws IOException {
+        out.writeByte(type);
+        out.writeShort(options != null ? options.size() : 0);
+        if (options != null) {
+            for (Map.Entry<String, String> option : options.entrySet()) {
+                out.writeUTF(option.getKey());
+                out.writeUTF(option.getValue());
+            }
+        }
+        out.writeInt(first.length);
+        out.write(first);
+        out.writeInt(second.length);
+        out.write(second);
+        out.flush();
+        int status = in.readByte();
+        byte[] reply = new byte[in.readInt()];
+        in.readFully(reply);
+        if (status != DiffServer.OK) throw new IOException(new String(reply, "UTF-8"));
+        return reply;
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        Log.setLogger(new StreamLogger(System.err));
+        if (args.length < 3 || !("diff".equals(args[0]) || "patch".equals(args[0]))) {
+            Log.log("Usage [-Dserver={host:port,/path/to/socket}] [-Dencoder=...] [-Dfilter=...] "
+                    + "{diff base.xml new.xml,patch base.xml diff.xml} [out.xml]", LogLevels.ERROR);
+            System.exit(1);
+        }
+        String server = System.getProperty("server", DiffServer.DEFAULT_ADDRESS);
+        byte[] first = Files.readAllBytes(new File(args[1]).toPath());
+        byte[] second = Files.readAllBytes(new File(args[2]).toPath());
+        DiffClient client = new DiffClient(DiffServer.parseAddress(server));
+        OutputStream dout = System.out;
+        try {
+            byte[] result;
+            if ("diff".equals(args[0])) {
+                Map<String, String> options = new HashMap<String, String>();
+                for (String option : new String[] { "encoder", "filter" }) {
+                    String value = System.getProperty(option);
+                    if (value != null) options.put(option, value);
+                }
+                result = client.diff(first, second, options);
+            } else {
+                result = client.patch(first, second);
+            }
+            if (args.length > 3 && !"-".equals(args[3])) dout = new FileOutputStream(args[3]);
+            dout.write(result);
+            dout.flush();
+        } catch (IOException ex) {
+            Log.log("Job failed", LogLevels.ERROR, ex);
+        } finally {
+            client.close();
+            if (dout != System.out) dout.close();
+        }
+    }
+
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import fc.util.log.Log;
+import fc.util.log.LogLevels;
+import fc.util.log.StreamLogger;
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.xas.ItemTransform;
+import fc.xml.xas.transform.DataItems;
+import fc.xml.xmlr.NodeNotFoundException;
+
+/**
+ * A server running diff and patch jobs for {@link DiffClient}s. The server keeps a single JVM, with
+ * its classes loaded and compiled, for any number of jobs, which saves the startup time of running
+ * {@link Diff#main} and {@link Patch#main} for each pair of documents.
+ * <p>
+ * The server listens on a TCP socket or on a Unix-domain socket. A selector thread reads requests
+ * from all connections and writes the replies without blocking, and each complete request is run
+ * as a job on a fixed pool of worker threads, so connections that are idle or slow to send or
+ * receive do not tie up workers. A client sends one request at a time on a connection
+ * and waits for its reply; clients wanting parallel jobs open several connections.
+ * <p>
+ * A request is a job type byte, {@link #DIFF} or {@link #PATCH}, followed by a short count of
+ * options and that many pairs of option names and values, written with
+ * {@link DataOutputStream#writeUTF}. The options of a diff are <code>encoder</code> and
+ * <code>filter</code>, with the values accepted by {@link Diff#main}; patches take no options.
+ * Then follow two documents, each as an int length and that many bytes: the base and the new
+ * document for a diff, the base and the diff for a patch. The reply is a status byte,
+ * {@link #OK} or {@link #FAILED}, followed by an int length and that many bytes of either the
+ * output document or the UTF-8 error message.
+ * <p>
+ * Encoders and filters named by class must implement {@link DiffEncoder} and
+ * {@link ItemTransform}. Documents longer than the {@link #setMaxDocumentLength(int) maximum
+ * length} are skipped without being stored, and the job is answered with {@link #FAILED}.
+ */
+public class DiffServer implements Runnable {
+
+    public static final byte DIFF = 1;
+    public static final byte PATCH = 2;
+
+    public static final byte OK = 0;
+    public static final byte FAILED = 1;
+
+    public static final String DEFAULT_ADDRESS = "localhost:4711";
+    public static final int DEFAULT_MAX_DOCUMENT_LENGTH = 64 << 20;
+
+    private final SocketAddress address;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    // Connections whose job is done, with replies to be written by the selector thread
+    private final Queue<Connection> done = new ConcurrentLinkedQueue<Connection>();
+    private volatile boolean running = false;
+    private volatile int maxDocumentLength = DEFAULT_MAX_DOCUMENT_LENGTH;
+
+
+    /**
+     * Create a server. The server starts accepting jobs when {@link #run} is called.
+     * @param address
+     *            address to listen on, an <code>InetSocketAddress</code> or a
+     *            <code>UnixDomainSocketAddress</code>
+     * @param threads
+     *            number of worker threads
+     * @throws IOException
+     *             if the address cannot be bound
+     */
+    public DiffServer(SocketAddress address, int threads) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("Need at least one thread");
+        server = address instanceof UnixDomainSocketAddress ? ServerSocketChannel
+            .open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+        server.bind(address);
+        this.address = server.getLocalAddress();
+        server.configureBlocking(false);
+        selector = Selector.open();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(threads);
+    }
+
+
+    /**
+     * Get the address the server listens on. If the server was created with port 0, this
+     * contains the port chosen by the system.
+     * @return listening address
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+
+    /**
+     * Set the maximum length of a document in a request. The default is
+     * {@link #DEFAULT_MAX_DOCUMENT_LENGTH}.
+     * @param length
+     *            maximum length in bytes
+     */
+    public void setMaxDocumentLength(int length) {
+        if (length < 0) throw new IllegalArgumentException("Negative length " + length);
+        maxDocumentLength = length;
+    }
+
+
+    /**
+     * Accept connections and dispatch their jobs until the server is closed. Client connections
+     * are closed when this method returns.
+     */
+    public void run() {
+        running = true;
+        try {
+            while (server.isOpen()) {
+                selector.select();
+                for (Connection c = done.poll(); c != null; c = done.poll()) {
+                    SelectionKey key = c.channel.keyFor(selector);
+                    if (key != null && key.isValid()) key.interestOps(SelectionKey.OP_WRITE);
+                }
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    if (key.isAcceptable()) {
+                        SocketChannel ch = server.accept();
+                        if (ch != null) {
+                            ch.configureBlocking(false);
+                            ch.register(selector, SelectionKey.OP_READ, new Connection(ch));
+                        }
+                    } else {
+                        ((Connection) key.attachment()).ready(key);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            Log.log("Diff server failed", LogLevels.ERROR, ex);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ex) {
+                    Log.log("Can't close a client connection", LogLevels.WARNING, ex);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                Log.log("Can't close the selector", LogLevels.WARNING, ex);
+            }
+        }
+    }
+
+
+    /**
+     * Stop accepting jobs and close the server. Jobs already running are finished.
+     * @throws IOException
+     *             if closing the socket fails
+     */
+    public void close() throws IOException {
+        server.close();
+        if (running) {
+            selector.wakeup();
+        } else {
+            selector.close();
+        }
+        workers.shutdown();
+        if (address instanceof UnixDomainSocketAddress) {
+            ((UnixDomainSocketAddress) address).getPath().toFile().delete();
+        }
+    }
+
+
+    /**
+     * Parse a server address. A name containing a file separator is the path of a Unix-domain
+     * socket; otherwise it is <code>host:port</code>, or just a port on the local host.
+     * @param name
+     *            address to parse
+     * @return the address
+     */
+    public static SocketAddress parseAddress(String name) {
+        if (name.indexOf(File.separatorChar) >= 0) return UnixDomainSocketAddress.of(name);
+        int colon = name.lastIndexOf(':');
+        String host = colon >= 0 ? name.substring(0, colon) : "localhost";
+        return new InetSocketAddress(host, Integer.parseInt(name.substring(colon + 1)));
+    }
+
+
+    // A client connection. Its request is read and its reply written by the selector thread,
+    // and only the job in between is run by a worker.
+    private class Connection {
+
+        private final SocketChannel channel;
+        private Request request = new Request(maxDocumentLength);
+        private ByteBuffer reply;
+
+
+        public Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+
+        public void ready(SelectionKey key) {
+            try {
+                if (key.isReadable()) {
+                    if (request.read(channel)) {
+                        key.interestOps(0);
+                        workers.execute(new Job(this));
+                    }
+                } else if (key.isWritable()) {
+                    channel.write(reply);
+                    if (!reply.hasRemaining()) {
+                        reply = null;
+                        request = new Request(maxDocumentLength);
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            } catch (EOFException ex) {
+                // Client closed the connection
+                close();
+            } catch (IOException ex) {
+                Log.log("Diff server connection failed", LogLevels.WARNING, ex);
+                close();
+            } catch (RejectedExecutionException ex) {
+                // The server was closed while the request was read
+                close();
+            }
+        }
+
+
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Log.log("Can't close a client connection", LogLevels.WARNING, ex);
+            }
+        }
+
+    }
+
+
+    // Runs a single job; the connection is handed back to the selector for the reply
+    private class Job implements Runnable {
+
+        private final Connection connection;
+
+
+        public Job(Connection connection) {
+            this.connection = connection;
+        }
+
+
+        public void run() {
+            try {
+                connection.reply = ByteBuffer.wrap(serve(connection.request));
+            } catch (IOException ex) {
+                Log.log("Diff server job failed", LogLevels.WARNING, ex);
+                connection.close();
+                return;
+            }
+            done.add(connection);
+            selector.wakeup();
+        }
+
+    }
+
+
+    // A request read from a non-blocking connection as its bytes arrive. Each field is read into
+    // a buffer of its own length, so that no bytes of the next request are consumed.
+    private static class Request {
+
+        private static final int TYPE = 0;
+        private static final int COUNT = 1;
+        private static final int OPTION_LENGTH = 2;
+        private static final int OPTION = 3;
+        private static final int LENGTH = 4;
+        private static final int DOCUMENT = 5;
+        private static final int SKIP = 6;
+
+        private static final int SKIP_BUFFER = 8192;
+
+        private final int limit;
+        private int stage = TYPE;
+        private ByteBuffer field = ByteBuffer.allocate(1);
+        private int strings;
+        private String name;
+        private long skip;
+        private int count = 0;
+
+        public int type;
+        public final Map<String, String> options = new HashMap<String, String>();
+        // Documents, with null for one longer than the limit
+        public final byte[][] documents = new byte[2][];
+
+
+        public Request(int limit) {
+            this.limit = limit;
+        }
+
+
+        /**
+         * Read the available bytes of the request.
+         * @return <code>true</code> if the request is complete
+         * @throws EOFException
+         *             if the client closed the connection
+         */
+        public boolean read(ReadableByteChannel channel) throws IOException {
+            while (true) {
+                if (channel.read(field) < 0) throw new EOFException();
+                if (field.hasRemaining()) return false;
+                field.flip();
+                if (next()) return true;
+            }
+        }
+
+
+        // Handles a complete field, and returns true at the end of the request
+        private boolean next() throws IOException {
+            switch (stage) {
+                case TYPE:
+                    type = field.get();
+                    return expect(COUNT, 2);
+                case COUNT:
+                    strings = 2 * (field.getShort() & 0xffff);
+                    return strings > 0 ? expect(OPTION_LENGTH, 2) : expect(LENGTH, 4);
+                case OPTION_LENGTH:
+                    // Keep the length so that the field can be decoded by readUTF
+                    int utflen = field.getShort() & 0xffff;
+                    expect(OPTION, 2 + utflen);
+                    field.putShort((short) utflen);
+                    return false;
+                case OPTION:
+                    String s = new DataInputStream(new ByteArrayInputStream(field.array()))
+                        .readUTF();
+                    if (name == null) {
+                        name = s;
+                    } else {
+                        options.put(name, s);
+                        name = null;
+                    }
+                    return --strings > 0 ? expect(OPTION_LENGTH, 2) : expect(LENGTH, 4);
+                case LENGTH:
+                    int length = field.getInt();
+                    if (length < 0) throw new IOException("Invalid document length " + length);
+                    if (length <= limit) return expect(DOCUMENT, length);
+                    skip = length;
+                    expect(SKIP, (int) Math.min(skip, SKIP_BUFFER));
+                    return false;
+                case DOCUMENT:
+                    documents[count++] = field.array();
+                    return count == documents.length || expect(LENGTH, 4);
+                case SKIP:
+                    skip -= field.limit();
+                    if (skip > 0) {
+                        field.clear();
+                        field.limit((int) Math.min(skip, field.capacity()));
+                        return false;
+                    }
+                    documents[count++] = null;
+                    return count == documents.length || expect(LENGTH, 4);
+                default:
+                    throw new IllegalStateException("Unknown stage " + stage);
+            }
+        }
+
+
+        private boolean expect(int stage, int length) {
+            this.stage = stage;
+            field = ByteBuffer.allocate(length);
+            return false;
+        }
+
+    }
+
+
+    // Runs a job, and returns the whole reply
+    private byte[] serve(Request request) throws IOException {
+        int type = request.type;
+        Map<String, String> options = request.options;
+        byte[] first = request.documents[0];
+        byte[] second = request.documents[1];
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        String error = null;
+        try {
+            if (first == null || second == null) {
+                error = "Document longer than the limit of " + request.limit + " bytes";
+            } else if (type == DIFF) {
+                diff(first, second, options, result);
+            } else if (type == PATCH) {
+                if (!options.isEmpty()) {
+                    throw new IllegalArgumentException("Unknown options " + options.keySet());
+                }
+                Patch.patch(new ByteArrayInputStream(first), second, result);
+            } else {
+                throw new IllegalArgumentException("Unknown job type " + type);
+            }
+        } catch (NodeNotFoundException ex) {
+            error = "Patch references illegal node " + ex.getId();
+        } catch (ClassNotFoundException ex) {
+            error = "Cannot locate class " + ex.getMessage();
+        } catch (RuntimeException ex) {
+            error = ex.toString();
+        } catch (IOException ex) {
+            error = ex.toString();
+        }
+        byte[] reply = error != null ? error.getBytes("UTF-8") : result.toByteArray();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(reply.length + 5);
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeByte(error != null ? FAILED : OK);
+        out.writeInt(reply.length);
+        out.write(reply);
+        out.flush();
+        return bout.toByteArray();
+    }
+
+
+    private static void diff(byte[] base, byte[] doc, Map<String, String> options,
+                             ByteArrayOutputStream out) throws IOException,
+            ClassNotFoundException {
+        Class<? extends DiffEncoder> encoder = fc.xml.diff.encode.XmlDiffEncoder.class;
+        Class<? extends ItemTransform> filter = DataItems.class;
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if ("encoder".equals(option.getKey())) {
+                encoder = Diff.forAlias(option.getValue(), Diff.ENCODER_ALIASES, DiffEncoder.class);
+            } else if ("filter".equals(option.getKey())) {
+                filter = Diff.forAlias(option.getValue(), Diff.FILTER_ALIASES,
+                                       ItemTransform.class);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + option.getKey());
+            }
+        }
+        if (encoder == null) throw new IllegalArgumentException("No encoder given");
+        Diff.diff(new ByteArrayInputStream(base), new ByteArrayInputStream(doc), out, filter,
+                  encoder, null, true);
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        Log.setLogger(new StreamLogger(System.err));
+        String name = args.length > 0 ? args[0] : DEFAULT_ADDRESS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String workers = System.getProperty("workers");
+        if (workers != null) threads = Integer.parseInt(workers);
+        String matchThreads = System.getProperty("threads");
+        if (matchThreads != null) Diff.setMatchThreads(Integer.parseInt(matchThreads));
+        DiffServer server = new DiffServer(parseAddress(name), threads);
+        String maxDocument = System.getProperty("maxdoc");
+        if (maxDocument != null) {
+            server.setMaxDocumentLength((int) Math.min((long) Integer.parseInt(maxDocument) << 20,
+                                                       Integer.MAX_VALUE));
+        }
+        Log.log("Serving diff and patch jobs at " + server.getAddress() + " with " + threads +
+                " workers", LogLevels.INFO);
+        server.run();
+    }
+
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import fc.util.log.Log;
+import fc.util.log.LogLevels;
+
+/**
+ * Statistics of a diff or patch run. A run is split into phases: {@link #PARSE parsing} and
+ * filtering the documents into canonical items, {@link #CANONICALIZE interning} the items to
+ * matcher symbols, one {@link #pass(int) matching pass} per chunk size, {@link #SIMPLIFY
+ * simplifying} the match list, {@link #ENCODE encoding} it, and {@link #WRITE writing} the output.
+ * Writing happens during encoding, so the write time is also part of the encode time. For each
+ * phase the elapsed time and the bytes allocated by the thread running it are recorded. Work done
+ * in other threads, such as the parallel gap matching of {@link GlMatcher}, is included in the
+ * time of the phase that waits for it, but not in its allocation. Allocation is only recorded on
+ * JVMs that can measure it per thread.
+ * <p>
+ * In addition, a run records counters, such as the bytes and items read and the
+ * {@link #FALSE_HASH_MATCHES false hash matches} of the matcher. The passes record their own
+ * counters, named by prefixing the counter with the pass name.
+ * <p>
+ * Statistics are only collected if {@link #setEnabled(boolean) enabled}, or if the system property
+ * <code>fc.diff.stats</code> is set to anything but <code>false</code>. The statistics of the last
+ * run in a thread are available from {@link #last()}, and the totals of all runs from
+ * {@link #getTotals()}. The totals are also registered as an MXBean under {@link #OBJECT_NAME}.
+ */
+public class DiffStats implements DiffStatsMXBean {
+
+    public static final String OBJECT_NAME = "fc.xml.diff:type=DiffStats";
+
+    public static final String PARSE = "parse";
+    public static final String CANONICALIZE = "canonicalize";
+    public static final String SIMPLIFY = "simplify";
+    public static final String ENCODE = "encode";
+    public static final String WRITE = "write";
+    public static final String PATCH = "patch";
+
+    public static final String DIFFS = "diffs";
+    public static final String PATCHES = "patches";
+    public static final String BASE_BYTES = "base.bytes";
+    public static final String DOC_BYTES = "doc.bytes";
+    public static final String DIFF_BYTES = "diff.bytes";
+    public static final String OUTPUT_BYTES = "output.bytes";
+    public static final String BASE_ITEMS = "base.items";
+    public static final String DOC_ITEMS = "doc.items";
+    /**
+     * Number of segments in the match list.
+     */
+    public static final String SEGMENTS = "segments";
+    /**
+     * Number of base windows with the hash of a document window but different items.
+     */
+    public static final String FALSE_HASH_MATCHES = "false.hash.matches";
+    /**
+     * Number of unmatched base regions looked into for a document window.
+     */
+    public static final String REGIONS_SCANNED = "regions.scanned";
+
+    private static final DiffStats totals = new DiffStats();
+    private static final ThreadLocal<DiffStats> last = new ThreadLocal<DiffStats>();
+    private static final com.sun.management.ThreadMXBean allocation;
+    private static boolean enabled = false;
+    private static boolean registered = false;
+
+    static {
+        java.lang.management.ThreadMXBean tb = ManagementFactory.getThreadMXBean();
+        if (tb instanceof com.sun.management.ThreadMXBean &&
+            ((com.sun.management.ThreadMXBean) tb).isThreadAllocatedMemorySupported() &&
+            ((com.sun.management.ThreadMXBean) tb).isThreadAllocatedMemoryEnabled()) {
+            allocation = (com.sun.management.ThreadMXBean) tb;
+        } else {
+            allocation = null;
+        }
+        String property = System.getProperty("fc.diff.stats");
+        if (property != null && !"false".equals(property)) setEnabled(true);
+    }
+
+    // Phase name to { nanoseconds, allocated bytes }
+    private final Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+    private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+    private String open = null;
+    private long openNanos;
+    private long openAllocated;
+
+
+    /**
+     * Create empty statistics. Use {@link #create()} to get statistics for a run only if they are
+     * enabled.
+     */
+    public DiffStats() {
+    }
+
+
+    /**
+     * Set whether statistics are collected. Enabling statistics registers the totals MXBean with
+     * the platform MBean server.
+     * @param enable
+     *            whether to collect statistics
+     */
+    public static synchronized void setEnabled(boolean enable) {
+        enabled = enable;
+        if (enable && !registered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(totals, new ObjectName(OBJECT_NAME));
+            } catch (JMException ex) {
+                Log.log("Cannot register diff statistics", LogLevels.WARNING, ex);
+            }
+            registered = true;
+        }
+    }
+
+
+    public static synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Create statistics for a run.
+     * @return new statistics, or <code>null</code> if statistics are not enabled
+     */
+    public static DiffStats create() {
+        return isEnabled() ? new DiffStats() : null;
+    }
+
+
+    /**
+     * Get the statistics of the last run finished in the calling thread.
+     * @return statistics, or <code>null</code> if no run has been finished with statistics enabled
+     */
+    public static DiffStats last() {
+        return last.get();
+    }
+
+
+    /**
+     * Get the totals of all finished runs.
+     * @return total statistics; these are updated as runs finish
+     */
+    public static DiffStats getTotals() {
+        return totals;
+    }
+
+
+    /**
+     * Get the name of a matching pass.
+     * @param chunkSize
+     *            chunk size of the pass
+     * @return phase name of the pass
+     */
+    public static String pass(int chunkSize) {
+        return "match." + chunkSize;
+    }
+
+
+    /**
+     * Start a phase. The phase ends at the next call to {@link #end()}; phases started this way
+     * may not nest.
+     * @param phase
+     *            phase name
+     */
+    public synchronized void begin(String phase) {
+        if (open != null) throw new IllegalStateException("Phase " + open + " not ended");
+        open = phase;
+        openAllocated = allocated();
+        openNanos = System.nanoTime();
+    }
+
+
+    /**
+     * End the current phase, and add its time and allocation to the phase.
+     */
+    public synchronized void end() {
+        if (open == null) throw new IllegalStateException("No phase started");
+        long nanos = System.nanoTime() - openNanos;
+        add(open, nanos, allocation != null ? allocated() - openAllocated : 0);
+        open = null;
+    }
+
+
+    /**
+     * Add to the time and allocation of a phase.
+     * @param phase
+     *            phase name
+     * @param nanos
+     *            nanoseconds to add
+     * @param allocated
+     *            bytes to add
+     */
+    public synchronized void add(String phase, long nanos, long allocated) {
+        long[] p = phases.get(phase);
+        if (p == null) {
+            p = new long[2];
+            phases.put(phase, p);
+        }
+        p[0] += nanos;
+        p[1] += allocated;
+    }
+
+
+    /**
+     * Add to a counter.
+     * @param counter
+     *            counter name
+     * @param delta
+     *            amount to add
+     */
+    public synchronized void count(String counter, long delta) {
+        Long value = counters.get(counter);
+        counters.put(counter, (value != null ? value : 0) + delta);
+    }
+
+
+    public synchronized long getNanos(String phase) {
+        long[] p = phases.get(phase);
+        return p != null ? p[0] : 0;
+    }
+
+
+    public synchronized long getAllocated(String phase) {
+        long[] p = phases.get(phase);
+        return p != null ? p[1] : 0;
+    }
+
+
+    public synchronized long getCount(String counter) {
+        Long value = counters.get(counter);
+        return value != null ? value : 0;
+    }
+
+
+    public synchronized Map<String, Long> getPhaseNanos() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, long[]> e : phases.entrySet()) {
+            result.put(e.getKey(), e.getValue()[0]);
+        }
+        return result;
+    }
+
+
+    public synchronized Map<String, Long> getPhaseAllocations() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        if (allocation != null) {
+            for (Map.Entry<String, long[]> e : phases.entrySet()) {
+                result.put(e.getKey(), e.getValue()[1]);
+            }
+        }
+        return result;
+    }
+
+
+    public synchronized Map<String, Long> getCounters() {
+        return new LinkedHashMap<String, Long>(counters);
+    }
+
+
+    public synchronized void reset() {
+        phases.clear();
+        counters.clear();
+        open = null;
+    }
+
+
+    /**
+     * Add the phases and counters of other statistics to these.
+     * @param other
+     *            statistics to add
+     */
+    public void add(DiffStats other) {
+        Map<String, Long> nanos = other.getPhaseNanos();
+        Map<String, Long> allocated = other.getPhaseAllocations();
+        Map<String, Long> counts = other.getCounters();
+        synchronized (this) {
+            for (Map.Entry<String, Long> e : nanos.entrySet()) {
+                Long a = allocated.get(e.getKey());
+                add(e.getKey(), e.getValue(), a != null ? a : 0);
+            }
+            for (Map.Entry<String, Long> e : counts.entrySet()) {
+                count(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+
+    /**
+     * Finish a run. The statistics become the {@link #last() last} ones of the calling thread,
+     * and are added to the totals.
+     */
+    public void finish() {
+        last.set(this);
+        totals.add(this);
+    }
+
+
+    /**
+     * Wrap a stream so that the bytes read from it are counted.
+     * @param in
+     *            stream to wrap
+     * @param counter
+     *            counter to add the bytes to
+     * @return counting stream
+     */
+    public InputStream countInput(InputStream in, final String counter) {
+        return new FilterInputStream(in) {
+
+            // Bytes read again after a reset would be counted twice
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+
+            @Override
+            public int read() throws IOException {
+                int c = super.read();
+                if (c >= 0) count(counter, 1);
+                return c;
+            }
+
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) count(counter, n);
+                return n;
+            }
+
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                count(counter, skipped);
+                return skipped;
+            }
+        };
+    }
+
+
+    /**
+     * Wrap a stream so that the bytes written to it are counted as {@link #OUTPUT_BYTES}, and the
+     * time taken by writing and flushing is added to the {@link #WRITE} phase.
+     * @param out
+     *            stream to wrap
+     * @return counting stream
+     */
+    public OutputStream countOutput(OutputStream out) {
+        return new FilterOutputStream(out) {
+
+            @Override
+            public void write(int b) throws IOException {
+                long start = System.nanoTime();
+                out.write(b);
+                add(WRITE, System.nanoTime() - start, 0);
+                count(OUTPUT_BYTES, 1);
+            }
+
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                long start = System.nanoTime();
+                out.write(b, off, len);
+                add(WRITE, System.nanoTime() - start, 0);
+                count(OUTPUT_BYTES, len);
+            }
+
+
+            @Override
+            public void flush() throws IOException {
+                long start = System.nanoTime();
+                out.flush();
+                add(WRITE, System.nanoTime() - start, 0);
+            }
+        };
+    }
+
+
+    private static long allocated() {
+        return allocation != null ? allocation.getThreadAllocatedBytes(Thread.currentThread()
+            .getId()) : 0;
+    }
+
+
+    /**
+     * Return a report of the statistics, with one line for each phase and counter.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-32s %12s %14s%n", "phase", "ms", "allocated"));
+        for (Map.Entry<String, long[]> e : phases.entrySet()) {
+            long[] p = e.getValue();
+            sb.append(String.format("%-32s %12.3f %14s%n", e.getKey(), p[0] / 1e6,
+                                    allocation != null ? String.valueOf(p[1]) : "-"));
+        }
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            sb.append(String.format("%-32s %12d%n", e.getKey(), e.getValue()));
+        }
+        return sb.toString();
+    }
+
+}
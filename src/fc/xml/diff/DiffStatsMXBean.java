@@ -0,0 +1,46 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link DiffStats}. The totals of all diffs and patches run with
+ * statistics enabled are registered under {@link DiffStats#OBJECT_NAME}.
+ */
+public interface DiffStatsMXBean {
+
+    /**
+     * Get the time spent in each phase.
+     * @return map from phase name to nanoseconds
+     */
+    Map<String, Long> getPhaseNanos();
+
+
+    /**
+     * Get the bytes allocated in each phase by the thread running it.
+     * @return map from phase name to bytes, empty if the JVM cannot measure allocation
+     */
+    Map<String, Long> getPhaseAllocations();
+
+
+    /**
+     * Get the counters.
+     * @return map from counter name to value
+     */
+    Map<String, Long> getCounters();
+
+
+    /**
+     * Reset all phases and counters to zero.
+     */
+    void reset();
+
+}
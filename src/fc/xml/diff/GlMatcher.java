@@ -15,15 +15,35 @@ import static fc.xml.diff.Segment.Operation.INSERT;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import fc.util.log.Log;
 import fc.util.log.LogLevels;
 
 /**
  * Rolling window matcher. Should be wickedly fast for small changes. Inspired by rsync algorithms.
+ * <p>
+ * Items are first interned to <code>int</code> symbols with a {@link SymbolTable}, so the matching
+ * itself only compares and hashes ints. For each chunk size, the windows of the unmatched base
+ * regions are indexed by a 64-bit polynomial hash of their symbols, so that each doc window is a
+ * single lookup regardless of the number and size of the base regions. The segments refer to the
+ * original items.
+ * <p>
+ * If constructed with a {@link ForkJoinPool}, the passes after the first one are first run in
+ * parallel on each gap between consecutive copies, using only the base regions that lie between
+ * the same copies in base. The results are merged in document order, so the match list does not
+ * depend on thread scheduling. The regular sequential passes are then run on what is left, which
+ * picks up moves across gaps.
+ * <p>
+ * A base that is matched against many documents can be {@link #prepare(List, int[]) prepared}
+ * once. The prepared base holds the symbols, hashes and window indexes of the base, and is only
+ * read by {@link #match(Prepared, List, int[])}, so it may be shared between threads.
  */
 
 public class GlMatcher<E> {
@@ -37,41 +57,150 @@ public class GlMatcher<E> {
     public int[] tokenBoundaries;
     public int[] docTokenBounds;
 
-    int falseHashMatches = 0;
+    public int falseHashMatches = 0;
+    int regionsScanned = 0;
 
     private HashAlgorithm<E> ha;
 
+    // Multiplier for the polynomial window hash; any odd constant will do
+    private static final long HASH_BASE = 0x100000001b3L;
+
+    // Items of base and doc as interned symbols
+    private int[] baseTokens;
+    private int[] docTokens;
+    private long[] baseHashes;
+    private long[] docHashes;
+    private long[] powers;
+    private HashIndex[] index;
+    private Prepared<E> prepared;
+
+    private ForkJoinPool pool;
+    private DiffStats stats;
+
 
     public GlMatcher(HashAlgorithm<E> ha) {
+        this(ha, null);
+    }
+
+
+    /**
+     * Create a matcher.
+     * @param ha
+     *            hash algorithm for items
+     * @param pool
+     *            pool to run the gap matching in, or <code>null</code> to match sequentially
+     */
+    public GlMatcher(HashAlgorithm<E> ha, ForkJoinPool pool) {
         this.ha = ha;
+        this.pool = pool;
+    }
+
+
+    /**
+     * Set the statistics to record the phases and counters of matching in.
+     * @param stats
+     *            statistics, or <code>null</code> to record none
+     */
+    public void setStats(DiffStats stats) {
+        this.stats = stats;
     }
 
 
     public List<Segment<E>> match(List<E> base, List<E> doc, int[] sizes) {
-        long timeB = System.currentTimeMillis();
+        if (stats != null) stats.begin(DiffStats.CANONICALIZE);
+        SymbolTable<E> symbols = new SymbolTable<E>(ha);
+        int[] tokens = symbols.intern(base);
+        long[] hashes = prefixHashes(tokens);
+        if (stats != null) stats.end();
+        return match(base, tokens, hashes, symbols, null, doc, sizes);
+    }
+
+
+    /**
+     * Prepare a base for matching against several documents.
+     * @param base
+     *            base items; must not be modified while the prepared base is in use
+     * @param sizes
+     *            chunk sizes that the base will be matched with
+     * @return prepared base
+     */
+    public Prepared<E> prepare(List<E> base, int[] sizes) {
+        return new Prepared<E>(ha, base, sizes);
+    }
+
+
+    /**
+     * Match a document against a prepared base. The match list is the same as the one returned
+     * by {@link #match(List, List, int[])} on the items of the base. The prepared base is not
+     * modified, so several threads may match against the same one, each with its own matcher.
+     * @param base
+     *            prepared base
+     * @param doc
+     *            document items
+     * @param sizes
+     *            chunk sizes to match with, in decreasing order
+     * @return match list
+     */
+    public List<Segment<E>> match(Prepared<E> base, List<E> doc, int[] sizes) {
+        return match(base.base, base.tokens, base.hashes, new SymbolTable<E>(base.symbols), base,
+                     doc, sizes);
+    }
+
+
+    private List<Segment<E>> match(List<E> base, int[] tokens, long[] hashes,
+                                   SymbolTable<E> symbols, Prepared<E> prep, List<E> doc,
+                                   int[] sizes) {
+        int falseStart = falseHashMatches, scannedStart = regionsScanned;
         List<Segment<E>> baseList = new ArrayList<Segment<E>>();
         baseList.add(Segment.createIns(0, base, 0));
         List<Segment<E>> matchList = new LinkedList<Segment<E>>();
         matchList.add(Segment.createIns(0, doc, 0));
         int minSize = sizes[sizes.length - 1];
+        int maxSize = 0;
+        for (int b : sizes)
+            maxSize = Math.max(maxSize, b);
+        if (stats != null) stats.begin(DiffStats.CANONICALIZE);
+        baseTokens = tokens;
+        docTokens = symbols.intern(doc);
+        baseHashes = hashes;
+        docHashes = prefixHashes(docTokens);
+        powers = powers(maxSize);
+        prepared = prep;
+        if (stats != null) stats.end();
         // Log.log("Base  at "+sizes[sizes.length-1]+": "+baseList.size(),Log.INFO);
-        for (int b : sizes) {
-            findChunks(matchList, baseList, b, minSize);
+        for (int p = 0; p < sizes.length; p++) {
+            int falseBefore = falseHashMatches, scannedBefore = regionsScanned;
+            if (stats != null) stats.begin(DiffStats.pass(sizes[p]));
+            index = new HashIndex[maxSize + 1];
+            findChunks(matchList, baseList, sizes[p], minSize);
             // Log.log("Base  after "+b+": "+baseList.size(),Log.INFO);
             // Log.log("Match at "+b+": "+matchList.size(),Log.INFO);
-            // Log.log("False matches "+falseHashMatches,Log.INFO);
-
+            // The gap passes are recorded as part of the first pass
+            if (p == 0 && pool != null && sizes.length > 1)
+                baseList = matchGaps(matchList, baseList, base.size(),
+                                     Arrays.copyOfRange(sizes, 1, sizes.length), minSize);
+            if (stats != null) {
+                stats.end();
+                String pass = DiffStats.pass(sizes[p]) + ".";
+                stats.count(pass + DiffStats.SEGMENTS, matchList.size());
+                stats.count(pass + DiffStats.FALSE_HASH_MATCHES, falseHashMatches - falseBefore);
+                stats.count(pass + DiffStats.REGIONS_SCANNED, regionsScanned - scannedBefore);
+            }
         }
-        long timeS = System.currentTimeMillis();
+        index = null;
+        prepared = null;
+        baseTokens = docTokens = null;
+        baseHashes = docHashes = null;
+        if (stats != null) stats.begin(DiffStats.SIMPLIFY);
         simplify(matchList, doc);
-        long timeU = System.currentTimeMillis();
         // updatify(matchList,baseList,base.size());
-        long timeE = System.currentTimeMillis();
+        if (stats != null) {
+            stats.end();
+            stats.count(DiffStats.SEGMENTS, matchList.size());
+            stats.count(DiffStats.FALSE_HASH_MATCHES, falseHashMatches - falseStart);
+            stats.count(DiffStats.REGIONS_SCANNED, regionsScanned - scannedStart);
+        }
         // Log.log("Final list\n"+matchList,Log.INFO);
-        /*
-         * Log.log("Matching took " + (timeS - timeB) + "msec, simplify " + (timeU - timeS) +
-         * "msec, updatify "+ (timeE - timeU) + "msec.", Log.INFO);
-         */
         assert (_testPositionConsistency(matchList));
         return matchList;
     }
@@ -89,6 +218,94 @@ public class GlMatcher<E> {
     }
 
 
+    // Matches the inserts between each pair of consecutive copies in ml to the
+    // base regions between the same copies, with one task per gap. Replaces
+    // the matched inserts in ml, and returns the remaining base regions.
+    private List<Segment<E>> matchGaps(List<Segment<E>> ml, List<Segment<E>> baseList,
+                                       int baseLen, int[] sizes, int minSize) {
+        List<Segment<E>> segments = new ArrayList<Segment<E>>(ml);
+        boolean[] claimed = new boolean[baseList.size()];
+        List<GapTask> tasks = new ArrayList<GapTask>();
+        for (int i = 0; i < segments.size();) {
+            if (segments.get(i).getOp() == COPY) {
+                i++;
+                continue;
+            }
+            int j = i;
+            while (j < segments.size() && segments.get(j).getOp() != COPY)
+                j++;
+            Segment<E> prev = i > 0 ? segments.get(i - 1) : null;
+            int lo = prev != null ? prev.getOffset() + prev.getLength() : 0;
+            int hi = j < segments.size() ? segments.get(j).getOffset() : baseLen;
+            // If copies are out of order in base, gaps may overlap; the first
+            // gap gets the region
+            List<Segment<E>> regions = new ArrayList<Segment<E>>();
+            for (int r = regionAt(baseList, lo); r < baseList.size() &&
+                                             baseList.get(r).getOffset() < hi; r++) {
+                if (!claimed[r]) {
+                    claimed[r] = true;
+                    regions.add(baseList.get(r));
+                }
+            }
+            if (!regions.isEmpty())
+                tasks.add(new GapTask(i, j, segments.subList(i, j), regions, sizes, minSize));
+            i = j;
+        }
+        for (GapTask t : tasks)
+            pool.execute(t);
+        List<Segment<E>> remaining = new ArrayList<Segment<E>>();
+        for (int r = 0; r < claimed.length; r++) {
+            if (!claimed[r]) remaining.add(baseList.get(r));
+        }
+        ml.clear();
+        int pos = 0;
+        for (GapTask t : tasks) {
+            t.join();
+            ml.addAll(segments.subList(pos, t.from));
+            ml.addAll(t.matches);
+            remaining.addAll(t.regions);
+            falseHashMatches += t.matcher.falseHashMatches;
+            regionsScanned += t.matcher.regionsScanned;
+            pos = t.to;
+        }
+        ml.addAll(segments.subList(pos, segments.size()));
+        Collections.sort(remaining, new Comparator<Segment<E>>() {
+
+            public int compare(Segment<E> s1, Segment<E> s2) {
+                return s1.getOffset() - s2.getOffset();
+            }
+        });
+        return remaining;
+    }
+
+
+    // Index of the first base region at or after offset
+    private static <E> int regionAt(List<Segment<E>> baseRegions, int offset) {
+        int lo = 0, hi = baseRegions.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (baseRegions.get(mid).getOffset() < offset) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+
+    // A matcher sharing the hashes of this one, but with its own index
+    private GlMatcher<E> split() {
+        GlMatcher<E> m = new GlMatcher<E>(ha);
+        m.tokenBoundaries = tokenBoundaries;
+        m.docTokenBounds = docTokenBounds;
+        m.baseTokens = baseTokens;
+        m.docTokens = docTokens;
+        m.baseHashes = baseHashes;
+        m.docHashes = docHashes;
+        m.powers = powers;
+        m.prepared = prepared;
+        return m;
+    }
+
+
     public void simplify(List<Segment<E>> ml, List<E> doc) {
         Segment<E> prev = null;
         for (ListIterator<Segment<E>> li = ml.listIterator(); li.hasNext();) {
@@ -183,8 +400,8 @@ public class GlMatcher<E> {
             assert m.getOp() == INSERT;
             // offlen[0] = off in base, offlen[1]=length
             // offset of match in m.getInsert() is scanpos
-            int[] offlen = findChunkInRegions(scanpos, m.getInsert(), base, firstRegion, chunkSize,
-                                              minSize);
+            int[] offlen = findChunkInRegions(m.getOffset(), scanpos, m.getInsert(), base,
+                                              firstRegion, chunkSize, minSize);
             // int zinsSize = m.getInsert().size();
             if (offlen == null) {
                 // not found
@@ -246,198 +463,317 @@ public class GlMatcher<E> {
     }
 
 
-    protected int[] findChunkInRegions(int scanpos, List<E> chunkToMatch,
+    protected int[] findChunkInRegions(int docStart, int scanpos, List<E> chunkToMatch,
                                        List<Segment<E>> baseRegions, int firstRegion,
                                        int chunkSize, int minSize) {
         if (firstRegion < 0) {
             // firsRegion < 0 -> find first base rgion with offset >= that
-            int offset = -firstRegion;
-            firstRegion = 0;
-            while (firstRegion < baseRegions.size() &&
-                   baseRegions.get(firstRegion).getOffset() < offset)
-                firstRegion++;
+            firstRegion = regionAt(baseRegions, -firstRegion);
         }
-        int bfly = 0, maxbfly = // Integer.MAX_VALUE-1;
+        int maxbfly = // Integer.MAX_VALUE-1;
         chunkSize >= 8 ? Integer.MAX_VALUE : 2 * chunkSize + 2;
         // IDEA: Dynamic maxbfly depending on chunk size
-        // Log.log("Looking for " + chunkToMatch.subList(scanpos,
-        // chunkToMatch.size()),
-        // Log.INFO);
-        loop: for (int ofi = firstRegion; ofi < firstRegion + baseRegions.size(); ofi++) {
-            int i = (baseRegions.size() + bfly + firstRegion) % baseRegions.size();
-            if (bfly <= 0) // 0,1,-1,2,-2,3,-3,...
-            bfly = -bfly + 1;
-            else bfly = -bfly;
-            if (bfly > maxbfly || bfly < -maxbfly) return null;
-            Segment<E> region = baseRegions.get(i);
-            // Log.log("Looking into ix "+i+":"+region,Log.INFO);
-            // assuming off 0 is start of region...; offlen coordinates in
-            // region,
-            // corresponding offset in chunkToMatch is ***offlen[0]+scanpos***
-            int[] offlen = findChunk(scanpos, chunkToMatch, region.getInsert(), chunkSize, minSize);
-            if (offlen != null) {
-                // Log.log("Found match @ "+offlen[0]+", len "+offlen[1]
-                // ,Log.INFO);
-                // Found match; remove matching chunkToMatch from baseRegions
-                // Log.log("Split (off,len="+offlen[0]+","+offlen[1]+"): "+region,Log.INFO);
-                if (tokenBoundaries != null) {
-                    int start = -1, end = -1, regionMax = region.getOffset() + region.getLength(), regionMin = region.getOffset();
-                    Log.log("Unaligned match is " +
-                            region.getInsert().subList(offlen[0], offlen[0] + offlen[1]),
-                            LogLevels.INFO);
-                    // Try alignment on token boundaries
-                    // Determine low
-                    {
-                        int origStart = offlen[0] + region.getOffset();
-                        int low = Arrays.binarySearch(tokenBoundaries, origStart);
-                        if (low < 0) {
-                            // in between, se up low so we're between low and
-                            // low+1
-                            low = (-low) - 2; // low points to ix < low boundary
-                            assert (tokenBoundaries[low + 1] >= regionMin);
-                            int mid = (tokenBoundaries[low] + tokenBoundaries[low + 1]) / 2;
-                            start = origStart <= mid && tokenBoundaries[low] >= regionMin ? tokenBoundaries[low]
-                                    : tokenBoundaries[low + 1];
-
-                        } else start = origStart;
-                    }
-                    // Now, do it fo hi
-                    {
-                        int origEnd = offlen[0] + offlen[1] + region.getOffset();
-                        int hi = Arrays.binarySearch(tokenBoundaries, origEnd);
-                        if (hi < 0) {
-                            // in between hi and hi +1
-                            hi = (-hi) - 2;
-                            assert (tokenBoundaries[hi] <= regionMax);
-                            int mid = (tokenBoundaries[hi] + tokenBoundaries[hi + 1]) / 2;
-                            end = origEnd > mid && tokenBoundaries[hi + 1] <= regionMax ? tokenBoundaries[hi + 1]
-                                    : tokenBoundaries[hi];
-                        } else end = origEnd;
-                    }
-                    if (end <= start) continue loop; // Aligned one turned out to beinvalid;
-                    // case end < start
-                    // Happens if hi+1 was rejected, and hi+0 is too low
-
-                    offlen[0] = start - region.getOffset();
-                    offlen[1] = end - start;
-                    assert (offlen[0] >= 0);
-                    assert (offlen[1] >= 0);
-                    assert (offlen[0] < region.getLength());
-                    assert (offlen[0] + offlen[1] <= region.getLength());
-                    assert (region.getLength() == region.getInsert().size());
-                    // Log.log("=== off "+offlen[0]+", len="+offlen[1],Log.INFO);
-                    Log.log("Aligned match is " +
-                            region.getInsert().subList(offlen[0], offlen[0] + offlen[1]),
-                            LogLevels.INFO);
+        int len = Math.min(chunkSize, chunkToMatch.size() - scanpos);
+        if (len < minSize) return null; // Doesn't fit
+        int docPos = docStart + scanpos;
+        long hash = windowHash(docHashes, powers, docPos, len);
+        // Candidates are taken in butterfly order from firstRegion, i.e.,
+        // 0,1,-1,2,-2,3,-3,..., and the leftmost match in a region wins. We
+        // only go past rank minRank if token alignment rejects a match.
+        for (int minRank = -1;;) {
+            int[] offlen = null;
+            int i = -1, bestRank = Integer.MAX_VALUE;
+            for (int e = getIndex(len, baseRegions).first(hash); e != -1; e = index[len].next(e)) {
+                int off = index[len].position(e);
+                int ri = regionOf(baseRegions, off);
+                if (ri == -1) continue; // Already matched
+                regionsScanned++;
+                Segment<E> region = baseRegions.get(ri);
+                int roff = off - region.getOffset();
+                if (roff + len > region.getLength()) continue; // Overlaps matched area
+                int rank = bflyRank(ri, firstRegion, baseRegions.size(), maxbfly);
+                if (rank <= minRank || rank >= bestRank) continue;
+                int j = 0;
+                for (; j < len && docTokens[docPos + j] == baseTokens[off + j]; j++)
+                    ; // Deliberately empty stmnt here!
+                if (j < len) {
+                    falseHashMatches++;
+                    continue;
                 }
-                baseRegions.remove(i); // NOTE: i.remove() is wrong; watch out
-                // for this
-                // (Note similar cases below)
-                if (offlen[0] > 0) {
-                    Segment<E> pre = Segment.createIns(region.getOffset(),
-                                                       region.getInsert().subList(0, offlen[0]),
-                                                       region.getOffset());
-                    // Log.log("Pre :"+pre,Log.INFO);
-                    baseRegions.add(i, pre); // i.add(pre);
-                    i++;
+                i = ri;
+                bestRank = rank;
+                offlen = new int[] { roff, len };
+                if (rank == 0) break;
+            }
+            if (offlen == null) return null; // no match
+            Segment<E> region = baseRegions.get(i);
+            {
+                // try expanding right
+                int maxmore = Math.min(chunkToMatch.size() - len - scanpos, region.getLength() -
+                                                                           offlen[0] - len);
+                int off = region.getOffset() + offlen[0] + len, extra = 0;
+                while (extra < maxmore && baseTokens[off + extra] == docTokens[docPos + len + extra])
+                    extra++;
+                offlen[1] += extra;
+            }
+            minRank = bestRank;
+            // Found match; remove matching chunkToMatch from baseRegions
+            if (tokenBoundaries != null) {
+                int start = -1, end = -1, regionMax = region.getOffset() + region.getLength(), regionMin = region.getOffset();
+                Log.log("Unaligned match is " +
+                        region.getInsert().subList(offlen[0], offlen[0] + offlen[1]),
+                        LogLevels.INFO);
+                // Try alignment on token boundaries
+                // Determine low
+                {
+                    int origStart = offlen[0] + region.getOffset();
+                    int low = Arrays.binarySearch(tokenBoundaries, origStart);
+                    if (low < 0) {
+                        // in between, se up low so we're between low and
+                        // low+1
+                        low = (-low) - 2; // low points to ix < low boundary
+                        assert (tokenBoundaries[low + 1] >= regionMin);
+                        int mid = (tokenBoundaries[low] + tokenBoundaries[low + 1]) / 2;
+                        start = origStart <= mid && tokenBoundaries[low] >= regionMin ? tokenBoundaries[low]
+                                : tokenBoundaries[low + 1];
+
+                    } else start = origStart;
                 }
-                if (offlen[0] + offlen[1] < region.getLength()) {
-                    int start = offlen[0] + offlen[1];
-                    Segment<E> post = Segment.createIns(
-                                                        start + region.getOffset(),
-                                                        region.getInsert().subList(
-                                                                                   start,
-                                                                                   region.getInsert().size()),
-                                                        start + region.getOffset());
-
-                    // Log.log("Post:"+post,Log.INFO);
-                    baseRegions.add(i, post); // i.add(post);
+                // Now, do it fo hi
+                {
+                    int origEnd = offlen[0] + offlen[1] + region.getOffset();
+                    int hi = Arrays.binarySearch(tokenBoundaries, origEnd);
+                    if (hi < 0) {
+                        // in between hi and hi +1
+                        hi = (-hi) - 2;
+                        assert (tokenBoundaries[hi] <= regionMax);
+                        int mid = (tokenBoundaries[hi] + tokenBoundaries[hi + 1]) / 2;
+                        end = origEnd > mid && tokenBoundaries[hi + 1] <= regionMax ? tokenBoundaries[hi + 1]
+                                : tokenBoundaries[hi];
+                    } else end = origEnd;
                 }
-                offlen[0] += region.getOffset();
-                return new int[] { offlen[0], offlen[1], i + 1 };
+                if (end <= start) continue; // Aligned one turned out to beinvalid;
+                // case end < start
+                // Happens if hi+1 was rejected, and hi+0 is too low
+
+                offlen[0] = start - region.getOffset();
+                offlen[1] = end - start;
+                assert (offlen[0] >= 0);
+                assert (offlen[1] >= 0);
+                assert (offlen[0] < region.getLength());
+                assert (offlen[0] + offlen[1] <= region.getLength());
+                assert (region.getLength() == region.getInsert().size());
+                // Log.log("=== off "+offlen[0]+", len="+offlen[1],Log.INFO);
+                Log.log("Aligned match is " +
+                        region.getInsert().subList(offlen[0], offlen[0] + offlen[1]),
+                        LogLevels.INFO);
+            }
+            baseRegions.remove(i); // NOTE: i.remove() is wrong; watch out
+            // for this
+            // (Note similar cases below)
+            if (offlen[0] > 0) {
+                Segment<E> pre = Segment.createIns(region.getOffset(),
+                                                   region.getInsert().subList(0, offlen[0]),
+                                                   region.getOffset());
+                // Log.log("Pre :"+pre,Log.INFO);
+                baseRegions.add(i, pre); // i.add(pre);
+                i++;
+            }
+            if (offlen[0] + offlen[1] < region.getLength()) {
+                int start = offlen[0] + offlen[1];
+                Segment<E> post = Segment.createIns(
+                                                    start + region.getOffset(),
+                                                    region.getInsert().subList(
+                                                                               start,
+                                                                               region.getInsert().size()),
+                                                    start + region.getOffset());
+
+                // Log.log("Post:"+post,Log.INFO);
+                baseRegions.add(i, post); // i.add(post);
             }
+            offlen[0] += region.getOffset();
+            return new int[] { offlen[0], offlen[1], i + 1 };
         }
-        return null; // no match
     }
 
 
-    // finds the chunk chunk.sublist(scanpos,chunklen) in baseRegion
-    // chunk is initially between minSize and chunkSize, depending on what
-    // can fit inside the region. Upon match, the chunk is expanded maximally
-    // returns offlen[0]=offset into baseRegion
-    // offlen[1]=length of match
+    /**
+     * Get the position of a region in the butterfly scan order from <code>firstRegion</code>.
+     * @return scan position, or <code>Integer.MAX_VALUE</code> if the scan gives up before
+     *         reaching the region
+     */
+    public static int bflyRank(int region, int firstRegion, int regions, int maxbfly) {
+        int d = ((region - firstRegion) % regions + regions) % regions;
+        int bfly = d <= regions / 2 ? d : d - regions;
+        if (bfly > maxbfly || -bfly > maxbfly - 1) return Integer.MAX_VALUE;
+        return bfly > 0 ? 2 * bfly - 1 : -2 * bfly;
+    }
 
-    protected int[] findChunk(int scanpos, List<E> chunk, List<E> baseRegion, int chunkSize,
-                              int minSize) {
-        // Log.log("findChunk: ",Log.INFO, new int[]
-        // {scanpos,chunk.length,baseRegion.length,maxsize});
-        int len = Math.min(chunkSize, chunk.size() - scanpos);
-        if (baseRegion.size() < len || len < minSize) return null; // Doesn't fit
-        short[] froll = initroll(chunk, len, scanpos);
-        short[] broll = initroll(baseRegion, len, 0);
-        // Note i = match offset, i-1 is expunged
-        for (int i = 0; i + len <= baseRegion.size(); i++) {
-            if (froll[0] == broll[0] && froll[1] == broll[1]) {
-                // Potential match @ i, length len
-                int j = 0;
-                for (; j < len && chunk.get(scanpos + j).equals(baseRegion.get(i + j)); j++)
-                    ; // Deliberately empty stmnt here!
-                /*
-                 * Log.log("Potential match (chunk,base): \n"+new String(chunk,scanpos,len)+"\n"+
-                 * new String(baseRegion,i,len),Log.INFO);
-                 */
-                if (j == len) {
-                    // try expanding left
-                    int maxmore = Math.min(chunk.size() - len - scanpos, baseRegion.size() - i -
-                                                                         len);
-                    int extra = 0;
-                    while (extra < maxmore &&
-                           baseRegion.get(i + len + extra).equals(chunk.get(scanpos + len + extra)))
-                        extra++;
-                    /*
-                     * if( extra < maxmore ) { Log.log("Stopped due to 1:"+baseRegion.get(i + len +
-                     * extra),Log.INFO); Log.log("Stopped due to 2:"+chunk.get(scanpos + len +
-                     * extra),Log.INFO); }
-                     */
-                    return new int[] { i, len + extra };
-                } else
-                /*
-                 * Log.log("False matched j="+j+",len="+len+" event@chunk="+chunk .get(scanpos+j)+
-                 * " event@base="+baseRegion.get(i+j)+" equals="
-                 * +chunk.get(scanpos+j).equals(baseRegion.get(i+j))+ "\n"+chunk
-                 * .subList(scanpos,scanpos+len)+" to\n"+baseRegion .subList(i,i+len),Log.INFO);
-                 */
-                falseHashMatches++;
+
+    /**
+     * Get the base region containing an offset.
+     * @return index of the region in <code>baseRegions</code>, or -1 if none
+     */
+    public static <E> int regionOf(List<Segment<E>> baseRegions, int offset) {
+        int lo = 0, hi = baseRegions.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Segment<E> region = baseRegions.get(mid);
+            if (offset < region.getOffset()) hi = mid - 1;
+            else if (offset >= region.getOffset() + region.getLength()) lo = mid + 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+
+    // Index of all base windows of length len. Built lazily for each length,
+    // and dropped at the start of each pass. Regions only shrink during a
+    // pass, so stale entries are filtered on lookup. For the same reason, the
+    // index of the whole prepared base will do, and is used if at least half
+    // of it is still unmatched.
+    protected final HashIndex getIndex(int len, List<Segment<E>> baseRegions) {
+        if (index[len] == null) {
+            int windows = 0;
+            for (Segment<E> region : baseRegions)
+                windows += Math.max(0, region.getLength() - len + 1);
+            if (prepared != null && prepared.hasIndex(len) &&
+                2 * windows >= prepared.base.size() - len + 1) {
+                index[len] = prepared.getIndex(len);
+            } else {
+                index[len] = buildIndex(baseRegions, windows, baseHashes, powers, len);
             }
-            // Expunge this byte, and chew next, unless on last (test-only) lap
-            if (i + len < baseRegion.size())
-                updateroll(broll, baseRegion.get(i), baseRegion.get(i + len), i, i + len);
         }
-        return null; // no chunk
+        return index[len];
     }
 
 
-    protected final short[] initroll(List<E> baseRegion, int len, int off) {
-        short a = 0, b = 0;
-        // Make s(0,len-1)
-        for (int i = 0; i < len; i++) {
-            short hash = ha.quickHash(baseRegion.get(i + off));
-            a += hash;
-            b += (len - i) * hash;
+    private static <E> HashIndex buildIndex(List<Segment<E>> baseRegions, int windows,
+                                            long[] hashes, long[] powers, int len) {
+        HashIndex hi = new HashIndex(windows);
+        // Add backwards, so that chains are in ascending offset order
+        for (int r = baseRegions.size() - 1; r >= 0; r--) {
+            Segment<E> region = baseRegions.get(r);
+            for (int off = region.getOffset() + region.getLength() - len; off >= region.getOffset(); off--)
+                hi.add(windowHash(hashes, powers, off, len), off);
         }
-        return new short[] { a, b };
+        return hi;
+    }
+
+
+    private static long[] powers(int maxSize) {
+        long[] powers = new long[maxSize + 1];
+        powers[0] = 1;
+        for (int i = 1; i <= maxSize; i++)
+            powers[i] = powers[i - 1] * HASH_BASE;
+        return powers;
     }
 
 
-    protected final void updateroll(short[] state, E outT, E inT, int k, int l) {
-        short in = ha.quickHash(inT);
-        short out = ha.quickHash(outT);
-        /*
-         * state[0]+=in-out; short tmp =(short) (((short) (l-k))out); short tmp2 = (short)
-         * (state[1]-tmp); state[1]=(short) (tmp2+state[0]);
-         */
-        state[0] += in - out;
-        state[1] = (short) ((state[1] - ((l - k) * out)) + state[0]);
+    // Polynomial hashes of all prefixes of a token array; see windowHash()
+    protected static final long[] prefixHashes(int[] tokens) {
+        long[] prefix = new long[tokens.length + 1];
+        for (int i = 0; i < tokens.length; i++)
+            prefix[i + 1] = prefix[i] * HASH_BASE + SymbolTable.hash(tokens[i]);
+        return prefix;
+    }
+
+
+    // Hash of the window [off,off+len) = sum h(i)*B^(off+len-1-i), mod 2^64
+    protected static final long windowHash(long[] prefix, long[] powers, int off, int len) {
+        return prefix[off + len] - prefix[off] * powers[len];
+    }
+
+
+    /**
+     * Base prepared for matching. Holds the symbols and hashes of the base items, and the index of
+     * the windows of the whole base for each chunk size. Indexes are built on first use; apart from
+     * that, a prepared base is immutable.
+     */
+    public static class Prepared<E> {
+
+        // Placeholder for an index that has not been built yet
+        private static final HashIndex EMPTY = new HashIndex(0);
+
+        private final List<E> base;
+        private final SymbolTable<E> symbols;
+        private final int[] tokens;
+        private final long[] hashes;
+        private final long[] powers;
+        private final HashIndex[] index;
+
+
+        private Prepared(HashAlgorithm<E> ha, List<E> base, int[] sizes) {
+            this.base = base;
+            symbols = new SymbolTable<E>(ha);
+            tokens = symbols.intern(base);
+            hashes = prefixHashes(tokens);
+            int maxSize = 0;
+            for (int b : sizes)
+                maxSize = Math.max(maxSize, b);
+            powers = powers(maxSize);
+            index = new HashIndex[maxSize + 1];
+            for (int b : sizes)
+                index[b] = EMPTY;
+        }
+
+
+        public List<E> getBase() {
+            return base;
+        }
+
+
+        boolean hasIndex(int len) {
+            return len < index.length && index[len] != null;
+        }
+
+
+        synchronized HashIndex getIndex(int len) {
+            if (index[len] == EMPTY) {
+                List<Segment<E>> all = new ArrayList<Segment<E>>();
+                all.add(Segment.createIns(0, base, 0));
+                index[len] = buildIndex(all, Math.max(0, base.size() - len + 1), hashes, powers,
+                                        len);
+            }
+            return index[len];
+        }
+    }
+
+    /**
+     * Matching of a single gap. Runs the given passes on the inserts of the gap against the base
+     * regions of the gap; both lists are updated in place.
+     */
+    private class GapTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        int from, to;
+        List<Segment<E>> matches;
+        List<Segment<E>> regions;
+        int[] sizes;
+        int minSize;
+        GlMatcher<E> matcher;
+
+
+        public GapTask(int from, int to, List<Segment<E>> inserts, List<Segment<E>> regions,
+                       int[] sizes, int minSize) {
+            this.from = from;
+            this.to = to;
+            this.matches = new LinkedList<Segment<E>>(inserts);
+            this.regions = regions;
+            this.sizes = sizes;
+            this.minSize = minSize;
+        }
+
+
+        protected void compute() {
+            matcher = split();
+            for (int b : sizes) {
+                matcher.index = new HashIndex[powers.length];
+                matcher.findChunks(matches, regions, b, minSize);
+            }
+            matcher.index = null;
+        }
     }
 
 }
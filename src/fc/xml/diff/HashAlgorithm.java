@@ -15,7 +15,14 @@ import java.util.List;
 
 public interface HashAlgorithm<E> {
 
-    public short quickHash(E o);
+    /**
+     * Hash an item for interning. Items that are equal must have the same hash. The hash should
+     * use all 64 bits, as {@link SymbolTable} buckets items on them without any further mixing.
+     * @param o
+     *            item to hash
+     * @return hash of the item
+     */
+    public long quickHash(E o);
 
 
     public void secureDigest(List<E> o, MessageDigest md);
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table from 64-bit hashes to positions. Positions with the same hash are
+ * chained, and the chain is iterated in the reverse order of insertion. Entries are identified by
+ * <code>int</code> handles, with -1 indicating the end of a chain, so lookups allocate nothing.
+ */
+public class HashIndex {
+
+    private long[] keys;
+    private int[] heads;
+    private int mask;
+
+    private int[] positions;
+    private int[] next;
+    private int size = 0;
+
+
+    /**
+     * Create an index.
+     * @param capacity
+     *            maximum number of positions that will be added
+     */
+    public HashIndex(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(2 * capacity, 2) - 1) << 1;
+        keys = new long[slots];
+        heads = new int[slots];
+        Arrays.fill(heads, -1);
+        mask = slots - 1;
+        positions = new int[capacity];
+        next = new int[capacity];
+    }
+
+
+    public void add(long hash, int position) {
+        int slot = slot(hash);
+        keys[slot] = hash;
+        positions[size] = position;
+        next[size] = heads[slot];
+        heads[slot] = size++;
+    }
+
+
+    /**
+     * Get the most recently added entry with a given hash.
+     * @param hash
+     *            hash to look up
+     * @return entry handle, or -1 if there is none
+     */
+    public int first(long hash) {
+        return heads[slot(hash)];
+    }
+
+
+    public int next(int entry) {
+        return next[entry];
+    }
+
+
+    public int position(int entry) {
+        return positions[entry];
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+
+    private int slot(long hash) {
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (heads[slot] != -1 && keys[slot] != hash)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import java.io.File;
+import java.io.IOException;
+
+import fc.util.log.Log;
+import fc.util.log.LogLevels;
+import fc.xml.xas.Item;
+import fc.xml.xas.ItemSource;
+import fc.xml.xas.ItemTarget;
+import fc.xml.xas.StartTag;
+import fc.xml.xas.Text;
+import fc.xml.xas.TransformTarget;
+import fc.xml.xas.index.DeweyKey;
+import fc.xml.xas.index.Index;
+import fc.xml.xas.index.LazyFragment;
+import fc.xml.xas.index.SeekableKXmlSource;
+import fc.xml.xas.index.SeekableSource;
+import fc.xml.xas.transform.CoalesceContent;
+import fc.xml.xas.transform.DataItems;
+import fc.xml.xmlr.NodeNotFoundException;
+
+/**
+ * Patch engine that reads the base document through an element index. Each reference in the diff
+ * is resolved by seeking to the referenced element in the base, and subtrees are read as
+ * {@link LazyFragment lazy fragments}, so only the parts of the base that the diff references are
+ * read. Text nodes, which are not in the index, are found by seeking to their parent and skipping
+ * the preceding element siblings through the index.
+ * <p>
+ * The index is built with {@link Index#buildDataElement(SeekableSource)}, and can be saved next to
+ * the base to be reused by later patches, see {@link #openIndex(File, File)}. The base must be
+ * encoded in UTF-8.
+ */
+public class IndexedPatch extends PatchEngine {
+
+    private Index index;
+    private SeekableSource source;
+
+
+    /**
+     * Create a patch engine for an indexed base.
+     * @param index
+     *            data element index of the base, with the base as its source
+     */
+    public IndexedPatch(Index index) {
+        this.index = index;
+        this.source = index.getSource();
+    }
+
+
+    /**
+     * Open the element index of a base document. The index is mapped from the index file if that
+     * was written for the current version of the base. Otherwise, the index is built and written to
+     * the index file.
+     * @param basef
+     *            base document
+     * @param indexf
+     *            index file, or <code>null</code> to always build the index without saving it
+     * @return index with a {@link SeekableKXmlSource} for the base as its source
+     * @throws IOException
+     *             if reading the base fails
+     */
+    public static Index openIndex(File basef, File indexf) throws IOException {
+        SeekableKXmlSource source = new SeekableKXmlSource(basef.getPath());
+        if (indexf != null && indexf.exists()) {
+            try {
+                Index index = Index.open(indexf, basef, source);
+                if (index != null) {
+                    return index;
+                }
+                Log.log("Index " + indexf + " is stale, rebuilding", LogLevels.INFO);
+            } catch (IOException ex) {
+                Log.log("Cannot read index " + indexf + ", rebuilding", LogLevels.WARNING, ex);
+            }
+        }
+        Index index = Index.buildDataElement(source);
+        if (indexf != null) {
+            index.save(indexf, basef);
+        }
+        return index;
+    }
+
+
+    /**
+     * Apply a diff to the indexed base.
+     * @param diff
+     *            diff items
+     * @param out
+     *            target to write the patched document to
+     * @throws IOException
+     *             if reading or writing fails
+     * @throws NodeNotFoundException
+     *             if the diff references a node not in the base
+     */
+    public void patch(ItemSource diff, ItemTarget out) throws IOException, NodeNotFoundException {
+        apply(diff, out);
+    }
+
+
+    @Override
+    protected boolean copyTree(String key, boolean optional) throws IOException {
+        DeweyKey k = DeweyKey.construct(parseKey(key));
+        Index.Entry e = index.find(k);
+        if (e != null) {
+            source.setPosition(e.getOffset(), e.getContext());
+            LazyFragment f = new LazyFragment(index, k, source.next());
+            f.forceAll();
+            // Filter as the base is filtered when diffing
+            f.appendTo(new TransformTarget(new TransformTarget(out, new CoalesceContent(false)),
+                                           new DataItems(true, true)));
+            return true;
+        }
+        StartTag parent = seekChild(k);
+        if (parent == null) {
+            if (optional) return false;
+            throw new MissingNode(key);
+        }
+        copyContent(parent);
+        return true;
+    }
+
+
+    @Override
+    protected Item copyNode(String key) throws IOException {
+        DeweyKey k = DeweyKey.construct(parseKey(key));
+        Index.Entry e = index.find(k);
+        if (e != null) {
+            source.setPosition(e.getOffset(), e.getContext());
+            Item st = source.next();
+            out.append(st);
+            return st;
+        }
+        StartTag parent = seekChild(k);
+        if (parent == null) throw new MissingNode(key);
+        copyContent(parent);
+        return null;
+    }
+
+
+    // Position the source at a non-element child; returns the parent, or null
+    // if there is no such node
+    private StartTag seekChild(DeweyKey k) throws IOException {
+        if (k.isRoot() || k.up().isRoot()) return null;
+        Index.Entry pe = index.find(k.up());
+        if (pe == null) return null;
+        source.setPosition(pe.getOffset(), pe.getContext());
+        StartTag parent = (StartTag) source.next();
+        int target = k.getLastStep();
+        boolean isText = false;
+        for (int child = 0;;) {
+            Item i = source.next();
+            if (i == null || Item.isEndTag(i)) return null;
+            long pos = source.getPreviousPosition();
+            if (isIgnored(i)) continue;
+            if (isText && !Item.isText(i)) {
+                isText = false;
+                child++;
+            }
+            if (Item.isText(i)) {
+                if (!isText && child == target) {
+                    source.setPosition(pos, parent);
+                    return parent;
+                }
+                isText = true;
+            } else if (Item.isStartTag(i)) {
+                Index.Entry ce = index.find(k.up().child(child));
+                if (ce == null) throw new IOException("Element " + k.up().child(child) +
+                                                      " missing from index");
+                source.setPosition(ce.getEnd(), parent);
+                child++;
+            } else {
+                if (child == target) {
+                    source.setPosition(pos, parent);
+                    return parent;
+                }
+                child++;
+            }
+        }
+    }
+
+
+    // Copy the node at the current position of the source: a run of text,
+    // which is coalesced, or a single other item
+    private void copyContent(StartTag parent) throws IOException {
+        Item i = source.next();
+        if (!Item.isText(i)) {
+            out.append(i);
+            return;
+        }
+        StringBuilder text = new StringBuilder(((Text) i).getData());
+        while ((i = source.next()) != null) {
+            if (Item.isText(i)) {
+                if (!isIgnored(i)) text.append(((Text) i).getData());
+            } else if (!isIgnored(i)) {
+                source.setPosition(source.getPreviousPosition(), parent);
+                break;
+            }
+        }
+        out.append(new Text(text.toString()));
+    }
+
+
+    // Items the diff does not see, see Index.buildDataElement()
+    private static boolean isIgnored(Item i) {
+        if (i.getType() == Item.COMMENT || i.getType() == Item.PI) return true;
+        if (!Item.isText(i)) return false;
+        String data = ((Text) i).getData();
+        for (int j = 0; j < data.length(); j++)
+            if (data.charAt(j) > ' ' && !Character.isWhitespace(data.charAt(j))) return false;
+        return true;
+    }
+
+}
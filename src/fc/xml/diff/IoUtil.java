@@ -10,13 +10,16 @@
 // $Id: EventUtil.java,v 1.5.2.1 2006/06/30 12:48:04 ctl Exp $
 package fc.xml.diff;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.Iterator;
 import java.util.List;
@@ -33,7 +36,7 @@ import fc.xml.xas.Item;
 import fc.xml.xas.ItemSource;
 import fc.xml.xas.ItemTarget;
 import fc.xml.xas.ItemTransform;
-import fc.xml.xas.NullItem;
+import fc.xml.xas.MappedXmlSource;
 import fc.xml.xas.ParserSource;
 import fc.xml.xas.Pi;
 import fc.xml.xas.StartTag;
@@ -45,6 +48,8 @@ import fc.xml.xas.transform.DataItems;
 import fc.xml.xmlr.MutableRefTree;
 import fc.xml.xmlr.model.XasCodec;
 import fc.xml.xmlr.xas.XasSerialization;
+import fuegocore.message.encoding.XebuConstants;
+import fuegocore.message.encoding.XebuParser;
 
 public class IoUtil {
 
@@ -118,64 +123,24 @@ public class IoUtil {
      */
     private static Item[] canonicalizeForDiff(ItemSource es) throws IllegalStateException,
             IOException {
-        // FIXME-20061113-4: Concatenation on T() by filter
-
-        // Algorithm states:
-        // 0 = default (scanning)
-        // 1 = last was text
-        // 2 = emit text + scan
-
         Item[] array = new Item[1024];
         int alen = array.length;
-        StringBuilder sb = new StringBuilder();
-        int state = 0, dest = 0, i = 0;
-        for (Item e = null; (e = es.next()) != null; i++) {
-            Item toAdd = null;
-            if (state == 0 || state == 2) {
-                if (state == 2) {
-                    // Need to emit prev string
-                    // Array as follows
-                    // [dest-2] = string placeholder
-                    // [dest-1] = item terminating string scan
-                    // [dest] = TDB on this lap
-                    assert array[dest - 2] == NullItem.instance();
-                    array[dest - 2] = new Text(sb.toString());
-                    sb.setLength(0);
-                    state = 0;
-                }
-                if (isContent(e)) {
-                    sb.append(textContent(e));
-                    toAdd = NullItem.instance(); // Placeholder for string
-                    state = 1;
-                } else toAdd = e;
-            } else if (state == 1) {
-                if (isContent(e)) sb.append(textContent(e));
-                else {
-                    state = 2;
-                    toAdd = e;
-                }
-            } else throw new IllegalStateException("Unknown algorithm state");
-            if (toAdd != null) {
-                if (dest >= alen) {
-                    // Array management
-                    // policy: double up to 4M entries, them grow by 4M entries
-                    // a time
-                    // FIXME: Requires 2x final memory consumption due to array
-                    // copy :(
-                    // Seems like the ways around this are very limited in Java
-                    // :(
-                    int grow = Math.min(array.length, 4 * 1024 * 1024);
-                    Item[] na = new Item[alen + grow];
-                    System.arraycopy(array, 0, na, 0, alen);
-                    array = na;
-                    alen += grow;
-                }
-                // Log.debug("Putting "+toAdd+" at "+dest+", next state="+state);
-                // if( toAdd instanceof StartTag )
-                // Log.debug("Context of "+toAdd,((StartTag)
-                // toAdd).getContext());
-                array[dest++] = toAdd;
+        int dest = 0;
+        ItemSource ces = getCanonicalSource(es);
+        for (Item toAdd = null; (toAdd = ces.next()) != null;) {
+            if (dest >= alen) {
+                // Array management
+                // policy: double up to 4M entries, them grow by 4M entries
+                // a time
+                // FIXME: Requires 2x final memory consumption due to array
+                // copy :( See WindowedDiff for a bounded-memory alternative
+                int grow = Math.min(array.length, 4 * 1024 * 1024);
+                Item[] na = new Item[alen + grow];
+                System.arraycopy(array, 0, na, 0, alen);
+                array = na;
+                alen += grow;
             }
+            array[dest++] = toAdd;
         }
         // Finally, shrink array to desired size
         Item[] na = new Item[dest];
@@ -184,6 +149,45 @@ public class IoUtil {
     }
 
 
+    /**
+     * Get an item source that does the canonicalization needed for diffing incrementally. Runs of
+     * content items are combined into a single text item, with entity references expanded to
+     * their <code>&amp;name;</code> form (unless {@link #PRESERVE_ENTITY_REFS} is set).
+     * @param es
+     *            source to canonicalize
+     * @return canonicalizing source
+     */
+    public static ItemSource getCanonicalSource(ItemSource es) {
+        return new CanonicalSource(es);
+    }
+
+    private static class CanonicalSource implements ItemSource {
+
+        private ItemSource es;
+        private Item pending = null;
+        private StringBuilder sb = new StringBuilder();
+
+
+        public CanonicalSource(ItemSource es) {
+            this.es = es;
+        }
+
+
+        public Item next() throws IOException {
+            Item e = pending != null ? pending : es.next();
+            pending = null;
+            if (Item.isStartTag(e)) ((StartTag) e).freeze(); // Hashed a lot when matching
+            if (e == null || !isContent(e)) return e;
+            sb.setLength(0);
+            do {
+                sb.append(textContent(e));
+            } while ((e = es.next()) != null && isContent(e));
+            pending = e; // Item terminating the text run
+            return new Text(sb.toString());
+        }
+    }
+
+
     private static CharSequence textContent(Item i) {
         return Item.isText(i) ? ((Text) i).getData() : "&" + ((EntityRef) i).getName() + ";";
     }
@@ -212,46 +216,52 @@ public class IoUtil {
 
     static class EventHasher implements HashAlgorithm<Item> {
 
-        public short quickHash(Item o) {
-            int hc = o.hashCode();
-            return (short) ((hc & 0xffff) ^ (hc >> 16));
+        public long quickHash(Item o) {
+            // Spread the 32-bit hash code over 64 bits (golden ratio multiplier)
+            long h = o.hashCode() * 0x9e3779b97f4a7c15L;
+            return h ^ (h >>> 29);
         }
 
 
         public void secureDigest(List<Item> el, MessageDigest md) {
+            byte[] word = new byte[4];
             for (Item e : el) {
                 // Note: since we feed the type code to m d, we needn't worry
                 // about e.g. comment and text having the same string when
-                // digesting
-                // the actual content
-                md.update(new byte[] { (byte) e.getType(), (byte) (e.getType() >> 8),
-                                      (byte) (e.getType() >> 16), (byte) (e.getType() >> 24) });
+                // digesting the actual content. Strings are prefixed by their
+                // length, and attributes by their number, so that the fields
+                // of an item cannot run into each other.
+                update(md, word, e.getType());
                 if (Item.isStartTag(e)) {
                     StartTag st = (StartTag) e;
-                    md.update(st.getName().getName().getBytes());
-                    md.update(st.getName().getNamespace().getBytes());
+                    update(md, word, st.getName().getName());
+                    update(md, word, st.getName().getNamespace());
+                    int attrs = 0;
+                    for (Iterator<AttributeNode> i = st.attributes(); i.hasNext(); i.next())
+                        attrs++;
+                    update(md, word, attrs);
                     for (Iterator<AttributeNode> i = st.attributes(); i.hasNext();) {
                         AttributeNode an = i.next();
-                        md.update(an.getName().getNamespace().getBytes());
-                        md.update(an.getName().getName().getBytes());
-                        md.update(an.getValue().toString().getBytes());
+                        update(md, word, an.getName().getNamespace());
+                        update(md, word, an.getName().getName());
+                        update(md, word, an.getValue().toString());
                     }
                 } else if (Item.isEndTag(e)) {
                     EndTag et = (EndTag) e;
-                    md.update(et.getName().getNamespace().getBytes());
-                    md.update(et.getName().getName().getBytes());
+                    update(md, word, et.getName().getNamespace());
+                    update(md, word, et.getName().getName());
                 } else if (Item.isText(e)) {
                     Text t = (Text) e;
-                    md.update(t.getData().getBytes());
+                    update(md, word, t.getData());
                 } else if (e.getType() == Item.COMMENT) {
                     Comment c = (Comment) e;
-                    md.update(c.getText().getBytes());
+                    update(md, word, c.getText());
                 } else if (e.getType() == Item.ENTITY_REF) {
                     EntityRef er = (EntityRef) e;
-                    md.update(er.getName().getBytes());
+                    update(md, word, er.getName());
                 } else if (e.getType() == Item.PI) {
                     Pi pi = (Pi) e;
-                    md.update(pi.getTarget().getBytes());
+                    update(md, word, pi.getTarget());
                 } else if (e.getType() == Item.START_DOCUMENT) {
                     // Type code is enough
                 } else if (e.getType() == Item.END_DOCUMENT) {
@@ -260,14 +270,86 @@ public class IoUtil {
                 // FIXME-20061113-1: add any other item types
             }
         }
+
+
+        private static void update(MessageDigest md, byte[] word, int value) {
+            word[0] = (byte) value;
+            word[1] = (byte) (value >> 8);
+            word[2] = (byte) (value >> 16);
+            word[3] = (byte) (value >> 24);
+            md.update(word);
+        }
+
+
+        private static void update(MessageDigest md, byte[] word, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            update(md, word, bytes.length);
+            md.update(bytes);
+        }
     }
 
 
+    /**
+     * Get a parser for a stream. Xebu documents, such as diffs written by
+     * {@link fc.xml.diff.encode.XebuDiffEncoder}, are recognized by their first byte, and read
+     * with a {@link XebuParser}; anything else is parsed as XML.
+     * @param is
+     *            stream to parse
+     * @return parser for the stream
+     * @throws IOException
+     *             if reading the stream fails
+     */
     public static final ParserSource getXmlParser(InputStream is) throws IOException {
+        if (!is.markSupported()) is = new BufferedInputStream(is);
+        is.mark(1);
+        int first = is.read();
+        is.reset();
+        if (isXebu(first))
+            return new XmlPullSource(new XebuParser(), is);
         return new XmlPullSource(new KXmlParser(), is);
     }
 
 
+    /**
+     * Get a parser for a file. UTF-8 files are parsed straight from a memory mapping of the file
+     * with {@link MappedXmlSource}, others, including Xebu files, are read through a stream as in
+     * {@link #getXmlParser(InputStream)}. In either case, the stream returned by
+     * {@link ParserSource#getInputStream()} should be closed after parsing.
+     * @param f
+     *            file to parse
+     * @return parser for the file
+     * @throws IOException
+     *             if the file cannot be opened
+     */
+    public static final ParserSource getXmlParser(File f) throws IOException {
+        if (isXebu(f)) return getXmlParser(new FileInputStream(f));
+        if (f.length() <= Integer.MAX_VALUE) {
+            try {
+                return MappedXmlSource.map(f);
+            } catch (UnsupportedEncodingException ex) {
+                // Fall through to kXML
+            }
+        }
+        return getXmlParser(new FileInputStream(f));
+    }
+
+
+    // No XML document starts with a byte with these low bits
+    private static boolean isXebu(int first) {
+        return first >= 0 && (first & XebuConstants.TOKEN_SPACE) == XebuConstants.DOCUMENT;
+    }
+
+
+    private static boolean isXebu(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            return isXebu(in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+
     public static void writeRefTree(MutableRefTree baset, File basef, XasCodec model)
             throws IOException {
         OutputStream os = null;
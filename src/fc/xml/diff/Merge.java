@@ -0,0 +1,413 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import static fc.xml.diff.Segment.Operation.COPY;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+import fc.util.log.Log;
+import fc.util.log.LogLevels;
+import fc.util.log.StreamLogger;
+import fc.xml.xas.EndTag;
+import fc.xml.xas.Item;
+import fc.xml.xas.ItemSource;
+import fc.xml.xas.ItemTarget;
+import fc.xml.xas.ItemTransform;
+import fc.xml.xas.ParserSource;
+import fc.xml.xas.StartTag;
+import fc.xml.xas.TransformTarget;
+import fc.xml.xas.XmlOutput;
+import fc.xml.xas.transform.DataItems;
+import fc.xml.xas.transform.NsPrefixFixer;
+
+/**
+ * Three-way merge of XML documents. Two documents, <i>A</i> and <i>B</i>, both derived from a
+ * common base, are matched against a {@link PreparedBase prepared base}, so the base is parsed and
+ * indexed only once, and the merge costs about as much as the two diffs.
+ * <p>
+ * The copies of each match list that keep their order in the base are the stable part of that
+ * document; other copies are moves. The base items that are stable in both documents are anchors.
+ * Between two anchors, each document either has the base items unchanged, or has changed them; if
+ * only one document changed them, its change is taken, and if both did, differently, the region
+ * is a {@link Conflict conflict} and the items of <i>A</i> are taken. Regions are widened over
+ * anchors until the items of each document open and close as many elements as the base, so that
+ * the merged document is well-formed whichever side each region comes from. A move in one
+ * document is merged like a delete and an insert, so it conflicts only if the other document
+ * changed the moved items or the place they moved to.
+ * <p>
+ * The merged document is written as the regions are decided, and the conflicts are returned.
+ */
+public class Merge {
+
+    private final PreparedBase base;
+
+
+    /**
+     * Create a merge against a base.
+     * @param base
+     *            prepared base; its filter is also used for the merged documents
+     */
+    public Merge(PreparedBase base) {
+        this.base = base;
+    }
+
+
+    /**
+     * A region changed differently in both documents. Offsets are item indexes in the canonical
+     * items of the respective document.
+     */
+    public static class Conflict {
+
+        private final int baseOffset;
+        private final int aOffset;
+        private final int bOffset;
+        private final int mergedOffset;
+        private final List<Item> baseItems;
+        private final List<Item> aItems;
+        private final List<Item> bItems;
+
+
+        Conflict(int baseOffset, List<Item> baseItems, int aOffset, List<Item> aItems,
+                int bOffset, List<Item> bItems, int mergedOffset) {
+            this.baseOffset = baseOffset;
+            this.baseItems = baseItems;
+            this.aOffset = aOffset;
+            this.aItems = aItems;
+            this.bOffset = bOffset;
+            this.bItems = bItems;
+            this.mergedOffset = mergedOffset;
+        }
+
+
+        public int getBaseOffset() {
+            return baseOffset;
+        }
+
+
+        public List<Item> getBaseItems() {
+            return baseItems;
+        }
+
+
+        public int getAOffset() {
+            return aOffset;
+        }
+
+
+        public List<Item> getAItems() {
+            return aItems;
+        }
+
+
+        public int getBOffset() {
+            return bOffset;
+        }
+
+
+        public List<Item> getBItems() {
+            return bItems;
+        }
+
+
+        /**
+         * Get the offset of the region in the merged document. The region has the items of
+         * {@link #getAItems()}, except that end tags are renamed to match their start tags.
+         * @return item index in the merged document
+         */
+        public int getMergedOffset() {
+            return mergedOffset;
+        }
+
+
+        @Override
+        public String toString() {
+            return "Conflict at base item " + baseOffset + ": base " + baseItems + ", A " +
+                   aItems + ", B " + bItems;
+        }
+
+    }
+
+
+    /**
+     * Merge two documents.
+     * @param apa
+     *            document <i>A</i>
+     * @param bpa
+     *            document <i>B</i>
+     * @param out
+     *            stream to write the merged document to as UTF-8 encoded XML
+     * @return conflicts, in document order; empty if the merge is clean
+     * @throws IOException
+     *             if reading the documents or writing the merged document fails
+     */
+    public List<Conflict> merge(ItemSource apa, ItemSource bpa, OutputStream out)
+            throws IOException {
+        List<Item> a = base.parse(apa);
+        List<Item> b = base.parse(bpa);
+        // Not indented, as that would change the text of the documents
+        XmlOutput xo = new XmlOutput(out, "UTF-8", false, 0);
+        List<Conflict> conflicts = merge(a, b, new TransformTarget(xo, new NsPrefixFixer()));
+        xo.flush();
+        return conflicts;
+    }
+
+
+    /**
+     * Merge two documents given as canonical items, as read by the filter of the base.
+     * @param a
+     *            items of document <i>A</i>
+     * @param b
+     *            items of document <i>B</i>
+     * @param out
+     *            target to append the merged items to
+     * @return conflicts, in document order; empty if the merge is clean
+     * @throws IOException
+     *             if appending to the target fails
+     */
+    public List<Conflict> merge(List<Item> a, List<Item> b, ItemTarget out) throws IOException {
+        List<Item> o = base.getBase();
+        int[] ap = stablePositions(base.match(a), o.size());
+        int[] bp = stablePositions(base.match(b), o.size());
+        // Anchors as { base, A, B } positions, between sentinels before and after the documents
+        List<int[]> anchors = new ArrayList<int[]>();
+        anchors.add(new int[] { -1, -1, -1 });
+        for (int i = 0; i < o.size(); i++) {
+            if (ap[i] >= 0 && bp[i] >= 0) anchors.add(new int[] { i, ap[i], bp[i] });
+        }
+        anchors.add(new int[] { o.size(), a.size(), b.size() });
+        List<int[]> regions = regions(anchors, o, a, b);
+
+        List<Conflict> conflicts = new ArrayList<Conflict>();
+        LinkedList<StartTag> open = new LinkedList<StartTag>();
+        int emitted = 0;
+        int last = anchors.size() - 1;
+        int r = 0;
+        for (int k = 0; k < last;) {
+            if (r < regions.size() && regions.get(r)[0] == k) {
+                int to = regions.get(r++)[1];
+                int[] from = anchors.get(k), until = anchors.get(to);
+                List<Item> os = o.subList(from[0] + 1, until[0]);
+                List<Item> as = a.subList(from[1] + 1, until[1]);
+                List<Item> bs = b.subList(from[2] + 1, until[2]);
+                List<Item> chosen;
+                if (equal(as, os)) {
+                    chosen = bs;
+                } else if (equal(bs, os) || equal(as, bs)) {
+                    chosen = as;
+                } else {
+                    conflicts.add(new Conflict(from[0] + 1, os, from[1] + 1, as, from[2] + 1, bs,
+                                               emitted));
+                    chosen = as;
+                }
+                for (Item item : chosen) {
+                    emit(item, open, out);
+                }
+                emitted += chosen.size();
+                k = to;
+            } else {
+                k++;
+            }
+            if (k < last) {
+                emit(o.get(anchors.get(k)[0]), open, out);
+                emitted++;
+            }
+        }
+        return conflicts;
+    }
+
+
+    // Appends an item, with end tags named after the start tag they close; the names may differ
+    // if the start and end tag come from different documents
+    private static void emit(Item item, LinkedList<StartTag> open, ItemTarget out)
+            throws IOException {
+        if (Item.isStartTag(item)) {
+            open.addFirst((StartTag) item);
+        } else if (Item.isEndTag(item)) {
+            StartTag st = open.removeFirst();
+            if (!((EndTag) item).getName().equals(st.getName())) item = new EndTag(st.getName());
+        }
+        out.append(item);
+    }
+
+
+    // Regions between anchors that differ in some document, as { from, to } anchor indexes,
+    // widened until each document opens and closes as many elements in the region as the base
+    private static List<int[]> regions(List<int[]> anchors, List<Item> o, List<Item> a,
+                                       List<Item> b) {
+        List<int[]> regions = new ArrayList<int[]>();
+        for (int k = 0; k + 1 < anchors.size(); k++) {
+            int[] p = anchors.get(k), q = anchors.get(k + 1);
+            if (p[0] + 1 == q[0] && p[1] + 1 == q[1] && p[2] + 1 == q[2]) continue;
+            int from = k, to = k + 1;
+            while (true) {
+                while (!regions.isEmpty() && regions.get(regions.size() - 1)[1] > from) {
+                    int[] prev = regions.remove(regions.size() - 1);
+                    from = Math.min(from, prev[0]);
+                    to = Math.max(to, prev[1]);
+                }
+                int[] start = anchors.get(from), end = anchors.get(to);
+                int[] os = depths(o, start[0] + 1, end[0]);
+                int[] as = depths(a, start[1] + 1, end[1]);
+                int[] bs = depths(b, start[2] + 1, end[2]);
+                boolean left = as[0] != os[0] || bs[0] != os[0];
+                boolean right = as[1] - as[0] != os[1] - os[0] || bs[1] - bs[0] != os[1] - os[0];
+                if (!left && !right) break;
+                // All documents are balanced between the sentinels, so this stops there
+                if (left && from > 0) from--;
+                if (right && to < anchors.size() - 1) to++;
+            }
+            regions.add(new int[] { from, to });
+            k = to - 1;
+        }
+        return regions;
+    }
+
+
+    private static boolean equal(List<Item> l1, List<Item> l2) {
+        if (l1.size() != l2.size()) return false;
+        for (int i = 0; i < l1.size(); i++) {
+            if (!l1.get(i).equals(l2.get(i))) return false;
+        }
+        return true;
+    }
+
+
+    // Lowest and final element depth over items, relative to the depth before them
+    private static int[] depths(List<Item> items, int from, int to) {
+        int depth = 0, min = 0;
+        for (int i = from; i < to; i++) {
+            Item item = items.get(i);
+            if (Item.isStartItem(item)) {
+                depth++;
+            } else if (Item.isEndItem(item)) {
+                depth--;
+                min = Math.min(min, depth);
+            }
+        }
+        return new int[] { min, depth };
+    }
+
+
+    // Document position of each base item in the copies of ml that keep their order in the base,
+    // or -1. The copies are the heaviest increasing subsequence by base offset, weighted by length.
+    static int[] stablePositions(List<Segment<Item>> ml, int baseSize) {
+        List<Segment<Item>> copies = new ArrayList<Segment<Item>>();
+        for (Segment<Item> s : ml) {
+            if (s.getOp() == COPY) copies.add(s);
+        }
+        int n = copies.size();
+        Integer[] byOffset = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            byOffset[i] = i;
+        }
+        final List<Segment<Item>> cs = copies;
+        Arrays.sort(byOffset, new Comparator<Integer>() {
+
+            public int compare(Integer i, Integer j) {
+                return cs.get(i).getOffset() - cs.get(j).getOffset();
+            }
+        });
+        int[] rank = new int[n];
+        for (int i = 0; i < n; i++) {
+            rank[byOffset[i]] = i + 1;
+        }
+        // Fenwick tree of the best chain ending at each rank, for prefix maxima
+        long[] best = new long[n + 1];
+        int[] bestAt = new int[n + 1];
+        Arrays.fill(bestAt, -1);
+        int[] prev = new int[n];
+        long[] weight = new long[n];
+        int top = -1;
+        for (int c = 0; c < n; c++) {
+            long w = 0;
+            int p = -1;
+            for (int i = rank[c] - 1; i > 0; i -= i & -i) {
+                if (best[i] > w) {
+                    w = best[i];
+                    p = bestAt[i];
+                }
+            }
+            weight[c] = w + copies.get(c).getLength();
+            prev[c] = p;
+            for (int i = rank[c]; i <= n; i += i & -i) {
+                if (weight[c] > best[i]) {
+                    best[i] = weight[c];
+                    bestAt[i] = c;
+                }
+            }
+            if (top == -1 || weight[c] > weight[top]) top = c;
+        }
+        int[] pos = new int[baseSize];
+        Arrays.fill(pos, -1);
+        for (int c = top; c != -1; c = prev[c]) {
+            Segment<Item> s = copies.get(c);
+            for (int i = 0; i < s.getLength(); i++) {
+                pos[s.getOffset() + i] = s.getPosition() + i;
+            }
+        }
+        return pos;
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        Log.setLogger(new StreamLogger(System.err));
+        if (args.length < 3) {
+            Log.log("Usage [-Dfilter=...] base.xml a.xml b.xml [merged.xml]", LogLevels.ERROR);
+            System.exit(1);
+        }
+        Class<? extends ItemTransform> filter = DataItems.class;
+        String filterName = System.getProperty("filter");
+        if (filterName != null) {
+            try {
+                filter = Diff.forAlias(filterName, Diff.FILTER_ALIASES, ItemTransform.class);
+            } catch (ClassNotFoundException ex) {
+                Log.log("Cannot locate filter " + filterName, LogLevels.FATALERROR);
+                System.exit(1);
+            } catch (IllegalArgumentException ex) {
+                Log.log(ex.getMessage(), LogLevels.FATALERROR);
+                System.exit(1);
+            }
+        }
+        List<InputStream> ins = new ArrayList<InputStream>();
+        OutputStream mout = System.out;
+        try {
+            ParserSource[] pa = new ParserSource[3];
+            for (int i = 0; i < pa.length; i++) {
+                pa[i] = IoUtil.getXmlParser(new File(args[i]));
+                ins.add(pa[i].getInputStream());
+            }
+            Merge merge = new Merge(new PreparedBase(pa[0], filter));
+            if (args.length > 3 && !"-".equals(args[3])) mout = new FileOutputStream(args[3]);
+            List<Conflict> conflicts = merge.merge(pa[1], pa[2], mout);
+            for (Conflict c : conflicts) {
+                Log.log(c, LogLevels.WARNING);
+            }
+            Log.log(conflicts.size() + " conflicts", LogLevels.INFO);
+        } catch (IOException ex) {
+            Log.log("I/O error while merging", LogLevels.ERROR, ex);
+        } finally {
+            for (InputStream in : ins) {
+                if (in != null) in.close();
+            }
+            if (mout != System.out) mout.close();
+        }
+    }
+
+}
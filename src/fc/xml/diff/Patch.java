@@ -9,8 +9,8 @@
 
 package fc.xml.diff;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -26,6 +26,8 @@ import fc.xml.xas.ParserSource;
 import fc.xml.xas.TransformSource;
 import fc.xml.xas.TransformTarget;
 import fc.xml.xas.XmlOutput;
+import fc.xml.xas.index.Index;
+import fc.xml.xas.index.SeekableSource;
 import fc.xml.xas.transform.CoalesceContent;
 import fc.xml.xas.transform.DataItems;
 import fc.xml.xas.transform.NsPrefixFixer;
@@ -51,16 +53,150 @@ public class Patch {
     }
 
 
+    /**
+     * Patch a base document. The base is streamed, as described in {@link StreamingPatch}, so that
+     * only the subtrees moved by the diff are held in memory.
+     * @param basef
+     *            base document
+     * @param patchf
+     *            diff, in the reftree or <code>3dm</code> format, as XML or Xebu
+     * @param pout
+     *            stream to write the patched document to
+     */
     public static void patch(File basef, File patchf, OutputStream pout) {
+        InputStream[] ins = new InputStream[3];
+        DiffStats stats = DiffStats.create();
+        if (stats != null) {
+            stats.count(DiffStats.BASE_BYTES, basef.length());
+            stats.count(DiffStats.DIFF_BYTES, patchf.length());
+            pout = stats.countOutput(pout);
+        }
+        try {
+            ParserSource dpr = IoUtil.getXmlParser(patchf);
+            ins[0] = dpr.getInputStream();
+            StreamingPatch sp = new StreamingPatch(makeDiffFilter(dpr));
+            ParserSource bpr = IoUtil.getXmlParser(basef);
+            ins[1] = bpr.getInputStream();
+            dpr = IoUtil.getXmlParser(patchf);
+            ins[2] = dpr.getInputStream();
+            ItemTarget wr = new TransformTarget(new XmlOutput(pout, "UTF-8"), new NsPrefixFixer());
+            if (stats != null) stats.begin(DiffStats.PATCH);
+            sp.patch(makeInputFilter(bpr), makeDiffFilter(dpr), wr);
+            if (stats != null) finish(stats);
+        } catch (NodeNotFoundException ex) {
+            Log.log("Patch references illegal node " + ex.getId(), LogLevels.ERROR, ex);
+        } catch (FileNotFoundException ex) {
+            Log.log(ex.getMessage(), LogLevels.ERROR);
+        } catch (IOException ex) {
+            Log.log("Patch I/O exception", LogLevels.FATALERROR, ex);
+        } finally {
+            close(ins);
+        }
+    }
+
+
+    /**
+     * Patch a base document read from a stream. The diff is read twice, once to find the subtrees
+     * it moves and once to apply it, so it is given as bytes. Unlike the file variants, this
+     * method reports errors to the caller.
+     * @param base
+     *            stream of the base document
+     * @param diff
+     *            diff, in the reftree or <code>3dm</code> format, as XML or Xebu
+     * @param pout
+     *            stream to write the patched document to
+     * @throws NodeNotFoundException
+     *             if the diff references a node missing from the base
+     * @throws IOException
+     *             if reading or writing fails
+     */
+    public static void patch(InputStream base, byte[] diff, OutputStream pout)
+            throws IOException, NodeNotFoundException {
+        DiffStats stats = DiffStats.create();
+        if (stats != null) {
+            base = stats.countInput(base, DiffStats.BASE_BYTES);
+            stats.count(DiffStats.DIFF_BYTES, diff.length);
+            pout = stats.countOutput(pout);
+        }
+        ItemSource moves = makeDiffFilter(IoUtil.getXmlParser(new ByteArrayInputStream(diff)));
+        StreamingPatch sp = new StreamingPatch(moves);
+        ItemTarget wr = new TransformTarget(new XmlOutput(pout, "UTF-8"), new NsPrefixFixer());
+        if (stats != null) stats.begin(DiffStats.PATCH);
+        sp.patch(makeInputFilter(IoUtil.getXmlParser(base)),
+                 makeDiffFilter(IoUtil.getXmlParser(new ByteArrayInputStream(diff))), wr);
+        if (stats != null) finish(stats);
+    }
+
+
+    // The patch phase includes parsing, as the base and diff are streamed
+    private static void finish(DiffStats stats) {
+        stats.end();
+        stats.count(DiffStats.PATCHES, 1);
+        stats.finish();
+    }
+
+
+    /**
+     * Patch a base document through an element index. Only the parts of the base referenced by
+     * the diff are read, as described in {@link IndexedPatch}. The base must be encoded in UTF-8.
+     * @param basef
+     *            base document
+     * @param patchf
+     *            diff, in the reftree or <code>3dm</code> format, as XML or Xebu
+     * @param indexf
+     *            file to load the base index from, or to save it to if it is missing or stale;
+     *            <code>null</code> to build the index without saving it
+     * @param pout
+     *            stream to write the patched document to
+     */
+    public static void patchIndexed(File basef, File patchf, File indexf, OutputStream pout) {
+        InputStream vDiffIn = null;
+        SeekableSource base = null;
+        try {
+            Index index = IndexedPatch.openIndex(basef, indexf);
+            base = index.getSource();
+            ParserSource dpr = IoUtil.getXmlParser(patchf);
+            vDiffIn = dpr.getInputStream();
+            ItemTarget wr = new TransformTarget(new XmlOutput(pout, "UTF-8"), new NsPrefixFixer());
+            new IndexedPatch(index).patch(makeDiffFilter(dpr), wr);
+        } catch (NodeNotFoundException ex) {
+            Log.log("Patch references illegal node " + ex.getId(), LogLevels.ERROR, ex);
+        } catch (FileNotFoundException ex) {
+            Log.log(ex.getMessage(), LogLevels.ERROR);
+        } catch (IOException ex) {
+            Log.log("Patch I/O exception", LogLevels.FATALERROR, ex);
+        } finally {
+            close(new InputStream[] { vDiffIn });
+            try {
+                if (base != null) base.close();
+            } catch (IOException ex1) {
+                Log.log("Can't close the base file", LogLevels.FATALERROR, ex1);
+            }
+        }
+    }
+
+
+    /**
+     * Patch a base document by reading it into a tree. This needs memory for the whole base; it is
+     * kept as a reference for the streaming {@link #patch(File, File, OutputStream) patch}.
+     * @param basef
+     *            base document
+     * @param patchf
+     *            diff, in the reftree or <code>3dm</code> format, as XML or Xebu
+     * @param pout
+     *            stream to write the patched document to
+     */
+    public static void patchTree(File basef, File patchf, OutputStream pout) {
         InputStream vBaseIn = null, vDiffIn = null;
         TreeModel tm = TreeModels.xasItemTree();
         try {
             // try { Thread.sleep(10000); } catch ( InterruptedException ex){}
             // Verify
-            vBaseIn = new FileInputStream(basef);
-            vDiffIn = new FileInputStream(patchf);
+            ParserSource bpr = IoUtil.getXmlParser(basef);
+            vBaseIn = bpr.getInputStream();
+            ParserSource dpr = IoUtil.getXmlParser(patchf);
+            vDiffIn = dpr.getInputStream();
             // Read base using xpath ids
-            ParserSource bpr = IoUtil.getXmlParser(vBaseIn);
             ItemSource bes = makeInputFilter(bpr);
             TreeModel baseXpCC = tm.swapNodeModel(DeweyRefNode.NODE_MODEL_ALT);
             RefTree bbT = XasSerialization.readTree(bes, baseXpCC);
@@ -70,7 +206,6 @@ public class Patch {
             // XmlrDebug.dumpTree(bT,Object.class);
             // Load diff
             // Log.log("============LOADING DIFF=============",Log.INFO);
-            ParserSource dpr = IoUtil.getXmlParser(vDiffIn);
             // FIXME-20061113-4: Concatenation on T() by filter
             /*
              * ItemSource des1 = new TransformSource(new TransformSource(dpr,new
@@ -78,11 +213,7 @@ public class Patch {
              * XasDebug.itemDump()); // XasUtil.copy(des1, XasUtil.SINK_TARGET ); System.exit(0);
              */
 
-            ItemSource des1 = new TransformSource(
-                                                  new TransformSource(makeInputFilter(dpr),
-                                                                      new ReferenceItemTransform()),
-                                                  new Diff.RelativeDeweyKeyExpander());
-            PeekableItemSource des = new PeekableItemSource(des1);
+            PeekableItemSource des = new PeekableItemSource(makeDiffFilter(dpr));
             boolean isRefTree = false;
             Item fi = des.peek();
             // Log.debug("First item is",fi);
@@ -131,14 +262,19 @@ public class Patch {
         } catch (IOException ex) {
             Log.log("Patch I/O exception", LogLevels.FATALERROR, ex);
         } finally {
-            try {
-                for (InputStream in : new InputStream[] { vBaseIn, vDiffIn })
-                    if (in != null) {
-                        in.close();
-                    }
-            } catch (IOException ex1) {
-                Log.log("Can't close an input file stream", LogLevels.FATALERROR, ex1);
-            }
+            close(new InputStream[] { vBaseIn, vDiffIn });
+        }
+    }
+
+
+    private static void close(InputStream[] ins) {
+        try {
+            for (InputStream in : ins)
+                if (in != null) {
+                    in.close();
+                }
+        } catch (IOException ex1) {
+            Log.log("Can't close an input file stream", LogLevels.FATALERROR, ex1);
         }
     }
 
@@ -151,16 +287,29 @@ public class Patch {
     }
 
 
+    // Diff items with references decoded and made absolute
+    private static ItemSource makeDiffFilter(ItemSource s) {
+        return new TransformSource(new TransformSource(makeInputFilter(s),
+                                                       new ReferenceItemTransform()),
+                                   new Diff.RelativeDeweyKeyExpander());
+    }
+
+
     public static void main(String[] args) throws IOException {
         Log.setLogger(new StreamLogger(System.err));
         if (args.length < 2) {
-            Log.log("Usage base.xml diff.xml [patched.xml]", LogLevels.ERROR);
+            Log.log("Usage [-Dindex=base.idx] [-Dfc.diff.stats] base.xml diff.xml [patched.xml]",
+                    LogLevels.ERROR);
             System.exit(1);
         }
         OutputStream dout = System.out;
         try {
             if (args.length > 2 && !"-".equals(args[2])) dout = new FileOutputStream(args[2]);
-            patch(new File(args[0]), new File(args[1]), dout);
+            String index = System.getProperty("index");
+            if (index != null) patchIndexed(new File(args[0]), new File(args[1]),
+                                            new File(index), dout);
+            else patch(new File(args[0]), new File(args[1]), dout);
+            if (DiffStats.last() != null) System.err.print(DiffStats.last());
         } catch (IOException ex) {
             Log.log("IO error while patching", LogLevels.ERROR, ex);
         } finally {
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import java.io.IOException;
+import java.util.Stack;
+
+import fc.xml.xas.AttributeNode;
+import fc.xml.xas.EndDocument;
+import fc.xml.xas.EndTag;
+import fc.xml.xas.Item;
+import fc.xml.xas.ItemSource;
+import fc.xml.xas.ItemTarget;
+import fc.xml.xas.Qname;
+import fc.xml.xas.StartDocument;
+import fc.xml.xas.StartTag;
+import fc.xml.xmlr.NodeNotFoundException;
+import fc.xml.xmlr.model.StringKey;
+import fc.xml.xmlr.tdm.Diff;
+import fc.xml.xmlr.xas.RefItem;
+import fc.xml.xmlr.xas.RefNodeItem;
+
+/**
+ * Base class of patch engines that walk a diff in order. Literal items of the diff are written to
+ * the output as they are, and references to base nodes are resolved by the subclass. Both the
+ * reftree format and the <code>3dm</code> format of {@link Diff} are accepted, with the
+ * references already decoded and expanded to absolute Dewey keys, as done by {@link Patch}.
+ */
+abstract class PatchEngine {
+
+    protected ItemTarget out;
+
+
+    /**
+     * Write a base subtree to the output.
+     * @param key
+     *            Dewey key of the subtree root
+     * @param optional
+     *            whether the subtree may be missing
+     * @return <code>false</code> if the subtree is optional and missing
+     * @throws IOException
+     *             if reading or writing fails, or the subtree is required and missing
+     */
+    protected abstract boolean copyTree(String key, boolean optional) throws IOException;
+
+
+    /**
+     * Write a base node, without its children, to the output.
+     * @param key
+     *            Dewey key of the node
+     * @return the start tag written, or <code>null</code> if the node is not an element
+     * @throws IOException
+     *             if reading or writing fails, or the node is missing
+     */
+    protected abstract Item copyNode(String key) throws IOException;
+
+
+    /**
+     * Write the patched document.
+     * @param diff
+     *            diff items
+     * @param out
+     *            target to write the patched document to
+     * @throws IOException
+     *             if reading or writing fails
+     * @throws NodeNotFoundException
+     *             if the diff references a node not in the base
+     */
+    protected void apply(ItemSource diff, ItemTarget out) throws IOException,
+            NodeNotFoundException {
+        out.append(StartDocument.instance());
+        try {
+            walk(diff, out);
+        } catch (MissingNode ex) {
+            throw new NodeNotFoundException(StringKey.createKey(ex.getMessage()));
+        }
+        out.append(EndDocument.instance());
+    }
+
+
+    /**
+     * Walk the items of a diff, writing literal items and resolved references to a target.
+     * @param diff
+     *            diff items
+     * @param out
+     *            target to write to
+     * @throws IOException
+     *             if reading or writing fails
+     */
+    protected void walk(ItemSource diff, ItemTarget out) throws IOException {
+        this.out = out;
+        // For each open start tag: the base node for a node reference, the
+        // tag itself for inserted elements, and null for diff tags
+        Stack<Item> open = new Stack<Item>();
+        for (Item i = null; (i = diff.next()) != null;) {
+            int type = i.getType();
+            if (RefItem.isRefItem(i)) {
+                RefItem ri = (RefItem) i;
+                if (ri.isTreeRef()) {
+                    copyTree(ri.getTarget().toString(), false);
+                } else if (((RefNodeItem) ri).isEndTag()) {
+                    Item node = open.pop();
+                    if (node != null && Item.isStartTag(node))
+                        out.append(new EndTag(((StartTag) node).getName()));
+                } else {
+                    open.push(copyNode(ri.getTarget().toString()));
+                }
+            } else if (type == Item.START_TAG) {
+                StartTag st = (StartTag) i;
+                if (Diff.DIFF_ROOT_TAG.equals(st.getName())) {
+                    open.push(null);
+                    if (!Diff.DIFF_ROOTOP_INS.equals(attribute(st, Diff.DIFF_ROOTOP_ATTR))) {
+                        copyTree("/0", false); // Copy of the entire base
+                        return;
+                    }
+                } else if (Diff.DIFF_COPY_TAG.equals(st.getName())) {
+                    open.push(null);
+                    copy(attribute(st, Diff.DIFF_CPYSRC_ATTR), attribute(st, Diff.DIFF_CPYRUN_ATTR));
+                } else if (Diff.DIFF_INS_TAG.equals(st.getName())) {
+                    throw new Diff.DiffFormatException("Diff insert tags are not supported");
+                } else {
+                    open.push(st);
+                    out.append(st);
+                }
+            } else if (open.isEmpty()) {
+                continue; // Header and trailer
+            } else if (type == Item.END_TAG) {
+                if (open.pop() != null) out.append(i);
+            } else {
+                out.append(i);
+            }
+        }
+    }
+
+
+    // Copy a run of base subtrees; the run ends early at the end of the
+    // child list in the base
+    private void copy(String key, String run) throws IOException {
+        if (key == null) throw new Diff.DiffFormatException("Copy without source");
+        long left;
+        try {
+            left = run != null ? Long.parseLong(run) : 1;
+        } catch (NumberFormatException ex) {
+            throw new Diff.DiffFormatException("Non-numeric run: " + run);
+        }
+        for (boolean found = copyTree(key, false); found && --left > 0;)
+            found = copyTree(key = successor(key), true);
+    }
+
+
+    // Key of the next sibling of a node
+    private static String successor(String key) {
+        int ix = key.lastIndexOf('/');
+        return key.substring(0, ix + 1) + (Integer.parseInt(key.substring(ix + 1)) + 1);
+    }
+
+
+    private static String attribute(StartTag st, Qname name) {
+        AttributeNode an = st.getAttribute(name);
+        return an != null ? an.getValue().toString() : null;
+    }
+
+
+    /**
+     * Parse a Dewey key.
+     * @param key
+     *            key, e.g., <code>/0/2/1</code>
+     * @return steps of the key
+     * @throws IOException
+     *             if the key is malformed
+     */
+    protected static int[] parseKey(String key) throws IOException {
+        String[] parts = key.split("/");
+        if (parts.length < 2 || parts[0].length() > 0)
+            throw new Diff.DiffFormatException("Malformed reference " + key);
+        int[] path = new int[parts.length - 1];
+        try {
+            for (int i = 1; i < parts.length; i++)
+                path[i - 1] = Integer.parseInt(parts[i]);
+        } catch (NumberFormatException ex) {
+            throw new Diff.DiffFormatException("Malformed reference " + key);
+        }
+        return path;
+    }
+
+    /**
+     * Thrown by subclasses on a reference to a missing node. Carries the key as its message.
+     */
+    protected static class MissingNode extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+
+        public MissingNode(String key) {
+            super(key);
+        }
+    }
+
+}
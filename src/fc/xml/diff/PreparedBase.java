@@ -0,0 +1,133 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.diff.encode.RefTreeEncoder;
+import fc.xml.xas.Item;
+import fc.xml.xas.ItemSource;
+import fc.xml.xas.ItemTransform;
+
+/**
+ * Base document prepared for diffing against many new documents. The base is parsed and
+ * canonicalized once, and the matcher symbols, hashes and window indexes of the base, as well as
+ * the path index used by the {@link RefTreeEncoder reftree encoders}, are computed once and
+ * shared by all diffs.
+ * <p>
+ * A prepared base is not modified by diffing, so any number of threads may diff against it
+ * concurrently. The diffs are the same as those produced by {@link Diff}.
+ */
+public class PreparedBase {
+
+    private final List<Item> base;
+    private final List<Item> preamble;
+    private final Class<? extends ItemTransform> filter;
+    private final GlMatcher.Prepared<Item> prepared;
+    private final RefTreeEncoder.PathIndex pathIndex;
+
+
+    /**
+     * Prepare a base document.
+     * @param basepa
+     *            base document
+     * @param filter
+     *            filter to apply to the base and to each new document, or <code>null</code> for
+     *            none
+     * @throws IOException
+     *             if reading the base fails
+     */
+    public PreparedBase(ItemSource basepa, Class<? extends ItemTransform> filter)
+            throws IOException {
+        this.filter = filter;
+        List<Item> pre = new ArrayList<Item>();
+        base = IoUtil.makeEventList(IoUtil.getEventSequence(basepa, filter), pre, null, null);
+        preamble = Collections.unmodifiableList(pre);
+        prepared = new GlMatcher<Item>(IoUtil.getEventHashAlgorithm()).prepare(base,
+                                                                               Diff.CHUNK_SIZES);
+        pathIndex = new RefTreeEncoder.PathIndex(base);
+    }
+
+
+    /**
+     * Get the canonical items of the base.
+     * @return unmodifiable list of base items
+     */
+    public List<Item> getBase() {
+        return base;
+    }
+
+
+    // Reads the canonical items of a document, filtered like the base
+    List<Item> parse(ItemSource docpa) throws IOException {
+        return IoUtil.makeEventList(IoUtil.getEventSequence(docpa, filter), null, null, null);
+    }
+
+
+    /**
+     * Match a document against the base.
+     * @param doc
+     *            canonical items of the document
+     * @return match list
+     */
+    public List<Segment<Item>> match(List<Item> doc) {
+        return match(doc, null);
+    }
+
+
+    private List<Segment<Item>> match(List<Item> doc, DiffStats stats) {
+        if (stats != null) {
+            stats.count(DiffStats.DIFFS, 1);
+            stats.count(DiffStats.BASE_ITEMS, base.size());
+            stats.count(DiffStats.DOC_ITEMS, doc.size());
+        }
+        GlMatcher<Item> m = new GlMatcher<Item>(IoUtil.getEventHashAlgorithm(),
+                                                Diff.getMatchPool());
+        m.setStats(stats);
+        return m.match(prepared, doc, Diff.CHUNK_SIZES);
+    }
+
+
+    /**
+     * Diff a document against the base.
+     * @param docpa
+     *            new document
+     * @param dout
+     *            stream to write the diff to
+     * @param outputEncoding
+     *            encoder class
+     * @param emitEmpty
+     *            whether to write a diff if the documents are identical
+     * @return <code>true</code> if the documents differ
+     * @throws IOException
+     *             if reading the document or writing the diff fails
+     */
+    public boolean diff(ItemSource docpa, OutputStream dout,
+                        Class<? extends DiffEncoder> outputEncoding, boolean emitEmpty)
+            throws IOException {
+        DiffStats stats = DiffStats.create();
+        long start = System.currentTimeMillis();
+        if (stats != null) stats.begin(DiffStats.PARSE);
+        List<Item> doc = parse(docpa);
+        if (stats != null) stats.end();
+        List<Segment<Item>> ml = match(doc, stats);
+        long stop = System.currentTimeMillis();
+        boolean differs = Diff.encode(base, doc, ml, new ArrayList<Item>(preamble), dout,
+                                      outputEncoding, pathIndex, emitEmpty, stop - start, stats);
+        if (stats != null) stats.finish();
+        return differs;
+    }
+
+}
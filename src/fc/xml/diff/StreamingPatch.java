@@ -0,0 +1,267 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fc.xml.xas.Item;
+import fc.xml.xas.ItemSource;
+import fc.xml.xas.ItemTarget;
+import fc.xml.xas.XasUtil;
+import fc.xml.xmlr.NodeNotFoundException;
+
+/**
+ * Patch engine that streams the base document. The base is read once, in document order, and
+ * each subtree or node referenced by the diff is written to the output as the base is read past
+ * it. Only base subtrees that are referenced after the point in the diff where the base is read
+ * past them, i.e., moved subtrees, are buffered. Memory use is thus set by the size of the diff
+ * and of the moved subtrees, rather than by the size of the base.
+ * <p>
+ * The diff is read twice: first to find the base nodes it references, and then to produce the
+ * output.
+ */
+public class StreamingPatch extends PatchEngine {
+
+    // Number of remaining references to a base node, by Dewey key
+    private Map<String, Need> needed = new HashMap<String, Need>();
+
+    // Buffered subtrees and nodes of the base, by Dewey key
+    private Map<String, List<Item>> trees = new HashMap<String, List<Item>>();
+    private Map<String, Item> nodes = new HashMap<String, Item>();
+
+    private BaseCursor base;
+    private boolean scanning;
+
+
+    /**
+     * Create a patch engine for a diff.
+     * @param diff
+     *            diff to scan for references
+     * @throws IOException
+     *             if reading the diff fails
+     */
+    public StreamingPatch(ItemSource diff) throws IOException {
+        scanning = true;
+        walk(diff, XasUtil.SINK_TARGET);
+        scanning = false;
+    }
+
+
+    /**
+     * Apply the diff to a base document.
+     * @param base
+     *            base document
+     * @param diff
+     *            the same diff as given to the constructor
+     * @param out
+     *            target to write the patched document to
+     * @throws IOException
+     *             if reading or writing fails
+     * @throws NodeNotFoundException
+     *             if the diff references a node not in the base
+     */
+    public void patch(ItemSource base, ItemSource diff, ItemTarget out) throws IOException,
+            NodeNotFoundException {
+        this.base = new BaseCursor(base);
+        apply(diff, out);
+    }
+
+
+    @Override
+    protected boolean copyTree(String key, boolean optional) throws IOException {
+        if (scanning) {
+            need(key).trees++;
+            return true;
+        }
+        Need n = needed.get(key);
+        n.trees--;
+        List<Item> tree = n.trees > 0 ? trees.get(key) : trees.remove(key);
+        if (tree != null) {
+            for (Item i : tree)
+                out.append(i);
+            return true;
+        }
+        if (!base.seek(key)) {
+            if (optional) return false;
+            throw new MissingNode(key);
+        }
+        int depth = base.depth();
+        do {
+            out.append(base.next());
+        } while (base.depth() > depth);
+        return true;
+    }
+
+
+    @Override
+    protected Item copyNode(String key) throws IOException {
+        if (scanning) {
+            need(key).nodes++;
+            return null;
+        }
+        Need n = needed.get(key);
+        n.nodes--;
+        Item i = n.nodes > 0 ? nodes.get(key) : nodes.remove(key);
+        if (i == null) {
+            if (!base.seek(key)) throw new MissingNode(key);
+            i = base.next();
+        }
+        out.append(i);
+        return i;
+    }
+
+
+    private Need need(String key) {
+        Need n = needed.get(key);
+        if (n == null) {
+            n = new Need();
+            needed.put(key, n);
+        }
+        return n;
+    }
+
+    private static class Need {
+
+        int trees = 0;
+        int nodes = 0;
+    }
+
+    /**
+     * Cursor over the base document. Tracks the Dewey key of each node, and buffers any subtrees
+     * and nodes with remaining references as they are read.
+     */
+    private class BaseCursor {
+
+        private ItemSource es;
+        private Item next;
+
+        // Keys and child counters of the open elements, and of the document
+        private String[] keys = new String[16];
+        private int[] counters = new int[16];
+        private int depth = 0;
+        private boolean rootDone = false;
+
+        // Subtrees being buffered
+        private List<Capture> captures = new ArrayList<Capture>();
+
+
+        public BaseCursor(ItemSource es) throws IOException {
+            this.es = es;
+            keys[0] = "";
+            next = es.next();
+        }
+
+
+        public int depth() {
+            return depth;
+        }
+
+
+        // Key the next item will have, or null if it is not a node
+        private String nextKey() {
+            if (next == null || rootDone || next.getType() == Item.END_TAG) return null;
+            if (depth == 0 && !Item.isStartTag(next)) return null; // Header
+            return keys[depth] + "/" + counters[depth];
+        }
+
+
+        public Item next() throws IOException {
+            Item i = next;
+            String key = nextKey();
+            if (key != null) {
+                counters[depth]++;
+                Need n = needed.get(key);
+                if (n != null && n.trees > 0) captures.add(new Capture(key, depth));
+                if (n != null && n.nodes > 0) nodes.put(key, i);
+                if (Item.isStartTag(i)) {
+                    if (++depth == keys.length) {
+                        String[] nk = new String[2 * depth];
+                        System.arraycopy(keys, 0, nk, 0, depth);
+                        keys = nk;
+                        int[] nc = new int[2 * depth];
+                        System.arraycopy(counters, 0, nc, 0, depth);
+                        counters = nc;
+                    }
+                    keys[depth] = key;
+                    counters[depth] = 0;
+                }
+            } else if (i.getType() == Item.END_TAG && depth > 0) {
+                depth--;
+                if (depth == 0) rootDone = true;
+            }
+            for (Capture c : captures)
+                c.items.add(i);
+            for (int c = captures.size() - 1; c >= 0 && captures.get(c).depth == depth; c--)
+                trees.put(captures.get(c).key, captures.remove(c).items);
+            next = es.next();
+            return i;
+        }
+
+
+        /**
+         * Move to a node. Nodes before it in document order are read past, and buffered if
+         * needed.
+         * @param key
+         *            Dewey key of the node
+         * @return <code>true</code> if the next item is the node, <code>false</code> if the node
+         *         is not in the base or has already been read past
+         */
+        public boolean seek(String key) throws IOException {
+            int[] target = parseKey(key);
+            while (next != null) {
+                String k = nextKey();
+                if (k != null) {
+                    int cmp = compare(parseKey(k), target);
+                    if (cmp == 0) return true;
+                    if (cmp > 0) return false;
+                    if (cmp == -2) {
+                        next(); // Ancestor; descend
+                        continue;
+                    }
+                    int d = depth;
+                    do {
+                        next();
+                    } while (depth > d);
+                } else {
+                    next();
+                }
+            }
+            return false;
+        }
+
+
+        // Document order of two keys; -2 if k1 is an ancestor of k2
+        private int compare(int[] k1, int[] k2) {
+            for (int i = 0; i < k1.length && i < k2.length; i++) {
+                if (k1[i] != k2[i]) return k1[i] < k2[i] ? -1 : 1;
+            }
+            if (k1.length == k2.length) return 0;
+            return k1.length < k2.length ? -2 : 1;
+        }
+    }
+
+    private static class Capture {
+
+        String key;
+        int depth;
+        List<Item> items = new ArrayList<Item>();
+
+
+        public Capture(String key, int depth) {
+            this.key = key;
+            this.depth = depth;
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Interns items to <code>int</code> symbols. Equal items get the same symbol, so that after
+ * interning, items can be compared by comparing their symbols. Symbols are allocated
+ * consecutively from 0. Items are hashed with a {@link HashAlgorithm} and compared with
+ * {@link Object#equals(Object)}, once per interned item.
+ * <p>
+ * A table may be layered on top of a parent table, in which case items of the parent keep their
+ * symbols, and new items get symbols following those of the parent. The parent is only read, so
+ * it may be shared by the child tables of several threads as long as it is not modified.
+ */
+public class SymbolTable<E> {
+
+    private HashAlgorithm<E> ha;
+    private SymbolTable<E> parent;
+    private int first = 0;
+
+    private List<E> items = new ArrayList<E>();
+    private long[] keys;
+    private int[] slots;
+    private int mask;
+
+
+    public SymbolTable(HashAlgorithm<E> ha) {
+        this.ha = ha;
+        resize(64);
+    }
+
+
+    /**
+     * Create a table layered on top of another one.
+     * @param parent
+     *            table whose symbols are shared; must not be modified while this table is in use
+     */
+    public SymbolTable(SymbolTable<E> parent) {
+        this(parent.ha);
+        this.parent = parent;
+        this.first = parent.size();
+    }
+
+
+    /**
+     * Intern an item.
+     * @param e
+     *            item to intern
+     * @return symbol of the item
+     */
+    public int intern(E e) {
+        long hash = ha.quickHash(e);
+        int s = lookup(e, hash);
+        if (s != -1) return s;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (slots[slot] != -1)
+            slot = (slot + 1) & mask;
+        s = items.size();
+        items.add(e);
+        keys[slot] = hash;
+        slots[slot] = s;
+        if (2 * items.size() > slots.length) resize(2 * slots.length);
+        return first + s;
+    }
+
+
+    // Symbol of an item in this table or its parents, or -1 if none
+    private int lookup(E e, long hash) {
+        if (parent != null) {
+            int s = parent.lookup(e, hash);
+            if (s != -1) return s;
+        }
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        for (int s; (s = slots[slot]) != -1; slot = (slot + 1) & mask) {
+            if (keys[slot] == hash && items.get(s).equals(e)) return first + s;
+        }
+        return -1;
+    }
+
+
+    public int[] intern(List<E> l) {
+        int[] symbols = new int[l.size()];
+        int i = 0;
+        for (E e : l)
+            symbols[i++] = intern(e);
+        return symbols;
+    }
+
+
+    /**
+     * Get a hash of a symbol. Distinct symbols have distinct hashes, and the hash uses all 64
+     * bits.
+     * @param symbol
+     *            symbol to hash
+     * @return hash of the symbol
+     */
+    public static long hash(int symbol) {
+        // SplitMix64 finalizer, which is a bijection
+        long z = (symbol + 1) * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+
+    public E get(int symbol) {
+        return symbol < first ? parent.get(symbol) : items.get(symbol - first);
+    }
+
+
+    /**
+     * Get the number of symbols in this table, including those of its parents.
+     * @return number of symbols
+     */
+    public int size() {
+        return first + items.size();
+    }
+
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldSlots = slots;
+        keys = new long[capacity];
+        slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        mask = capacity - 1;
+        if (oldSlots == null) return;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] == -1) continue;
+            int slot = (int) (oldKeys[i] ^ (oldKeys[i] >>> 32)) & mask;
+            while (slots[slot] != -1)
+                slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            slots[slot] = oldSlots[i];
+        }
+    }
+
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff;
+
+import static fc.xml.diff.Segment.Operation.COPY;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+import fc.util.log.Log;
+import fc.util.log.LogLevels;
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.diff.encode.RefTreeByIdEncoder;
+import fc.xml.diff.encode.RefTreeEncoder;
+import fc.xml.xas.EndDocument;
+import fc.xml.xas.Item;
+import fc.xml.xas.ItemSource;
+import fc.xml.xas.ItemTarget;
+import fc.xml.xas.SerializerTarget;
+import fc.xml.xas.StartDocument;
+import fc.xml.xmlr.NodeReference;
+import fc.xml.xmlr.TreeReference;
+import fc.xml.xmlr.model.StringKey;
+import fc.xml.xmlr.xas.RefItem;
+
+/**
+ * Bounded-memory differencing for documents larger than the heap. Both documents are consumed
+ * incrementally, and {@link GlMatcher} is run on a sliding window of at most
+ * <code>windowSize</code> canonical items from each document. Segments are encoded as soon as
+ * they are final, so peak memory is set by the window size rather than by the document size.
+ * <p>
+ * The price is match quality: moves over a distance larger than the window show up as deletes
+ * and inserts. Base items that were passed over by the diff are evicted from the window, and
+ * cannot be copied later on. Output is written with the reftree based encoders, i.e.,
+ * {@link RefTreeEncoder} and its subclasses, with the exception of {@link RefTreeByIdEncoder},
+ * which needs random access to the base document.
+ */
+public class WindowedDiff {
+
+    public static final int DEFAULT_WINDOW = 64 * 1024;
+
+    private int windowSize;
+
+    // Base window: items, their XPaths, and their global positions in base
+    private List<Item> base = new ArrayList<Item>();
+    private List<String> basePaths = new ArrayList<String>();
+    private List<Integer> baseIndex = new ArrayList<Integer>();
+    private boolean[] baseUsed;
+    private int baseRead = 0;
+    private ItemSource baseEs;
+    private PathTracker tracker = new PathTracker();
+
+    // Doc window, and global position of its first item
+    private List<Item> doc = new ArrayList<Item>();
+    private int docOffset = 0;
+    private ItemSource docEs;
+
+    // Encoder state. The stack holds the base path for elements opened as node
+    // references, and null for inserted elements.
+    private ItemTarget out;
+    private Stack<String> open = new Stack<String>();
+    private boolean inRoot = false;
+    private boolean rootDone = false;
+    private boolean changed = false;
+
+
+    public WindowedDiff() {
+        this(DEFAULT_WINDOW);
+    }
+
+
+    public WindowedDiff(int windowSize) {
+        if (windowSize < 2 * Diff.CHUNK_SIZES[0])
+            throw new IllegalArgumentException("Window must be at least " + 2 *
+                                               Diff.CHUNK_SIZES[0] + " items");
+        this.windowSize = windowSize;
+    }
+
+
+    /**
+     * Diff two documents using a sliding window.
+     * @param baseEs
+     *            base document
+     * @param docEs
+     *            new document
+     * @param dout
+     *            stream to write the diff to
+     * @param outputEncoding
+     *            encoder class; must be a {@link RefTreeEncoder}
+     * @return <code>true</code> if the documents differ
+     * @throws IOException
+     *             if reading the documents or writing the diff fails
+     */
+    public boolean diff(ItemSource baseEs, ItemSource docEs, OutputStream dout,
+                        Class<? extends DiffEncoder> outputEncoding) throws IOException {
+        if (!RefTreeEncoder.class.isAssignableFrom(outputEncoding) ||
+            RefTreeByIdEncoder.class.isAssignableFrom(outputEncoding))
+            throw new IllegalArgumentException("Encoder " + outputEncoding.getName() +
+                                               " cannot be used with windowed diff");
+        RefTreeEncoder enc = null;
+        try {
+            enc = (RefTreeEncoder) outputEncoding.getDeclaredConstructor().newInstance();
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot access encoder class " + outputEncoding, e);
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException("Unknown encoder " + outputEncoding, e);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Unknown encoder " + outputEncoding, e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException("Cannot create encoder " + outputEncoding,
+                                               e.getCause());
+        }
+        this.baseEs = IoUtil.getCanonicalSource(baseEs);
+        this.docEs = IoUtil.getCanonicalSource(docEs);
+        SerializerTarget dser = enc.getSerializer(dout);
+        out = enc.getOutputTarget(dser);
+        out.append(StartDocument.instance());
+        GlMatcher<Item> m = new GlMatcher<Item>(IoUtil.getEventHashAlgorithm());
+        int laps = 0;
+        for (boolean docDone = false; !docDone || !doc.isEmpty(); laps++) {
+            fillBase();
+            docDone = fillDoc();
+            List<Segment<Item>> ml = m.match(base, doc, Diff.CHUNK_SIZES);
+            // The tail of the window is not final, as a match may continue past it
+            int used = encode(ml, docDone ? doc.size() : doc.size() / 2);
+            doc.subList(0, used).clear();
+            docOffset += used;
+            evictBase(used, docDone);
+        }
+        changed |= !base.isEmpty() || this.baseEs.next() != null;
+        out.append(EndDocument.instance());
+        dser.flush();
+        Log.log("Windowed diff done in " + laps + " laps, documents " +
+                (changed ? "differ." : "identical."), LogLevels.INFO);
+        return changed;
+    }
+
+
+    private void fillBase() throws IOException {
+        for (Item i = null; base.size() < windowSize && (i = baseEs.next()) != null;) {
+            base.add(i);
+            basePaths.add(tracker.next(i));
+            baseIndex.add(baseRead++);
+        }
+        baseUsed = new boolean[base.size()];
+    }
+
+
+    // Returns true if the doc is exhausted
+    private boolean fillDoc() throws IOException {
+        for (Item i = null; doc.size() < windowSize;) {
+            if ((i = docEs.next()) == null) return true;
+            doc.add(i);
+        }
+        return false;
+    }
+
+
+    // Encode doc items up to (at least) commit, returns number of items
+    // encoded
+    private int encode(List<Segment<Item>> ml, int commit) throws IOException {
+        int[] ends = subtreeEnds();
+        int pos = 0;
+        for (Segment<Item> s : ml) {
+            int send = s.getPosition() + s.getInsertLen();
+            while (pos < send && pos < commit) {
+                Item e = doc.get(pos);
+                boolean copied = s.getOp() == COPY;
+                int b = copied ? s.getOffset() + pos - s.getPosition() : -1;
+                changed |= !copied || baseIndex.get(b) != docOffset + pos;
+                if (copied) baseUsed[b] = true;
+                if (!inRoot && Item.isStartTag(e) && !rootDone) inRoot = true;
+                if (!inRoot) {
+                    pos++; // Skip items outside root element, like RefTreeEncoder
+                    continue;
+                }
+                if (Item.isStartTag(e)) {
+                    int end = ends[pos];
+                    if (copied && end != -1 && end < send &&
+                        baseIndex.get(b + end - pos) - baseIndex.get(b) == end - pos) {
+                        // Whole subtree is within a single copy op, and the
+                        // base items are contiguous (eviction leaves gaps)
+                        out.append(RefItem.makeStartItem(
+                                                         new TreeReference(
+                                                                           StringKey.createKey(basePaths.get(b))),
+                                                         null));
+                        for (int i = b; i <= b + end - pos; i++)
+                            baseUsed[i] = true;
+                        pos = end;
+                        endElement();
+                    } else if (copied) {
+                        out.append(RefItem.makeStartItem(
+                                                         new NodeReference(
+                                                                           StringKey.createKey(basePaths.get(b))),
+                                                         null));
+                        open.push(basePaths.get(b));
+                    } else {
+                        out.append(e);
+                        open.push(null);
+                    }
+                } else if (Item.isEndTag(e)) {
+                    String ref = open.pop();
+                    if (ref != null) {
+                        out.append(RefItem.makeEndItem(new NodeReference(StringKey.createKey(ref))));
+                    } else {
+                        out.append(e);
+                    }
+                    endElement();
+                } else if (isTextLike(e)) {
+                    if (copied) {
+                        out.append(RefItem.makeStartItem(
+                                                         new TreeReference(
+                                                                           StringKey.createKey(basePaths.get(b))),
+                                                         null));
+                    } else {
+                        out.append(e);
+                    }
+                }
+                pos++;
+            }
+        }
+        return pos;
+    }
+
+
+    private void endElement() {
+        if (open.isEmpty()) {
+            inRoot = false;
+            rootDone = true;
+        }
+    }
+
+
+    // Position of the matching end tag for each start tag in the doc window, or
+    // -1 if not inside the window
+    private int[] subtreeEnds() {
+        int[] ends = new int[doc.size()];
+        Stack<Integer> starts = new Stack<Integer>();
+        for (int i = 0; i < ends.length; i++) {
+            Item e = doc.get(i);
+            ends[i] = -1;
+            if (Item.isStartTag(e)) {
+                starts.push(i);
+            } else if (Item.isEndTag(e) && !starts.isEmpty()) {
+                ends[starts.pop()] = i;
+            }
+        }
+        return ends;
+    }
+
+
+    // Drop used base items, and any unused ones the diff has moved past
+    private void evictBase(int docUsed, boolean docDone) {
+        int minUsed = Integer.MAX_VALUE;
+        for (int i = 0; i < baseUsed.length; i++) {
+            if (baseUsed[i]) minUsed = Math.min(minUsed, baseIndex.get(i));
+        }
+        if (minUsed == Integer.MAX_VALUE && !docDone) {
+            // Nothing matched: we cannot tell an insert from a delete, so
+            // advance the base at the same rate as the doc
+            for (int i = 0; i < docUsed && i < baseUsed.length; i++)
+                baseUsed[i] = true;
+        }
+        int dest = 0;
+        for (int i = 0; i < baseUsed.length; i++) {
+            if (baseUsed[i]) continue;
+            if (baseIndex.get(i) < minUsed) {
+                changed = true; // Evicted without use, i.e., deleted
+                continue;
+            }
+            base.set(dest, base.get(i));
+            basePaths.set(dest, basePaths.get(i));
+            baseIndex.set(dest, baseIndex.get(i));
+            dest++;
+        }
+        base.subList(dest, base.size()).clear();
+        basePaths.subList(dest, basePaths.size()).clear();
+        baseIndex.subList(dest, baseIndex.size()).clear();
+    }
+
+
+    private static boolean isTextLike(Item i) {
+        int type = i.getType();
+        return type == Item.TEXT || type == Item.COMMENT || type == Item.ENTITY_REF ||
+               type == Item.PI;
+    }
+
+    /**
+     * Computes the same XPaths as {@link RefTreeEncoder.PathIndex}, but one item at a time.
+     */
+    private static class PathTracker {
+
+        private int[] counters = new int[16];
+        private int len = 0;
+
+
+        // Returns path of item, or null if the item has no path
+        public String next(Item e) {
+            String path = null;
+            if (Item.isStartTag(e)) {
+                if (++len >= counters.length) {
+                    int[] nc = new int[2 * counters.length];
+                    System.arraycopy(counters, 0, nc, 0, counters.length);
+                    counters = nc;
+                }
+                path = toString(len);
+            } else if (Item.isEndTag(e)) {
+                counters[len] = 0;
+                len--;
+                counters[len]++;
+            } else if (isTextLike(e)) {
+                path = toString(len) + "/" + counters[len];
+                counters[len]++;
+            }
+            return path;
+        }
+
+
+        private String toString(int depth) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < depth; i++) {
+                sb.append('/');
+                sb.append(counters[i]);
+            }
+            return sb.toString();
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.benchmark.jmh;
+
+import java.io.OutputStream;
+
+/**
+ * Output stream that discards its data, but counts it. Benchmarks return the count so that the
+ * output cannot be optimized away.
+ */
+public class ByteSink extends OutputStream {
+
+    private long count = 0;
+
+
+    @Override
+    public void write(int b) {
+        count++;
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        count += len;
+    }
+
+
+    public long getCount() {
+        return count;
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.benchmark.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import fc.xml.diff.Diff;
+import fc.xml.diff.GlMatcher;
+import fc.xml.diff.IoUtil;
+import fc.xml.diff.Segment;
+import fc.xml.diff.encode.XmlDiffEncoder;
+import fc.xml.diff.test.DirTreeGenerator;
+import fc.xml.xas.Item;
+import fc.xml.xas.ItemSource;
+import fc.xml.xas.transform.DataItems;
+import fc.xml.xmlr.ChangeTree;
+import fc.xml.xmlr.MutableRefTree;
+
+/**
+ * Benchmark input: a random directory tree and an edited version of it, generated with
+ * {@link DirTreeGenerator} in the same way as by the {@link fc.xml.diff.benchmark.SynteticDirTree}
+ * benchmark. The generator is seeded, so that the documents are the same from run to run. Setup
+ * writes both documents, and the XML diff between them, to temporary files, and keeps the parsed
+ * event lists and the match list for the benchmarks that start from those.
+ */
+@State(Scope.Benchmark)
+public class DiffInput {
+
+    /** Matcher chunk sizes, as used by {@link Diff}. */
+    public static final int[] CHUNK_SIZES = { 32, 16, 8, 4, 2, 1 };
+
+    /** Number of nodes in the base tree. */
+    @Param( { "1000", "10000", "50000" })
+    public int nodes;
+
+    /** Number of edits, relative to the number of nodes. */
+    @Param( { "0.001", "0.01", "0.1" })
+    public double editRatio;
+
+    public File baseFile;
+    public File newFile;
+    public File diffFile;
+
+    public byte[] baseBytes;
+    public byte[] newBytes;
+
+    public List<Item> preamble;
+    public List<Item> base;
+    public List<Item> doc;
+    public List<Segment<Item>> matches;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        DirTreeGenerator.idGen = 0L;
+        Random rnd = new Random(4711L);
+        MutableRefTree baset = DirTreeGenerator.randomDirTree(nodes, 25, .1, 5.0, 2.0, rnd);
+        baseFile = File.createTempFile("jmh-base", ".xml");
+        newFile = File.createTempFile("jmh-new", ".xml");
+        diffFile = File.createTempFile("jmh-diff", ".xml");
+        IoUtil.writeRefTree(baset, baseFile, new DirTreeGenerator.DirTreeModel());
+        ChangeTree dt = new ChangeTree(baset);
+        DirTreeGenerator.permutateTree(dt, Math.max(1L, Math.round(editRatio * nodes)), "dimu",
+                                       .05, rnd);
+        IoUtil.writeRefTree(dt, newFile, new DirTreeGenerator.DirTreeModel());
+        baseBytes = Files.readAllBytes(baseFile.toPath());
+        newBytes = Files.readAllBytes(newFile.toPath());
+        preamble = new ArrayList<Item>();
+        base = eventList(baseBytes, preamble);
+        doc = eventList(newBytes, null);
+        matches = new GlMatcher<Item>(IoUtil.getEventHashAlgorithm()).match(base, doc,
+                                                                            CHUNK_SIZES);
+        OutputStream dout = new FileOutputStream(diffFile);
+        try {
+            new XmlDiffEncoder().encodeDiff(base, doc, matches, preamble, dout);
+        } finally {
+            dout.close();
+        }
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File f : new File[] { baseFile, newFile, diffFile })
+            if (f != null) f.delete();
+    }
+
+
+    /**
+     * Parse a document to a diff event list, as done by {@link Diff}.
+     * @param data
+     *            document bytes
+     * @param preamble
+     *            list to add the document preamble to, or <code>null</code>
+     * @return event list of the document
+     * @throws IOException
+     *             if parsing fails
+     */
+    public static List<Item> eventList(byte[] data, List<Item> preamble) throws IOException {
+        ItemSource es = IoUtil.getEventSequence(IoUtil.getXmlParser(new ByteArrayInputStream(data)),
+                                                DataItems.class);
+        return IoUtil.makeEventList(es, preamble, null, null);
+    }
+
+}
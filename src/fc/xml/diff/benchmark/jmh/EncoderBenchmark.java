@@ -0,0 +1,63 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.benchmark.jmh;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fc.xml.diff.Diff;
+import fc.xml.diff.encode.DiffEncoder;
+
+/**
+ * Benchmarks each {@link DiffEncoder} on a precomputed match list. Encoders are selected by
+ * their {@link Diff#ENCODER_ALIASES alias}, and output is discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dfc.log.level=WARN")
+public class EncoderBenchmark {
+
+    @Param( { "xml", "ref", "ref:id", "align" })
+    public String encoder;
+
+    // A new encoder is made for each diff, as Diff does
+    private Constructor<? extends DiffEncoder> encoderConstructor;
+
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        encoderConstructor = Class.forName(Diff.ENCODER_ALIASES.get(encoder))
+            .asSubclass(DiffEncoder.class).getDeclaredConstructor();
+    }
+
+
+    @Benchmark
+    public long encode(DiffInput in) throws Exception {
+        ByteSink out = new ByteSink();
+        encoderConstructor.newInstance().encodeDiff(in.base, in.doc, in.matches, in.preamble, out);
+        return out.getCount();
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.benchmark.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fc.xml.diff.GlMatcher;
+import fc.xml.diff.IoUtil;
+import fc.xml.diff.Segment;
+import fc.xml.xas.Item;
+
+/**
+ * Benchmarks the parse and match phases of the diff. The parse phase is
+ * {@link IoUtil#makeEventList}, which reads and canonicalizes a document to a list of events,
+ * and the match phase is {@link GlMatcher#match} on two such lists.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dfc.log.level=WARN")
+public class MatchBenchmark {
+
+    @Benchmark
+    public List<Segment<Item>> match(DiffInput in) {
+        GlMatcher<Item> m = new GlMatcher<Item>(IoUtil.getEventHashAlgorithm());
+        return m.match(in.base, in.doc, DiffInput.CHUNK_SIZES);
+    }
+
+
+    @Benchmark
+    public List<Item> makeEventList(DiffInput in) throws Exception {
+        return DiffInput.eventList(in.newBytes, null);
+    }
+
+}
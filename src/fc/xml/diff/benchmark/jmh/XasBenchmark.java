@@ -0,0 +1,98 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.benchmark.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fc.xml.diff.IoUtil;
+import fc.xml.xas.Item;
+import fc.xml.xas.ItemSource;
+import fc.xml.xas.MappedXmlSource;
+import fc.xml.xas.XmlOutput;
+import fc.xml.xas.XmlPullSource;
+
+/**
+ * Benchmarks raw XAS parsing and serialization throughput, i.e., without the diff
+ * canonicalization. Parsing is measured both with {@link XmlPullSource} and with
+ * {@link MappedXmlSource}, and serialization with {@link XmlOutput}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dfc.log.level=WARN")
+public class XasBenchmark {
+
+    @Benchmark
+    public int parse(DiffInput in, Parser p) throws IOException {
+        ItemSource is = p.source(in.baseBytes);
+        int count = 0;
+        while (is.next() != null)
+            count++;
+        return count;
+    }
+
+
+    @Benchmark
+    public long serialize(Items items) throws IOException {
+        ByteSink out = new ByteSink();
+        XmlOutput xo = new XmlOutput(out, "UTF-8");
+        for (Item i : items.items)
+            xo.append(i);
+        xo.flush();
+        return out.getCount();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Parser {
+
+        /** Parser to use, either <code>pull</code> or <code>mapped</code>. */
+        @Param( { "pull", "mapped" })
+        public String parser;
+
+
+        public ItemSource source(byte[] data) throws IOException {
+            if ("mapped".equals(parser)) return new MappedXmlSource(ByteBuffer.wrap(data));
+            return IoUtil.getXmlParser(new ByteArrayInputStream(data));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Items {
+
+        public List<Item> items = new ArrayList<Item>();
+
+
+        @Setup
+        public void setUp(DiffInput in) throws IOException {
+            ItemSource is = IoUtil.getXmlParser(new ByteArrayInputStream(in.baseBytes));
+            for (Item i = null; (i = is.next()) != null;)
+                items.add(i);
+        }
+    }
+
+}
@@ -26,30 +26,17 @@ public class RefTreeByIdEncoder extends RefTreeEncoder {
 
 
     @Override
-    protected String getBaseRefTarget(int branchPos, Segment<Item> match, MultiXPath xp) {
-        int steps = -1, depth = 0;
+    protected String getBaseRefTarget(int branchPos, Segment<Item> match, PathIndex xp) {
+        int steps = -1;
         int offset = branchPos - match.getPosition();
         int basePos = match.getOffset() + offset;
-        // Log.debug("<<<Start identify scan at pos "+basePos);
-        // Scan backwards to a parent tag with id. At the same time, we count
-        // the
-        // position in the child list of the parent.
-        // NOTE: We only scan up to the parent, i.e. the tag <x> in
-        // <t id="i"><t><x> won't get an id. (We could use a recursive scheme
-        // here,
-        // to get something like i.0.0)
-        while (basePos > 0 && depth >= 0 && (depth > 0 || !Item.isStartTag(base.get(basePos)))) {
-            // Log.debug("Identifyscan "+base.get(basePos)+",depth="+depth+",basePos="+
-            // basePos+",steps="+steps);
-            if (Item.isEndTag(base.get(basePos))) {
-                depth++;
-            } else if (Item.isStartTag(base.get(basePos))) {
-                depth--;
-            }
-            steps += depth == 0 ? 1 : 0;
-            basePos--;
+        // Identify by the id of the parent, and the position in the child list of the parent.
+        // NOTE: We only go up to the parent, i.e. the tag <x> in <t id="i"><t><x> won't get an
+        // id. (We could use a recursive scheme here, to get something like i.0.0)
+        if (!Item.isStartTag(base.get(basePos))) {
+            steps = xp.ordinal(basePos);
+            basePos = xp.parent(basePos);
         }
-        // Log.debug("===Item to identify is "+base.get(basePos));
         String baseId = null;
         if (basePos > 0 && ((StartTag) base.get(basePos)).getAttribute(ID_ATTR) != null) {
             baseId = ((StartTag) base.get(basePos)).getAttribute(ID_ATTR).getValue().toString();
@@ -13,22 +13,20 @@ import static fc.xml.diff.Segment.Operation.COPY;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
-import fc.util.StringUtil;
-import fc.util.log.Log;
-import fc.util.log.LogLevels;
 import fc.xml.diff.Segment;
 import fc.xml.xas.EndDocument;
 import fc.xml.xas.Item;
 import fc.xml.xas.ItemList;
 import fc.xml.xas.ItemSource;
 import fc.xml.xas.ItemTarget;
+import fc.xml.xas.SerializerTarget;
 import fc.xml.xas.StartDocument;
 import fc.xml.xas.TransformSource;
+import fc.xml.xas.TransformTarget;
 import fc.xml.xas.XasUtil;
 import fc.xml.xas.XmlOutput;
 import fc.xml.xas.transform.NsPrefixFixer;
@@ -82,10 +80,26 @@ import fc.xml.xmlr.xas.RefItem;
  */
 public class RefTreeEncoder implements DiffEncoder {
 
+    private PathIndex pathIndex = null;
+
+
     public RefTreeEncoder() {
     }
 
 
+    /**
+     * Set a precomputed path index of the base document. Otherwise the index is built for each
+     * diff.
+     * @param pathIndex
+     *            index of the base passed to
+     *            {@link #encodeDiff(List, List, List, List, OutputStream)}, or <code>null</code>
+     *            for none
+     */
+    public void setPathIndex(PathIndex pathIndex) {
+        this.pathIndex = pathIndex;
+    }
+
+
     /**
      * @see DiffEncoder.encodeDiff
      */
@@ -98,7 +112,10 @@ public class RefTreeEncoder implements DiffEncoder {
         do {
             rd.next();
         } while (!Item.isStartItem(rd.peek()));
-        encodeDiff(rd, elr, true, new LinkedList<RefItem>(), new MultiXPath(base), new String[1], base);
+        if (pathIndex != null && pathIndex.es != base)
+            throw new IllegalArgumentException("Path index is not for this base");
+        encodeDiff(rd, elr, true, new LinkedList<RefItem>(),
+                   pathIndex != null ? pathIndex : new PathIndex(base), new String[1], base);
         elr.append(EndDocument.instance());
         // Log.debug("Diff as reftee seq");
         // OutputStream rtout = new java.io.FileOutputStream("/tmp/rt");
@@ -109,8 +126,7 @@ public class RefTreeEncoder implements DiffEncoder {
         ItemSource des = getOuputTransform(elr.source());
         // System.out.println("Reftree-ES is:\n"+res.getCurrentSequence());
 
-        XmlOutput dser = new XmlOutput(out, "UTF-8");
-        dser.FIXMEdisableContextCheck();
+        SerializerTarget dser = getSerializer(out);
         // dser.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
         XasUtil.copy(des, dser);
         dser.flush();
@@ -118,16 +134,43 @@ public class RefTreeEncoder implements DiffEncoder {
     }
 
 
+    /**
+     * Get the target the diff is serialized to. The default is UTF-8 encoded XML.
+     * @param out
+     *            stream to write the diff to
+     * @return target to append the transformed diff items to
+     * @throws IOException
+     *             if the target cannot be created
+     */
+    public SerializerTarget getSerializer(OutputStream out) throws IOException {
+        XmlOutput dser = new XmlOutput(out, "UTF-8");
+        dser.FIXMEdisableContextCheck();
+        return dser;
+    }
+
+
     protected ItemSource getOuputTransform(ItemSource is) {
         return new TransformSource(is, new NsPrefixFixer());
     }
 
 
+    /**
+     * Get the push equivalent of {@link #getOuputTransform(ItemSource)}. Used by encoders that
+     * emit the reftree item stream incrementally, such as {@link fc.xml.diff.WindowedDiff}.
+     * @param t
+     *            target to write the transformed diff items to
+     * @return target accepting reftree items
+     */
+    public ItemTarget getOutputTarget(ItemTarget t) {
+        return new TransformTarget(t, new NsPrefixFixer());
+    }
+
+
     // Assume at ST
     // topPath[0] is filled in with XPath of the encoded subtree root
     // (it is null if the subtree is not a refnode)
     protected Boolean encodeDiff(ListOfMatchedEvents mr, ItemTarget out, boolean parentChanged,
-                                 LinkedList<RefItem> tagStack, MultiXPath xp, String[] topPath,
+                                 LinkedList<RefItem> tagStack, PathIndex xp, String[] topPath,
                                  List<Item> base) throws IOException {
         // Log.debug("peek()="+mr.peek()+", topPath="+topPath[0]+", pos="+
         // mr.getCurrentPosition());
@@ -255,171 +298,116 @@ public class RefTreeEncoder implements DiffEncoder {
     }
 
 
-    protected String getBaseRefTarget(int branchPos, Segment<Item> match, MultiXPath xp) {
-        // Enable the _xp2 code here if you suspect MultiXPath is buggy
-        // The _xp2 code will just make a new NumXPath, and seek to pos from
-        // start
-        // NumericXPath __xp2 = new NumericXPath(
-        // xp.paths.get(xp.paths.firstKey()).es );
+    protected String getBaseRefTarget(int branchPos, Segment<Item> match, PathIndex xp) {
         int offset = branchPos - match.getPosition();
         assert (offset < match.getLength());
-        // Log.log("Match for "+branchPos+" is "+(match.getOffset()+offset)+
-        // " mseg="+match,Log.INFO);
-        // Log.log("Seeking xp to "+(match.getOffset()+offset+1),Log.INFO);
-        // __xp2.moveto(0);
-        // __xp2.moveto(match.getOffset()+offset+1);
-        // return __xp2.toString();
-        return xp.getPath(match.getOffset() + offset + 1, match.getOffset(), match.getInsertLen());
-    }
-
-    public static class MultiXPath {
-
-        private SortedMap<Integer, NumericXPath> paths = new TreeMap<Integer, NumericXPath>();
-
-
-        public MultiXPath(List<Item> es) {
-            paths.put(0, new NumericXPath(es));
-        }
-
-
-        public String getPath(int ix, int cacheIx, int len) {
-            // Log.log("Patching "+ix+", in cache "+cacheIx,Log.INFO);
-            assert (ix >= cacheIx);
-            NumericXPath exact = paths.get(cacheIx);
-            if (exact == null) {
-                // Find last below
-                SortedMap<Integer, NumericXPath> lessPaths = paths.headMap(cacheIx);
-                assert (lessPaths != null);
-                NumericXPath refpath = paths.get(lessPaths.lastKey());
-                // Log.log("Reference XPath starts at chunk "+lessPaths.lastKey()+
-                // ", has moved to "+refpath.pos,Log.INFO);
-                exact = new NumericXPath(refpath);
-                // Log.log("New XPath starting at "+cacheIx,Log.INFO);
-                paths.put(cacheIx, exact);
-                exact.moveto(ix); // DEBUG ONLY!
-            }
-            exact.moveto(ix);
-            return exact.toString();
-        }
+        return xp.getPath(match.getOffset() + offset);
     }
 
+    /**
+     * Index of the XPaths of the items of a document. The index is built in a single pass and
+     * keeps, for each item, the position of its parent and its position in the child list of the
+     * parent, so the path of any item is found by following parents, without scanning the
+     * document. The index is not modified after it is built, so it may be shared by encoders
+     * running concurrently on the same base.
+     */
+    public static class PathIndex {
 
-    private static boolean isTextLike(Item i) {
-        if (i == null) return false;
-        int type = i.getType();
-        return type == Item.TEXT || type == Item.COMMENT || type == Item.ENTITY_REF ||
-               type == Item.PI;
-    }
-
-    public static class NumericXPath {
-
-        private static final int MAXDEPTH = 128;
-        private int len = 0;
-        private int[] counters = new int[MAXDEPTH];
-        private int pos = 0;
-        private boolean lastWasText = false;
-        private List<Item> es;
+        private final List<Item> es;
+        // For items with a path, the position of the enclosing start tag, or -1 at the top level.
+        // Other items have the path of their enclosing element, whose position is kept here.
+        private final int[] parents;
+        // Position in the child list of the parent, or -1 for items without a path of their own
+        private final int[] ordinals;
 
 
-        public NumericXPath(List<Item> es) {
+        public PathIndex(List<Item> es) {
             this.es = es;
-        }
-
-
-        public NumericXPath(NumericXPath base) {
-            len = base.len;
-            System.arraycopy(base.counters, 0, counters, 0, MAXDEPTH);
-            pos = base.pos;
-            es = base.es;
-            lastWasText = base.lastWasText;
-        }
-
-
-        public void moveto(int target) {
-            int _op = pos;
-            if (target < pos) {
-                Log.log("Backing: target=" + target + ", pos=" + pos, LogLevels.FATALERROR,
-                        new Throwable());
-            }
-            assert (target >= pos); // Never go back.
-            for (; pos < target; pos++) {
+            int n = es.size();
+            parents = new int[n];
+            ordinals = new int[n];
+            int[] open = new int[16];
+            int[] next = new int[17];
+            int depth = 0;
+            for (int pos = 0; pos < n; pos++) {
                 Item e = es.get(pos);
-                if (e == null && es.get(pos - 1) == null)
-                    Log.log("Moved >1 beyond ED(). This should not happen...", LogLevels.WARNING);
-                int type = e == null ? -1 : e.getType(); // Allow moving beyond
-                // ED
-                lastWasText = isTextLike(e);
-                switch (type) {
-                    case -1:
-                    case Item.END_DOCUMENT:
-                    case Item.START_DOCUMENT:
-                        // FIXME-20061113-1:Item types not yet in XAS2. Fix
-                        // commented out below
-                        // case Item.DOCTYPE_DECL:
-                        break;
-                    case Item.COMMENT:
-                    case Item.TEXT:
-                    case Item.ENTITY_REF:
-                    case Item.PI:
-                        down();
-                        up();
-                        forwardNextDown();
-                        break;
-                    case Item.START_TAG:
-                        // FIXME-20061113-1:
-                        // case Item.TYPED_CONTENT:
-                        down();
-                        break;
-                    case Item.END_TAG:
-                        up();
-                        forwardNextDown();
-                        break;
+                int type = e == null ? -1 : e.getType();
+                parents[pos] = depth > 0 ? open[depth - 1] : -1;
+                ordinals[pos] = -1;
+                if (type == Item.START_TAG) {
+                    ordinals[pos] = next[depth];
+                    if (depth == open.length) {
+                        open = Arrays.copyOf(open, 2 * depth);
+                        next = Arrays.copyOf(next, 2 * depth + 1);
+                    }
+                    open[depth++] = pos;
+                    next[depth] = 0;
+                } else if (type == Item.END_TAG) {
+                    if (depth > 0) {
+                        depth--;
+                        next[depth]++;
+                        parents[pos] = depth > 0 ? open[depth - 1] : -1;
+                    }
+                } else if (isTextLike(e)) {
+                    ordinals[pos] = next[depth]++;
                 }
-                // Log.log("Scanning "+pos+": "+es.get(pos)+", after="+toString(),Log.INFO);
             }
-            // Log.log("Moved from "+_op+" to "+target+", new len="+len,Log.INFO);
         }
 
 
-        public void down() {
-            len++;
-        };
-
-
-        public void up() {
-            counters[len] = 0;
-            len--;
-        };
+        /**
+         * Get the position of the parent of an item.
+         * @param pos
+         *            position of a start tag or text-like item
+         * @return position of the start tag of the parent, or -1 for items at the top level
+         */
+        public int parent(int pos) {
+            return parents[pos];
+        }
 
 
-        public void forwardNextDown() {
-            counters[len]++;
-        };
+        /**
+         * Get the position of an item in the child list of its parent.
+         * @param pos
+         *            position of a start tag or text-like item
+         * @return number of elements and text-like items before the item in its parent
+         */
+        public int ordinal(int pos) {
+            return ordinals[pos];
+        }
 
 
-        @Override
-        public String toString() {
-            StringBuffer sb = new StringBuffer();
-            for (int i = 0; i < len; i++) {
-                sb.append('/');
-                sb.append(counters[i]);
+        /**
+         * Get the XPath of an item. Start tags and text-like items have their own path; end tags
+         * and other items have the path of the element they are in.
+         * @param pos
+         *            position of the item
+         * @return the path, e.g. <code>/0/2/1</code>
+         */
+        public String getPath(int pos) {
+            int node = ordinals[pos] >= 0 ? pos : parents[pos];
+            int[] path = new int[16];
+            int len = 0;
+            for (; node >= 0; node = parents[node]) {
+                if (len == path.length) path = Arrays.copyOf(path, 2 * len);
+                path[len++] = ordinals[node];
+            }
+            StringBuilder sb = new StringBuilder(4 * len);
+            while (len > 0) {
+                sb.append('/').append(path[--len]);
             }
-            if (lastWasText) sb.append('/').append(counters[len] - 1);
             return sb.toString();
         }
+    }
 
 
-        public static void test(List<Item> es) {
-            NumericXPath xp = new NumericXPath(es);
-            for (int i = 0; es.get(i) != null; i++) {
-                xp.moveto(i + 1);
-                System.out.println(StringUtil.format(String.valueOf(i), -5) +
-                                   StringUtil.format(xp.toString(), -20) + " " +
-                                   fc.util.Util.toPrintable(es.get(i).toString()));
-            }
-
-        }
+    private static boolean isTextLike(Item i) {
+        if (i == null) return false;
+        int type = i.getType();
+        return type == Item.TEXT || type == Item.COMMENT || type == Item.ENTITY_REF ||
+               type == Item.PI;
     }
+
 }
 // arch-tag: 6763904d-6168-434d-bf62-77d9f9913eb4
 //
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.encode;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import fc.xml.xas.SerializerTarget;
+import fc.xml.xas.XmlPullTarget;
+import fuegocore.message.encoding.XebuConstants;
+import fuegocore.message.encoding.XebuSerializer;
+
+/**
+ * Encoder that writes the diff of {@link XmlDiffEncoder} in the binary Xebu format. The diff
+ * items are written through a {@link XebuSerializer}, whose token caches replace each repeated
+ * name, namespace, attribute value and text with a one-byte reference to its first occurrence.
+ * This makes diffs with many copy operations considerably smaller than the textual diff. Strings
+ * are written in UTF-8, so any document can be encoded.
+ * <p>
+ * Diffs in this format are recognized from their first byte when read through
+ * {@link fc.xml.diff.IoUtil#getXmlParser(java.io.File)}, so they are patched like textual diffs.
+ */
+public class XebuDiffEncoder extends XmlDiffEncoder {
+
+    /**
+     * MIME type of the encoded diffs.
+     */
+    public static final String XEBU_TYPE = "application/x-ebu+data";
+
+
+    @Override
+    public SerializerTarget getSerializer(OutputStream out) throws IOException {
+        XebuSerializer ser = new XebuSerializer();
+        ser.setFeature(XebuConstants.FEATURE_ITEM_CACHING, true);
+        ser.setFeature(XebuConstants.FEATURE_CONTENT_CACHING, true);
+        // Sequence caching is left off: copy tags differ in their references, so few sequences
+        // repeat, and the cache entries make diffs about a tenth larger
+        ser.setFeature(XebuConstants.FEATURE_UTF8_STRINGS, true);
+        return new XebuTarget(ser, new DeferredFlushStream(out));
+    }
+
+    // The serializer is flushed before each reference item, which would
+    // otherwise write the diff out a few bytes at a time
+    private static class DeferredFlushStream extends BufferedOutputStream {
+
+        public DeferredFlushStream(OutputStream out) {
+            super(out);
+        }
+
+
+        @Override
+        public void flush() {
+        }
+
+
+        public void flushAll() throws IOException {
+            super.flush();
+        }
+    }
+
+    private static class XebuTarget extends XmlPullTarget {
+
+        private final DeferredFlushStream out;
+
+
+        public XebuTarget(XebuSerializer ser, DeferredFlushStream out) throws IOException {
+            super(ser, XEBU_TYPE, out, "ISO-8859-1");
+            this.out = out;
+        }
+
+
+        @Override
+        public void flush() throws IOException {
+            super.flush();
+            out.flushAll();
+        }
+    }
+
+}
@@ -17,9 +17,11 @@ import java.util.Stack;
 import fc.xml.xas.EndTag;
 import fc.xml.xas.Item;
 import fc.xml.xas.ItemSource;
+import fc.xml.xas.ItemTarget;
 import fc.xml.xas.ItemTransform;
 import fc.xml.xas.StartTag;
 import fc.xml.xas.TransformSource;
+import fc.xml.xas.TransformTarget;
 import fc.xml.xas.transform.NsPrefixFixer;
 import fc.xml.xmlr.NodeReference;
 import fc.xml.xmlr.model.StringKey;
@@ -77,6 +79,12 @@ public class XmlDiffEncoder extends RefTreeEncoder {
                                    new NsPrefixFixer());
     }
 
+
+    @Override
+    public ItemTarget getOutputTarget(ItemTarget t) {
+        return new TransformTarget(new TransformTarget(t, new NsPrefixFixer()), new RefEStoDiffES());
+    }
+
     /**
      * ReferenceEs to Diff es. The input es ids are assumed to be absolute XPaths of the form
      * /n1/n2.../nm. The XPaths in the output are either full paths, or relative to the parent.
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import fc.xml.diff.BulkDiff;
+import fc.xml.diff.Diff;
+import fc.xml.diff.encode.XmlDiffEncoder;
+import fc.xml.xas.transform.DataItems;
+
+public class BulkDiffTest extends TestCase {
+
+    private static final int FILES = 12;
+    private static final int NODES = 200;
+    private static final int EDITS = 10;
+
+    private File root;
+
+
+    @Override
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("bulk").toFile();
+    }
+
+
+    @Override
+    public void tearDown() {
+        delete(root);
+    }
+
+
+    public void testBulkDiff() throws IOException {
+        Random rnd = new Random(4711);
+        File baseDir = new File(root, "base");
+        File newDir = new File(root, "new");
+        File outDir = new File(root, "out");
+        for (int i = 0; i < FILES; i++) {
+            String path = "d" + (i % 3) + "/f" + i + ".xml";
+            // File 1 is left unchanged
+            byte[][] pair = DirTreeGenerator.randomPair(NODES, i != 1 ? EDITS : 0, rnd);
+            write(new File(baseDir, path), pair[0]);
+            write(new File(newDir, path), pair[1]);
+        }
+        new File(baseDir, "d0/f0.xml").renameTo(new File(baseDir, "gone.xml"));
+        write(new File(newDir, "d0/f0.xml"), "<r/>");
+        write(new File(baseDir, "broken.xml"), "<r></s>");
+        write(new File(newDir, "broken.xml"), "<r/>");
+        write(new File(newDir, "notes.txt"), "ignored");
+        // A budget of a few files makes the walker wait for the workers
+        BulkDiff bulk = new BulkDiff(XmlDiffEncoder.class, DataItems.class, 3, 40000);
+        List<BulkDiff.Result> results = bulk.diff(baseDir, newDir, outDir);
+        assertEquals(FILES + 2, results.size());
+        List<String> manifest = Files.readAllLines(new File(outDir, BulkDiff.MANIFEST).toPath());
+        assertEquals(results.size() + 1, manifest.size());
+        for (int i = 0; i < results.size(); i++) {
+            BulkDiff.Result r = results.get(i);
+            assertEquals(r.toString(), manifest.get(i));
+            if (i > 0) assertTrue(results.get(i - 1).getPath().compareTo(r.getPath()) < 0);
+            File difff = new File(outDir, r.getPath() + BulkDiff.DIFF_SUFFIX);
+            String status = r.getStatus();
+            if (r.getPath().equals("broken.xml")) {
+                assertEquals(BulkDiff.FAILED, status);
+            } else if (r.getPath().equals("gone.xml")) {
+                assertEquals(BulkDiff.DELETED, status);
+            } else if (r.getPath().equals("d0/f0.xml")) {
+                assertEquals(BulkDiff.ADDED, status);
+            } else if (r.getPath().equals("d1/f1.xml")) {
+                assertEquals(BulkDiff.SAME, status);
+            } else {
+                assertEquals(BulkDiff.CHANGED, status);
+            }
+            if (status.equals(BulkDiff.CHANGED)) {
+                // Diffs are the same as when computed one at a time
+                byte[] expected = diff(new File(baseDir, r.getPath()),
+                                       new File(newDir, r.getPath()));
+                assertTrue(r.getPath(), Arrays.equals(expected, Files.readAllBytes(difff
+                    .toPath())));
+                assertEquals(expected.length, r.getDiffLength());
+            } else {
+                assertFalse(difff.exists());
+            }
+        }
+        assertEquals("# same=1 changed=" + (FILES - 2) + " added=1 deleted=1 failed=1",
+                     manifest.get(manifest.size() - 1));
+    }
+
+
+    public void testLinkedDirectory() throws IOException {
+        File baseDir = new File(root, "base");
+        File newDir = new File(root, "new");
+        write(new File(baseDir, "d/f.xml"), "<r><a/></r>");
+        write(new File(newDir, "d/f.xml"), "<r><b/></r>");
+        // Links back to the tree roots, which would be walked without end if followed
+        Files.createSymbolicLink(new File(baseDir, "d/loop").toPath(), baseDir.toPath());
+        Files.createSymbolicLink(new File(newDir, "d/loop").toPath(), new File("..").toPath());
+        List<BulkDiff.Result> results = new BulkDiff(XmlDiffEncoder.class, DataItems.class, 1,
+                                                     40000).diff(baseDir, newDir,
+                                                                 new File(root, "out"));
+        assertEquals(1, results.size());
+        assertEquals("d/f.xml", results.get(0).getPath());
+        assertEquals(BulkDiff.CHANGED, results.get(0).getStatus());
+    }
+
+
+    private static byte[] diff(File basef, File newf) throws IOException {
+        ByteArrayOutputStream dout = new ByteArrayOutputStream();
+        Diff.diff(new FileInputStream(basef), new FileInputStream(newf), dout, DataItems.class,
+                  XmlDiffEncoder.class, null, true);
+        return dout.toByteArray();
+    }
+
+
+    private static void write(File f, String doc) throws IOException {
+        write(f, doc.getBytes("UTF-8"));
+    }
+
+
+    private static void write(File f, byte[] doc) throws IOException {
+        f.getParentFile().mkdirs();
+        Files.write(f.toPath(), doc);
+    }
+
+
+    private static void delete(File f) {
+        File[] files = Files.isSymbolicLink(f.toPath()) ? null : f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+}
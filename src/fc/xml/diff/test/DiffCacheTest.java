@@ -0,0 +1,69 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import fc.xml.diff.Diff;
+import fc.xml.diff.DiffCache;
+import fc.xml.diff.IoUtil;
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.xas.transform.DataItems;
+
+public class DiffCacheTest extends TestCase {
+
+    private static final int NODES = 1000;
+    private static final long[] EDITS = { 1, 21, 41, 61, 81 };
+    // Room for about one diff in memory, so that diffs are spilled
+    private static final int CACHE_SIZE = 4096;
+
+
+    public void testCachedDiffs() throws IOException {
+        Random rnd = new Random(4711);
+        byte[][] versions = DirTreeGenerator.randomVersions(NODES, rnd, EDITS);
+        byte[] base = versions[0];
+        List<byte[]> docs = Arrays.asList(versions).subList(1, versions.length);
+        File spill = File.createTempFile("spill", "");
+        spill.delete();
+        try {
+            DiffCache cache = new DiffCache(CACHE_SIZE, spill);
+            for (int round = 0; round < 2; round++) {
+                for (byte[] doc : docs) {
+                    for (Class<? extends DiffEncoder> enc : DirTreeGenerator.ENCODERS) {
+                        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                        Diff.diff(new ByteArrayInputStream(base), new ByteArrayInputStream(doc),
+                                  expected, DataItems.class, enc, null, true);
+                        ByteArrayOutputStream cached = new ByteArrayOutputStream();
+                        cache.diff(IoUtil.getXmlParser(new ByteArrayInputStream(base)),
+                                   IoUtil.getXmlParser(new ByteArrayInputStream(doc)), cached,
+                                   DataItems.class, enc, true);
+                        assertEquals(expected.toString("UTF-8"), cached.toString("UTF-8"));
+                    }
+                }
+                assertTrue(cache.getSize() <= CACHE_SIZE);
+            }
+            assertEquals(2 * docs.size(), cache.getMisses());
+            assertEquals(2 * docs.size(), cache.getHits());
+            assertTrue(spill.list().length > 0);
+        } finally {
+            for (File f : spill.listFiles())
+                f.delete();
+            spill.delete();
+        }
+    }
+
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import fc.xml.diff.Diff;
+import fc.xml.diff.DiffClient;
+import fc.xml.diff.DiffServer;
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.diff.encode.XebuDiffEncoder;
+import fc.xml.diff.encode.XmlDiffEncoder;
+import fc.xml.xas.transform.DataItems;
+
+public class DiffServerTest extends TestCase {
+
+    private static final int CLIENTS = 4;
+    private static final int JOBS = 5;
+    private static final int NODES = 300;
+    private static final int EDITS = 20;
+
+    private static volatile boolean trapped = false;
+
+
+    public void testConcurrentJobs() throws Exception {
+        runJobs(new InetSocketAddress("localhost", 0));
+    }
+
+
+    public void testUnixSocket() throws Exception {
+        File socket = File.createTempFile("diff", ".sock");
+        socket.delete();
+        runJobs(UnixDomainSocketAddress.of(socket.getPath()));
+        assertFalse(socket.exists());
+    }
+
+
+    public void testFailedJob() throws Exception {
+        DiffServer server = new DiffServer(new InetSocketAddress("localhost", 0), 1);
+        new Thread(server).start();
+        DiffClient client = new DiffClient(server.getAddress());
+        try {
+            byte[] doc = "<r><a/></r>".getBytes("UTF-8");
+            try {
+                client.diff(doc, doc, Collections.singletonMap("encoder", "nonexistent"));
+                fail("Unknown encoder accepted");
+            } catch (IOException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().indexOf("nonexistent") >= 0);
+            }
+            // The connection stays usable after a failed job
+            assertEquals(new String(diff(doc, doc, XmlDiffEncoder.class), "UTF-8"),
+                         new String(client.diff(doc, doc, null), "UTF-8"));
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+
+    public void testRejectedClasses() throws Exception {
+        DiffServer server = new DiffServer(new InetSocketAddress("localhost", 0), 1);
+        new Thread(server).start();
+        DiffClient client = new DiffClient(server.getAddress());
+        try {
+            byte[] doc = "<r><a/></r>".getBytes("UTF-8");
+            String[][] options = { { "encoder", Trap.class.getName() },
+                                  { "filter", Trap.class.getName() },
+                                  { "encoder", "java.lang.Thread" } };
+            for (String[] option : options) {
+                try {
+                    client.diff(doc, doc, Collections.singletonMap(option[0], option[1]));
+                    fail("Class " + option[1] + " accepted as " + option[0]);
+                } catch (IOException ex) {
+                    assertTrue(ex.getMessage(), ex.getMessage().indexOf("is not a") >= 0);
+                }
+            }
+            assertFalse("Rejected class initialized", trapped);
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+
+    public void testDocumentLimit() throws Exception {
+        DiffServer server = new DiffServer(new InetSocketAddress("localhost", 0), 1);
+        server.setMaxDocumentLength(100);
+        new Thread(server).start();
+        DiffClient client = new DiffClient(server.getAddress());
+        try {
+            StringBuilder sb = new StringBuilder("<r>");
+            for (int i = 0; i < 100000; i++) {
+                sb.append("<a/>");
+            }
+            byte[] large = sb.append("</r>").toString().getBytes("UTF-8");
+            byte[] doc = "<r><a/></r>".getBytes("UTF-8");
+            try {
+                client.diff(doc, large, null);
+                fail("Document over the limit accepted");
+            } catch (IOException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().indexOf("limit") >= 0);
+            }
+            // The rest of the request was skipped, so the connection stays usable
+            assertEquals(new String(diff(doc, doc, XmlDiffEncoder.class), "UTF-8"),
+                         new String(client.diff(doc, doc, null), "UTF-8"));
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+
+    public void testStalledClient() throws Exception {
+        DiffServer server = new DiffServer(new InetSocketAddress("localhost", 0), 1);
+        new Thread(server).start();
+        // Each client sends part of a request and then stops
+        byte[][] partial = { { DiffServer.DIFF }, { DiffServer.DIFF, 0, 1, 0, 7 },
+                            { DiffServer.PATCH, 0, 0, 0, 0, 0, 100, '<' } };
+        List<SocketChannel> stalled = new ArrayList<SocketChannel>();
+        DiffClient client = null;
+        try {
+            for (byte[] request : partial) {
+                SocketChannel ch = SocketChannel.open(server.getAddress());
+                stalled.add(ch);
+                ch.write(ByteBuffer.wrap(request));
+            }
+            client = new DiffClient(server.getAddress());
+            byte[] doc = "<r><a/></r>".getBytes("UTF-8");
+            assertEquals(new String(diff(doc, doc, XmlDiffEncoder.class), "UTF-8"),
+                         new String(client.diff(doc, doc, null), "UTF-8"));
+        } finally {
+            if (client != null) client.close();
+            for (SocketChannel ch : stalled) {
+                ch.close();
+            }
+            server.close();
+        }
+    }
+
+
+    private void runJobs(SocketAddress address) throws Exception {
+        final DiffServer server = new DiffServer(address, 2);
+        new Thread(server).start();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] clients = new Thread[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            final long seed = i;
+            clients[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        runClient(server.getAddress(), new Random(seed));
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        server.close();
+        if (!failures.isEmpty()) throw new Exception(failures.get(0));
+    }
+
+
+    private static void runClient(SocketAddress address, Random rnd) throws Exception {
+        DiffClient client = new DiffClient(address);
+        try {
+            for (int i = 0; i < JOBS; i++) {
+                byte[][] pair = DirTreeGenerator.randomPair(NODES, EDITS, rnd);
+                byte[] base = pair[0], doc = pair[1];
+                boolean xebu = i % 2 == 1;
+                byte[] diff = client.diff(base, doc, xebu ? Collections.singletonMap("encoder",
+                                                                                     "xebu") : null);
+                assertTrue(Arrays.equals(diff(base, doc, xebu ? XebuDiffEncoder.class
+                    : XmlDiffEncoder.class), diff));
+                byte[] patched = client.patch(base, diff);
+                assertFalse(Diff.diff(new ByteArrayInputStream(doc),
+                                      new ByteArrayInputStream(patched), null, DataItems.class,
+                                      XmlDiffEncoder.class, null, false));
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+
+    private static byte[] diff(byte[] base, byte[] doc, Class<? extends DiffEncoder> encoder)
+            throws IOException {
+        ByteArrayOutputStream dout = new ByteArrayOutputStream();
+        Diff.diff(new ByteArrayInputStream(base), new ByteArrayInputStream(doc), dout,
+                  DataItems.class, encoder, null, true);
+        return dout.toByteArray();
+    }
+
+    // A class that a server must not initialize when it is named as an encoder or filter
+    public static class Trap {
+
+        static {
+            trapped = true;
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import junit.framework.TestCase;
+import fc.xml.diff.Diff;
+import fc.xml.diff.DiffStats;
+import fc.xml.diff.Patch;
+import fc.xml.diff.encode.RefTreeEncoder;
+import fc.xml.xas.transform.DataItems;
+
+public class DiffStatsTest extends TestCase {
+
+    private boolean wasEnabled;
+
+
+    @Override
+    public void setUp() {
+        wasEnabled = DiffStats.isEnabled();
+        DiffStats.setEnabled(true);
+    }
+
+
+    @Override
+    public void tearDown() {
+        DiffStats.setEnabled(wasEnabled);
+    }
+
+
+    public void testDiffAndPatch() throws Exception {
+        Random rnd = new Random(4711);
+        StringBuilder base = new StringBuilder("<r>"), doc = new StringBuilder("<r>");
+        for (int i = 0; i < 500; i++) {
+            String e = "<e a='" + rnd.nextInt(50) + "'>" + i + "</e>";
+            base.append(e);
+            if (i % 97 != 0) doc.append(e);
+        }
+        byte[] baseb = base.append("</r>").toString().getBytes("UTF-8");
+        byte[] docb = doc.append("</r>").toString().getBytes("UTF-8");
+        long diffsBefore = DiffStats.getTotals().getCount(DiffStats.DIFFS);
+        ByteArrayOutputStream dout = new ByteArrayOutputStream();
+        assertTrue(Diff.diff(new ByteArrayInputStream(baseb), new ByteArrayInputStream(docb),
+                             dout, DataItems.class, RefTreeEncoder.class, null, false));
+        DiffStats stats = DiffStats.last();
+        assertNotNull(stats);
+        assertEquals(1, stats.getCount(DiffStats.DIFFS));
+        assertEquals(baseb.length, stats.getCount(DiffStats.BASE_BYTES));
+        assertEquals(docb.length, stats.getCount(DiffStats.DOC_BYTES));
+        assertEquals(dout.size(), stats.getCount(DiffStats.OUTPUT_BYTES));
+        assertTrue(stats.getCount(DiffStats.DOC_ITEMS) > 1000);
+        assertTrue(stats.getCount(DiffStats.SEGMENTS) > 1);
+        for (String phase : new String[] { DiffStats.PARSE, DiffStats.CANONICALIZE,
+                DiffStats.pass(32), DiffStats.pass(1), DiffStats.SIMPLIFY, DiffStats.ENCODE,
+                DiffStats.WRITE }) {
+            assertTrue(phase, stats.getPhaseNanos().containsKey(phase));
+        }
+        assertTrue(stats.getCount(DiffStats.pass(1) + "." + DiffStats.SEGMENTS) >=
+                   stats.getCount(DiffStats.SEGMENTS));
+        assertEquals(diffsBefore + 1, DiffStats.getTotals().getCount(DiffStats.DIFFS));
+
+        ByteArrayOutputStream pout = new ByteArrayOutputStream();
+        Patch.patch(new ByteArrayInputStream(baseb), dout.toByteArray(), pout);
+        stats = DiffStats.last();
+        assertEquals(1, stats.getCount(DiffStats.PATCHES));
+        assertEquals(dout.size(), stats.getCount(DiffStats.DIFF_BYTES));
+        assertEquals(pout.size(), stats.getCount(DiffStats.OUTPUT_BYTES));
+        assertTrue(stats.getPhaseNanos().containsKey(DiffStats.PATCH));
+
+        TabularData counters = (TabularData) ManagementFactory.getPlatformMBeanServer()
+            .getAttribute(new ObjectName(DiffStats.OBJECT_NAME), "Counters");
+        assertNotNull(counters.get(new Object[] { DiffStats.PATCHES }));
+    }
+
+
+    public void testDisabled() throws Exception {
+        DiffStats.setEnabled(false);
+        DiffStats before = DiffStats.last();
+        byte[] doc = "<r><a/></r>".getBytes("UTF-8");
+        Diff.diff(new ByteArrayInputStream(doc), new ByteArrayInputStream(doc), null,
+                  DataItems.class, RefTreeEncoder.class, null, false);
+        assertSame(before, DiffStats.last());
+    }
+
+}
@@ -10,12 +10,16 @@
 // $Id: DirTreeGenerator.java,v 1.3 2006/02/27 09:12:54 ctl Exp $
 package fc.xml.diff.test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
@@ -25,13 +29,18 @@ import java.util.TreeSet;
 import fc.util.Util;
 import fc.util.log.Log;
 import fc.util.log.LogLevels;
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.diff.encode.RefTreeEncoder;
+import fc.xml.diff.encode.XmlDiffEncoder;
 import fc.xml.xas.AttributeNode;
 import fc.xml.xas.Item;
 import fc.xml.xas.ItemTarget;
 import fc.xml.xas.Qname;
 import fc.xml.xas.StartTag;
+import fc.xml.xas.XmlOutput;
 import fc.xml.xas.typing.TypedItem;
 import fc.xml.xmlr.AbstractMutableRefTree;
+import fc.xml.xmlr.ChangeTree;
 import fc.xml.xmlr.Key;
 import fc.xml.xmlr.NodeNotFoundException;
 import fc.xml.xmlr.RefTree;
@@ -44,6 +53,7 @@ import fc.xml.xmlr.model.StringKey;
 import fc.xml.xmlr.test.XasTests.AbstractItemTransform;
 import fc.xml.xmlr.xas.PeekableItemSource;
 import fc.xml.xmlr.xas.UniformXasCodec;
+import fc.xml.xmlr.xas.XasSerialization;
 
 /*
  * Generator for directory trees. This code is a light refactoring of the dirtree testing generator
@@ -61,6 +71,18 @@ public class DirTreeGenerator {
     public static long idGen = 0L;
     public static final Key ROOT_ID = StringKey.createKey(idGen);
 
+    // Shape of the trees and mix of edits that the diff tests use
+    public static final long DIR_SIZE = 25;
+    public static final double DIR_PROB = .1;
+    public static final double VARIANCE = 5.0;
+    public static final double DIR_VARIANCE = 2.0;
+    public static final String EDIT_PDF = "dimu";
+    public static final double DELETE_TREE_PROB = .05;
+
+    // Encoders that the diff tests check patches with
+    public static final List<Class<? extends DiffEncoder>> ENCODERS = Collections
+        .unmodifiableList(Arrays.asList(XmlDiffEncoder.class, RefTreeEncoder.class));
+
 
     public DirTreeGenerator() {
     }
@@ -274,6 +296,47 @@ public class DirTreeGenerator {
     }
 
 
+    /**
+     * Generates a random tree of the test shape and edited versions of it. Each version is the
+     * base with its own number of edits applied.
+     * 
+     * @return the base followed by the versions, serialized as XML
+     */
+    public static byte[][] randomVersions(long nodes, Random rnd, long... edits)
+            throws IOException {
+        MutableRefTree baset = randomDirTree(nodes, DIR_SIZE, DIR_PROB, VARIANCE, DIR_VARIANCE,
+                                             rnd);
+        byte[][] docs = new byte[edits.length + 1][];
+        docs[0] = serialize(baset);
+        ChangeTree dt = new ChangeTree(baset);
+        for (int i = 0; i < edits.length; i++) {
+            permutateTree(dt, edits[i], EDIT_PDF, DELETE_TREE_PROB, rnd);
+            docs[i + 1] = serialize(dt);
+            dt.reset();
+        }
+        return docs;
+    }
+
+
+    /**
+     * Generates a random tree and an edited version of it.
+     * 
+     * @return the base and the edited document, serialized as XML
+     */
+    public static byte[][] randomPair(long nodes, long edits, Random rnd) throws IOException {
+        return randomVersions(nodes, rnd, edits);
+    }
+
+
+    public static byte[] serialize(RefTree t) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlOutput xo = new XmlOutput(out, "UTF-8");
+        XasSerialization.writeTree(t, xo, new DirTreeModel());
+        xo.flush();
+        return out.toByteArray();
+    }
+
+
     public static String fileName(String id, Random rnd) {
         final String[] fnames = { "foo", "bar", "baz", "quup", "ding", "dong", "jabber", "wocky",
                                  "armadillo", "gnu", "gnat" };
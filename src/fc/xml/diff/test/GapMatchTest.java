@@ -0,0 +1,145 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import fc.xml.diff.Diff;
+import fc.xml.diff.GlMatcher;
+import fc.xml.diff.HashAlgorithm;
+import fc.xml.diff.Segment;
+import fc.xml.diff.encode.XmlDiffEncoder;
+import fc.xml.xas.transform.DataItems;
+
+public class GapMatchTest extends TestCase {
+
+    private static final int[] SIZES = { 32, 16, 8, 4, 2, 1 };
+
+    private static final int NODES = 3000;
+    private static final int EDITS = 100;
+
+    private static final HashAlgorithm<String> STRING_HASH = new HashAlgorithm<String>() {
+
+        public long quickHash(String s) {
+            long h = s.hashCode() * 0x9e3779b97f4a7c15L;
+            return h ^ (h >>> 29);
+        }
+
+
+        public void secureDigest(List<String> l, MessageDigest md) {
+            for (String s : l)
+                md.update(s.getBytes());
+        }
+    };
+
+
+    public void testThreadCounts() throws Exception {
+        Random rnd = new Random(4711);
+        for (int round = 0; round < 5; round++) {
+            List<String> base = words(20000, 400, rnd);
+            List<String> doc = edit(base, 60, rnd);
+            String expected = null;
+            for (int threads : new int[] { 1, 2, 8, 8, 8 }) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    List<Segment<String>> ml = new GlMatcher<String>(STRING_HASH, pool)
+                        .match(base, doc, SIZES);
+                    assertEquals("Match list does not rebuild the document", doc,
+                                 apply(base, ml));
+                    if (expected == null) {
+                        expected = ml.toString();
+                    } else {
+                        assertEquals("Match list differs with " + threads + " threads", expected,
+                                     ml.toString());
+                    }
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }
+    }
+
+
+    public void testParallelDiff() throws Exception {
+        Random rnd = new Random(42);
+        byte[][] pair = DirTreeGenerator.randomPair(NODES, EDITS, rnd);
+        byte[] base = pair[0], doc = pair[1];
+        try {
+            String expected = null;
+            for (int threads : new int[] { 2, 4, 8 }) {
+                Diff.setMatchThreads(threads);
+                ByteArrayOutputStream dout = new ByteArrayOutputStream();
+                Diff.diff(new ByteArrayInputStream(base), new ByteArrayInputStream(doc), dout,
+                          DataItems.class, XmlDiffEncoder.class, null, true);
+                if (expected == null) {
+                    expected = dout.toString("UTF-8");
+                } else {
+                    assertEquals("Diff differs with " + threads + " threads", expected,
+                                 dout.toString("UTF-8"));
+                }
+            }
+        } finally {
+            Diff.setMatchThreads(1);
+        }
+    }
+
+
+    private static List<String> words(int n, int alphabet, Random rnd) {
+        List<String> l = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++)
+            l.add("w" + rnd.nextInt(alphabet));
+        return l;
+    }
+
+
+    // Deletes, inserts and moves random ranges
+    private static List<String> edit(List<String> base, int edits, Random rnd) {
+        List<String> doc = new ArrayList<String>(base);
+        for (int i = 0; i < edits; i++) {
+            int len = 1 + rnd.nextInt(40);
+            int pos = rnd.nextInt(doc.size() - len);
+            switch (rnd.nextInt(3)) {
+                case 0:
+                    doc.subList(pos, pos + len).clear();
+                    break;
+                case 1:
+                    doc.addAll(pos, words(len, 1000000, rnd));
+                    break;
+                default:
+                    List<String> moved = new ArrayList<String>(doc.subList(pos, pos + len));
+                    doc.subList(pos, pos + len).clear();
+                    doc.addAll(rnd.nextInt(doc.size()), moved);
+                    break;
+            }
+        }
+        return doc;
+    }
+
+
+    private static <E> List<E> apply(List<E> base, List<Segment<E>> ml) {
+        List<E> result = new ArrayList<E>();
+        for (Segment<E> s : ml) {
+            if (s.getOp() == Segment.Operation.COPY) {
+                result.addAll(base.subList(s.getOffset(), s.getOffset() + s.getLength()));
+            } else {
+                result.addAll(s.getInsert());
+            }
+        }
+        return result;
+    }
+
+}
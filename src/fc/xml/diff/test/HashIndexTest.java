@@ -0,0 +1,208 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import fc.xml.diff.GlMatcher;
+import fc.xml.diff.HashAlgorithm;
+import fc.xml.diff.HashIndex;
+import fc.xml.diff.Segment;
+
+/**
+ * Tests of the base window index and region lookup of {@link GlMatcher}.
+ */
+public class HashIndexTest extends TestCase {
+
+    private static final int[] SIZES = { 32, 16, 8, 4, 2, 1 };
+
+    private static final HashAlgorithm<String> STRING_HASH = new HashAlgorithm<String>() {
+
+        public long quickHash(String s) {
+            long h = s.hashCode() * 0x9e3779b97f4a7c15L;
+            return h ^ (h >>> 29);
+        }
+
+
+        public void secureDigest(List<String> l, MessageDigest md) {
+            for (String s : l)
+                md.update(s.getBytes());
+        }
+    };
+
+
+    public void testHashCollision() {
+        HashIndex hi = new HashIndex(8);
+        long hash = 0x123456789abcdefL;
+        // Same slot, different hash
+        long other = hash ^ 0xff00000000L ^ 0xff;
+        hi.add(hash, 10);
+        hi.add(other, 20);
+        hi.add(hash, 30);
+        hi.add(hash, 40);
+        assertEquals(Arrays.asList(40, 30, 10), positions(hi, hash));
+        assertEquals(Arrays.asList(20), positions(hi, other));
+        assertEquals(-1, hi.first(hash + 1));
+        assertEquals(4, hi.size());
+    }
+
+
+    public void testFullTable() {
+        HashIndex hi = new HashIndex(100);
+        for (int i = 0; i < 100; i++)
+            hi.add(i % 7 == 0 ? 7 : i * 0x100000001L, i);
+        for (int i = 1; i < 100; i++) {
+            if (i % 7 != 0) assertEquals(Arrays.asList(i), positions(hi, i * 0x100000001L));
+        }
+        assertEquals(15, positions(hi, 7).size());
+    }
+
+
+    // A Thue-Morse sequence of length 2^11 and its complement have the same polynomial hash
+    // modulo 2^64 for any odd base, whatever the hashes of the two items are
+    public void testWindowHashCollision() {
+        List<String> base = new ArrayList<String>();
+        List<String> doc = new ArrayList<String>();
+        for (int i = 0; i < 2048; i++) {
+            boolean odd = Integer.bitCount(i) % 2 != 0;
+            base.add(odd ? "a" : "b");
+            doc.add(odd ? "b" : "a");
+        }
+        GlMatcher<String> m = new GlMatcher<String>(STRING_HASH);
+        List<Segment<String>> ml = m.match(base, doc, new int[] { 2048 });
+        assertEquals(1, m.falseHashMatches);
+        assertEquals(1, ml.size());
+        assertEquals(Segment.Operation.INSERT, ml.get(0).getOp());
+        assertEquals(doc, apply(base, ml));
+    }
+
+
+    public void testRegionOf() {
+        List<Segment<String>> regions = regions(0, 3, 7, 10, 12, 13);
+        assertEquals(0, GlMatcher.regionOf(regions, 0));
+        assertEquals(0, GlMatcher.regionOf(regions, 2));
+        assertEquals(-1, GlMatcher.regionOf(regions, 3));
+        assertEquals(-1, GlMatcher.regionOf(regions, 6));
+        assertEquals(1, GlMatcher.regionOf(regions, 7));
+        assertEquals(1, GlMatcher.regionOf(regions, 9));
+        assertEquals(-1, GlMatcher.regionOf(regions, 10));
+        assertEquals(2, GlMatcher.regionOf(regions, 12));
+        assertEquals(-1, GlMatcher.regionOf(regions, 13));
+        assertEquals(-1, GlMatcher.regionOf(new ArrayList<Segment<String>>(), 0));
+    }
+
+
+    public void testButterflyRank() {
+        int max = Integer.MAX_VALUE;
+        assertEquals(0, GlMatcher.bflyRank(5, 5, 20, max));
+        assertEquals(1, GlMatcher.bflyRank(6, 5, 20, max));
+        assertEquals(2, GlMatcher.bflyRank(4, 5, 20, max));
+        assertEquals(3, GlMatcher.bflyRank(7, 5, 20, max));
+        assertEquals(4, GlMatcher.bflyRank(3, 5, 20, max));
+        // Wraps around at both ends
+        assertEquals(2, GlMatcher.bflyRank(19, 0, 20, max));
+        assertEquals(1, GlMatcher.bflyRank(0, 19, 20, max));
+        // Scan gives up at maxbfly to the right and maxbfly - 1 to the left
+        assertEquals(3, GlMatcher.bflyRank(7, 5, 20, 2));
+        assertEquals(Integer.MAX_VALUE, GlMatcher.bflyRank(8, 5, 20, 2));
+        assertEquals(2, GlMatcher.bflyRank(4, 5, 20, 2));
+        assertEquals(Integer.MAX_VALUE, GlMatcher.bflyRank(3, 5, 20, 2));
+    }
+
+
+    // The first copy splits the base region, and leaves entries for windows overlapping it
+    public void testStaleEntries() {
+        List<String> base = split("a b c d e f g h i j");
+        List<String> doc = split("d e f g c d e f g h");
+        List<Segment<String>> ml = new GlMatcher<String>(STRING_HASH).match(base, doc,
+                                                                           new int[] { 4, 1 });
+        assertEquals(doc, apply(base, ml));
+        assertDisjoint(ml);
+        assertEquals("[<0: COPY,3,4>, <4: COPY,2,1>, <5: INSERT,5,4,[d, e, f, g]>, <9: COPY,7,1>]",
+                     ml.toString());
+    }
+
+
+    // Every window of the base has one of two hashes, so chains are long
+    public void testRepetitive() {
+        List<String> base = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++)
+            base.add(i % 2 == 0 ? "a" : "b");
+        List<String> doc = new ArrayList<String>(base);
+        doc.subList(1000, 1003).clear();
+        doc.add(2000, "c");
+        doc.addAll(3000, base.subList(0, 101));
+        doc.subList(4000, 4100).clear();
+        List<Segment<String>> ml = new GlMatcher<String>(STRING_HASH).match(base, doc, SIZES);
+        assertEquals(doc, apply(base, ml));
+        assertDisjoint(ml);
+        int copied = 0;
+        for (Segment<String> s : ml) {
+            if (s.getOp() == Segment.Operation.COPY) copied += s.getLength();
+        }
+        assertTrue("Only " + copied + " items copied", copied >= doc.size() - 101);
+    }
+
+
+    private static List<Integer> positions(HashIndex hi, long hash) {
+        List<Integer> l = new ArrayList<Integer>();
+        for (int e = hi.first(hash); e != -1; e = hi.next(e))
+            l.add(hi.position(e));
+        return l;
+    }
+
+
+    private static List<Segment<String>> regions(int... bounds) {
+        List<Segment<String>> l = new ArrayList<Segment<String>>();
+        for (int i = 0; i < bounds.length; i += 2) {
+            List<String> items = new ArrayList<String>();
+            for (int j = bounds[i]; j < bounds[i + 1]; j++)
+                items.add("x");
+            l.add(Segment.createIns(bounds[i], items, bounds[i]));
+        }
+        return l;
+    }
+
+
+    private static List<String> split(String s) {
+        return Arrays.asList(s.split(" "));
+    }
+
+
+    private static <E> List<E> apply(List<E> base, List<Segment<E>> ml) {
+        List<E> result = new ArrayList<E>();
+        for (Segment<E> s : ml) {
+            if (s.getOp() == Segment.Operation.COPY) {
+                result.addAll(base.subList(s.getOffset(), s.getOffset() + s.getLength()));
+            } else {
+                result.addAll(s.getInsert());
+            }
+        }
+        return result;
+    }
+
+
+    private static <E> void assertDisjoint(List<Segment<E>> ml) {
+        List<int[]> copies = new ArrayList<int[]>();
+        for (Segment<E> s : ml) {
+            if (s.getOp() != Segment.Operation.COPY) continue;
+            for (int[] c : copies) {
+                assertTrue("Base copied twice: " + ml, s.getOffset() + s.getLength() <= c[0] ||
+                                                       c[0] + c[1] <= s.getOffset());
+            }
+            copies.add(new int[] { s.getOffset(), s.getLength() });
+        }
+    }
+
+}
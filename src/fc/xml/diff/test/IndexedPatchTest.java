@@ -0,0 +1,228 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import fc.xml.diff.Diff;
+import fc.xml.diff.Patch;
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.xas.Qname;
+import fc.xml.xas.StartTag;
+import fc.xml.xas.XmlOutput;
+import fc.xml.xas.index.DeweyKey;
+import fc.xml.xas.index.Index;
+import fc.xml.xas.index.LazyFragment;
+import fc.xml.xas.index.SeekableKXmlSource;
+import fc.xml.xas.transform.DataItems;
+
+public class IndexedPatchTest extends TestCase {
+
+    // Nested default namespaces, empty elements, comments, whitespace and
+    // entities all affect how the base is numbered and read after a seek
+    private static final String BASE = "<?xml version='1.0' encoding='UTF-8'?>\n"
+                                       + "<!-- base -->\n<html xmlns='urn:a'>\n"
+                                       + "  <head><title>T &amp; t</title></head>\n"
+                                       + "  <body>one<br/>two<!-- c -->three\n"
+                                       + "    <svg xmlns='urn:b' xmlns:a='urn:a'><g/><a:p>x</a:p>"
+                                       + "<g><path d='1'/><path d='2'/></g></svg>\n"
+                                       + "    <p>para &lt; graph</p><p>last</p>\n" + "  </body>\n"
+                                       + "</html>\n";
+
+    private static final String NEW = "<?xml version='1.0' encoding='UTF-8'?>\n"
+                                      + "<html xmlns='urn:a'>\n"
+                                      + "  <body>one<br/>two<!-- c -->three\n"
+                                      + "    <p>last</p><p>new</p>"
+                                      + "<svg xmlns='urn:b' xmlns:a='urn:a'><g><path d='2'/>"
+                                      + "<path d='1'/></g><a:p>x</a:p><g/></svg>\n"
+                                      + "    <p>para &lt; graph</p>\n  </body>\n"
+                                      + "  <head><title>T &amp; t</title></head>\n" + "</html>\n";
+
+
+    public void testSameAsStreamingPatch() throws IOException {
+        File basef = write("base", BASE);
+        File newf = write("new", NEW);
+        File difff = File.createTempFile("diff", ".xml");
+        File indexf = File.createTempFile("base", ".idx");
+        try {
+            for (Class<? extends DiffEncoder> enc : DirTreeGenerator.ENCODERS) {
+                FileOutputStream dout = new FileOutputStream(difff);
+                try {
+                    Diff.diff(new FileInputStream(basef), new FileInputStream(newf), dout,
+                              DataItems.class, enc, null, true);
+                } finally {
+                    dout.close();
+                }
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                Patch.patch(basef, difff, stream);
+                // Builds the index on the first round, loads it on the second
+                indexf.delete();
+                for (int round = 0; round < 2; round++) {
+                    ByteArrayOutputStream indexed = new ByteArrayOutputStream();
+                    Patch.patchIndexed(basef, difff, indexf, indexed);
+                    assertEquals("Patch with " + enc.getName() + ", round " + round,
+                                 stream.toString("UTF-8"), indexed.toString("UTF-8"));
+                }
+            }
+        } finally {
+            basef.delete();
+            newf.delete();
+            difff.delete();
+            indexf.delete();
+        }
+    }
+
+
+    public void testMappedIndex() throws IOException {
+        File basef = write("base", BASE);
+        File indexf = File.createTempFile("base", ".idx");
+        SeekableKXmlSource source = new SeekableKXmlSource(basef.getPath());
+        try {
+            Index built = Index.buildDataElement(source);
+            built.save(indexf, basef);
+            Index mapped = Index.open(indexf, basef, source);
+            assertNotNull(mapped);
+            assertEquals(built.size(), mapped.size());
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            built.save(bout);
+            Index loaded = Index.load(new ByteArrayInputStream(bout.toByteArray()), source);
+            assertEquals(built.size(), compare(built, mapped, DeweyKey.root()));
+            assertEquals(built.size(), compare(built, loaded, DeweyKey.root()));
+            assertNull(mapped.find(DeweyKey.root().child(7)));
+            basef.setLastModified(basef.lastModified() - 10000);
+            assertNull("Stale index opened", Index.open(indexf, basef, source));
+        } finally {
+            source.close();
+            basef.delete();
+            indexf.delete();
+        }
+    }
+
+
+    public void testLongOffsets() throws IOException {
+        long big = 3L << 31;
+        StartTag context = new StartTag(new Qname("urn:a", "r"));
+        context.addPrefix("urn:a", "a");
+        Index index = new Index(null);
+        index.insert(DeweyKey.root(), -1, 2 * big, null);
+        DeweyKey k = DeweyKey.topLevel(0);
+        for (int i = 0; i < 1000; i++) {
+            index.insert(k.child(i * 37), big + i, big + i + 1, context);
+        }
+        index.insert(k.child(0), big, big + 5, context);
+        assertEquals(1001, index.size());
+        assertEquals(2 * big + 1, index.find(DeweyKey.root()).getLength());
+        assertEquals(big, index.find(k.child(0)).getOffset());
+        assertEquals(5, index.find(k.child(0)).getLength());
+        assertEquals(big + 999, index.find(k.child(999 * 37)).getOffset());
+        assertNull(index.find(k.child(1)));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        index.save(bout);
+        Index loaded = Index.load(new ByteArrayInputStream(bout.toByteArray()), null);
+        assertEquals(2 * big + 1, loaded.find(DeweyKey.root()).getLength());
+        assertEquals(big + 500, loaded.find(k.child(500 * 37)).getEnd() - 1);
+        assertEquals("a", loaded.find(k.child(3 * 37)).getContext().getPrefix());
+    }
+
+
+    public void testRawFragmentCopy() throws IOException {
+        String b = "<b t='\u00e4'>\u00e4 \u20ac <c/>y</b>";
+        File basef = write("base", "<r><a>x</a>" + b + "</r>");
+        File outf = File.createTempFile("out", ".xml");
+        SeekableKXmlSource source = new SeekableKXmlSource(basef.getPath());
+        try {
+            Index index = Index.buildDataElement(source);
+            DeweyKey k = DeweyKey.topLevel(0).child(1);
+            Index.Entry e = index.find(k);
+            // Same encoding to a file: transferred between the channels
+            FileOutputStream fout = new FileOutputStream(outf);
+            try {
+                XmlOutput out = new XmlOutput(fout, "UTF-8", false, 0);
+                source.setPosition(e.getOffset(), e.getContext());
+                new LazyFragment(index, k, source.next()).appendTo(out);
+                out.flush();
+            } finally {
+                fout.close();
+            }
+            assertEquals(b, read(outf, "UTF-8"));
+            // Different encoding: transcoded, with a reference for what Latin-1 lacks
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            XmlOutput out = new XmlOutput(bout, "ISO-8859-1", false, 0);
+            source.setPosition(e.getOffset(), e.getContext());
+            new LazyFragment(index, k, source.next()).appendTo(out);
+            out.flush();
+            assertEquals("<b t='\u00e4'>\u00e4 &#8364; <c/>y</b>", bout.toString("ISO-8859-1"));
+        } finally {
+            source.close();
+            basef.delete();
+            outf.delete();
+        }
+    }
+
+
+    // Compare the entries under a key that is in both indexes, returning their count
+    private static int compare(Index expected, Index actual, DeweyKey key) {
+        Index.Entry e = expected.find(key);
+        Index.Entry a = actual.find(key);
+        assertNotNull(key.toString(), a);
+        assertEquals(key.toString(), e.getOffset(), a.getOffset());
+        assertEquals(key.toString(), e.getLength(), a.getLength());
+        if (e.getContext() == null) {
+            assertNull(key.toString(), a.getContext());
+        } else {
+            assertEquals(key.toString(), e.getContext().getName(), a.getContext().getName());
+            assertEquals(key.toString(), e.getContext().getPrefix(), a.getContext().getPrefix());
+        }
+        int count = 1;
+        // Text nodes are not in an element index, so skip over gaps in the children
+        for (int i = 0; i < 16; i++) {
+            if (expected.find(key.child(i)) != null) {
+                count += compare(expected, actual, key.child(i));
+            } else {
+                assertNull(actual.find(key.child(i)));
+            }
+        }
+        return count;
+    }
+
+
+    private static String read(File f, String encoding) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(f);
+        try {
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) > 0;) {
+                bout.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return bout.toString(encoding);
+    }
+
+
+    private static File write(String prefix, String content) throws IOException {
+        File f = File.createTempFile(prefix, ".xml");
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import fc.xml.diff.Diff;
+import fc.xml.diff.IoUtil;
+import fc.xml.diff.Merge;
+import fc.xml.diff.PreparedBase;
+import fc.xml.diff.encode.XmlDiffEncoder;
+import fc.xml.xas.ItemSource;
+import fc.xml.xas.transform.DataItems;
+
+public class MergeTest extends TestCase {
+
+    private static final String BASE = "<r><a x='1'>t</a><b>u</b><h>w</h><c><d/></c></r>";
+
+    private static final int ROUNDS = 10;
+    private static final int NODES = 300;
+    private static final int EDITS = 10;
+
+
+    public void testCleanMerge() throws IOException {
+        // A changes an attribute and moves c first, B changes text and inserts an element
+        String a = "<r><c><d/></c><a x='2'>t</a><b>u</b><h>w</h></r>";
+        String b = "<r><a x='1'>t</a><f/><b>v</b><h>w</h><c><d/></c></r>";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Merge.Conflict> conflicts = merge(BASE, a, b, out);
+        assertTrue(conflicts.toString(), conflicts.isEmpty());
+        assertSame("<r><c><d/></c><a x='2'>t</a><f/><b>v</b><h>w</h></r>", out.toByteArray());
+    }
+
+
+    public void testConflict() throws IOException {
+        // Both change the same text, and B renames an element whose attribute A changes
+        String a = "<r><a x='2'>t</a><b>A</b><h>w</h><c><d/></c></r>";
+        String b = "<r><g x='1'>t</g><b>B</b><h>w</h><c><d/></c></r>";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Merge.Conflict> conflicts = merge(BASE, a, b, out);
+        assertEquals(conflicts.toString(), 2, conflicts.size());
+        // A wins conflicts, and the end tag from B is renamed to match
+        assertSame(a, out.toByteArray());
+    }
+
+
+    public void testGeneratedTrees() throws IOException {
+        Random rnd = new Random(4711);
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[][] versions = DirTreeGenerator.randomVersions(NODES, rnd, EDITS, EDITS);
+            String base = new String(versions[0], "UTF-8");
+            String a = new String(versions[1], "UTF-8");
+            String b = new String(versions[2], "UTF-8");
+            // A change merged with no change, or with itself, is the change
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(merge(base, a, base, out).isEmpty());
+            assertSame(a, out.toByteArray());
+            out.reset();
+            assertTrue(merge(base, base, b, out).isEmpty());
+            assertSame(b, out.toByteArray());
+            out.reset();
+            assertTrue(merge(base, a, a, out).isEmpty());
+            assertSame(a, out.toByteArray());
+            // Any merge is well-formed, and clean merges are symmetric
+            out.reset();
+            List<Merge.Conflict> conflicts = merge(base, a, b, out);
+            byte[] ab = out.toByteArray();
+            IoUtil.makeEventList(source(ab), null, null, null);
+            if (conflicts.isEmpty()) {
+                out.reset();
+                assertTrue(merge(base, b, a, out).isEmpty());
+                assertSame(new String(ab, "UTF-8"), out.toByteArray());
+            }
+            // Renames far apart merge cleanly into both renames
+            int first = base.indexOf(" name=\"") + 7;
+            int second = base.lastIndexOf(" name=\"") + 7;
+            String ra = base.substring(0, first) + "A-" + base.substring(first);
+            String rb = base.substring(0, second) + "B-" + base.substring(second);
+            out.reset();
+            assertTrue(merge(base, ra, rb, out).isEmpty());
+            assertSame(base.substring(0, first) + "A-" + base.substring(first, second) + "B-" +
+                       base.substring(second), out.toByteArray());
+        }
+    }
+
+
+    private static List<Merge.Conflict> merge(String base, String a, String b,
+                                              ByteArrayOutputStream out) throws IOException {
+        Merge merge = new Merge(new PreparedBase(source(base.getBytes("UTF-8")),
+                                                 DataItems.class));
+        return merge.merge(source(a.getBytes("UTF-8")), source(b.getBytes("UTF-8")), out);
+    }
+
+
+    // Asserts that a document has the same canonical items as the expected one
+    private static void assertSame(String expected, byte[] doc) throws IOException {
+        assertFalse(new String(doc, "UTF-8"),
+                    Diff.diff(new ByteArrayInputStream(expected.getBytes("UTF-8")),
+                              new ByteArrayInputStream(doc), null, DataItems.class,
+                              XmlDiffEncoder.class, null, false));
+    }
+
+
+    private static ItemSource source(byte[] doc) throws IOException {
+        return IoUtil.getXmlParser(new ByteArrayInputStream(doc));
+    }
+
+}
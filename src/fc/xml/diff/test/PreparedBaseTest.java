@@ -0,0 +1,76 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import fc.xml.diff.Diff;
+import fc.xml.diff.IoUtil;
+import fc.xml.diff.PreparedBase;
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.xas.ItemSource;
+import fc.xml.xas.transform.DataItems;
+
+public class PreparedBaseTest extends TestCase {
+
+    private static final int NODES = 5000;
+    private static final long[] EDITS = { 1, 21, 41, 61, 81, 101, 121, 141, 161, 181 };
+
+
+    public void testConcurrentDiffs() throws Exception {
+        Random rnd = new Random(4711);
+        byte[][] versions = DirTreeGenerator.randomVersions(NODES, rnd, EDITS);
+        final byte[] base = versions[0];
+        List<byte[]> docs = Arrays.asList(versions).subList(1, versions.length);
+        ItemSource basepa = IoUtil.getXmlParser(new ByteArrayInputStream(base));
+        final PreparedBase pb = new PreparedBase(basepa, DataItems.class);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            for (final byte[] doc : docs) {
+                for (final Class<? extends DiffEncoder> enc : DirTreeGenerator.ENCODERS) {
+                    results.add(executor.submit(new Callable<byte[]>() {
+
+                        public byte[] call() throws IOException {
+                            ByteArrayOutputStream dout = new ByteArrayOutputStream();
+                            pb.diff(IoUtil.getXmlParser(new ByteArrayInputStream(doc)), dout,
+                                    enc, true);
+                            return dout.toByteArray();
+                        }
+                    }));
+                }
+            }
+            int i = 0;
+            for (byte[] doc : docs) {
+                for (Class<? extends DiffEncoder> enc : DirTreeGenerator.ENCODERS) {
+                    ByteArrayOutputStream dout = new ByteArrayOutputStream();
+                    Diff.diff(new ByteArrayInputStream(base), new ByteArrayInputStream(doc), dout,
+                              DataItems.class, enc, null, true);
+                    assertEquals("Diff " + i + " with " + enc.getName(), dout.toString("UTF-8"),
+                                 new String(results.get(i++).get(), "UTF-8"));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
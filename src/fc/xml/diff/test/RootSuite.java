@@ -43,6 +43,19 @@ public class RootSuite extends TestCase {
         tests.addTestSuite(UseCases.class);
         tests.addTestSuite(RootSuite.class);
         tests.addTestSuite(SynteticDirTree.class);
+        tests.addTestSuite(WindowedDiffTest.class);
+        tests.addTestSuite(PreparedBaseTest.class);
+        tests.addTestSuite(StreamingPatchTest.class);
+        tests.addTestSuite(IndexedPatchTest.class);
+        tests.addTestSuite(DiffCacheTest.class);
+        tests.addTestSuite(XebuDiffTest.class);
+        tests.addTestSuite(DiffServerTest.class);
+        tests.addTestSuite(BulkDiffTest.class);
+        tests.addTestSuite(DiffStatsTest.class);
+        tests.addTestSuite(MergeTest.class);
+        tests.addTestSuite(GapMatchTest.class);
+        tests.addTestSuite(HashIndexTest.class);
+        tests.addTestSuite(SymbolTableTest.class);
         return tests;
     }
 
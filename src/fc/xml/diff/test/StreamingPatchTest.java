@@ -0,0 +1,66 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import fc.xml.diff.Diff;
+import fc.xml.diff.Patch;
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.xas.transform.DataItems;
+
+public class StreamingPatchTest extends TestCase {
+
+    private static final int NODES = 2000;
+    private static final long[] EDITS = { 1, 41, 81, 121, 161 };
+
+
+    public void testSameAsTreePatch() throws IOException {
+        Random rnd = new Random(4711);
+        File basef = File.createTempFile("base", ".xml");
+        File newf = File.createTempFile("new", ".xml");
+        File difff = File.createTempFile("diff", ".xml");
+        try {
+            for (long edits : EDITS) {
+                // Moves make the diff reference the base out of order
+                byte[][] pair = DirTreeGenerator.randomPair(NODES, edits, rnd);
+                Files.write(basef.toPath(), pair[0]);
+                Files.write(newf.toPath(), pair[1]);
+                for (Class<? extends DiffEncoder> enc : DirTreeGenerator.ENCODERS) {
+                    FileOutputStream dout = new FileOutputStream(difff);
+                    try {
+                        Diff.diff(new FileInputStream(basef), new FileInputStream(newf), dout,
+                                  DataItems.class, enc, null, true);
+                    } finally {
+                        dout.close();
+                    }
+                    ByteArrayOutputStream tree = new ByteArrayOutputStream();
+                    Patch.patchTree(basef, difff, tree);
+                    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                    Patch.patch(basef, difff, stream);
+                    assertEquals("Patch of " + edits + " edits with " + enc.getName(),
+                                 tree.toString("UTF-8"), stream.toString("UTF-8"));
+                }
+            }
+        } finally {
+            basef.delete();
+            newf.delete();
+            difff.delete();
+        }
+    }
+
+}
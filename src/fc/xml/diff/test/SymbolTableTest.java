@@ -0,0 +1,136 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import fc.xml.diff.GlMatcher;
+import fc.xml.diff.HashAlgorithm;
+import fc.xml.diff.Segment;
+import fc.xml.diff.SymbolTable;
+
+/**
+ * Tests of interning items to symbols for {@link GlMatcher}.
+ */
+public class SymbolTableTest extends TestCase {
+
+    private static final HashAlgorithm<String> STRING_HASH = new StringHash(-1);
+    // Only 4 distinct hashes, so most unequal items collide
+    private static final HashAlgorithm<String> COLLIDING_HASH = new StringHash(3);
+
+
+    public void testEqualItems() {
+        SymbolTable<String> st = new SymbolTable<String>(STRING_HASH);
+        String a1 = new String("item");
+        String a2 = new String("item");
+        assertNotSame(a1, a2);
+        int s = st.intern(a1);
+        assertEquals(s, st.intern(a2));
+        assertEquals(1, st.size());
+        assertSame(a1, st.get(s));
+    }
+
+
+    public void testCollidingItems() {
+        SymbolTable<String> st = new SymbolTable<String>(new StringHash(0));
+        int a = st.intern("a");
+        int b = st.intern("b");
+        assertTrue(a != b);
+        assertEquals(a, st.intern(new String("a")));
+        assertEquals(b, st.intern(new String("b")));
+        assertEquals("a", st.get(a));
+        assertEquals("b", st.get(b));
+        assertTrue(SymbolTable.hash(a) != SymbolTable.hash(b));
+    }
+
+
+    public void testGrowth() {
+        SymbolTable<String> st = new SymbolTable<String>(COLLIDING_HASH);
+        int n = 5000;
+        int[] symbols = new int[n];
+        for (int i = 0; i < n; i++)
+            symbols[i] = st.intern("item" + i);
+        assertEquals(n, st.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, symbols[i]);
+            assertEquals(symbols[i], st.intern(new String("item" + i)));
+            assertEquals("item" + i, st.get(symbols[i]));
+        }
+        assertEquals(n, st.size());
+    }
+
+
+    public void testLayered() {
+        SymbolTable<String> parent = new SymbolTable<String>(COLLIDING_HASH);
+        int[] ps = parent.intern(Arrays.asList("a", "b", "c"));
+        SymbolTable<String> child = new SymbolTable<String>(parent);
+        assertEquals(ps[1], child.intern(new String("b")));
+        int d = child.intern("d");
+        assertEquals(3, d);
+        assertEquals("d", child.get(d));
+        assertEquals("a", child.get(ps[0]));
+        assertEquals(3, parent.size());
+        assertEquals(4, child.size());
+    }
+
+
+    public void testMatchWithCollisions() {
+        List<String> base = new ArrayList<String>();
+        for (int i = 0; i < 200; i++)
+            base.add("w" + (i * 7919 % 50));
+        List<String> doc = new ArrayList<String>();
+        for (String s : base.subList(100, 200))
+            doc.add(new String(s));
+        doc.add("new");
+        for (String s : base.subList(0, 100))
+            doc.add(new String(s));
+        List<Segment<String>> ml = new GlMatcher<String>(COLLIDING_HASH)
+            .match(base, doc, new int[] { 32, 16, 8, 4, 2, 1 });
+        List<String> result = new ArrayList<String>();
+        int copied = 0;
+        for (Segment<String> s : ml) {
+            if (s.getOp() == Segment.Operation.COPY) {
+                result.addAll(base.subList(s.getOffset(), s.getOffset() + s.getLength()));
+                copied += s.getLength();
+            } else {
+                result.addAll(s.getInsert());
+            }
+        }
+        assertEquals(doc, result);
+        assertEquals(base.size(), copied);
+    }
+
+    private static class StringHash implements HashAlgorithm<String> {
+
+        private final long mask;
+
+
+        StringHash(long mask) {
+            this.mask = mask;
+        }
+
+
+        public long quickHash(String s) {
+            long h = s.hashCode() * 0x9e3779b97f4a7c15L;
+            return (h ^ (h >>> 29)) & mask;
+        }
+
+
+        public void secureDigest(List<String> l, MessageDigest md) {
+            for (String s : l)
+                md.update(s.getBytes());
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import fc.xml.diff.Diff;
+import fc.xml.diff.IoUtil;
+import fc.xml.diff.Patch;
+import fc.xml.diff.WindowedDiff;
+import fc.xml.diff.benchmark.SynteticDirTree;
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.diff.encode.RefTreeEncoder;
+import fc.xml.diff.encode.XmlDiffEncoder;
+import fc.xml.xas.ItemSource;
+import fc.xml.xas.TransformSource;
+import fc.xml.xas.transform.DataItems;
+import fc.xml.xmlr.IdAddressableRefTree;
+import fc.xml.xmlr.RefTrees;
+import fc.xml.xmlr.model.TreeModel;
+import fc.xml.xmlr.model.TreeModels;
+import fc.xml.xmlr.xas.UniformXasCodec;
+import fc.xml.xmlr.xas.XasSerialization;
+
+public class WindowedDiffTest extends TestCase {
+
+    private static final int[] WINDOWS = { 64, 500, 100000 };
+
+    private static final int NODES = 2000;
+    private static final long[] EDITS = { 1, 14, 27 };
+
+    private File workDir = new File(System.getProperty("workdir", "+tmp-test"));
+
+
+    public void testWindowedDiff() throws IOException {
+        if (!workDir.exists()) workDir.mkdir();
+        File basef = new File(workDir, "wb.xml");
+        File newf = new File(workDir, "wn.xml");
+        Random rnd = new Random(4711);
+        byte[][] versions = DirTreeGenerator.randomVersions(NODES, rnd, EDITS);
+        Files.write(basef.toPath(), versions[0]);
+        for (int i = 1; i < versions.length; i++) {
+            Files.write(newf.toPath(), versions[i]);
+            for (int window : WINDOWS) {
+                for (Class<? extends DiffEncoder> enc : DirTreeGenerator.ENCODERS) {
+                    checkPatch(basef, newf, window, enc);
+                }
+            }
+        }
+    }
+
+
+    public void testIdentical() throws IOException {
+        byte[] doc = "<a><b x='1'>text</b><c/></a>".getBytes("UTF-8");
+        ByteArrayOutputStream dout = new ByteArrayOutputStream();
+        boolean changed = new WindowedDiff(64).diff(source(new ByteArrayInputStream(doc)),
+                                                    source(new ByteArrayInputStream(doc)), dout,
+                                                    XmlDiffEncoder.class);
+        assertFalse(changed);
+    }
+
+
+    public void testDeepNesting() throws IOException {
+        // Deeper than the fixed-size path stack the reference encoder once had
+        int depth = 300;
+        StringBuilder base = new StringBuilder(), doc = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            base.append("<e><s>").append(i).append("</s>");
+            doc.append("<e><s>").append(i == depth - 10 ? "x" : String.valueOf(i)).append("</s>");
+        }
+        for (int i = 0; i < depth; i++) {
+            base.append("</e>");
+            doc.append("</e>");
+        }
+        ByteArrayOutputStream dout = new ByteArrayOutputStream();
+        assertTrue(Diff.diff(new ByteArrayInputStream(base.toString().getBytes("UTF-8")),
+                             new ByteArrayInputStream(doc.toString().getBytes("UTF-8")), dout,
+                             DataItems.class, RefTreeEncoder.class, null, false));
+        int maxDepth = 0;
+        Matcher m = Pattern.compile("id=\"([^\"]*)\"").matcher(dout.toString("UTF-8"));
+        while (m.find()) {
+            maxDepth = Math.max(maxDepth, m.group(1).split("/").length - 1);
+        }
+        assertTrue("Deepest reference " + maxDepth, maxDepth > depth - 10);
+    }
+
+
+    private void checkPatch(File basef, File newf, int window,
+                            Class<? extends DiffEncoder> encoder) throws IOException {
+        File deltaf = new File(workDir, "wd.xml");
+        File patchf = new File(workDir, "wp.xml");
+        InputStream bin = new FileInputStream(basef), nin = new FileInputStream(newf);
+        FileOutputStream dout = new FileOutputStream(deltaf);
+        try {
+            new WindowedDiff(window).diff(source(bin), source(nin), dout, encoder);
+        } finally {
+            bin.close();
+            nin.close();
+            dout.close();
+        }
+        FileOutputStream pout = new FileOutputStream(patchf);
+        try {
+            Patch.patch(basef, deltaf, pout);
+        } finally {
+            pout.close();
+        }
+        SynteticDirTree.refTreeCmp(readTree(patchf).getRoot(), readTree(newf).getRoot(),
+                                   readTree(newf), null);
+    }
+
+
+    private static ItemSource source(InputStream in) throws IOException {
+        return IoUtil.getEventSequence(IoUtil.getXmlParser(in), DataItems.class);
+    }
+
+
+    private static IdAddressableRefTree readTree(File f) throws IOException {
+        TreeModel tm = TreeModels.xmlr1Model().swapCodec(UniformXasCodec.ITEM_CODEC);
+        InputStream in = new FileInputStream(f);
+        try {
+            ItemSource is = new TransformSource(IoUtil.getXmlParser(in), new DataItems());
+            return RefTrees.getAddressableTree(XasSerialization.readTree(is, tm));
+        } finally {
+            in.close();
+        }
+    }
+
+}
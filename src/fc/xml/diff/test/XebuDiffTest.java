@@ -0,0 +1,121 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xmldiff-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.diff.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import fc.xml.diff.Diff;
+import fc.xml.diff.Patch;
+import fc.xml.diff.encode.DiffEncoder;
+import fc.xml.diff.encode.XebuDiffEncoder;
+import fc.xml.diff.encode.XmlDiffEncoder;
+import fc.xml.xas.transform.DataItems;
+
+public class XebuDiffTest extends TestCase {
+
+    private static final int NODES = 2000;
+    private static final long[] EDITS = { 1, 41, 81, 121, 161 };
+
+
+    public void testXebuDiffPatches() throws IOException {
+        Random rnd = new Random(4711);
+        File basef = File.createTempFile("base", ".xml");
+        File newf = File.createTempFile("new", ".xml");
+        try {
+            for (long edits : EDITS) {
+                byte[][] pair = DirTreeGenerator.randomPair(NODES, edits, rnd);
+                Files.write(basef.toPath(), pair[0]);
+                Files.write(newf.toPath(), pair[1]);
+                byte[] xml = diff(basef, newf, XmlDiffEncoder.class);
+                byte[] xebu = diff(basef, newf, XebuDiffEncoder.class);
+                assertTrue("Xebu diff of " + xebu.length + " bytes not smaller than XML diff of " +
+                           xml.length, xebu.length < xml.length);
+                assertPatches(basef, newf, xebu);
+            }
+        } finally {
+            basef.delete();
+            newf.delete();
+        }
+    }
+
+
+    public void testNonLatin1Content() throws IOException {
+        File basef = File.createTempFile("base", ".xml");
+        File newf = File.createTempFile("new", ".xml");
+        try {
+            write(basef, "<r xmlns:p='urn:\u00e5'><a p:x='\u00e5\u00e4'><b/></a><d/></r>");
+            write(newf, "<r xmlns:p='urn:\u00e5'><d/><a p:x='\u00e5\u00e4'><b/></a>"
+                        + "<p:\u0436 y='\u0416\u20ac'/></r>");
+            assertPatches(basef, newf, diff(basef, newf, XebuDiffEncoder.class));
+            // Text is indented by the patch, so it is only checked to be there
+            write(newf, "<r xmlns:p='urn:\u00e5'><d/><c>\u65e5\u672c\u8a9e</c></r>");
+            byte[] patched = patch(basef, diff(basef, newf, XebuDiffEncoder.class));
+            assertTrue(new String(patched, "UTF-8").indexOf("\u65e5\u672c\u8a9e") >= 0);
+        } finally {
+            basef.delete();
+            newf.delete();
+        }
+    }
+
+
+    private static byte[] diff(File basef, File newf, Class<? extends DiffEncoder> encoder)
+            throws IOException {
+        ByteArrayOutputStream dout = new ByteArrayOutputStream();
+        Diff.diff(new FileInputStream(basef), new FileInputStream(newf), dout, DataItems.class,
+                  encoder, null, true);
+        return dout.toByteArray();
+    }
+
+
+    private static byte[] patch(File basef, byte[] diff) throws IOException {
+        File difff = File.createTempFile("diff", ".xebu");
+        try {
+            OutputStream out = new FileOutputStream(difff);
+            try {
+                out.write(diff);
+            } finally {
+                out.close();
+            }
+            ByteArrayOutputStream patched = new ByteArrayOutputStream();
+            Patch.patch(basef, difff, patched);
+            return patched.toByteArray();
+        } finally {
+            difff.delete();
+        }
+    }
+
+
+    private static void assertPatches(File basef, File newf, byte[] diff) throws IOException {
+        // The patched document must not differ from the new one
+        byte[] patched = patch(basef, diff);
+        assertFalse(Diff.diff(new FileInputStream(newf), new ByteArrayInputStream(patched), null,
+                              DataItems.class, XmlDiffEncoder.class, null, false));
+    }
+
+
+    private static void write(File f, String doc) throws IOException {
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(doc.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -14,6 +14,7 @@ public class AttributeNode implements Comparable<AttributeNode> {
     private Qname name;
     private Object value;
     private AttributeNode next;
+    private boolean frozen = false;
 
 
     public AttributeNode(Qname name, Object value) {
@@ -42,10 +43,17 @@ public class AttributeNode implements Comparable<AttributeNode> {
 
     public void setValue(Object value) {
         Verifier.checkNotNull(value);
+        if (frozen) throw new IllegalStateException("Attribute " + name + " is frozen");
         this.value = value;
     }
 
 
+    // Called by StartTag.freeze()
+    void freeze() {
+        frozen = true;
+    }
+
+
     // XXX Access to next should be private
     AttributeNode getNext() {
         return next;
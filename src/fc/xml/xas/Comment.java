@@ -47,7 +47,7 @@ public class Comment extends Item {
 
     @Override
     public int hashCode() {
-        return text == null ? 0 : 37 * text.hashCode();
+        return text == null ? COMMENT : 37 * COMMENT + text.hashCode();
     }
 
 }
@@ -41,7 +41,7 @@ public class EntityRef extends Item {
 
     @Override
     public int hashCode() {
-        return name == null ? 0 : 37 * name.hashCode();
+        return name == null ? ENTITY_REF : 37 * ENTITY_REF + name.hashCode();
     }
 
 
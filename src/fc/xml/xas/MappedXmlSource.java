@@ -0,0 +1,680 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xas-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.xas;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * A {@link ParserSource} that parses UTF-8 encoded XML straight from a byte buffer, typically a
+ * memory mapping of a file. Characters are decoded from the buffer directly into the strings of
+ * the items, and element and attribute names are decoded only once per distinct name, so parsing
+ * a large file costs little more than reading its pages.
+ * <p>
+ * The items produced are the same as those of an {@link XmlPullSource} on top of kXML, including
+ * its conventions of reporting entity references other than <code>&amp;amp;</code> as
+ * {@link EntityRef} items, dropping whitespace outside the root element, and skipping the XML
+ * declaration. In addition, CDATA sections are reported as {@link Text}. DTDs are not processed.
+ */
+public class MappedXmlSource implements ParserSource {
+
+    private static final int MAX_NAMES = 1 << 16;
+
+    private ByteBuffer buf;
+    private int pos;
+    private int limit;
+
+    private char[] cbuf = new char[256];
+    private int clen;
+
+    private Stack<StartTag> sts = new Stack<StartTag>();
+    private Item pending = null;
+    private boolean started = false;
+    private boolean done = false;
+    private boolean rootSeen = false;
+
+    // Open elements, with the raw names and the number of namespace bindings
+    // in scope when each one was opened
+    private int depth = 0;
+    private String[] openNames = new String[16];
+    private int[] bindingMarks = new int[16];
+
+    // Namespace bindings in scope, innermost last
+    private String[] bindPrefixes = new String[16];
+    private String[] bindNamespaces = new String[16];
+    private int bindings = 0;
+
+    // Attributes of the start tag being parsed
+    private String[] attNames = new String[8];
+    private String[] attValues = new String[8];
+
+    private NameTable names = new NameTable();
+    private Map<String, Map<String, Qname>> qnames = new HashMap<String, Map<String, Qname>>();
+    private Map<String, String> namespaces = new HashMap<String, String>();
+
+
+    /**
+     * Create a source reading from the remaining bytes of a buffer.
+     * @param buf
+     *            the buffer to parse
+     * @throws UnsupportedEncodingException
+     *             if the document is not in UTF-8 or a subset of it
+     */
+    public MappedXmlSource(ByteBuffer buf) throws UnsupportedEncodingException {
+        this.buf = buf;
+        this.pos = buf.position();
+        this.limit = buf.limit();
+        checkEncoding();
+    }
+
+
+    /**
+     * Create a source reading from a memory mapped file.
+     * @param f
+     *            the file to map
+     * @return a source parsing the file
+     * @throws UnsupportedEncodingException
+     *             if the document is not in UTF-8 or a subset of it
+     * @throws IOException
+     *             if mapping the file fails, or if the file is too large to map
+     */
+    public static MappedXmlSource map(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("File " + f + " is too large to map");
+            }
+            // The mapping stays valid after the channel is closed
+            return new MappedXmlSource(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    public Item next() throws IOException {
+        if (!started) {
+            started = true;
+            sts.push(null);
+            return StartDocument.instance();
+        }
+        if (pending != null) {
+            Item result = pending;
+            pending = null;
+            endElement();
+            return result;
+        }
+        Item result = null;
+        while (result == null && !done) {
+            if (pos >= limit) {
+                if (depth > 0) throw error("Unexpected end of document");
+                if (!rootSeen) throw error("No root element");
+                done = true;
+                sts.pop();
+                result = EndDocument.instance();
+            } else if (buf.get(pos) == '<') {
+                result = markup();
+            } else if (depth == 0) {
+                if (!isWhitespace(buf.get(pos))) throw error("Content outside root element");
+                pos++;
+            } else if (buf.get(pos) == '&') {
+                result = entityRef();
+            } else {
+                result = text();
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Get a stream of the bytes not yet parsed. The stream reads its own view of the buffer, so
+     * reading it does not move this source, which goes on parsing from where it was.
+     * @return a stream of the bytes from the current position to the end of the buffer
+     */
+    public InputStream getInputStream() {
+        final ByteBuffer view = buf.duplicate();
+        view.limit(limit);
+        view.position(pos);
+        return new InputStream() {
+
+            @Override
+            public int read() {
+                return view.hasRemaining() ? view.get() & 0xff : -1;
+            }
+
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (!view.hasRemaining()) return -1;
+                int n = Math.min(len, view.remaining());
+                view.get(b, off, n);
+                return n;
+            }
+
+
+            @Override
+            public int available() {
+                return view.remaining();
+            }
+        };
+    }
+
+
+    public String getEncoding() {
+        return "UTF-8";
+    }
+
+
+    public StartTag getContext() {
+        if (!sts.isEmpty()) {
+            return sts.peek();
+        } else {
+            return null;
+        }
+    }
+
+
+    private void checkEncoding() throws UnsupportedEncodingException {
+        if (limit - pos >= 3 && (buf.get(pos) & 0xff) == 0xef && (buf.get(pos + 1) & 0xff) == 0xbb &&
+            (buf.get(pos + 2) & 0xff) == 0xbf) {
+            pos += 3; // UTF-8 byte order mark
+        } else if (limit - pos >= 2 && (buf.get(pos) == 0 || buf.get(pos + 1) == 0 ||
+                                        (buf.get(pos) & 0xfe) == 0xfe)) {
+            throw new UnsupportedEncodingException("UTF-16");
+        }
+        if (startsWith(pos, "<?xml")) {
+            int end = indexOf(pos, "?>");
+            String decl = end < 0 ? "" : latin1(pos, end);
+            int i = decl.indexOf("encoding");
+            if (i >= 0) {
+                i = decl.indexOf('=', i) + 1;
+                while (i < decl.length() && isWhitespace((byte) decl.charAt(i)))
+                    i++;
+                int j = i < decl.length() ? decl.indexOf(decl.charAt(i), i + 1) : -1;
+                String encoding = j < 0 ? "" : decl.substring(i + 1, j);
+                if (!encoding.equalsIgnoreCase("UTF-8") && !encoding.equalsIgnoreCase("UTF8") &&
+                    !encoding.equalsIgnoreCase("US-ASCII") && !encoding.equalsIgnoreCase("ASCII"))
+                    throw new UnsupportedEncodingException(encoding);
+            }
+        }
+    }
+
+
+    // Parse markup starting with '<'; returns null for markup that produces no
+    // item
+    private Item markup() throws IOException {
+        if (startsWith(pos, "</")) {
+            return endTag();
+        } else if (startsWith(pos, "<!--")) {
+            int end = indexOf(pos + 4, "-->");
+            if (end < 0) throw error("Unterminated comment");
+            Comment c = new Comment(decode(pos + 4, end, false));
+            pos = end + 3;
+            return c;
+        } else if (startsWith(pos, "<![CDATA[")) {
+            if (depth == 0) throw error("CDATA outside root element");
+            int end = indexOf(pos + 9, "]]>");
+            if (end < 0) throw error("Unterminated CDATA section");
+            Text t = new Text(decode(pos + 9, end, false));
+            pos = end + 3;
+            return t;
+        } else if (startsWith(pos, "<!DOCTYPE")) {
+            return doctype();
+        } else if (startsWith(pos, "<?")) {
+            return pi();
+        } else {
+            return startTag();
+        }
+    }
+
+
+    private Item startTag() throws IOException {
+        if (depth == 0 && rootSeen) throw error("Multiple root elements");
+        pos++;
+        String rawName = name();
+        int mark = bindings;
+        int atts = 0;
+        boolean empty = false;
+        for (;;) {
+            boolean sawSpace = skipWhitespace();
+            if (pos >= limit) throw error("Unterminated start tag");
+            byte b = buf.get(pos);
+            if (b == '>') {
+                pos++;
+                break;
+            } else if (b == '/') {
+                expect("/>");
+                empty = true;
+                break;
+            } else if (!sawSpace) {
+                throw error("Expected whitespace");
+            }
+            String attName = name();
+            skipWhitespace();
+            expect("=");
+            skipWhitespace();
+            String value = attributeValue();
+            if (attName == "xmlns") {
+                bind("", value);
+            } else if (attName.startsWith("xmlns:")) {
+                bind(attName.substring(6), value);
+            } else {
+                if (atts == attNames.length) {
+                    attNames = grow(attNames);
+                    attValues = grow(attValues);
+                }
+                attNames[atts] = attName;
+                attValues[atts++] = value;
+            }
+        }
+        StartTag st = new StartTag(qname(rawName, true), sts.peek());
+        for (int i = mark; i < bindings; i++) {
+            st.addPrefix(bindNamespaces[i], bindPrefixes[i]);
+        }
+        for (int i = 0; i < atts; i++) {
+            st.addAttribute(qname(attNames[i], false), attValues[i]);
+        }
+        if (++depth == openNames.length) {
+            openNames = grow(openNames);
+            int[] nm = new int[2 * bindingMarks.length];
+            System.arraycopy(bindingMarks, 0, nm, 0, bindingMarks.length);
+            bindingMarks = nm;
+        }
+        openNames[depth] = rawName;
+        bindingMarks[depth] = mark;
+        rootSeen = true;
+        sts.push(st);
+        if (empty) pending = new EndTag(st.getName());
+        return st;
+    }
+
+
+    private Item endTag() throws IOException {
+        pos += 2;
+        String rawName = name();
+        skipWhitespace();
+        expect(">");
+        if (depth == 0 || rawName != openNames[depth])
+            throw error("End tag " + rawName + " does not match start tag " +
+                        (depth > 0 ? openNames[depth] : "<none>"));
+        EndTag et = new EndTag(sts.peek().getName());
+        endElement();
+        return et;
+    }
+
+
+    private void endElement() {
+        sts.pop();
+        bindings = bindingMarks[depth];
+        depth--;
+    }
+
+
+    private Item pi() throws IOException {
+        pos += 2;
+        String target = name();
+        int end = indexOf(pos, "?>");
+        if (end < 0) throw error("Unterminated processing instruction");
+        Item result = null;
+        if (!target.equalsIgnoreCase("xml")) {
+            // Same split as XmlPullSource: the data starts after the whitespace
+            skipWhitespace();
+            result = new Pi(target, decode(Math.min(pos, end), end, false));
+        }
+        pos = end + 2;
+        return result;
+    }
+
+
+    private Item doctype() throws IOException {
+        int start = pos + 9, end = start;
+        // Skip to the closing '>', taking the internal subset and quotes into
+        // account
+        for (int nest = 0, quote = 0; end < limit; end++) {
+            byte b = buf.get(end);
+            if (quote != 0) {
+                if (b == quote) quote = 0;
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '[') {
+                nest++;
+            } else if (b == ']') {
+                nest--;
+            } else if (b == '>' && nest == 0) {
+                break;
+            }
+        }
+        if (end >= limit) throw error("Unterminated DOCTYPE");
+        String text = decode(start, end, false);
+        pos = end + 1;
+        return XmlPullSource.parseDoctype(text);
+    }
+
+
+    private Item entityRef() throws IOException {
+        int end = pos + 1;
+        while (end < limit && buf.get(end) != ';' && end - pos < 64)
+            end++;
+        if (end >= limit || buf.get(end) != ';') throw error("Unterminated entity reference");
+        String name = names.get(buf, pos + 1, end - pos - 1);
+        if (name.length() == 0) throw error("Empty entity reference");
+        pos = end + 1;
+        return name == "amp" ? new Text("&") : new EntityRef(name);
+    }
+
+
+    private Item text() throws IOException {
+        int end = pos;
+        for (byte b; end < limit && (b = buf.get(end)) != '<' && b != '&'; end++) {
+            // Same restriction as kXML, which only allows ]]> to end a CDATA section
+            if (b == '>' && end - pos >= 2 && buf.get(end - 1) == ']' && buf.get(end - 2) == ']') {
+                pos = end - 2;
+                throw error("Illegal: ]]>");
+            }
+        }
+        Text t = new Text(decode(pos, end, false));
+        pos = end;
+        return t;
+    }
+
+
+    private String attributeValue() throws IOException {
+        if (pos >= limit) throw error("Expected attribute value");
+        byte quote = buf.get(pos);
+        if (quote != '"' && quote != '\'') throw error("Expected quote");
+        int end = pos + 1;
+        for (byte b; end < limit && (b = buf.get(end)) != quote; end++) {
+            if (b == '<') throw error("'<' in attribute value");
+        }
+        if (end >= limit) throw error("Unterminated attribute value");
+        String value = decode(pos + 1, end, true);
+        pos = end + 1;
+        return value;
+    }
+
+
+    private void bind(String prefix, String namespace) {
+        if (bindings == bindPrefixes.length) {
+            bindPrefixes = grow(bindPrefixes);
+            bindNamespaces = grow(bindNamespaces);
+        }
+        String ns = namespaces.get(namespace);
+        if (ns == null) {
+            ns = namespace;
+            namespaces.put(ns, ns);
+        }
+        bindPrefixes[bindings] = prefix;
+        bindNamespaces[bindings++] = ns;
+    }
+
+
+    private String namespace(String prefix) throws IOException {
+        for (int i = bindings - 1; i >= 0; i--) {
+            if (bindPrefixes[i].equals(prefix)) return bindNamespaces[i];
+        }
+        if (prefix.length() == 0) {
+            return "";
+        } else if (prefix.equals("xml")) {
+            return XasUtil.XML_NS;
+        } else {
+            throw error("Undefined prefix: " + prefix);
+        }
+    }
+
+
+    // Qname of a raw element or attribute name. Unprefixed attributes are in
+    // no namespace.
+    private Qname qname(String rawName, boolean element) throws IOException {
+        int colon = rawName.indexOf(':');
+        String ns = colon >= 0 ? namespace(rawName.substring(0, colon)) : element ? namespace("")
+                : "";
+        String local = colon >= 0 ? rawName.substring(colon + 1) : rawName;
+        Map<String, Qname> locals = qnames.get(ns);
+        if (locals == null) {
+            locals = new HashMap<String, Qname>();
+            qnames.put(ns, locals);
+        }
+        Qname q = locals.get(local);
+        if (q == null) {
+            q = new Qname(ns, local);
+            locals.put(local, q);
+        }
+        return q;
+    }
+
+
+    private String name() throws IOException {
+        int end = pos;
+        for (byte b; end < limit && !isWhitespace(b = buf.get(end)) && b != '>' && b != '/' &&
+                     b != '=' && b != '?'; end++)
+            ;
+        if (end == pos) throw error("Expected name");
+        String name = names.get(buf, pos, end - pos);
+        pos = end;
+        return name;
+    }
+
+
+    // Decode bytes [start,end) with line end normalization. Malformed input is
+    // replaced with U+FFFD, as in the Reader used by kXML. Attribute values
+    // also get references resolved and line ends turned into spaces, as kXML
+    // does.
+    private String decode(int start, int end, boolean attribute) throws IOException {
+        clen = 0;
+        for (int i = start; i < end;) {
+            int b = buf.get(i);
+            if (b >= 0) {
+                i++;
+                if (b == '\r') {
+                    if (i < end && buf.get(i) == '\n') i++;
+                    b = attribute ? ' ' : '\n';
+                } else if (b == '\n' && attribute) {
+                    b = ' ';
+                } else if (b == '&' && attribute) {
+                    int semi = i;
+                    while (semi < end && buf.get(semi) != ';')
+                        semi++;
+                    if (semi == end) throw error("Unterminated entity reference");
+                    b = resolve(latin1(i, semi));
+                    i = semi + 1;
+                }
+                append(b);
+            } else {
+                int extra = (b & 0xe0) == 0xc0 ? 1 : (b & 0xf0) == 0xe0 ? 2 : (b & 0xf8) == 0xf0 ? 3
+                        : -1;
+                int c = b & (0x3f >> extra), k = 1;
+                for (; k <= extra && i + k < end && (buf.get(i + k) & 0xc0) == 0x80; k++)
+                    c = (c << 6) | (buf.get(i + k) & 0x3f);
+                i += k;
+                if (extra < 0 || k <= extra) {
+                    // Malformed; replace like the JDK decoders do
+                    c = 0xfffd;
+                } else if (c > 0xffff) {
+                    c -= 0x10000;
+                    append(0xd800 + (c >> 10));
+                    c = 0xdc00 + (c & 0x3ff);
+                }
+                append(c);
+            }
+        }
+        return new String(cbuf, 0, clen);
+    }
+
+
+    private int resolve(String entity) throws IOException {
+        if (entity.equals("amp")) {
+            return '&';
+        } else if (entity.equals("lt")) {
+            return '<';
+        } else if (entity.equals("gt")) {
+            return '>';
+        } else if (entity.equals("quot")) {
+            return '"';
+        } else if (entity.equals("apos")) {
+            return '\'';
+        } else if (entity.startsWith("#")) {
+            try {
+                int c = entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16)
+                        : Integer.parseInt(entity.substring(1));
+                if (c > 0xffff) {
+                    // Only the high surrogate goes through the return value
+                    c -= 0x10000;
+                    append(0xd800 + (c >> 10));
+                    c = 0xdc00 + (c & 0x3ff);
+                }
+                return c;
+            } catch (NumberFormatException ex) {
+                throw error("Bad character reference &" + entity + ";");
+            }
+        } else {
+            throw error("Undeclared entity &" + entity + "; in attribute value");
+        }
+    }
+
+
+    private void append(int c) {
+        if (clen == cbuf.length) {
+            char[] nb = new char[2 * cbuf.length];
+            System.arraycopy(cbuf, 0, nb, 0, clen);
+            cbuf = nb;
+        }
+        cbuf[clen++] = (char) c;
+    }
+
+
+    private boolean skipWhitespace() {
+        int start = pos;
+        while (pos < limit && isWhitespace(buf.get(pos)))
+            pos++;
+        return pos > start;
+    }
+
+
+    private void expect(String s) throws IOException {
+        if (!startsWith(pos, s)) throw error("Expected " + s);
+        pos += s.length();
+    }
+
+
+    private boolean startsWith(int at, String s) {
+        if (limit - at < s.length()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (buf.get(at + i) != (byte) s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+
+    private int indexOf(int from, String s) {
+        for (int i = from; i + s.length() <= limit; i++) {
+            if (startsWith(i, s)) return i;
+        }
+        return -1;
+    }
+
+
+    private String latin1(int start, int end) {
+        char[] cs = new char[end - start];
+        for (int i = start; i < end; i++)
+            cs[i - start] = (char) (buf.get(i) & 0xff);
+        return new String(cs);
+    }
+
+
+    private IOException error(String message) {
+        return new IOException(message + " at byte " + pos);
+    }
+
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+
+    private static String[] grow(String[] a) {
+        String[] na = new String[2 * a.length];
+        System.arraycopy(a, 0, na, 0, a.length);
+        return na;
+    }
+
+    /**
+     * Table of names by their bytes. All occurrences of a name get the same interned string,
+     * which is decoded only once. Names can then be compared by identity.
+     */
+    private static class NameTable {
+
+        private byte[][] keys = new byte[256][];
+        private String[] values = new String[256];
+        private int size = 0;
+
+
+        public String get(ByteBuffer buf, int off, int len) throws IOException {
+            int hash = 0;
+            for (int i = 0; i < len; i++)
+                hash = 31 * hash + buf.get(off + i);
+            int mask = keys.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            for (; keys[slot] != null; slot = (slot + 1) & mask) {
+                if (matches(keys[slot], buf, off, len)) return values[slot];
+            }
+            byte[] key = new byte[len];
+            for (int i = 0; i < len; i++)
+                key[i] = buf.get(off + i);
+            String value = new String(key, "UTF-8").intern();
+            if (size < MAX_NAMES) {
+                keys[slot] = key;
+                values[slot] = value;
+                if (2 * ++size > keys.length) rehash();
+            }
+            return value;
+        }
+
+
+        private static boolean matches(byte[] key, ByteBuffer buf, int off, int len) {
+            if (key.length != len) return false;
+            for (int i = 0; i < len; i++) {
+                if (key[i] != buf.get(off + i)) return false;
+            }
+            return true;
+        }
+
+
+        private void rehash() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[2 * oldKeys.length][];
+            values = new String[2 * oldValues.length];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == null) continue;
+                int hash = 0;
+                for (byte b : oldKeys[i])
+                    hash = 31 * hash + b;
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (keys[slot] != null)
+                    slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+}
@@ -49,7 +49,7 @@ public class Pi extends Item {
 
     @Override
     public int hashCode() {
-        return 37 * target.hashCode() + instruction.hashCode();
+        return 37 * (37 * PI + target.hashCode()) + instruction.hashCode();
     }
 
 
@@ -21,6 +21,8 @@ public class StartTag extends Item {
     private PrefixNode prefixes;
     private PrefixNode initPrefixes;
     private StartTag parent;
+    private boolean frozen = false;
+    private int hash;
 
 
     private void insertAttribute(AttributeNode curr, AttributeNode prev, AttributeNode next) {
@@ -73,6 +75,7 @@ public class StartTag extends Item {
 
 
     private void insertAttribute(AttributeNode curr) {
+        checkNotFrozen();
         if (atts == null) {
             atts = curr;
         } else if (curr.compareTo(atts) < 0) {
@@ -110,6 +113,33 @@ public class StartTag extends Item {
     }
 
 
+    /**
+     * Make the name and attributes of this tag immutable. The hash code of a frozen tag is computed
+     * only once, which matters when tags are hashed repeatedly, e.g., when matching documents.
+     * Attempts to change the attributes of a frozen tag throw {@link IllegalStateException}.
+     * Prefix mappings do not take part in equality, and may still be added.
+     */
+    public void freeze() {
+        if (!frozen) {
+            hash = computeHash();
+            for (AttributeNode a = atts; a != null; a = a.getNext()) {
+                a.freeze();
+            }
+            frozen = true;
+        }
+    }
+
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+
+    private void checkNotFrozen() {
+        if (frozen) throw new IllegalStateException("Tag " + name + " is frozen");
+    }
+
+
     // @NonNull
     public String getPrefix() {
         return getPrefix(name.getNamespace());
@@ -122,6 +152,7 @@ public class StartTag extends Item {
 
 
     public void removeAttribute(Qname name) {
+        checkNotFrozen();
         if (atts != null) {
             if (atts.getName().equals(name)) {
                 atts = atts.getNext();
@@ -307,7 +338,12 @@ public class StartTag extends Item {
 
     @Override
     public int hashCode() {
-        int result = START_TAG;
+        return frozen ? hash : computeHash();
+    }
+
+
+    private int computeHash() {
+        int result = 37 * START_TAG + name.hashCode();
         for (AttributeNode a = atts; a != null; a = a.getNext()) {
             result = 37 * result + a.hashCode();
         }
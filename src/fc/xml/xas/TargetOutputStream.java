@@ -9,9 +9,11 @@
 
 package fc.xml.xas;
 
+import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 public class TargetOutputStream extends FilterOutputStream {
 
@@ -41,6 +43,22 @@ public class TargetOutputStream extends FilterOutputStream {
     }
 
 
+    /**
+     * Get a channel that writes to the same destination as this stream. Anything written to this
+     * stream or its target so far is flushed first, so bytes written to the channel follow it.
+     * @return the channel, or <code>null</code> if the destination is not a file
+     */
+    public WritableByteChannel getChannel() throws IOException {
+        if (out instanceof FileOutputStream) {
+            writingBytes();
+            out.flush();
+            return ((FileOutputStream) out).getChannel();
+        } else {
+            return null;
+        }
+    }
+
+
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
         writingBytes();
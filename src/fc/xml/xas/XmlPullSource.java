@@ -19,6 +19,9 @@ import org.xmlpull.v1.XmlPullParserException;
 
 public class XmlPullSource implements ParserSource {
 
+    // The event type of typed content in parsers that decode it, reported as its text
+    private static final int TYPED_CONTENT = 15;
+
     private XmlPullParser parser;
     private InputStream in;
     private boolean inProgress;
@@ -130,37 +133,14 @@ public class XmlPullSource implements ParserSource {
                             result = new Pi(comps[0], comps[1]);
                             break;
                         }
+                        case TYPED_CONTENT:
+                            result = new Text(parser.getText());
+                            break;
                         case XmlPullParser.IGNORABLE_WHITESPACE:
                             break;
-                        case XmlPullParser.DOCDECL: {
-                            String text = parser.getText();
-                            int index = text.indexOf("PUBLIC");
-                            if (index >= 0) {
-                                String name = text.substring(0, index).trim();
-                                int end = index + 6;
-                                char term = text.charAt(end);
-                                while (term != '"' && term != '\'') {
-                                    end += 1;
-                                    term = text.charAt(end);
-                                }
-                                end += 1;
-                                int start = end;
-                                while (text.charAt(end) != term) {
-                                    end += 1;
-                                }
-                                String publicId = text.substring(start, end);
-                                String systemId = text.substring(end + 2).trim();
-                                result = new Doctype(name, publicId, systemId);
-                            } else {
-                                index = text.indexOf("SYSTEM");
-                                if (index >= 0) {
-                                    String name = text.substring(0, index).trim();
-                                    String systemId = text.substring(index + 6).trim();
-                                    result = new Doctype(name, systemId);
-                                }
-                            }
+                        case XmlPullParser.DOCDECL:
+                            result = parseDoctype(parser.getText());
                             break;
-                        }
                         default:
                             throw new IllegalStateException("Got unrecognized type " + type);
                     }
@@ -177,6 +157,39 @@ public class XmlPullSource implements ParserSource {
     }
 
 
+    // Parse the contents of a DOCTYPE declaration; returns null if there is no
+    // external identifier
+    static Doctype parseDoctype(String text) {
+        Doctype result = null;
+        int index = text.indexOf("PUBLIC");
+        if (index >= 0) {
+            String name = text.substring(0, index).trim();
+            int end = index + 6;
+            char term = text.charAt(end);
+            while (term != '"' && term != '\'') {
+                end += 1;
+                term = text.charAt(end);
+            }
+            end += 1;
+            int start = end;
+            while (text.charAt(end) != term) {
+                end += 1;
+            }
+            String publicId = text.substring(start, end);
+            String systemId = text.substring(end + 2).trim();
+            result = new Doctype(name, publicId, systemId);
+        } else {
+            index = text.indexOf("SYSTEM");
+            if (index >= 0) {
+                String name = text.substring(0, index).trim();
+                String systemId = text.substring(index + 6).trim();
+                result = new Doctype(name, systemId);
+            }
+        }
+        return result;
+    }
+
+
     public InputStream getInputStream() {
         return in;
     }
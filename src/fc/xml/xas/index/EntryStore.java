@@ -0,0 +1,226 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-xas-users@hoslab.cs.helsinki.fi.
+ */
+
+package fc.xml.xas.index;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Storage for the entries of an {@link Index}. Entries are kept in parallel primitive arrays
+ * indexed by slot: the byte offset, the length and the context id of each entry. The Dewey path of
+ * an entry is encoded as a sequence of variable-length integers, and slots are found by these
+ * encodings through an open-addressing hash table. An entry thus takes about 30 bytes and one byte
+ * for each small path component, instead of the several objects of a map entry.
+ * <p>
+ * Lengths that do not fit in an <code>int</code>, such as those of the root element of a very large
+ * document, are kept separately.
+ */
+final class EntryStore {
+
+    private int count = 0;
+    private long[] offsets = new long[16];
+    private int[] lengths = new int[16];
+    private int[] contexts = new int[16];
+    // The encoded path of slot i is keys[keyStarts[i]] up to keys[keyStarts[i + 1]]
+    private int[] keyStarts = new int[17];
+    private byte[] keys = new byte[64];
+    // Slot + 1 of each hashed path, 0 for an empty bucket
+    private int[] table = new int[32];
+    private Map<Integer, Long> longLengths = new HashMap<Integer, Long>();
+
+
+    public int size() {
+        return count;
+    }
+
+
+    /**
+     * Find the slot of a path.
+     * @param path
+     *            the components of a Dewey key
+     * @return the slot of the path, or <code>-1</code> if it is not stored
+     */
+    public int find(int[] path) {
+        byte[] key = encode(path);
+        int mask = table.length - 1;
+        for (int i = hash(key, 0, key.length) & mask;; i = (i + 1) & mask) {
+            int slot = table[i] - 1;
+            if (slot < 0 || keyEquals(slot, key)) {
+                return slot;
+            }
+        }
+    }
+
+
+    /**
+     * Store an entry, replacing any entry with the same path.
+     * @param path
+     *            the components of the Dewey key of the entry
+     * @param offset
+     *            the offset of the entry
+     * @param length
+     *            the length of the entry
+     * @param context
+     *            the id of the processing context of the entry
+     * @return the slot of the entry
+     */
+    public int put(int[] path, long offset, long length, int context) {
+        int slot = find(path);
+        if (slot < 0) {
+            slot = append(encode(path));
+        }
+        offsets[slot] = offset;
+        if (length >= 0 && length <= Integer.MAX_VALUE) {
+            lengths[slot] = (int) length;
+            longLengths.remove(slot);
+        } else {
+            lengths[slot] = -1;
+            longLengths.put(slot, length);
+        }
+        contexts[slot] = context;
+        return slot;
+    }
+
+
+    public long offset(int slot) {
+        return offsets[slot];
+    }
+
+
+    public long length(int slot) {
+        return lengths[slot] >= 0 ? lengths[slot] : longLengths.get(slot);
+    }
+
+
+    public int context(int slot) {
+        return contexts[slot];
+    }
+
+
+    /**
+     * Decode the path of a slot.
+     * @param slot
+     *            the slot to decode
+     * @return the components of the Dewey key of the slot
+     */
+    public int[] path(int slot) {
+        int start = keyStarts[slot];
+        int end = keyStarts[slot + 1];
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            if (keys[i] >= 0) {
+                n++;
+            }
+        }
+        int[] path = new int[n];
+        int value = 0;
+        int shift = 0;
+        n = 0;
+        for (int i = start; i < end; i++) {
+            value |= (keys[i] & 0x7f) << shift;
+            if (keys[i] >= 0) {
+                path[n++] = value;
+                value = 0;
+                shift = 0;
+            } else {
+                shift += 7;
+            }
+        }
+        return path;
+    }
+
+
+    private int append(byte[] key) {
+        if (count == offsets.length) {
+            int capacity = count * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            contexts = Arrays.copyOf(contexts, capacity);
+            keyStarts = Arrays.copyOf(keyStarts, capacity + 1);
+        }
+        int start = keyStarts[count];
+        if (start + key.length > keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(keys.length * 2, start + key.length));
+        }
+        System.arraycopy(key, 0, keys, start, key.length);
+        int slot = count++;
+        keyStarts[count] = start + key.length;
+        if (count * 2 > table.length) {
+            rehash(table.length * 2);
+        } else {
+            insertSlot(slot);
+        }
+        return slot;
+    }
+
+
+    private void rehash(int size) {
+        table = new int[size];
+        for (int slot = 0; slot < count; slot++) {
+            insertSlot(slot);
+        }
+    }
+
+
+    private void insertSlot(int slot) {
+        int mask = table.length - 1;
+        int start = keyStarts[slot];
+        int i = hash(keys, start, keyStarts[slot + 1] - start) & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot + 1;
+    }
+
+
+    private boolean keyEquals(int slot, byte[] key) {
+        int start = keyStarts[slot];
+        if (keyStarts[slot + 1] - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (keys[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static int hash(byte[] b, int offset, int length) {
+        int h = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ b[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+
+    // Each component is written as 7-bit groups, least significant first, with the high bit set
+    // on all groups but the last
+    private static byte[] encode(int[] path) {
+        int n = 0;
+        for (int step : path) {
+            n += step < 0 ? 5 : (38 - Integer.numberOfLeadingZeros(step | 1)) / 7;
+        }
+        byte[] key = new byte[n];
+        int i = 0;
+        for (int step : path) {
+            while ((step & ~0x7f) != 0) {
+                key[i++] = (byte) (step | 0x80);
+                step >>>= 7;
+            }
+            key[i++] = (byte) step;
+        }
+        return key;
+    }
+
+}
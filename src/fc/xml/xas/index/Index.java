@@ -9,13 +9,33 @@
 
 package fc.xml.xas.index;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 import fc.xml.xas.Item;
+import fc.xml.xas.PrefixNode;
+import fc.xml.xas.Qname;
 import fc.xml.xas.StartTag;
+import fc.xml.xas.Text;
 
 /**
  * An index mapping Dewey keys to index entries. This class is essentially a map from
@@ -23,13 +43,28 @@ import fc.xml.xas.StartTag;
  * indexes are a <em>complete</em> index, which indexes every node in the XML document, and an
  * <em>element</em> index, which indexes only element nodes. Currently in XAS there is no versioned
  * index, even though both {@link DeweyKey} and {@link Index.Entry} have versioned counterparts.
+ * <p>
+ * Offsets are <code>long</code> byte offsets, so documents larger than 2 GB can be indexed. The
+ * entries are not kept as objects; {@link #find(DeweyKey)} creates an {@link Index.Entry} from
+ * primitive storage for each lookup.
  */
 public class Index {
 
     private static final long serialVersionUID = 0xDEADL;
 
+    private static final int FORMAT_VERSION = 0x58494403;
+
+    private static final int ENTRY_SIZE = 24;
+
     private transient SeekableSource source;
-    private Map<DeweyKey, Entry> index;
+    private EntryStore store;
+    private List<StartTag> contexts;
+    private Map<StartTag, Integer> contextIds;
+    // A mapped index has a null store and looks up its entries here
+    private ByteBuffer entries;
+    private int entryCount;
+    private int pathBase;
+    private StartTag[] mappedContexts;
 
 
     private Index() {
@@ -43,7 +78,9 @@ public class Index {
      */
     public Index(SeekableSource source) {
         this.source = source;
-        this.index = new HashMap<DeweyKey, Entry>();
+        this.store = new EntryStore();
+        this.contexts = new ArrayList<StartTag>();
+        this.contextIds = new IdentityHashMap<StartTag, Integer>();
     }
 
 
@@ -58,7 +95,18 @@ public class Index {
 
 
     public Entry find(DeweyKey key) {
-        return index.get(key);
+        if (store == null) {
+            return findMapped(key);
+        }
+        int slot = store.find(key.deconstruct());
+        return slot >= 0 ? storedEntry(slot) : null;
+    }
+
+
+    private Entry storedEntry(int slot) {
+        int context = store.context(slot);
+        return new Entry(store.offset(slot), store.length(slot),
+                         context < 0 ? null : contexts.get(context));
     }
 
 
@@ -73,9 +121,24 @@ public class Index {
      * @param context
      *            the processing context of the new entry
      */
-    public void insert(DeweyKey key, int start, int end, StartTag context) {
+    public void insert(DeweyKey key, long start, long end, StartTag context) {
         assert start <= end : String.valueOf(start) + ", " + end + ", " + key + ", " + context;
-        index.put(key, new Entry(start, end - start, context));
+        thaw();
+        store.put(key.deconstruct(), start, end - start, contextId(context));
+    }
+
+
+    private int contextId(StartTag context) {
+        if (context == null) {
+            return -1;
+        }
+        Integer id = contextIds.get(context);
+        if (id == null) {
+            id = contexts.size();
+            contexts.add(context);
+            contextIds.put(context, id);
+        }
+        return id;
     }
 
 
@@ -89,7 +152,7 @@ public class Index {
      * @param context
      *            the processing context of the new entry
      */
-    public void insertRead(DeweyKey key, int start, StartTag context) {
+    public void insertRead(DeweyKey key, long start, StartTag context) {
         insert(key, start, source.getCurrentPosition(), context);
     }
 
@@ -104,35 +167,55 @@ public class Index {
      * @param context
      *            the processing context of the new entry
      */
-    public void insertCurrent(DeweyKey key, int end, StartTag context) {
+    public void insertCurrent(DeweyKey key, long end, StartTag context) {
         insert(key, source.getCurrentPosition(), end, context);
     }
 
 
     public int size() {
-        return index.size();
+        return store != null ? store.size() : entryCount;
     }
 
 
     @Override
     public String toString() {
-        return "In(" + index + ")";
+        if (store == null) {
+            return "In(mapped " + entryCount + ")";
+        }
+        StringBuilder sb = new StringBuilder("In({");
+        for (int slot = 0; slot < store.size(); slot++) {
+            if (slot > 0) {
+                sb.append(", ");
+            }
+            sb.append(DeweyKey.construct(store.path(slot))).append('=').append(storedEntry(slot));
+        }
+        return sb.append("})").toString();
     }
 
 
     private static Index build(SeekableSource source, boolean indexAll, int depth)
             throws IOException {
+        return build(source, indexAll, false, depth);
+    }
+
+
+    private static Index build(SeekableSource source, boolean indexAll, boolean dataOnly,
+                               int depth) throws IOException {
         Index index = new Index(source);
         DeweyKey k = DeweyKey.initial();
         StartTag context = null;
         Stack<StartTag> sts = new Stack<StartTag>();
         sts.push(null);
-        Stack<Integer> ps = new Stack<Integer>();
+        Stack<Long> ps = new Stack<Long>();
         boolean isText = false;
         Item item;
         while ((item = source.next()) != null) {
-            if (isText && !Item.isContent(item)) {
-                Integer pos = ps.pop();
+            if (dataOnly && !isData(item, sts.size() > 1)) {
+                continue;
+            }
+            boolean isContent = Item.isText(item) || (Item.isContent(item) && !dataOnly);
+            if (isText && !isContent) {
+                Long pos = ps.pop();
                 if (indexAll) {
                     index.insert(k, pos, source.getPreviousPosition(), context);
                 }
@@ -148,12 +231,12 @@ public class Index {
                 sts.pop();
                 context = sts.peek();
                 k = k.up();
-                Integer pos = ps.pop();
+                Long pos = ps.pop();
                 if (depth >= sts.size()) {
                     index.insert(k, pos, source.getCurrentPosition(), context);
                 }
                 k = k.next();
-            } else if (Item.isContent(item)) {
+            } else if (isContent) {
                 if (!isText) {
                     ps.push(source.getPreviousPosition());
                 }
@@ -237,6 +320,375 @@ public class Index {
         return build(source, false, depth);
     }
 
+
+    /**
+     * Build an element index over the data items of a source. The nodes are numbered as seen
+     * through the {@link fc.xml.xas.transform.DataItems} and
+     * {@link fc.xml.xas.transform.CoalesceContent} transforms, which is how the diff and patch tools
+     * number them: comments, processing instructions, whitespace-only text and anything outside the
+     * root element are not nodes, adjacent text is a single node, and entity references are nodes
+     * of their own. The source is assumed to be at the start of the document.
+     * @param source
+     *            the source to index
+     * @return an element index for the data items of the source
+     * @throws IOException
+     *             if reading the source fails for some reason
+     */
+    public static Index buildDataElement(SeekableSource source) throws IOException {
+        return build(source, false, true, Integer.MAX_VALUE);
+    }
+
+
+    private static boolean isData(Item item, boolean inRoot) {
+        if (item.getType() == Item.COMMENT || item.getType() == Item.PI) {
+            return false;
+        } else if (!inRoot) {
+            return Item.isStartTag(item) || Item.isDocumentDelimiter(item);
+        } else if (Item.isText(item)) {
+            String data = ((Text) item).getData();
+            for (int i = 0; i < data.length(); i++) {
+                if (data.charAt(i) > ' ' && !Character.isWhitespace(data.charAt(i))) {
+                    return true;
+                }
+            }
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+
+    /**
+     * Write this index to a stream. The stream can be read back with
+     * {@link #load(InputStream, SeekableSource)}; the format is the one described in
+     * {@link #save(File, File)}, without a source file to check against.
+     * @param out
+     *            the stream to write to
+     * @throws IOException
+     *             if writing fails
+     */
+    public void save(OutputStream out) throws IOException {
+        write(out, -1, -1);
+    }
+
+
+    /**
+     * Write this index to a file for a source file. The index is written as entries sorted by
+     * their Dewey keys, so that {@link #open(File, File, SeekableSource)} can map the file and
+     * search it without reading it in. The processing contexts of the entries are interned: two
+     * contexts with the same name, local namespace prefixes and interned context are written once.
+     * The size and modification time of the source file are recorded, so that a stale index is not
+     * used for a changed source.
+     * @param file
+     *            the file to write to
+     * @param sourceFile
+     *            the indexed document
+     * @throws IOException
+     *             if writing fails
+     */
+    public void save(File file, File sourceFile) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            write(out, sourceFile.length(), sourceFile.lastModified());
+        } finally {
+            out.close();
+        }
+    }
+
+
+    // Layout, all numbers big-endian:
+    // int version, long source length, long source time, int context count,
+    // contexts { int parent, str namespace, str name, int prefix count,
+    // prefixes { str namespace, str prefix } }, int entry count, int path ints,
+    // entries { long offset, long length, int path position, int context },
+    // paths { int length, int step... }
+    // where str is an int byte count followed by UTF-8 bytes
+    private void write(OutputStream out, long sourceLength, long sourceModified)
+            throws IOException {
+        thaw();
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+        Map<StartTag, Integer> ids = new IdentityHashMap<StartTag, Integer>();
+        Map<String, Integer> interned = new HashMap<String, Integer>();
+        List<StartTag> written = new ArrayList<StartTag>();
+        final int[][] paths = new int[store.size()][];
+        Integer[] order = new Integer[store.size()];
+        for (int slot = 0; slot < paths.length; slot++) {
+            paths[slot] = store.path(slot);
+            order[slot] = slot;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            public int compare(Integer a, Integer b) {
+                return comparePaths(paths[a], paths[b]);
+            }
+        });
+        int[] entryContexts = new int[paths.length];
+        for (int slot = 0; slot < paths.length; slot++) {
+            int context = store.context(slot);
+            entryContexts[slot] = contextId(context < 0 ? null : contexts.get(context), ids,
+                                            interned, written);
+        }
+        dout.writeInt(FORMAT_VERSION);
+        dout.writeLong(sourceLength);
+        dout.writeLong(sourceModified);
+        dout.writeInt(written.size());
+        for (StartTag st : written) {
+            dout.writeInt(contextId(st.getContext(), ids, interned, written));
+            writeString(dout, st.getName().getNamespace());
+            writeString(dout, st.getName().getName());
+            List<PrefixNode> prefixes = localPrefixes(st);
+            dout.writeInt(prefixes.size());
+            for (PrefixNode pn : prefixes) {
+                writeString(dout, pn.getNamespace());
+                writeString(dout, pn.getPrefix());
+            }
+        }
+        int pathInts = 0;
+        for (int[] path : paths) {
+            pathInts += path.length + 1;
+        }
+        dout.writeInt(paths.length);
+        dout.writeInt(pathInts);
+        int position = 0;
+        for (int slot : order) {
+            dout.writeLong(store.offset(slot));
+            dout.writeLong(store.length(slot));
+            dout.writeInt(position);
+            dout.writeInt(entryContexts[slot]);
+            position += paths[slot].length + 1;
+        }
+        for (int slot : order) {
+            dout.writeInt(paths[slot].length);
+            for (int step : paths[slot]) {
+                dout.writeInt(step);
+            }
+        }
+        dout.flush();
+    }
+
+
+    private static int comparePaths(int[] a, int[] b) {
+        for (int i = 0; i < a.length && i < b.length; i++) {
+            if (a[i] != b[i]) {
+                return a[i] < b[i] ? -1 : 1;
+            }
+        }
+        return a.length - b.length;
+    }
+
+
+    private static List<PrefixNode> localPrefixes(StartTag st) {
+        List<PrefixNode> prefixes = new ArrayList<PrefixNode>();
+        for (Iterator<PrefixNode> it = st.localPrefixes(); it.hasNext();) {
+            prefixes.add(it.next());
+        }
+        return prefixes;
+    }
+
+
+    // Contexts get ids in an order where each context follows its own context
+    private static int contextId(StartTag st, Map<StartTag, Integer> ids,
+                                 Map<String, Integer> interned, List<StartTag> contexts) {
+        if (st == null) {
+            return -1;
+        }
+        Integer id = ids.get(st);
+        if (id == null) {
+            StringBuilder key = new StringBuilder();
+            key.append(contextId(st.getContext(), ids, interned, contexts));
+            key.append('\0').append(st.getName().getNamespace());
+            key.append('\0').append(st.getName().getName());
+            for (PrefixNode pn : localPrefixes(st)) {
+                key.append('\0').append(pn.getNamespace()).append('\0').append(pn.getPrefix());
+            }
+            id = interned.get(key.toString());
+            if (id == null) {
+                id = contexts.size();
+                interned.put(key.toString(), id);
+                contexts.add(st);
+            }
+            ids.put(st, id);
+        }
+        return id;
+    }
+
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        byte[] b = new byte[buffer.getInt()];
+        buffer.get(b);
+        return new String(b, "UTF-8");
+    }
+
+
+    /**
+     * Read an index written by {@link #save(OutputStream)}.
+     * @param in
+     *            the stream to read from
+     * @param source
+     *            the source of the indexed document
+     * @return the index read
+     * @throws IOException
+     *             if reading fails or the data is not an index
+     */
+    public static Index load(InputStream in, SeekableSource source) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            bout.write(buffer, 0, n);
+        }
+        Index result = new Index(source);
+        result.read(ByteBuffer.wrap(bout.toByteArray()), null);
+        return result;
+    }
+
+
+    /**
+     * Open an index written by {@link #save(File, File)}. The file is mapped into memory, and
+     * only the processing contexts are read when opening; entries are looked up in the mapping. The
+     * returned index is thus ready for use in about the time it takes to map the file. Inserting
+     * into the returned index reads all of its entries into memory.
+     * @param file
+     *            the index file
+     * @param sourceFile
+     *            the indexed document
+     * @param source
+     *            the source of the indexed document
+     * @return the index, or <code>null</code> if the index was written for a source file of a
+     *         different size or modification time
+     * @throws IOException
+     *             if reading fails or the file is not an index
+     */
+    public static Index open(File file, File sourceFile, SeekableSource source)
+            throws IOException {
+        ByteBuffer buffer;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+        Index result = new Index(source);
+        return result.read(buffer, sourceFile) ? result : null;
+    }
+
+
+    private boolean read(ByteBuffer buffer, File sourceFile) throws IOException {
+        try {
+            if (buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown index format");
+            }
+            long sourceLength = buffer.getLong();
+            long sourceModified = buffer.getLong();
+            if (sourceFile != null &&
+                (sourceLength != sourceFile.length() || sourceModified != sourceFile.lastModified())) {
+                return false;
+            }
+            StartTag[] contexts = new StartTag[buffer.getInt()];
+            for (int i = 0; i < contexts.length; i++) {
+                int parent = buffer.getInt();
+                if (parent >= i) {
+                    throw new IOException("Invalid index context " + parent);
+                }
+                StartTag st = new StartTag(new Qname(readString(buffer), readString(buffer)),
+                                           parent < 0 ? null : contexts[parent]);
+                for (int n = buffer.getInt(); n > 0; n--) {
+                    st.addPrefix(readString(buffer), readString(buffer));
+                }
+                contexts[i] = st;
+            }
+            int count = buffer.getInt();
+            int pathInts = buffer.getInt();
+            if (count < 0 || pathInts < 0 ||
+                buffer.remaining() != (long) count * ENTRY_SIZE + (long) pathInts * 4) {
+                throw new IOException("Truncated index");
+            }
+            this.entries = buffer.slice();
+            this.entryCount = count;
+            this.pathBase = count * ENTRY_SIZE;
+            this.mappedContexts = contexts;
+            this.store = null;
+            this.contexts = null;
+            this.contextIds = null;
+            return true;
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated index");
+        }
+    }
+
+
+    private Entry findMapped(DeweyKey key) {
+        int[] path = key.deconstruct();
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compareMapped(mid, path);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mappedEntry(mid);
+            }
+        }
+        return null;
+    }
+
+
+    private int compareMapped(int i, int[] path) {
+        int position = pathBase + 4 * entries.getInt(i * ENTRY_SIZE + 16);
+        int length = entries.getInt(position);
+        for (int j = 0; j < length && j < path.length; j++) {
+            int step = entries.getInt(position + 4 * (j + 1));
+            if (step != path[j]) {
+                return step < path[j] ? -1 : 1;
+            }
+        }
+        return length - path.length;
+    }
+
+
+    private Entry mappedEntry(int i) {
+        int base = i * ENTRY_SIZE;
+        int context = entries.getInt(base + 20);
+        return new Entry(entries.getLong(base), entries.getLong(base + 8),
+                         context < 0 ? null : mappedContexts[context]);
+    }
+
+
+    // Read a mapped index into memory so that it can be modified
+    private void thaw() {
+        if (store == null) {
+            store = new EntryStore();
+            contexts = new ArrayList<StartTag>(Arrays.asList(mappedContexts));
+            contextIds = new IdentityHashMap<StartTag, Integer>();
+            for (int i = 0; i < mappedContexts.length; i++) {
+                contextIds.put(mappedContexts[i], i);
+            }
+            for (int i = 0; i < entryCount; i++) {
+                int base = i * ENTRY_SIZE;
+                int position = pathBase + 4 * entries.getInt(base + 16);
+                int[] path = new int[entries.getInt(position)];
+                for (int j = 0; j < path.length; j++) {
+                    path[j] = entries.getInt(position + 4 * (j + 1));
+                }
+                store.put(path, entries.getLong(base), entries.getLong(base + 8),
+                          entries.getInt(base + 20));
+            }
+            entries = null;
+            mappedContexts = null;
+        }
+    }
+
     /**
      * The class representing an index entry. The offsets are otherwise byte-oriented except that
      * the starting offset for an entry representing the complete document is <code>-1</code>
@@ -245,12 +697,12 @@ public class Index {
      */
     public static class Entry {
 
-        private int offset;
-        private int length;
+        private long offset;
+        private long length;
         private StartTag context;
 
 
-        public Entry(int offset, int length, StartTag context) {
+        public Entry(long offset, long length, StartTag context) {
             this.offset = offset;
             this.length = length;
             this.context = context;
@@ -260,7 +712,7 @@ public class Index {
         /**
          * Get the starting offset of the entry.
          */
-        public int getOffset() {
+        public long getOffset() {
             return offset;
         }
 
@@ -268,7 +720,7 @@ public class Index {
         /**
          * Get the length of the entry.
          */
-        public int getLength() {
+        public long getLength() {
             return length;
         }
 
@@ -276,7 +728,7 @@ public class Index {
         /**
          * Get the ending offset of the entry.
          */
-        public int getEnd() {
+        public long getEnd() {
             return offset + length;
         }
 
@@ -9,15 +9,25 @@
 
 package fc.xml.xas.index;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Stack;
 
 import fc.util.IOUtil;
+import fc.util.RaInputStream;
 import fc.util.Util;
 import fc.util.log.Log;
 import fc.util.log.LogLevels;
@@ -29,6 +39,7 @@ import fc.xml.xas.ParserSource;
 import fc.xml.xas.Queryable;
 import fc.xml.xas.SerializerTarget;
 import fc.xml.xas.StartTag;
+import fc.xml.xas.TargetOutputStream;
 import fc.xml.xas.Verifier;
 import fc.xml.xas.XasFragment;
 
@@ -71,20 +82,111 @@ public class LazyFragment extends FragmentItem implements Queryable {
     }
 
 
-    private static void copyStream(InputStream in, String inEncoding, int length, OutputStream out,
-                                   String outEncoding) throws IOException {
+    private static void copyStream(InputStream in, String inEncoding, long offset, long length,
+                                   OutputStream out, String outEncoding) throws IOException {
         if (Log.isEnabled(LogLevels.TRACE)) {
-            Log.log("copyStream(" + in + ", " + inEncoding + ", " + length + ", " + out + ", " +
-                    outEncoding + ")", LogLevels.TRACE);
+            Log.log("copyStream(" + in + ", " + inEncoding + ", " + offset + ", " + length + ", " +
+                    out + ", " + outEncoding + ")", LogLevels.TRACE);
         }
         if (inEncoding.equalsIgnoreCase(outEncoding)) {
-            IOUtil.copyStream(in, out, length);
-            out.flush();
+            WritableByteChannel channel = out instanceof TargetOutputStream
+                    ? ((TargetOutputStream) out).getChannel() : null;
+            if (in instanceof RaInputStream && channel != null) {
+                FileChannel file = ((RaInputStream) in).getChannel();
+                for (long done = 0; done < length;) {
+                    long n = file.transferTo(offset + done, length - done, channel);
+                    if (n <= 0) {
+                        throw new EOFException("Fragment ends past end of source at " +
+                                               (offset + done));
+                    }
+                    done += n;
+                }
+            } else {
+                IOUtil.copyStream(in, out, length);
+                out.flush();
+            }
         } else {
-            throw new UnsupportedOperationException("Input charset=" + inEncoding +
-                                                    ", output charset=" + outEncoding +
-                                                    " differ, not implemented yet");
+            transcode(in, Charset.forName(inEncoding), length, out, Charset.forName(outEncoding));
+            out.flush();
+        }
+    }
+
+
+    // Characters that the output encoding cannot represent are written as character references.
+    // This is only valid in content, so a fragment with such characters in its names will not be
+    // well-formed, but neither would it be if serialized item by item.
+    private static void transcode(InputStream in, Charset inCharset, long length,
+                                  OutputStream out, Charset outCharset) throws IOException {
+        // A fragment is in the middle of a document, so it must not start with a byte order mark
+        if (outCharset.name().equals("UTF-16")) {
+            outCharset = Charset.forName("UTF-16BE");
+        }
+        CharsetDecoder decoder = inCharset.newDecoder();
+        CharsetEncoder encoder = outCharset.newEncoder();
+        ByteBuffer input = ByteBuffer.allocate(8192);
+        CharBuffer chars = CharBuffer.allocate(8192);
+        ByteBuffer output = ByteBuffer.allocate(8192);
+        long left = length;
+        boolean end = false;
+        while (!end) {
+            int n = left > 0 ? in.read(input.array(), input.position(),
+                                       (int) Math.min(input.remaining(), left)) : -1;
+            if (n > 0) {
+                input.position(input.position() + n);
+                left -= n;
+            }
+            end = n < 0;
+            input.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(input, chars, end);
+                if (result.isError()) {
+                    result.throwException();
+                }
+                chars.flip();
+                encode(encoder, chars, output, out, end && result.isUnderflow());
+                chars.compact();
+            } while (result.isOverflow());
+            input.compact();
         }
+        CoderResult result;
+        do {
+            result = decoder.flush(chars);
+            chars.flip();
+            encode(encoder, chars, output, out, true);
+            chars.compact();
+        } while (result.isOverflow());
+        while (encoder.flush(output).isOverflow()) {
+            drain(output, out);
+        }
+        drain(output, out);
+    }
+
+
+    private static void encode(CharsetEncoder encoder, CharBuffer chars, ByteBuffer output,
+                               OutputStream out, boolean end) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(chars, output, end);
+            if (result.isUnmappable()) {
+                CharBuffer ref = CharBuffer.wrap("&#" + Character.codePointAt(chars, 0) + ";");
+                chars.position(chars.position() + result.length());
+                while (encoder.encode(ref, output, false).isOverflow()) {
+                    drain(output, out);
+                }
+            } else if (result.isMalformed()) {
+                result.throwException();
+            } else if (result.isOverflow()) {
+                drain(output, out);
+            } else {
+                return;
+            }
+        }
+    }
+
+
+    private static void drain(ByteBuffer output, OutputStream out) throws IOException {
+        out.write(output.array(), 0, output.position());
+        output.clear();
     }
 
 
@@ -110,10 +212,16 @@ public class LazyFragment extends FragmentItem implements Queryable {
                 Index.Entry entry = index.find(key);
                 ParserSource ps = (ParserSource) source;
                 SerializerTarget st = (SerializerTarget) target;
+                if (entry.getOffset() < 0 && !ps.getEncoding().equalsIgnoreCase(st.getEncoding())) {
+                    // The XML declaration of the document names the source encoding
+                    forceAll();
+                    super.appendTo(target);
+                    return;
+                }
                 st.flush();
                 source.setPosition(entry.getOffset(), entry.getContext());
-                copyStream(ps.getInputStream(), ps.getEncoding(), entry.getLength(),
-                           st.getOutputStream(), st.getEncoding());
+                copyStream(ps.getInputStream(), ps.getEncoding(), Math.max(entry.getOffset(), 0),
+                           entry.getLength(), st.getOutputStream(), st.getEncoding());
                 source.setPosition(entry.getEnd(), entry.getContext());
             }
         }
@@ -155,8 +263,10 @@ public class LazyFragment extends FragmentItem implements Queryable {
             Log.log("entry=" + entry, LogLevels.TRACE);
         }
         source.setPosition(entry.getOffset(), entry.getContext());
-        int end = entry.getEnd();
-        while (source.getCurrentPosition() < end) {
+        long end = entry.getEnd();
+        // The end tag of an empty element is at the same position as its
+        // start tag, so keep reading while an element is open
+        while (source.getCurrentPosition() < end || current > 0) {
             if (Log.isEnabled(LogLevels.TRACE)) {
                 Log.log("force, pos=" + source.getCurrentPosition() + ", end=" + end,
                         LogLevels.TRACE);
@@ -201,7 +311,7 @@ public class LazyFragment extends FragmentItem implements Queryable {
     }
 
 
-    private void passLevel(DeweyKey k, StartTag context, int end) throws IOException {
+    private void passLevel(DeweyKey k, StartTag context, long end) throws IOException {
         if (Log.isEnabled(LogLevels.TRACE)) {
             Log.log("passLevel(" + k + ", " + end + ")", LogLevels.TRACE);
         }
@@ -254,7 +364,7 @@ public class LazyFragment extends FragmentItem implements Queryable {
     }
 
 
-    private void passUntil(DeweyKey k, StartTag context, int end) throws IOException {
+    private void passUntil(DeweyKey k, StartTag context, long end) throws IOException {
         if (Log.isEnabled(LogLevels.TRACE)) {
             Log.log("passUntil(" + k + ", " + context + ", " + end + ")", LogLevels.TRACE);
         }
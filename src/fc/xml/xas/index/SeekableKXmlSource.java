@@ -77,17 +77,17 @@ public class SeekableKXmlSource implements SeekableParserSource {
     }
 
 
-    public int getCurrentPosition() {
+    public long getCurrentPosition() {
         return parser.getStreamPos();
     }
 
 
-    public int getPreviousPosition() {
+    public long getPreviousPosition() {
         return parser.getPrevPos();
     }
 
 
-    public void setPosition(int pos, StartTag context) throws IOException {
+    public void setPosition(long pos, StartTag context) throws IOException {
         try {
             parser.reposition(pos, context);
         } catch (XmlPullParserException ex) {
@@ -21,14 +21,15 @@ import fc.xml.xas.StartTag;
 public interface SeekableSource extends ItemSource {
 
     /**
-     * Get the position at which the underlying source is currently.
+     * Get the position at which the underlying source is currently. Positions are byte offsets, and
+     * may exceed the range of an <code>int</code> for large documents.
      */
-    int getCurrentPosition();
+    long getCurrentPosition();
 
 
     /**
      * Get the position at which the underlying source was before the latest item. This method can
-     * not be called immediately after a call to {@link #setPosition(int, StartTag)}. Rather, there
+     * not be called immediately after a call to {@link #setPosition(long, StartTag)}. Rather, there
      * must be a call to {@link #next()} in between. The code sequences
      * 
      * <pre>
@@ -38,7 +39,7 @@ public interface SeekableSource extends ItemSource {
      * 
      * 
      * 
-     * int pos = source.getCurrentPosition();
+     * long pos = source.getCurrentPosition();
      * Item i = source.next();
      * </pre>
      * 
@@ -52,12 +53,12 @@ public interface SeekableSource extends ItemSource {
      * 
      * 
      * Item i = source.next();
-     * int pos = source.getPreviousPosition();
+     * long pos = source.getPreviousPosition();
      * </pre>
      * 
      * have equivalent effects, assuming that <code>i != null</code>.
      */
-    int getPreviousPosition();
+    long getPreviousPosition();
 
 
     /**
@@ -72,7 +73,7 @@ public interface SeekableSource extends ItemSource {
      * @throws IOException
      *             if setting the position fails
      */
-    void setPosition(int pos, StartTag context) throws IOException;
+    void setPosition(long pos, StartTag context) throws IOException;
 
 
     public void close() throws IOException;
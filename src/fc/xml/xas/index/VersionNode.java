@@ -9,6 +9,13 @@
 
 package fc.xml.xas.index;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import fc.util.Util;
 import fc.util.log.Log;
 import fc.util.log.LogLevels;
@@ -16,6 +23,20 @@ import fc.xml.xas.FragmentPointer;
 import fc.xml.xas.StartTag;
 import fc.xml.xas.Verifier;
 
+/**
+ * A node in the version chain of a {@link VersionedDocument}. Each node except the last one, the
+ * sentinel, records one edit of the document, and pointers bring themselves up to date by applying
+ * the edits from the node of their version to the sentinel.
+ * <p>
+ * To avoid replaying a long chain for a pointer that most of the edits do not touch, the nodes
+ * also form a skip structure. Node <i>n</i> in the chain has a span of 2<sup><i>l</i></sup> edits
+ * for each <i>l</i> such that 2<sup><i>l</i></sup> divides <i>n</i>, once all the edits of the
+ * span have been made. A span records, for each parent key of its edits, the least child index
+ * that its edits may change, so a key that none of the edits in a span change can jump over the
+ * whole span. A key is thus updated in a logarithmic number of steps in addition to the edits that
+ * actually change it. Spans are only linked from their first node, so edits that no pointer can
+ * reach any more are not kept alive by the spans.
+ */
 public class VersionNode {
 
     private static enum Kind {
@@ -31,6 +52,10 @@ public class VersionNode {
     private Index.Entry targetEntry;
     private boolean isAfter;
     private VersionNode next;
+    // spans[l] covers the 2^l edits starting from this one, spans[0] only this edit
+    private Span[] spans;
+    // In the sentinel, the completed runs of edits not yet part of a larger span
+    private List<Run> open;
 
 
     private VersionNode make(Kind kind, DeweyKey source, FragmentPointer sourcePointer,
@@ -46,6 +71,20 @@ public class VersionNode {
         this.targetPointer = copy(targetPointer);
         this.isAfter = isAfter;
         this.next = new VersionNode();
+        Run run = new Run(this);
+        spans = new Span[] { new Span(run.limits, next) };
+        List<Run> runs = open != null ? open : new ArrayList<Run>();
+        open = null;
+        while (!runs.isEmpty() && runs.get(runs.size() - 1).level == run.level) {
+            run = new Run(runs.remove(runs.size() - 1), run);
+            VersionNode start = run.start.get();
+            if (start != null && run.limits != null) {
+                start.spans = Arrays.copyOf(start.spans, run.level + 1);
+                start.spans[run.level] = new Span(run.limits, next);
+            }
+        }
+        runs.add(run);
+        next.open = runs;
         return next;
     }
 
@@ -69,6 +108,29 @@ public class VersionNode {
     }
 
 
+    /**
+     * Skip the edits that do not change a key. The edits are skipped in spans, so the returned
+     * node may be followed by edits that do not change the key either.
+     * @param key
+     *            the key to skip edits for, or <code>null</code> to skip all edits
+     * @return the first node from this one whose edit may change <code>key</code>, or the sentinel
+     */
+    VersionNode skip(DeweyKey key) {
+        VersionNode node = this;
+        while (!node.isSentinel()) {
+            int level = node.spans.length - 1;
+            while (level >= 0 && key != null && node.spans[level].limits.changes(key)) {
+                level -= 1;
+            }
+            if (level < 0) {
+                break;
+            }
+            node = node.spans[level].end;
+        }
+        return node;
+    }
+
+
     public DeweyKey update(DeweyKey key) {
         if (key == null) { return null; }
         DeweyKey result = key;
@@ -140,7 +202,7 @@ public class VersionNode {
     }
 
 
-    private boolean between(int offset1, int offset2, int length2, int length1) {
+    private boolean between(long offset1, long offset2, long length2, long length1) {
         return offset1 <= offset2 && offset2 + length2 <= offset1 + length1;
     }
 
@@ -148,11 +210,11 @@ public class VersionNode {
     public Index.Entry update(Index.Entry entry) {
         if (entry == null) { return null; }
         Index.Entry result = entry;
-        int offset = entry.getOffset();
-        int length = entry.getLength();
+        long offset = entry.getOffset();
+        long length = entry.getLength();
         StartTag context = entry.getContext();
-        int newOffset = offset;
-        int newLength = length;
+        long newOffset = offset;
+        long newLength = length;
         StartTag newContext = context;
         switch (kind) {
             case INSERT:
@@ -244,6 +306,121 @@ public class VersionNode {
                ")";
     }
 
+
+    /*
+     * A skip link over the edits from a node up to, but not including, the end node.
+     */
+    private static class Span {
+
+        private final Limits limits;
+        private final VersionNode end;
+
+
+        Span(Limits limits, VersionNode end) {
+            this.limits = limits;
+            this.end = end;
+        }
+
+    }
+
+    /*
+     * A completed run of 2^level edits, kept in the sentinel until it is merged into a larger run.
+     * A run refers to its first node only weakly, and not at all to the node after it, so that the
+     * sentinel does not keep alive edits that no pointer can reach any more. The limits of a run
+     * whose first node has been collected are not needed, and are not computed.
+     */
+    private static class Run {
+
+        private final WeakReference<VersionNode> start;
+        private final Limits limits;
+        private final int level;
+
+
+        Run(VersionNode node) {
+            start = new WeakReference<VersionNode>(node);
+            limits = new Limits(node);
+            level = 0;
+        }
+
+
+        Run(Run first, Run second) {
+            start = first.start;
+            level = first.level + 1;
+            if (first.limits != null && second.limits != null && start.get() != null) {
+                limits = new Limits(first.limits, second.limits);
+            } else {
+                limits = null;
+            }
+        }
+
+    }
+
+    /*
+     * The keys that a run of edits may change. An edit only changes keys that are at or below a
+     * child of the parent of its key with at least a given index: an insert changes the following
+     * siblings of its key, a delete the deleted key and its following siblings, and a move the
+     * same keys as a delete of its source and an insert at its target. A key that no edit in a run
+     * changes stays the same throughout the run, so the limits of a run are just the least limits
+     * of its edits.
+     */
+    private static class Limits {
+
+        private final Map<DeweyKey, Integer> limits;
+        private final boolean all;
+
+
+        Limits(VersionNode node) {
+            limits = new HashMap<DeweyKey, Integer>();
+            all = node.source.isRoot() || (node.target != null && node.target.isRoot());
+            if (!all) {
+                switch (node.kind) {
+                    case INSERT:
+                        limit(node.source.up(), node.source.getLastStep() + 1);
+                        break;
+                    case DELETE:
+                        limit(node.source.up(), node.source.getLastStep());
+                        break;
+                    case MOVE:
+                        limit(node.source.up(), node.source.getLastStep());
+                        limit(node.target.up(), node.target.getLastStep() + 1);
+                        break;
+                }
+            }
+        }
+
+
+        Limits(Limits first, Limits second) {
+            all = first.all || second.all;
+            limits = new HashMap<DeweyKey, Integer>(first.limits);
+            for (Map.Entry<DeweyKey, Integer> e : second.limits.entrySet()) {
+                limit(e.getKey(), e.getValue());
+            }
+        }
+
+
+        private void limit(DeweyKey parent, int index) {
+            Integer old = limits.get(parent);
+            if (old == null || index < old) {
+                limits.put(parent, index);
+            }
+        }
+
+
+        boolean changes(DeweyKey key) {
+            if (all) {
+                return true;
+            }
+            for (DeweyKey k = key; !k.isRoot(); k = k.up()) {
+                Integer limit = limits.get(k.up());
+                if (limit != null && k.getLastStep() >= limit) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
 }
 
 // arch-tag: 1fd67d0c-1c17-455a-9eb3-4fa3e4ddb638
@@ -51,6 +51,7 @@ public class VersionedPointer extends GlobalPointer {
         if (Log.isEnabled(LogLevels.TRACE)) {
             Log.log("directUpdate()", LogLevels.TRACE);
         }
+        current = current.skip(pointer != null ? key : null);
         while (!current.isSentinel()) {
             Log.log("Current", LogLevels.TRACE, current);
             if (pointer != null) {
@@ -76,7 +77,7 @@ public class VersionedPointer extends GlobalPointer {
                     }
                 }
             }
-            current = current.getNext();
+            current = current.getNext().skip(pointer != null ? key : null);
         }
     }
 
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2006 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-core-users@hoslab.cs.helsinki.fi.
+ */
+
+package fuegocore.message.encoding;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A growable byte buffer for encoding Xebu output. The buffer is reused across flushes, and its
+ * methods encode integers and strings straight into it without allocating. Strings are encoded
+ * either one byte per character, with characters outside <code>ISO-8859-1</code> replaced by
+ * <code>'?'</code>, or in UTF-8.
+ */
+final class XebuBuffer {
+
+    private byte[] bytes;
+    private int length = 0;
+    private ByteBuffer wrapper;
+    private char[] chars;
+
+
+    XebuBuffer(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+
+    private void ensure(int n) {
+        if (length + n > bytes.length) {
+            byte[] newBytes = new byte[Math.max(length + n, 2 * bytes.length)];
+            System.arraycopy(bytes, 0, newBytes, 0, length);
+            bytes = newBytes;
+        }
+    }
+
+
+    int length() {
+        return length;
+    }
+
+
+    void setLength(int length) {
+        this.length = length;
+    }
+
+
+    void put(int b) {
+        ensure(1);
+        bytes[length++] = (byte) b;
+    }
+
+
+    void put(byte[] b, int offset, int len) {
+        ensure(len);
+        System.arraycopy(b, offset, bytes, length, len);
+        length += len;
+    }
+
+
+    void putNormalShort(short s) {
+        ensure(2);
+        XebuUtil.putNormalShort(s, bytes, length);
+        length += 2;
+    }
+
+
+    void putNormalLong(long l) {
+        ensure(8);
+        XebuUtil.putNormalLong(l, bytes, length);
+        length += 8;
+    }
+
+
+    void putCompressedInt(int i) {
+        ensure(5);
+        length += XebuUtil.putCompressedInt(i, bytes, length);
+    }
+
+
+    /**
+     * Return the number of bytes that {@link #putString} writes for a string.
+     */
+    static int encodedLength(String s, boolean utf8) {
+        int n = s.length();
+        if (!utf8) { return n; }
+        int result = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                result += 1;
+            } else if (c < 0x800) {
+                result += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n &&
+                       Character.isLowSurrogate(s.charAt(i + 1))) {
+                result += 4;
+                i += 1;
+            } else if (Character.isSurrogate(c)) {
+                result += 1;
+            } else {
+                result += 3;
+            }
+        }
+        return result;
+    }
+
+
+    void putString(String s, boolean utf8) {
+        int n = s.length();
+        ensure(utf8 ? 3 * n : n);
+        byte[] b = bytes;
+        int pos = length;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b[pos++] = (byte) c;
+            } else if (!utf8) {
+                b[pos++] = (byte) (c < 0x100 ? c : '?');
+            } else if (c < 0x800) {
+                b[pos++] = (byte) (0xC0 | (c >> 6));
+                b[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n &&
+                       Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[pos++] = (byte) (0xF0 | (cp >> 18));
+                b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                b[pos++] = (byte) '?';
+            } else {
+                b[pos++] = (byte) (0xE0 | (c >> 12));
+                b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        length = pos;
+    }
+
+
+    /**
+     * Return the number of bytes that {@link #putBytes} writes for the contents of a buffer.
+     */
+    int encodedLength(boolean utf8) {
+        int result = length;
+        if (utf8) {
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] < 0) {
+                    result += 1;
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Append the contents of another buffer as a string of its bytes. In UTF-8 each byte above
+     * <code>0x7F</code> becomes two bytes.
+     */
+    void putBytes(XebuBuffer other, boolean utf8) {
+        if (!utf8) {
+            put(other.bytes, 0, other.length);
+            return;
+        }
+        ensure(2 * other.length);
+        for (int i = 0; i < other.length; i++) {
+            int c = other.bytes[i] & 0xFF;
+            if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else {
+                bytes[length++] = (byte) (0xC0 | (c >> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+
+    /*
+     * Write each byte as the character with the same value.
+     */
+    void writeTo(Writer writer) throws IOException {
+        if (chars == null || chars.length < length) {
+            chars = new char[bytes.length];
+        }
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (bytes[i] & 0xFF);
+        }
+        writer.write(chars, 0, length);
+    }
+
+
+    void writeTo(WritableByteChannel channel) throws IOException {
+        if (wrapper == null || wrapper.array() != bytes) {
+            wrapper = ByteBuffer.wrap(bytes);
+        }
+        wrapper.clear();
+        wrapper.limit(length);
+        while (wrapper.hasRemaining()) {
+            channel.write(wrapper);
+        }
+    }
+
+}
@@ -200,6 +200,19 @@ public class XebuConstants {
      */
     public static final int FLAG_SEQUENCE_CACHING = 0x20;
 
+    /**
+     * The name of the feature to write strings in UTF-8. Normally each character of a string is
+     * written as one byte, so only ISO-8859-1 text survives. With this feature the UTF-8 bytes of
+     * strings are written instead, and string lengths count bytes.
+     */
+    public static final String FEATURE_UTF8_STRINGS = "http://www.hiit.fi/fuego/fc/xebu/utf8-strings";
+
+    /**
+     * The flag to use with the {@link #DOCUMENT} token to indicate that strings in the document
+     * are in UTF-8.
+     */
+    public static final int FLAG_UTF8_STRINGS = 0x10;
+
     /**
      * The property to use for setting the initial item caches.
      */
@@ -0,0 +1,1100 @@
+/*
+ * Copyright 2006 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-core-users@hoslab.cs.helsinki.fi.
+ */
+
+package fuegocore.message.encoding;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.TimeZone;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import fuegocore.util.Base64;
+import fuegocore.util.Util;
+import fuegocore.util.xas.Event;
+import fuegocore.util.xas.EventList;
+import fuegocore.util.xas.EventSequence;
+import fuegocore.util.xas.TypedXmlParser;
+import fuegocore.util.xas.XasUtil;
+
+/**
+ * A parser for Xebu documents. This class reads documents written by {@link XebuSerializer} and
+ * reports them through the {@link TypedXmlParser} interface. The caching features in use are read
+ * from the flags of the document start token, so no features need to be set on the parser. The
+ * caches live as long as the parser, so a parser may read a series of documents written by one
+ * serializer.
+ * <p>
+ * The document is read from a byte buffer. Names and values are decoded into strings once, when
+ * they are first written, and later references to them are served from the item caches. The item
+ * caches are rebuilt from the cache values written with each cached item. The sequence cache
+ * assigns its values implicitly, also for elements that the serializer dropped from the output
+ * when fetching an enclosing sequence, so the parser keeps a {@link SequenceCache} of its own and
+ * drives it with the same events as the serializer. The parser must therefore be given the same
+ * {@link XebuConstants#PROPERTY_SEQUENCE_CACHE_DEPTH} as the serializer, if it was changed.
+ * <p>
+ * Typed content written with {@link XebuSerializer#typedContent} is reported as an
+ * {@link #OBJECT} event, whose type is available from {@link #getNamespace()} and
+ * {@link #getName}. {@link #getText} returns its XML Schema lexical form. The parser always
+ * processes namespaces. Text written in several pieces is reported as a single {@link #TEXT}
+ * event, as is text with entity references resolved by {@link #next}.
+ */
+public class XebuParser implements TypedXmlParser {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private InputStream in;
+    private byte[] buf = new byte[8192];
+    private int pos = 0;
+    private int limit = 0;
+
+    private boolean started = false;
+    private boolean cacheItem = false;
+    private boolean cacheContent = false;
+    private boolean cacheSequence = false;
+    private Charset charset = LATIN1;
+
+    private String[] namespaces = new String[XebuConstants.CACHE_SIZE];
+    private String[] nameNamespaces = new String[XebuConstants.CACHE_SIZE];
+    private String[] names = new String[XebuConstants.CACHE_SIZE];
+    private String[] valueNamespaces = new String[XebuConstants.CACHE_SIZE];
+    private String[] valueNames = new String[XebuConstants.CACHE_SIZE];
+    private String[] values = new String[XebuConstants.CACHE_SIZE];
+    private String[] contents = new String[XebuConstants.CACHE_SIZE];
+
+    private SequenceCache sequenceCache = new SequenceCache();
+    private int elemDepth = 1;
+    // Events of a fetched sequence or of multiple typed values still to be reported
+    private Enumeration replay;
+    private Event replayNext;
+
+    private int type = START_DOCUMENT;
+    private int depth = 0;
+    private String[] elementStack = new String[16];
+    private String[] namespaceStack = new String[8];
+    private int[] namespaceCounts = new int[4];
+    private String[] attributes = new String[12];
+    private int attributeCount = 0;
+    private String[] typeNames = new String[2];
+    private int typeCount = 0;
+    private String namespace;
+    private String name;
+    private String text;
+    private Object object;
+
+    // Name and namespace of the last name read
+    private String readNamespace;
+    private String readName;
+
+
+    public XebuParser() {
+    }
+
+
+    private XmlPullParserException error(String message) {
+        return new XmlPullParserException(message, this, null);
+    }
+
+
+    /*
+     * Make at least n bytes available in buf starting from pos, returning false if the document
+     * ends before that.
+     */
+    private boolean fill(int n) throws IOException {
+        if (limit - pos >= n) { return true; }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (n > buf.length) {
+            byte[] newBuf = new byte[Math.max(n, 2 * buf.length)];
+            System.arraycopy(buf, 0, newBuf, 0, limit);
+            buf = newBuf;
+        }
+        while (limit < n) {
+            int count = in.read(buf, limit, buf.length - limit);
+            if (count < 0) { return false; }
+            limit += count;
+        }
+        return true;
+    }
+
+
+    private int read() throws IOException {
+        if (pos == limit && !fill(1)) { return -1; }
+        return buf[pos++] & 0xFF;
+    }
+
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill(1)) { return -1; }
+        return buf[pos] & 0xFF;
+    }
+
+
+    private int readByte() throws XmlPullParserException, IOException {
+        if (pos == limit && !fill(1)) { throw error("Unexpected end of document"); }
+        return buf[pos++] & 0xFF;
+    }
+
+
+    private int readCompressedInt() throws XmlPullParserException, IOException {
+        int first = readByte();
+        int result;
+        if ((first & 0x80) == 0) {
+            result = first;
+        } else if ((first & 0xC0) == 0x80) {
+            result = ((first & 0x3F) << 8) | readByte();
+        } else {
+            result = readNormalInt();
+        }
+        return result;
+    }
+
+
+    private int readNormalInt() throws XmlPullParserException, IOException {
+        if (!fill(4)) { throw error("Unexpected end of document"); }
+        int result = 0;
+        for (int i = 0; i < 4; i++) {
+            result = (result << 8) | (buf[pos++] & 0xFF);
+        }
+        return result;
+    }
+
+
+    private long readNormalLong() throws XmlPullParserException, IOException {
+        long high = readNormalInt() & 0xFFFFFFFFL;
+        return (high << 32) | (readNormalInt() & 0xFFFFFFFFL);
+    }
+
+
+    private byte[] readBytes(int len) throws XmlPullParserException, IOException {
+        if (!fill(len)) { throw error("Unexpected end of document"); }
+        byte[] result = new byte[len];
+        System.arraycopy(buf, pos, result, 0, len);
+        pos += len;
+        return result;
+    }
+
+
+    private String readString(int len) throws XmlPullParserException, IOException {
+        if (!fill(len)) { throw error("Unexpected end of document"); }
+        String result = new String(buf, pos, len, charset);
+        pos += len;
+        return result;
+    }
+
+
+    private String readData() throws XmlPullParserException, IOException {
+        return readString(readCompressedInt());
+    }
+
+
+    private String readDataEscape() throws XmlPullParserException, IOException {
+        return readString(readByte());
+    }
+
+
+    private String readNamespace(int token) throws XmlPullParserException, IOException {
+        if ((token & XebuConstants.VALUE_FETCH) == XebuConstants.NAMESPACE_FETCH) {
+            return namespaces[readByte()];
+        } else {
+            int value = cacheItem ? readByte() : -1;
+            String ns = readDataEscape();
+            if (value >= 0) {
+                namespaces[value] = ns;
+            }
+            return ns;
+        }
+    }
+
+
+    /*
+     * Read a name into readNamespace and readName.
+     */
+    private void readName(int token) throws XmlPullParserException, IOException {
+        if ((token & XebuConstants.VALUE_FETCH) == XebuConstants.NAME_FETCH) {
+            int value = readByte();
+            readNamespace = nameNamespaces[value];
+            readName = names[value];
+        } else {
+            readNamespace = readNamespace(token);
+            int value = cacheItem ? readByte() : -1;
+            readName = readDataEscape();
+            if (value >= 0) {
+                nameNamespaces[value] = readNamespace;
+                names[value] = readName;
+            }
+        }
+        if (readNamespace == null || readName == null) { throw error("Unknown cached name"); }
+    }
+
+
+    private void readAttribute(int token) throws XmlPullParserException, IOException {
+        String value;
+        if ((token & XebuConstants.VALUE_FETCH) == XebuConstants.VALUE_FETCH) {
+            int v = readByte();
+            readNamespace = valueNamespaces[v];
+            readName = valueNames[v];
+            value = values[v];
+            if (value == null) { throw error("Unknown cached attribute"); }
+        } else {
+            readName(token);
+            int v = cacheContent ? readByte() : -1;
+            value = readDataEscape();
+            if (v >= 0) {
+                valueNamespaces[v] = readNamespace;
+                valueNames[v] = readName;
+                values[v] = value;
+            }
+        }
+        addAttribute(readNamespace, readName, value);
+    }
+
+
+    private String readContent(int token) throws XmlPullParserException, IOException {
+        String result;
+        if ((token & XebuConstants.VALUE_FETCH) == XebuConstants.VALUE_FETCH) {
+            result = contents[readByte()];
+            if (result == null) { throw error("Unknown cached content"); }
+        } else if (cacheContent) {
+            int value = readByte();
+            result = readData();
+            contents[value] = result;
+        } else {
+            result = readData();
+        }
+        if (isCaching()) {
+            sequenceCache.next(Event.createContent(result));
+        }
+        return result;
+    }
+
+
+    private void readDocumentStart() throws XmlPullParserException, IOException {
+        int token = read();
+        if (token < 0 || (token & XebuConstants.TOKEN_SPACE) != XebuConstants.DOCUMENT) {
+            throw error("Not a Xebu document");
+        }
+        cacheItem = (token & XebuConstants.FLAG_ITEM_CACHING) != 0;
+        cacheContent = (token & XebuConstants.FLAG_CONTENT_CACHING) != 0;
+        cacheSequence = (token & XebuConstants.FLAG_SEQUENCE_CACHING) != 0;
+        charset = (token & XebuConstants.FLAG_UTF8_STRINGS) != 0 ? UTF8 : LATIN1;
+        started = true;
+    }
+
+
+    /*
+     * Whether events at the current depth go into the sequence cache, as decided by the
+     * serializer.
+     */
+    private boolean isCaching() {
+        return cacheSequence && depth > elemDepth;
+    }
+
+
+    private void declarePrefix(String namespace, String prefix) {
+        int current = namespaceCounts[depth + 1];
+        namespaceStack = Util.ensureCapacity(namespaceStack, 2 * (current + 1));
+        namespaceStack[2 * current] = namespace;
+        namespaceStack[2 * current + 1] = prefix;
+        namespaceCounts[depth + 1] += 1;
+        if (isCaching()) {
+            sequenceCache.next(Event.createNamespacePrefix(namespace, prefix));
+        }
+    }
+
+
+    private void startElement(String namespace, String name) {
+        depth += 1;
+        elementStack = Util.ensureCapacity(elementStack, 2 * depth);
+        elementStack[2 * depth - 2] = this.namespace = namespace;
+        elementStack[2 * depth - 1] = this.name = name;
+        namespaceCounts = Util.ensureCapacity(namespaceCounts, depth + 2);
+        namespaceCounts[depth + 1] = namespaceCounts[depth];
+        attributeCount = 0;
+        typeCount = 0;
+        if (isCaching()) {
+            sequenceCache.start();
+            sequenceCache.next(Event.createStartElement(namespace, name));
+        }
+    }
+
+
+    private void addAttribute(String namespace, String name, String value) {
+        attributes = Util.ensureCapacity(attributes, 3 * (attributeCount + 1));
+        attributes[3 * attributeCount] = namespace;
+        attributes[3 * attributeCount + 1] = name;
+        attributes[3 * attributeCount + 2] = value;
+        attributeCount += 1;
+        if (XasUtil.XSI_NAMESPACE.equals(namespace) && "type".equals(name)) {
+            // Typed content is always of an XML Schema type with the prefix the serializer knew
+            typeNames = Util.ensureCapacity(typeNames, typeCount + 1);
+            typeNames[typeCount++] = value.substring(value.indexOf(':') + 1);
+        }
+        if (isCaching()) {
+            sequenceCache.next(Event.createAttribute(namespace, name, value));
+        }
+    }
+
+
+    private void readStartElement(int token) throws XmlPullParserException, IOException {
+        readName(token);
+        startElement(readNamespace, readName);
+        for (;;) {
+            int t = readByte();
+            if ((t & XebuConstants.TOKEN_SPACE) == XebuConstants.ATTRIBUTE_END) {
+                break;
+            } else if ((t & XebuConstants.TOKEN_SPACE) == XebuConstants.ATTRIBUTE) {
+                readAttribute(t);
+            } else {
+                throw error("Unexpected token " + t + " in attributes");
+            }
+        }
+    }
+
+
+    /*
+     * Report the end of the current element. The serializer writes an entry into the sequence
+     * cache right after the end token, or drops the element if it ends a fetched sequence, in
+     * which case the decision is repeated here.
+     */
+    private void endTag(boolean replayed) throws XmlPullParserException, IOException {
+        if (depth == 0) { throw error("End tag without start tag"); }
+        namespace = elementStack[2 * depth - 2];
+        name = elementStack[2 * depth - 1];
+        if (isCaching()) {
+            sequenceCache.next(Event.createEndElement(namespace, name));
+            if (replayed) {
+                if (sequenceCache.value() >= 0 || sequenceCache.topLength() < 0x100) {
+                    sequenceCache.end();
+                } else {
+                    sequenceCache.forget();
+                }
+            } else {
+                int t = peek();
+                if (t >= 0 && (t & XebuConstants.TOKEN_SPACE) == XebuConstants.SEQUENCE_ENTRY) {
+                    pos += 1;
+                    int value = ((t & XebuConstants.FLAG_SPACE) << 4) | readByte();
+                    // The length is implied by the events already seen
+                    readByte();
+                    if (sequenceCache.end() != value) {
+                        throw error("Sequence cache out of sync at entry " + value);
+                    }
+                } else {
+                    sequenceCache.forget();
+                }
+            }
+        }
+    }
+
+
+    private void endElement() {
+        depth -= 1;
+        namespaceCounts[depth + 1] = namespaceCounts[depth];
+    }
+
+
+    private String readText(int token) throws XmlPullParserException, IOException {
+        String result = readContent(token);
+        if ((token & XebuConstants.COALESCE_FLAG) != 0) {
+            StringBuffer sb = new StringBuffer(result);
+            for (;;) {
+                int t = readByte();
+                if ((t & XebuConstants.TOKEN_SPACE) == XebuConstants.ATTRIBUTE_END) {
+                    break;
+                } else if ((t & XebuConstants.TOKEN_SPACE) == XebuConstants.DATA_START) {
+                    sb.append(readContent(t));
+                } else {
+                    throw error("Unexpected token " + t + " in content");
+                }
+            }
+            result = sb.toString();
+        }
+        return result;
+    }
+
+
+    private int readSpecial(int token) throws XmlPullParserException, IOException {
+        int kind = token & XebuConstants.SPECIAL_MASK;
+        boolean fetch = (token & 0x80) != 0;
+        Event ev;
+        if (kind == XebuConstants.FLAG_COMMENT) {
+            text = readData();
+            ev = Event.createComment(text);
+        } else if (kind == XebuConstants.FLAG_PI) {
+            if (fetch) {
+                text = contents[readByte()];
+            } else {
+                int value = cacheContent ? readByte() : -1;
+                text = readData();
+                if (value >= 0) {
+                    contents[value] = text;
+                }
+            }
+            ev = Event.createProcessingInstruction(text);
+        } else if (kind == XebuConstants.FLAG_ENTITY) {
+            if (fetch) {
+                name = contents[readByte()];
+            } else {
+                int value = cacheItem ? readByte() : -1;
+                name = readDataEscape();
+                if (value >= 0) {
+                    contents[value] = name;
+                }
+            }
+            ev = Event.createEntityReference(name);
+        } else {
+            throw error("Unknown special token " + token);
+        }
+        if (text == null && name == null) { throw error("Unknown cached content"); }
+        if (isCaching()) {
+            sequenceCache.next(ev);
+        }
+        return eventType(ev);
+    }
+
+
+    private static int eventType(Event ev) {
+        switch (ev.getType()) {
+            case Event.COMMENT:
+                return COMMENT;
+            case Event.PROCESSING_INSTRUCTION:
+                return PROCESSING_INSTRUCTION;
+            case Event.ENTITY_REFERENCE:
+                return ENTITY_REF;
+            case Event.CONTENT:
+                return TEXT;
+            case Event.TYPED_CONTENT:
+                return OBJECT;
+            default:
+                return -1;
+        }
+    }
+
+
+    /*
+     * Read one typed value in the form written by XebuSerializer.encode.
+     */
+    private Object readTypedValue(String type) throws XmlPullParserException, IOException {
+        if ("boolean".equals(type)) {
+            return Boolean.valueOf(readByte() == 't');
+        } else if ("int".equals(type)) {
+            return Integer.valueOf(readCompressedInt());
+        } else if ("string".equals(type)) {
+            return readData();
+        } else if ("dateTime".equals(type)) {
+            Calendar c = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+            c.setTimeInMillis(readNormalLong());
+            return c;
+        } else if ("hexBinary".equals(type) || "base64Binary".equals(type)) {
+            return readBytes(readCompressedInt());
+        } else if ("long".equals(type)) {
+            return Long.valueOf(readNormalLong());
+        } else if ("short".equals(type)) {
+            return Short.valueOf((short) ((readByte() << 8) | readByte()));
+        } else if ("byte".equals(type)) {
+            return Byte.valueOf((byte) readByte());
+        } else {
+            throw error("Unknown content type " + type);
+        }
+    }
+
+
+    private String typeName(int index) throws XmlPullParserException {
+        if (typeCount == 0) { throw error("Typed content without a type"); }
+        return typeNames[Math.min(index, typeCount - 1)];
+    }
+
+
+    private int readTypedData(int token) throws XmlPullParserException, IOException {
+        if ((token & XebuConstants.TYPED_MULTIDATA_FLAG) == 0) {
+            namespace = XasUtil.XSD_NAMESPACE;
+            name = typeName(0);
+            object = readTypedValue(name);
+            if (isCaching()) {
+                sequenceCache.next(Event.createTypedContent(namespace, name, object));
+            }
+            return OBJECT;
+        }
+        // Several values are written as one string, so they are read from its bytes
+        int len = readCompressedInt();
+        byte[] data = charset == UTF8 ? readString(len).getBytes(LATIN1) : readBytes(len);
+        InputStream savedIn = in;
+        byte[] savedBuf = buf;
+        int savedPos = pos;
+        int savedLimit = limit;
+        EventList list = new EventList();
+        try {
+            in = new ByteArrayInputStream(new byte[0]);
+            buf = data;
+            pos = 0;
+            limit = data.length;
+            for (int i = 0; pos < limit; i++) {
+                String t = typeName(i);
+                list.add(Event.createTypedContent(XasUtil.XSD_NAMESPACE, t, readTypedValue(t)));
+            }
+        } finally {
+            in = savedIn;
+            buf = savedBuf;
+            pos = savedPos;
+            limit = savedLimit;
+        }
+        startReplay(list);
+        return replayEvent();
+    }
+
+
+    private void startReplay(EventSequence es) {
+        replay = es.events();
+        replayNext = replay.hasMoreElements() ? (Event) replay.nextElement() : null;
+    }
+
+
+    private Event nextReplayed() {
+        Event result = replayNext;
+        if (replay.hasMoreElements()) {
+            replayNext = (Event) replay.nextElement();
+        } else {
+            replay = null;
+            replayNext = null;
+        }
+        return result;
+    }
+
+
+    /*
+     * Report the next event from the replayed events, which must not be exhausted.
+     */
+    private int replayEvent() throws XmlPullParserException, IOException {
+        for (;;) {
+            Event ev = nextReplayed();
+            switch (ev.getType()) {
+                case Event.NAMESPACE_PREFIX:
+                    declarePrefix(ev.getNamespace(), (String) ev.getValue());
+                    break;
+                case Event.START_ELEMENT:
+                    startElement(ev.getNamespace(), ev.getName());
+                    while (replayNext != null && replayNext.getType() == Event.ATTRIBUTE) {
+                        Event att = nextReplayed();
+                        addAttribute(att.getNamespace(), att.getName(), (String) att.getValue());
+                    }
+                    return START_TAG;
+                case Event.END_ELEMENT:
+                    endTag(true);
+                    return END_TAG;
+                case Event.CONTENT: {
+                    text = (String) ev.getValue();
+                    if (isCaching()) {
+                        sequenceCache.next(ev);
+                    }
+                    if (replayNext != null && replayNext.getType() == Event.CONTENT) {
+                        StringBuffer sb = new StringBuffer(text);
+                        while (replayNext != null && replayNext.getType() == Event.CONTENT) {
+                            Event next = nextReplayed();
+                            sb.append((String) next.getValue());
+                            if (isCaching()) {
+                                sequenceCache.next(next);
+                            }
+                        }
+                        text = sb.toString();
+                    }
+                    return TEXT;
+                }
+                case Event.TYPED_CONTENT:
+                    namespace = ev.getNamespace();
+                    name = ev.getName();
+                    object = ev.getValue();
+                    if (isCaching()) {
+                        sequenceCache.next(ev);
+                    }
+                    return OBJECT;
+                case Event.COMMENT:
+                case Event.PROCESSING_INSTRUCTION:
+                    text = (String) ev.getValue();
+                    if (isCaching()) {
+                        sequenceCache.next(ev);
+                    }
+                    return eventType(ev);
+                case Event.ENTITY_REFERENCE:
+                    name = ev.getName();
+                    if (isCaching()) {
+                        sequenceCache.next(ev);
+                    }
+                    return ENTITY_REF;
+                default:
+                    throw error("Unexpected cached event " + ev);
+            }
+        }
+    }
+
+
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        if (FEATURE_PROCESS_NAMESPACES.equals(name)) {
+            if (!state) { throw error("Namespace processing cannot be turned off"); }
+        } else if (state) {
+            throw error("Feature " + name + " not supported");
+        }
+    }
+
+
+    public boolean getFeature(String name) {
+        return FEATURE_PROCESS_NAMESPACES.equals(name);
+    }
+
+
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        if (XebuConstants.PROPERTY_SEQUENCE_CACHE_DEPTH.equals(name)) {
+            if (!(value instanceof Integer)) { throw new IllegalArgumentException(
+                                                   "Element cache depth must be an Integer"); }
+            elemDepth = ((Integer) value).intValue();
+        } else {
+            throw error("Property " + name + " not supported");
+        }
+    }
+
+
+    public Object getProperty(String name) {
+        if (XebuConstants.PROPERTY_SEQUENCE_CACHE_DEPTH.equals(name)) {
+            return Integer.valueOf(elemDepth);
+        }
+        return null;
+    }
+
+
+    /**
+     * Set the input to a reader. The low byte of each character is taken as a byte of the
+     * document, so the reader should decode the document as <code>ISO-8859-1</code>.
+     */
+    public void setInput(final Reader in) throws XmlPullParserException {
+        setInput(new InputStream() {
+
+            private char[] chars = new char[0];
+
+
+            @Override
+            public int read() throws IOException {
+                int c = in.read();
+                return c < 0 ? c : c & 0xFF;
+            }
+
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (chars.length < len) {
+                    chars = new char[len];
+                }
+                int count = in.read(chars, 0, len);
+                for (int i = 0; i < count; i++) {
+                    b[off + i] = (byte) chars[i];
+                }
+                return count;
+            }
+        }, null);
+    }
+
+
+    /**
+     * Set the input to a byte stream. Xebu documents are byte streams, so the encoding is
+     * ignored.
+     */
+    public void setInput(InputStream in, String inputEncoding) throws XmlPullParserException {
+        this.in = in;
+        pos = limit = 0;
+        started = false;
+        replay = null;
+        replayNext = null;
+        type = START_DOCUMENT;
+        depth = 0;
+        namespaceCounts[0] = namespaceCounts[1] = 0;
+        attributeCount = 0;
+        namespace = name = text = null;
+        object = null;
+    }
+
+
+    /**
+     * Return the input encoding. Strings in Xebu documents are either one byte per character or
+     * UTF-8, as indicated by the document itself, so this is always <code>ISO-8859-1</code>,
+     * which reads each byte as a character.
+     */
+    public String getInputEncoding() {
+        return "ISO-8859-1";
+    }
+
+
+    public void defineEntityReplacementText(String entityName, String replacementText)
+            throws XmlPullParserException {
+        throw error("Entity replacement text not supported");
+    }
+
+
+    public int getNamespaceCount(int depth) throws XmlPullParserException {
+        if (depth > this.depth) { throw new IllegalArgumentException("Depth " + depth +
+                                                                     " larger than current"); }
+        return namespaceCounts[depth];
+    }
+
+
+    public String getNamespacePrefix(int pos) throws XmlPullParserException {
+        return namespaceStack[2 * pos + 1];
+    }
+
+
+    public String getNamespaceUri(int pos) throws XmlPullParserException {
+        return namespaceStack[2 * pos];
+    }
+
+
+    public String getNamespace(String prefix) {
+        if ("xml".equals(prefix)) {
+            return "http://www.w3.org/XML/1998/namespace";
+        } else if ("xmlns".equals(prefix)) { return "http://www.w3.org/2000/xmlns/"; }
+        for (int i = namespaceCounts[depth] - 1; i >= 0; i--) {
+            String p = namespaceStack[2 * i + 1];
+            if (prefix == null ? p == null || p.length() == 0 : prefix.equals(p)) {
+                return namespaceStack[2 * i];
+            }
+        }
+        return null;
+    }
+
+
+    private String getPrefix(String ns) {
+        if (ns == null || ns.length() == 0) { return null; }
+        for (int i = namespaceCounts[depth] - 1; i >= 0; i--) {
+            if (ns.equals(namespaceStack[2 * i])) {
+                String prefix = namespaceStack[2 * i + 1];
+                // The prefix must not be shadowed by a later declaration
+                if (ns.equals(getNamespace(prefix))) { return prefix; }
+            }
+        }
+        return null;
+    }
+
+
+    public int getDepth() {
+        return depth;
+    }
+
+
+    public String getPositionDescription() {
+        String desc = type == OBJECT ? "OBJECT" : TYPES[type];
+        return "Xebu " + desc + " at depth " + depth;
+    }
+
+
+    public int getLineNumber() {
+        return -1;
+    }
+
+
+    public int getColumnNumber() {
+        return -1;
+    }
+
+
+    public boolean isWhitespace() throws XmlPullParserException {
+        if (type != TEXT && type != IGNORABLE_WHITESPACE) { throw error("Not a text event"); }
+        for (int i = 0; i < text.length(); i++) {
+            if (" \t\r\n".indexOf(text.charAt(i)) < 0) { return false; }
+        }
+        return true;
+    }
+
+
+    public String getText() {
+        if (type == ENTITY_REF) {
+            return null;
+        } else if (type == OBJECT) { return lexicalForm(object); }
+        return text;
+    }
+
+
+    /*
+     * The lexical form of a typed value, as written by XmlSchemaContentEncoder.
+     */
+    private static String lexicalForm(Object o) {
+        if (o instanceof Calendar) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format.format(((Calendar) o).getTime());
+        } else if (o instanceof byte[]) { return new String(Base64.encode((byte[]) o)); }
+        return String.valueOf(o);
+    }
+
+
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        String t = getText();
+        if (t == null) {
+            holderForStartAndLength[0] = holderForStartAndLength[1] = -1;
+            return null;
+        }
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = t.length();
+        return t.toCharArray();
+    }
+
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    public String getPrefix() {
+        return type == START_TAG || type == END_TAG ? getPrefix(namespace) : null;
+    }
+
+
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        if (type != START_TAG) { throw error("Not a start tag"); }
+        return false;
+    }
+
+
+    public int getAttributeCount() {
+        return type == START_TAG ? attributeCount : -1;
+    }
+
+
+    private void checkAttribute(int index) {
+        if (type != START_TAG || index < 0 || index >= attributeCount) {
+            throw new IndexOutOfBoundsException("No attribute " + index);
+        }
+    }
+
+
+    public String getAttributeNamespace(int index) {
+        checkAttribute(index);
+        return attributes[3 * index];
+    }
+
+
+    public String getAttributeName(int index) {
+        checkAttribute(index);
+        return attributes[3 * index + 1];
+    }
+
+
+    public String getAttributePrefix(int index) {
+        checkAttribute(index);
+        return getPrefix(attributes[3 * index]);
+    }
+
+
+    public String getAttributeType(int index) {
+        checkAttribute(index);
+        return "CDATA";
+    }
+
+
+    public boolean isAttributeDefault(int index) {
+        checkAttribute(index);
+        return false;
+    }
+
+
+    public String getAttributeValue(int index) {
+        checkAttribute(index);
+        return attributes[3 * index + 2];
+    }
+
+
+    public String getAttributeValue(String namespace, String name) {
+        if (type != START_TAG) { throw new IndexOutOfBoundsException("Not a start tag"); }
+        for (int i = 0; i < attributeCount; i++) {
+            if (attributes[3 * i + 1].equals(name) &&
+                (namespace == null || namespace.equals(attributes[3 * i]))) {
+                return attributes[3 * i + 2];
+            }
+        }
+        return null;
+    }
+
+
+    public int getEventType() throws XmlPullParserException {
+        return type;
+    }
+
+
+    public Object getObject() {
+        return type == OBJECT ? object : getText();
+    }
+
+
+    public int nextToken() throws XmlPullParserException, IOException {
+        if (type == END_DOCUMENT) { return type; }
+        if (type == END_TAG) {
+            endElement();
+        }
+        if (!started) {
+            readDocumentStart();
+        }
+        namespace = name = text = null;
+        object = null;
+        attributeCount = 0;
+        if (replay != null) { return type = replayEvent(); }
+        for (;;) {
+            int token = read();
+            if (token < 0) {
+                if (depth > 0) { throw error("Unexpected end of document"); }
+                return type = END_DOCUMENT;
+            }
+            switch (token & XebuConstants.TOKEN_SPACE) {
+                case XebuConstants.NAMESPACE_START:
+                    readName(token);
+                    declarePrefix(readNamespace, readName);
+                    break;
+                case XebuConstants.ELEMENT_START:
+                    readStartElement(token);
+                    return type = START_TAG;
+                case XebuConstants.ELEMENT_END:
+                    endTag(false);
+                    return type = END_TAG;
+                case XebuConstants.DATA_START:
+                    text = readText(token);
+                    return type = TEXT;
+                case XebuConstants.SPECIAL:
+                    return type = readSpecial(token);
+                case XebuConstants.SEQUENCE_FETCH: {
+                    int value = ((token & XebuConstants.FLAG_SPACE) << 4) | readByte();
+                    EventSequence es = sequenceCache.fetch(value);
+                    if (es == null) { throw error("Unknown cached sequence " + value); }
+                    startReplay(es);
+                    return type = replayEvent();
+                }
+                case XebuConstants.TYPED_DATA:
+                    return type = readTypedData(token);
+                default:
+                    throw error("Unknown token " + token);
+            }
+        }
+    }
+
+
+    public int next() throws XmlPullParserException, IOException {
+        StringBuffer sb = null;
+        for (;;) {
+            int t = nextToken();
+            if (t == ENTITY_REF) {
+                String value = resolveEntity(name);
+                if (value == null) { throw error("Unresolved entity " + name); }
+                text = value;
+                t = TEXT;
+            }
+            if (t == COMMENT || t == PROCESSING_INSTRUCTION) {
+                continue;
+            } else if (t == TEXT) {
+                if (sb == null) {
+                    sb = new StringBuffer();
+                }
+                sb.append(text);
+                // Skip comments and processing instructions to see whether text continues
+                while (peekText(false)) {
+                    nextToken();
+                }
+                if (peekText(true)) {
+                    continue;
+                }
+                text = sb.toString();
+                name = null;
+                return type = TEXT;
+            } else {
+                return t;
+            }
+        }
+    }
+
+
+    private static String resolveEntity(String name) {
+        if ("amp".equals(name)) {
+            return "&";
+        } else if ("lt".equals(name)) {
+            return "<";
+        } else if ("gt".equals(name)) {
+            return ">";
+        } else if ("quot".equals(name)) {
+            return "\"";
+        } else if ("apos".equals(name)) { return "'"; }
+        return null;
+    }
+
+
+    /*
+     * Whether the next event is text or an entity reference, or a comment or a processing
+     * instruction if text is false.
+     */
+    private boolean peekText(boolean text) throws IOException {
+        int t;
+        if (replay != null) {
+            t = eventType(replayNext);
+        } else {
+            t = peek();
+            if (t < 0) { return false; }
+            if ((t & XebuConstants.TOKEN_SPACE) == XebuConstants.DATA_START) {
+                t = TEXT;
+            } else if ((t & XebuConstants.TOKEN_SPACE) == XebuConstants.SPECIAL) {
+                int kind = t & XebuConstants.SPECIAL_MASK;
+                t = kind == XebuConstants.FLAG_ENTITY ? ENTITY_REF
+                        : kind == XebuConstants.FLAG_COMMENT ? COMMENT : PROCESSING_INSTRUCTION;
+            } else {
+                t = -1;
+            }
+        }
+        if (text) {
+            return t == TEXT || t == ENTITY_REF;
+        } else {
+            return t == COMMENT || t == PROCESSING_INSTRUCTION;
+        }
+    }
+
+
+    public void require(int type, String namespace, String name) throws XmlPullParserException,
+            IOException {
+        if (type != this.type || (namespace != null && !namespace.equals(getNamespace())) ||
+            (name != null && !name.equals(getName()))) {
+            throw error("Expected " + TYPES[type] + " {" + namespace + "}" + name);
+        }
+    }
+
+
+    public String nextText() throws XmlPullParserException, IOException {
+        if (type != START_TAG) { throw error("Not at a start tag"); }
+        String result = "";
+        if (next() == TEXT) {
+            result = getText();
+            next();
+        }
+        if (type != END_TAG) { throw error("Text must end with an end tag"); }
+        return result;
+    }
+
+
+    public int nextTag() throws XmlPullParserException, IOException {
+        int t = next();
+        if (t == TEXT && isWhitespace()) {
+            t = next();
+        }
+        if (t != START_TAG && t != END_TAG) { throw error("Expected start or end tag"); }
+        return t;
+    }
+
+}
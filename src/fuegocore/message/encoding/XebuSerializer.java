@@ -11,8 +11,8 @@ package fuegocore.message.encoding;
 
 import java.io.Writer;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
 import java.util.Calendar;
 
 import org.xmlpull.v1.XmlSerializer;
@@ -28,16 +28,25 @@ import fuegocore.util.xas.XasUtil;
  * in the Xebu specification. The parsing interface is {@link TypedXmlSerializer}, an extension to
  * XmlPull's <code>XmlSerializer</code>. The parser implements all caching features of the Xebu
  * format, each of which can be turned on or off with the use of {@link #setFeature}.
+ *
+ * <p>
+ * The serializer encodes the document as bytes into a reusable buffer that is written out on
+ * {@link #flush}. The output can be an <code>OutputStream</code>, a
+ * <code>WritableByteChannel</code>, or for compatibility a <code>Writer</code>, which receives
+ * each byte as the character of the same value.
  */
 public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
 
     private boolean cacheItem = true;
     private boolean cacheContent = false;
     private boolean cacheSequence = false;
+    private boolean utf8Strings = false;
 
     private Writer writer;
-    private StringBuffer buffer = new StringBuffer();
-    private StringBuffer typedData = new StringBuffer();
+    private OutputStream stream;
+    private WritableByteChannel channel;
+    private XebuBuffer buffer = new XebuBuffer(1024);
+    private XebuBuffer typedData = new XebuBuffer(64);
     private boolean isMultiData = false;
     private int depth = 0;
     private int elemDepth = 1;
@@ -65,42 +74,9 @@ public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
     private boolean isPrimitive = false;
 
 
-    private boolean isAcceptable(char c) {
-        return c < 0x100;
-    }
-
-
-    private boolean isAcceptable(char[] c, int offset, int length) {
-        for (int i = 0; i < length; i++) {
-            if (!isAcceptable(c[offset + i])) { return false; }
-        }
-        return true;
-    }
-
-
-    private void put(char c) throws IOException {
-        // assert isAcceptable(c) : "Invalid character value: " + (int) c;
-        buffer.append(c);
-    }
-
-
     private void put(int i) throws IOException {
         // assert 0 <= i && i < 0x100 : "Invalid int value: " + i;
-        put((char) i);
-    }
-
-
-    private void put(char[] c, int offset, int length) {
-        // assert isAcceptable(c, offset, length) : "Invalid characters in "
-        // + new String(c, offset, length);
-        buffer.append(c, offset, length);
-    }
-
-
-    private void put(String s) throws IOException {
-        // assert isAcceptable(s.toCharArray(), 0, s.length()) : "Invalid "
-        // + "characters in " + s;
-        buffer.append(s);
+        buffer.put(i);
     }
 
 
@@ -205,17 +181,16 @@ public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
 
 
     private void putData(String data) throws IOException {
-        char[] len = XebuUtil.putCompressedInt(data.length());
-        put(len, 0, len.length);
-        put(data);
+        buffer.putCompressedInt(XebuBuffer.encodedLength(data, utf8Strings));
+        buffer.putString(data, utf8Strings);
     }
 
 
     private void putDataEscape(String data) throws IOException {
-        int len = data.length();
+        int len = XebuBuffer.encodedLength(data, utf8Strings);
         if (len < 256) {
             put(len);
-            put(data);
+            buffer.putString(data, utf8Strings);
         } else {
             throw new IOException("Name " + data + " too long");
         }
@@ -275,8 +250,6 @@ public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
 
     private void putTypedData() throws IOException {
         if (typedData.length() > 0) {
-            String data = typedData.toString();
-            typedData.setLength(0);
             int token = XebuConstants.TYPED_DATA;
             if (isMultiData) {
                 token |= XebuConstants.TYPED_MULTIDATA_FLAG;
@@ -291,13 +264,15 @@ public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
              * insertIntoCache(XebuConstants.CONTENT_INDEX, data); put(value); }
              */
             if (isMultiData) {
-                putData(data);
+                buffer.putCompressedInt(typedData.encodedLength(utf8Strings));
+                buffer.putBytes(typedData, utf8Strings);
             } else {
-                put(data);
+                buffer.putBytes(typedData, false);
             }
             /*
              * }
              */
+            typedData.setLength(0);
             isMultiData = false;
         }
     }
@@ -427,6 +402,9 @@ public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
         } else if (XebuConstants.FEATURE_SEQUENCE_CACHING.equals(name)) {
             checkInProgress();
             cacheSequence = state;
+        } else if (XebuConstants.FEATURE_UTF8_STRINGS.equals(name)) {
+            checkInProgress();
+            utf8Strings = state;
         } else {
             throw new IllegalStateException("Feature " + name + " not supported");
         }
@@ -441,6 +419,8 @@ public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
             result = cacheContent;
         } else if (XebuConstants.FEATURE_SEQUENCE_CACHING.equals(name)) {
             result = cacheSequence;
+        } else if (XebuConstants.FEATURE_UTF8_STRINGS.equals(name)) {
+            result = utf8Strings;
         }
         return result;
     }
@@ -523,17 +503,34 @@ public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
     }
 
 
+    /**
+     * Set the output stream of the serializer. Xebu documents are binary, so the bytes are written
+     * to the stream as such and the encoding is ignored.
+     */
     public void setOutput(OutputStream os, String encoding) throws IOException {
-        if (encoding != null) {
-            setOutput(new OutputStreamWriter(os, encoding));
-        } else {
-            setOutput(new OutputStreamWriter(os));
-        }
+        this.stream = os;
+        this.writer = null;
+        this.channel = null;
     }
 
 
     public void setOutput(Writer writer) {
         this.writer = writer;
+        this.stream = null;
+        this.channel = null;
+    }
+
+
+    /**
+     * Set a channel as the output of the serializer. The buffered bytes are written to the channel
+     * directly on each {@link #flush}.
+     *
+     * @param channel the channel to write the document to
+     */
+    public void setOutput(WritableByteChannel channel) {
+        this.channel = channel;
+        this.writer = null;
+        this.stream = null;
     }
 
 
@@ -549,6 +546,9 @@ public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
         if (cacheSequence) {
             flag |= XebuConstants.FLAG_SEQUENCE_CACHING;
         }
+        if (utf8Strings) {
+            flag |= XebuConstants.FLAG_UTF8_STRINGS;
+        }
         put(XebuConstants.DOCUMENT | flag);
     }
 
@@ -668,6 +668,9 @@ public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
                             break;
                         }
                     }
+                } else {
+                    // Close the sequence like parsers do when no entry follows the end tag
+                    sequenceCache.forget();
                 }
             } else if (len < 0x100 && eoa.isInitialState()) {
                 // assert value >= 0 && value <
@@ -795,12 +798,23 @@ public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
 
 
     public void flush() throws IOException {
-        if (writer != null) {
+        if (writer != null || stream != null || channel != null) {
             if (cacheSequence) {
                 validIndex = sequenceSize;
+                // Inserts already written out can no longer be cancelled by a fetch
+                for (int i = 0; i < tsp; i++) {
+                    tentativeValues[3 * i + 1] = -1;
+                }
+            }
+            if (stream != null) {
+                buffer.writeTo(stream);
+                stream.flush();
+            } else if (channel != null) {
+                buffer.writeTo(channel);
+            } else {
+                buffer.writeTo(writer);
+                writer.flush();
             }
-            writer.write(buffer.toString());
-            writer.flush();
             buffer.setLength(0);
         }
     }
@@ -818,51 +832,52 @@ public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
                     if (name.equals("boolean")) {
                         Boolean b = (Boolean) o;
                         if (b != null) {
-                            typedData.append(b.booleanValue() ? "t" : "f");
+                            typedData.put(b.booleanValue() ? 't' : 'f');
                             result = true;
                         }
                     } else if (name.equals("int")) {
                         Integer i = (Integer) o;
                         if (i != null) {
-                            typedData.append(XebuUtil.putCompressedInt(i.intValue()));
+                            typedData.putCompressedInt(i.intValue());
                             result = true;
                         }
                     } else if (name.equals("string")) {
                         String s = (String) o;
                         if (s != null) {
-                            typedData.append(XebuUtil.putCompressedInt(s.length()));
-                            typedData.append(s);
+                            typedData.putCompressedInt(XebuBuffer.encodedLength(s,
+                                                                                utf8Strings));
+                            typedData.putString(s, utf8Strings);
                             result = true;
                         }
                     } else if (name.equals("dateTime")) {
                         Calendar c = (Calendar) o;
                         if (c != null) {
-                            typedData.append(XebuUtil.putNormalLong(c.getTime().getTime()));
+                            typedData.putNormalLong(c.getTime().getTime());
                             result = true;
                         }
                     } else if (name.equals("hexBinary") || name.equals("base64Binary")) {
                         byte[] b = (byte[]) o;
                         if (b != null) {
-                            typedData.append(XebuUtil.putCompressedInt(b.length));
-                            typedData.append(new String(b, "ISO-8859-1"));
+                            typedData.putCompressedInt(b.length);
+                            typedData.put(b, 0, b.length);
                             result = true;
                         }
                     } else if (name.equals("long")) {
                         Long l = (Long) o;
                         if (l != null) {
-                            typedData.append(XebuUtil.putNormalLong(l.longValue()));
+                            typedData.putNormalLong(l.longValue());
                             result = true;
                         }
                     } else if (name.equals("short")) {
                         Short s = (Short) o;
                         if (s != null) {
-                            typedData.append(XebuUtil.putNormalShort(s.shortValue()));
+                            typedData.putNormalShort(s.shortValue());
                             result = true;
                         }
                     } else if (name.equals("byte")) {
                         Byte b = (Byte) o;
                         if (b != null) {
-                            typedData.append(new String(new byte[] { b.byteValue() }, "ISO-8859-1"));
+                            typedData.put(b.byteValue());
                             result = true;
                         }
                     }
@@ -871,7 +886,7 @@ public class XebuSerializer implements TypedXmlSerializer, ContentEncoder {
                     String prefix = ser.getPrefix(namespace, false);
                     ser.attribute(XasUtil.XSI_NAMESPACE, "type", prefix + ":" + name);
                     // System.out.println("Typed data currently: "
-                    // + Util.toPrintable(typedData.toString()));
+                    // + typedData.length() + " bytes");
                     isPrimitive = true;
                 }
             }
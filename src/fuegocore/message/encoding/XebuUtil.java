@@ -12,7 +12,7 @@ package fuegocore.message.encoding;
 /**
  * General utilities used by Xebu processors. This class collects static methods to be used when
  * encoding and decoding the Xebu format. Mostly this includes ways of encoding specific data types
- * to arrays of characters.
+ * to arrays of characters or bytes.
  */
 public class XebuUtil {
 
@@ -163,6 +163,84 @@ public class XebuUtil {
     }
 
 
+    /**
+     * Encode a short integer into a byte array. This method puts the two bytes of the given
+     * <code>short</code> into the given array starting at the given index.
+     * @param s
+     *            the <code>short</code> to encode
+     * @param target
+     *            the array to encode <code>s</code> into
+     * @param offset
+     *            the first index in <code>target</code> of the encoded result
+     */
+    public static void putNormalShort(short s, byte[] target, int offset) {
+        target[offset] = (byte) (s >>> 8);
+        target[offset + 1] = (byte) s;
+    }
+
+
+    /**
+     * Encode an integer into a byte array. This method puts the four bytes of the given
+     * <code>int</code> into the given array starting at the given index.
+     * @param i
+     *            the <code>int</code> to encode
+     * @param target
+     *            the array to encode <code>i</code> into
+     * @param offset
+     *            the first index in <code>target</code> of the encoded result
+     */
+    public static void putNormalInt(int i, byte[] target, int offset) {
+        target[offset] = (byte) (i >>> 24);
+        target[offset + 1] = (byte) (i >>> 16);
+        target[offset + 2] = (byte) (i >>> 8);
+        target[offset + 3] = (byte) i;
+    }
+
+
+    /**
+     * Encode a long integer into a byte array. This method puts the eight bytes of the given
+     * <code>long</code> into the given array starting at the given index.
+     * @param l
+     *            the <code>long</code> to encode
+     * @param target
+     *            the array to encode <code>l</code> into
+     * @param offset
+     *            the first index in <code>target</code> of the encoded result
+     */
+    public static void putNormalLong(long l, byte[] target, int offset) {
+        putNormalInt((int) (l >>> 32), target, offset);
+        putNormalInt((int) l, target, offset + 4);
+    }
+
+
+    /**
+     * Encode an integer in compressed format into a byte array. This method puts the given
+     * <code>int</code> into the given array starting at the given index, using the same 1, 2, or 5
+     * bytes as {@link #putCompressedInt(int, char[], int)}.
+     * @param i
+     *            the <code>int</code> to encode
+     * @param target
+     *            the array to encode <code>i</code> into
+     * @param offset
+     *            the first index in <code>target</code> of the encoded result
+     * @return the number of bytes written
+     */
+    public static int putCompressedInt(int i, byte[] target, int offset) {
+        if (i >= 0 && i < 0x80) {
+            target[offset] = (byte) i;
+            return 1;
+        } else if (i >= 0x80 && i < 0x4000) {
+            target[offset] = (byte) (0x80 | (i >>> 8));
+            target[offset + 1] = (byte) i;
+            return 2;
+        } else {
+            target[offset] = (byte) 0xC0;
+            putNormalInt(i, target, offset + 1);
+            return 5;
+        }
+    }
+
+
     /**
      * Decode a short integer from a character array. This method reads two bytes from the given
      * character array and constructs a <code>short</code> from them.
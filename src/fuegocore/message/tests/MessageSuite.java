@@ -28,6 +28,7 @@ public class MessageSuite extends TestCase {
         TestSuite suite = new TestSuite();
 
         suite.addTestSuite(CacheTest.class);
+        suite.addTestSuite(XebuParserTest.class);
 
         return suite;
     }
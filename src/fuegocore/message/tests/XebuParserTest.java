@@ -0,0 +1,292 @@
+/*
+ * Copyright 2006 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware. Fuego middleware is free software; you can redistribute
+ * it and/or modify it under the terms of the MIT license, included as the file MIT-LICENSE in the
+ * Fuego middleware source distribution. If you did not receive the MIT license with the
+ * distribution, write to the Fuego Core project at fuego-core-users@hoslab.cs.helsinki.fi.
+ */
+
+package fuegocore.message.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import fuegocore.message.encoding.XebuConstants;
+import fuegocore.message.encoding.XebuParser;
+import fuegocore.message.encoding.XebuSerializer;
+import fuegocore.util.xas.TypedXmlParser;
+import fuegocore.util.xas.XasUtil;
+
+/**
+ * Test the Xebu parser. This class is a set of JUnit test cases that encode documents with
+ * {@link XebuSerializer} and check that {@link XebuParser} reads back the same documents.
+ */
+public class XebuParserTest extends TestCase {
+
+    private static final String[][] FEATURES = {
+        {},
+        { XebuConstants.FEATURE_ITEM_CACHING },
+        { XebuConstants.FEATURE_ITEM_CACHING, XebuConstants.FEATURE_CONTENT_CACHING },
+        { XebuConstants.FEATURE_ITEM_CACHING, XebuConstants.FEATURE_CONTENT_CACHING,
+         XebuConstants.FEATURE_SEQUENCE_CACHING },
+        { XebuConstants.FEATURE_SEQUENCE_CACHING, XebuConstants.FEATURE_UTF8_STRINGS } };
+
+
+    public XebuParserTest(String name) {
+        super(name);
+    }
+
+
+    /**
+     * Test that documents survive encoding with each combination of caches. The documents repeat
+     * subtrees often and have more distinct subtrees than fit in the sequence cache, so the
+     * parser needs to track the sequence cache of the serializer exactly.
+     */
+    public void testRoundTrip() throws Exception {
+        Random rnd = new Random(4711);
+        for (int i = 0; i < FEATURES.length; i++) {
+            String doc = randomDocument(rnd, 20000);
+            String expected = dump(xmlParser(doc));
+            for (int flush = 0; flush < 2; flush++) {
+                byte[] xebu = encode(doc, FEATURES[i], flush > 0 ? 997 : 0);
+                XebuParser parser = new XebuParser();
+                parser.setInput(new ByteArrayInputStream(xebu), null);
+                assertEquals("Features " + i + (flush > 0 ? " with flushes" : ""), expected,
+                             dump(parser));
+            }
+        }
+    }
+
+
+    /**
+     * Test that typed content is decoded into the same objects that were encoded.
+     */
+    public void testTypedContent() throws Exception {
+        Calendar date = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        date.setTimeInMillis(1199145600123L);
+        Object[] objects = { Boolean.TRUE, Integer.valueOf(-5), Integer.valueOf(300),
+                            "\u00e5\u20ac", date, Long.valueOf(-1L << 40),
+                            Short.valueOf((short) -2), Byte.valueOf((byte) 0x80) };
+        String[] types = { "boolean", "int", "int", "string", "dateTime", "long", "short", "byte" };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XebuSerializer ser = new XebuSerializer();
+        ser.setFeature(XebuConstants.FEATURE_SEQUENCE_CACHING, true);
+        ser.setFeature(XebuConstants.FEATURE_UTF8_STRINGS, true);
+        ser.setOutput(out, "ISO-8859-1");
+        ser.startDocument(null, null);
+        ser.setPrefix("xsd", XasUtil.XSD_NAMESPACE);
+        ser.setPrefix("xsi", XasUtil.XSI_NAMESPACE);
+        ser.startTag("", "values");
+        // Write each value twice to have the second one fetched from the sequence cache
+        for (int i = 0; i < 2 * objects.length; i++) {
+            ser.startTag("", "v");
+            ser.typedContent(objects[i / 2], XasUtil.XSD_NAMESPACE, types[i / 2]);
+            ser.endTag("", "v");
+        }
+        ser.endTag("", "values");
+        ser.endDocument();
+        XebuParser parser = new XebuParser();
+        parser.setInput(new ByteArrayInputStream(out.toByteArray()), null);
+        parser.nextTag();
+        for (int i = 0; i < 2 * objects.length; i++) {
+            assertEquals(XmlPullParser.START_TAG, parser.nextTag());
+            assertEquals(TypedXmlParser.OBJECT, parser.next());
+            assertEquals(types[i / 2], parser.getName());
+            assertEquals(objects[i / 2], parser.getObject());
+            assertEquals(XmlPullParser.END_TAG, parser.next());
+        }
+    }
+
+
+    /**
+     * Test that writing to a channel produces the same bytes as writing to a stream, and that
+     * names are limited by their encoded length.
+     */
+    public void testChannelOutput() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        for (int i = 0; i < 2; i++) {
+            XebuSerializer ser = new XebuSerializer();
+            ser.setFeature(XebuConstants.FEATURE_UTF8_STRINGS, true);
+            if (i == 0) {
+                ser.setOutput(expected, null);
+            } else {
+                ser.setOutput(Channels.newChannel(actual));
+            }
+            ser.startDocument(null, null);
+            ser.startTag("", "\u00e4\u20ac");
+            ser.text("\u00e5\ud83d\ude00");
+            ser.flush();
+            ser.endTag("", "\u00e4\u20ac");
+            ser.endDocument();
+        }
+        assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+        XebuParser parser = new XebuParser();
+        parser.setInput(new ByteArrayInputStream(actual.toByteArray()), null);
+        assertEquals(XmlPullParser.START_TAG, parser.next());
+        assertEquals("\u00e4\u20ac", parser.getName());
+        assertEquals(XmlPullParser.TEXT, parser.next());
+        assertEquals("\u00e5\ud83d\ude00", parser.getText());
+        XebuSerializer ser = new XebuSerializer();
+        ser.setFeature(XebuConstants.FEATURE_UTF8_STRINGS, true);
+        ser.setOutput(new ByteArrayOutputStream(), null);
+        ser.startDocument(null, null);
+        StringBuffer name = new StringBuffer();
+        for (int i = 0; i < 128; i++) {
+            name.append('\u00e4');
+        }
+        try {
+            ser.startTag("", name.toString());
+            fail("Name of 256 bytes accepted");
+        } catch (IOException ex) {
+        }
+    }
+
+
+    private static String randomDocument(Random rnd, int elements) {
+        StringBuffer sb = new StringBuffer();
+        sb.append("<root xmlns:p='urn:p'>");
+        for (int n = 0; n < elements;) {
+            n += randomElement(rnd, sb, 0);
+        }
+        sb.append("</root>");
+        return sb.toString();
+    }
+
+
+    private static int randomElement(Random rnd, StringBuffer sb, int depth) {
+        String name = (rnd.nextInt(3) == 0 ? "p:" : "") + "e" + rnd.nextInt(4);
+        sb.append('<').append(name);
+        if (rnd.nextInt(3) == 0) {
+            sb.append(" a='").append(rnd.nextInt(depth == 0 ? 5000 : 3)).append('\'');
+        }
+        if (rnd.nextInt(8) == 0) {
+            sb.append(" xmlns:q='urn:q").append(rnd.nextInt(2)).append("' q:b='x'");
+        }
+        sb.append('>');
+        int count = 1;
+        int children = depth < 3 ? rnd.nextInt(4) : 0;
+        for (int i = 0; i < children; i++) {
+            switch (rnd.nextInt(6)) {
+                case 0:
+                    sb.append("t").append(rnd.nextInt(3)).append(" &amp; \u00e4");
+                    break;
+                case 1:
+                    sb.append("<!--c-->");
+                    break;
+                case 2:
+                    sb.append("<?pi d?>");
+                    break;
+                default:
+                    count += randomElement(rnd, sb, depth + 1);
+            }
+        }
+        sb.append("</").append(name).append('>');
+        return count;
+    }
+
+
+    private static XmlPullParser xmlParser(String doc) throws XmlPullParserException {
+        XmlPullParser parser = new KXmlParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(doc));
+        return parser;
+    }
+
+
+    private static byte[] encode(String doc, String[] features, int flushInterval)
+            throws Exception {
+        XmlPullParser parser = xmlParser(doc);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XebuSerializer ser = new XebuSerializer();
+        ser.setFeature(XebuConstants.FEATURE_ITEM_CACHING, false);
+        for (int i = 0; i < features.length; i++) {
+            ser.setFeature(features[i], true);
+        }
+        ser.setOutput(out, "ISO-8859-1");
+        ser.startDocument(null, null);
+        int events = 0;
+        for (int t = parser.nextToken(); t != XmlPullParser.END_DOCUMENT; t = parser.nextToken()) {
+            switch (t) {
+                case XmlPullParser.START_TAG: {
+                    int start = parser.getNamespaceCount(parser.getDepth() - 1);
+                    int end = parser.getNamespaceCount(parser.getDepth());
+                    for (int i = start; i < end; i++) {
+                        ser.setPrefix(parser.getNamespacePrefix(i), parser.getNamespaceUri(i));
+                    }
+                    ser.startTag(parser.getNamespace(), parser.getName());
+                    for (int i = 0; i < parser.getAttributeCount(); i++) {
+                        ser.attribute(parser.getAttributeNamespace(i), parser.getAttributeName(i),
+                                      parser.getAttributeValue(i));
+                    }
+                    break;
+                }
+                case XmlPullParser.END_TAG:
+                    ser.endTag(parser.getNamespace(), parser.getName());
+                    break;
+                case XmlPullParser.TEXT:
+                    ser.text(parser.getText());
+                    break;
+                case XmlPullParser.ENTITY_REF:
+                    ser.entityRef(parser.getName());
+                    break;
+                case XmlPullParser.COMMENT:
+                    ser.comment(parser.getText());
+                    break;
+                case XmlPullParser.PROCESSING_INSTRUCTION:
+                    ser.processingInstruction(parser.getText());
+                    break;
+                default:
+                    break;
+            }
+            if (flushInterval > 0 && ++events % flushInterval == 0) {
+                ser.flush();
+            }
+        }
+        ser.endDocument();
+        return out.toByteArray();
+    }
+
+
+    private static String dump(XmlPullParser parser) throws IOException, XmlPullParserException {
+        StringBuffer sb = new StringBuffer();
+        for (int t = parser.next(); t != XmlPullParser.END_DOCUMENT; t = parser.next()) {
+            switch (t) {
+                case XmlPullParser.START_TAG:
+                    sb.append("<{").append(parser.getNamespace()).append('}');
+                    sb.append(parser.getName());
+                    for (int i = 0; i < parser.getAttributeCount(); i++) {
+                        sb.append(" {").append(parser.getAttributeNamespace(i)).append('}');
+                        sb.append(parser.getAttributeName(i)).append('=');
+                        sb.append(parser.getAttributeValue(i));
+                    }
+                    sb.append(" ns=").append(parser.getNamespace("q")).append(">\n");
+                    break;
+                case XmlPullParser.END_TAG:
+                    sb.append("</").append(parser.getName()).append(">\n");
+                    break;
+                case XmlPullParser.TEXT:
+                    sb.append(parser.getText()).append('\n');
+                    break;
+                default:
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+}
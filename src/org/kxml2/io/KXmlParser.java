@@ -29,8 +29,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -96,7 +98,7 @@ public class KXmlParser implements XmlPullParser {
     private char[] srcBuf; // repos = reset
 
     // ctl: base position(chars) of srcBuf
-    private int srcBase; // repos=reset to 0
+    private long srcBase; // repos=reset to 0
     // Note: after repos, we do not now the true charpos,
     // as we dont now how maany chars wwould have been
     // decoded when reading up to streampos
@@ -118,10 +120,10 @@ public class KXmlParser implements XmlPullParser {
     // Event-related
 
     private int type; // repos=reset
-    private int readerPos = 0; // repos->no longer valid
-    private int streamPos = 0; // repos=set toi stream
-    private int prevPos = -1; // streamPos before last nextToken
-    private int reposOffSp = 0; // Offset in stream after repos
+    private long readerPos = 0; // repos->no longer valid
+    private long streamPos = 0; // repos=set toi stream
+    private long prevPos = -1; // streamPos before last nextToken
+    private long reposOffSp = 0; // Offset in stream after repos
 
     // private String text;
     private boolean isWhitespace; // repos=reset
@@ -1298,12 +1300,12 @@ public class KXmlParser implements XmlPullParser {
     }
 
 
-    public int getCharPos() {
+    public long getCharPos() {
         return readerPos;
     }
 
 
-    public int getStreamPos() {
+    public long getStreamPos() {
         if (type == START_DOCUMENT) {
             return -1;
         } else {
@@ -1312,7 +1314,7 @@ public class KXmlParser implements XmlPullParser {
     }
 
 
-    public int getPrevPos() {
+    public long getPrevPos() {
         return prevPos + reposOffSp;
     }
 
@@ -1475,11 +1477,18 @@ public class KXmlParser implements XmlPullParser {
                 System.arraycopy(nspCounts, 0, bigger, 0, nspCounts.length);
                 nspCounts = bigger;
             }
+            // Prefixes are listed innermost first, but nspStack is searched
+            // from the top, so push them outermost first
+            List<PrefixNode> pns = new ArrayList<PrefixNode>();
+            for (Iterator<PrefixNode> it = context.allPrefixes(); it.hasNext();) {
+                pns.add(it.next());
+            }
             int i = 0;
-            for (Iterator<PrefixNode> it = context.allPrefixes(); it.hasNext(); i++) {
-                PrefixNode pn = it.next();
+            for (; i < pns.size(); i++) {
+                PrefixNode pn = pns.get(pns.size() - 1 - i);
                 nspStack = ensureCapacity(nspStack, 2 * (i + 1));
-                nspStack[2 * i] = pn.getPrefix();
+                // The default namespace has a null prefix in nspStack
+                nspStack[2 * i] = pn.getPrefix().length() > 0 ? pn.getPrefix() : null;
                 nspStack[2 * i + 1] = pn.getNamespace();
             }
             nspCounts[1] = i;
@@ -1495,7 +1504,7 @@ public class KXmlParser implements XmlPullParser {
         // anyone asks
         readerPos = 0; // Integer.MIN_VALUE; //repos->no longer valid
         this.streamPos = 0; // (int) streamPos; //repos=set toi stream
-        reposOffSp = (int) streamPos;
+        reposOffSp = streamPos;
         degenerated = false;
         stackMismatch = 0;
         error = null;